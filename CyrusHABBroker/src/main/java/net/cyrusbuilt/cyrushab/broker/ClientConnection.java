@@ -0,0 +1,244 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One client's network connection: the channel, the bytes read but not yet framed into packets, and the packets
+ * waiting to be written. Only ever touched by the broker's I/O thread.
+ */
+final class ClientConnection {
+    /**
+     * How many bytes may be waiting to be written before QoS 0 messages to the client are dropped instead of queued.
+     */
+    static final int MAX_QOS0_BACKLOG = 4 * 1024 * 1024;
+
+    private static final int INITIAL_READ_BUFFER = 8192;
+
+    private final SocketChannel _channel;
+    private final SelectionKey _key;
+    private final ArrayDeque<ByteBuffer> _out = new ArrayDeque<>();
+    private ByteBuffer _in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private long _backlog = 0;
+    private long _lastActivity;
+    private int _keepAlive = 0;
+    private Session _session = null;
+    private Message _will = null;
+    private boolean _closeWhenFlushed = false;
+
+    /**
+     * Constructs a new instance of {@link ClientConnection}.
+     * @param channel The client's channel, in non-blocking mode.
+     * @param key The channel's registration with the broker's selector.
+     */
+    ClientConnection(@NotNull SocketChannel channel, @NotNull SelectionKey key) {
+        _channel = channel;
+        _key = key;
+        _lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Gets the session the client connected with.
+     * @return The session, or null if the client hasn't sent CONNECT yet.
+     */
+    @Nullable
+    Session session() {
+        return _session;
+    }
+
+    /**
+     * Sets the session the client connected with.
+     * @param session The session.
+     */
+    void setSession(@NotNull Session session) {
+        _session = session;
+    }
+
+    /**
+     * Gets the message to publish if the connection is lost without the client sending DISCONNECT.
+     * @return The will message, or null if there is none.
+     */
+    @Nullable
+    Message will() {
+        return _will;
+    }
+
+    /**
+     * Sets the message to publish if the connection is lost without the client sending DISCONNECT.
+     * @param will The will message, or null for none.
+     */
+    void setWill(@Nullable Message will) {
+        _will = will;
+    }
+
+    /**
+     * Sets the longest the client may stay silent, after which the connection is considered lost.
+     * @param seconds The keep alive interval the client connected with, or 0 for no limit.
+     */
+    void setKeepAlive(int seconds) {
+        _keepAlive = seconds;
+    }
+
+    /**
+     * Gets whether the client has been silent for longer than its keep alive interval allows (one and a half times
+     * the interval), or hasn't sent CONNECT within the specified time of connecting.
+     * @param now The current {@link System#nanoTime()}.
+     * @param connectTimeout How long a client may take to send CONNECT, in nanoseconds.
+     * @return true if the connection should be closed; Otherwise, false.
+     */
+    boolean isIdle(long now, long connectTimeout) {
+        long silent = now - _lastActivity;
+        if (_session == null) {
+            return silent > connectTimeout;
+        }
+        return _keepAlive > 0 && silent > _keepAlive * 1500000000L;
+    }
+
+    /**
+     * Reads whatever the channel has available onto the end of the read buffer.
+     * @return The read buffer, flipped for reading the unprocessed bytes. Call {@link #compact()} once the complete
+     * packets have been taken out of it.
+     * @throws IOException if the read fails or the client closed the connection.
+     */
+    @NotNull
+    ByteBuffer read() throws IOException {
+        if (!_in.hasRemaining()) {
+            grow(_in.capacity() * 2);
+        }
+
+        if (_channel.read(_in) < 0) {
+            throw new IOException("Connection closed by client.");
+        }
+
+        _lastActivity = System.nanoTime();
+        _in.flip();
+        return _in;
+    }
+
+    /**
+     * Discards the processed bytes from the read buffer, keeping a partial packet for the next read.
+     */
+    void compact() {
+        _in.compact();
+    }
+
+    /**
+     * Makes sure the read buffer can hold a whole packet of the specified size. Only called between {@link #read()}
+     * and {@link #compact()}.
+     * @param packetSize The size of the packet, including its fixed header.
+     */
+    void ensureCapacity(int packetSize) {
+        if (_in.capacity() < packetSize) {
+            ByteBuffer bigger = ByteBuffer.allocate(packetSize);
+            bigger.put(_in);
+            bigger.flip();
+            _in = bigger;
+        }
+    }
+
+    /**
+     * Replaces the read buffer with a bigger one, keeping its contents.
+     * @param capacity The new capacity.
+     */
+    private void grow(int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        _in.flip();
+        bigger.put(_in);
+        _in = bigger;
+    }
+
+    /**
+     * Queues a packet to be written.
+     * @param packet The packet, ready to be written.
+     */
+    void send(@NotNull ByteBuffer packet) {
+        if (!_key.isValid()) {
+            return;
+        }
+
+        if (_out.isEmpty()) {
+            _key.interestOps(_key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        _out.add(packet);
+        _backlog += packet.remaining();
+    }
+
+    /**
+     * Queues a packet to be written unless too much is waiting to be written already, for messages that may be lost.
+     * @param packet The packet, ready to be written.
+     * @return true if the packet was queued; false if it was dropped.
+     */
+    boolean sendIfRoom(@NotNull ByteBuffer packet) {
+        if (_backlog >= MAX_QOS0_BACKLOG) {
+            return false;
+        }
+        send(packet);
+        return true;
+    }
+
+    /**
+     * Closes the connection once everything queued so far is written. Used to deliver a refusing CONNACK.
+     */
+    void closeWhenFlushed() {
+        _closeWhenFlushed = true;
+    }
+
+    /**
+     * Writes as much of the queued packets as the channel will take.
+     * @return false if the connection should now be closed; Otherwise, true.
+     * @throws IOException if the write fails.
+     */
+    boolean flush() throws IOException {
+        while (!_out.isEmpty()) {
+            ByteBuffer packet = _out.peek();
+            int written = _channel.write(packet);
+            _backlog -= written;
+            if (packet.hasRemaining()) {
+                return true;
+            }
+            _out.poll();
+        }
+
+        _key.interestOps(_key.interestOps() & ~SelectionKey.OP_WRITE);
+        return !_closeWhenFlushed;
+    }
+
+    /**
+     * Closes the channel. Queued packets are discarded.
+     */
+    void close() {
+        _key.cancel();
+        _out.clear();
+        _backlog = 0;
+        try {
+            _channel.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Gets whether the channel is still open.
+     * @return true if open; Otherwise, false.
+     */
+    boolean isOpen() {
+        return _channel.isOpen();
+    }
+
+    @Override
+    public String toString() {
+        String client = _session == null ? "(not connected)" : _session.clientId();
+        try {
+            return client + "@" + _channel.getRemoteAddress();
+        }
+        catch (IOException ex) {
+            return client;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a client sends a packet that breaks the protocol. The broker closes the client's connection.
+ */
+final class MalformedPacketException extends IOException {
+    /**
+     * Constructs a new instance of {@link MalformedPacketException} with the specified message.
+     * @param message The message describing what is wrong with the packet.
+     */
+    MalformedPacketException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,73 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An application message as the broker stores and forwards it. Immutable; the payload array is shared between every
+ * copy sent to subscribers and must not be modified.
+ */
+final class Message {
+    private final String _topic;
+    private final byte[] _payload;
+    private final int _qos;
+    private final boolean _retain;
+
+    /**
+     * Constructs a new instance of {@link Message}.
+     * @param topic The topic name.
+     * @param payload The payload.
+     * @param qos The QoS level it was published at.
+     * @param retain Whether the retain flag is set.
+     */
+    Message(@NotNull String topic, @NotNull byte[] payload, int qos, boolean retain) {
+        _topic = topic;
+        _payload = payload;
+        _qos = qos;
+        _retain = retain;
+    }
+
+    /**
+     * Gets the topic name.
+     * @return The topic.
+     */
+    @NotNull
+    String topic() {
+        return _topic;
+    }
+
+    /**
+     * Gets the payload.
+     * @return The payload.
+     */
+    @NotNull
+    byte[] payload() {
+        return _payload;
+    }
+
+    /**
+     * Gets the QoS level the message was published at.
+     * @return The QoS level.
+     */
+    int qos() {
+        return _qos;
+    }
+
+    /**
+     * Gets whether the retain flag is set.
+     * @return true if the message is (or is to be) retained; Otherwise, false.
+     */
+    boolean retain() {
+        return _retain;
+    }
+
+    /**
+     * Returns a copy of this message with the specified QoS level and retain flag.
+     * @param qos The QoS level.
+     * @param retain The retain flag.
+     * @return The message.
+     */
+    @NotNull
+    Message with(int qos, boolean retain) {
+        return qos == _qos && retain == _retain ? this : new Message(_topic, _payload, qos, retain);
+    }
+}
@@ -0,0 +1,787 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lightweight in-process MQTT 3.1.1 broker, for single-box installs that don't want to run a separate broker and for
+ * tests and benchmarks that need a real one on localhost. It supports QoS 0, 1 and 2, retained messages, wildcard
+ * subscriptions, persistent sessions and will messages, but keeps everything in memory: retained messages and
+ * persistent sessions do not survive a restart.
+ * <p>
+ * All network I/O and all broker state is handled by a single thread multiplexing every connection over a
+ * {@link Selector}, so nothing needs locking. Outgoing QoS 1 and 2 messages are limited per client by an in-flight
+ * window, with the excess queued; QoS 0 messages to a client that can't keep up are dropped.
+ */
+public final class MqttBroker {
+    private static final Logger logger = LoggerFactory.getLogger(MqttBroker.class);
+
+    /**
+     * The standard MQTT port.
+     */
+    public static final int DEFAULT_PORT = 1883;
+
+    /**
+     * How long a client may take to send CONNECT after opening the connection.
+     */
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * How often idle connections are looked for.
+     */
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Builder for {@link MqttBroker}.
+     */
+    public static class Builder {
+        private String _bindAddress = "127.0.0.1";
+        private int _port = DEFAULT_PORT;
+        private String _username = null;
+        private byte[] _password = null;
+        private int _maxInFlight = 64;
+        private int _maxQueued = 1000;
+        private int _maxPacketSize = 16 * 1024 * 1024;
+
+        /**
+         * Sets the address to listen on. Defaults to the loopback address, so only local clients can connect; use
+         * "0.0.0.0" to accept devices on the network.
+         * @param address The host name or IP address.
+         * @return The builder.
+         */
+        public Builder setBindAddress(@NotNull String address) {
+            _bindAddress = address;
+            return this;
+        }
+
+        /**
+         * Sets the port to listen on. Defaults to {@value #DEFAULT_PORT}.
+         * @param port The port, or 0 to pick any free port (see {@link #port()}).
+         * @return The builder.
+         */
+        public Builder setPort(int port) {
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Port must be from 0 to 65535. Got: " + port);
+            }
+            _port = port;
+            return this;
+        }
+
+        /**
+         * Requires clients to connect with the specified credentials. By default any client may connect.
+         * @param username The user name.
+         * @param password The password.
+         * @return The builder.
+         */
+        public Builder setCredentials(@NotNull String username, @NotNull String password) {
+            _username = username;
+            _password = password.getBytes(StandardCharsets.UTF_8);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of QoS 1 and 2 messages sent to each client but not yet acknowledged. Defaults to
+         * 64.
+         * @param maxInFlight The in-flight window size. Must be from 1 to 65535.
+         * @return The builder.
+         */
+        public Builder setMaxInFlight(int maxInFlight) {
+            if (maxInFlight < 1 || maxInFlight > 65535) {
+                throw new IllegalArgumentException("Max in-flight must be from 1 to 65535. Got: " + maxInFlight);
+            }
+            _maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of QoS 1 and 2 messages queued for each client, while its in-flight window is full
+         * or while it is away with a persistent session. Beyond that the oldest are dropped. Defaults to 1000.
+         * @param maxQueued The queue size. Must be at least 0.
+         * @return The builder.
+         */
+        public Builder setMaxQueued(int maxQueued) {
+            if (maxQueued < 0) {
+                throw new IllegalArgumentException("Max queued must not be negative. Got: " + maxQueued);
+            }
+            _maxQueued = maxQueued;
+            return this;
+        }
+
+        /**
+         * Sets the largest packet a client may send. A client sending a bigger one is disconnected. Defaults to 16 MB.
+         * @param bytes The maximum packet size. Must be from 2 to the protocol's limit of 256 MB.
+         * @return The builder.
+         */
+        public Builder setMaxPacketSize(int bytes) {
+            if (bytes < 2 || bytes > Packets.MAX_REMAINING_LENGTH + 5) {
+                throw new IllegalArgumentException("Max packet size is out of range. Got: " + bytes);
+            }
+            _maxPacketSize = bytes;
+            return this;
+        }
+
+        /**
+         * Builds the broker. It doesn't listen until {@link MqttBroker#start()} is called.
+         * @return The broker.
+         */
+        public MqttBroker build() {
+            return new MqttBroker(this);
+        }
+    }
+
+    private final String _bindAddress;
+    private final int _configuredPort;
+    private final String _username;
+    private final byte[] _password;
+    private final int _maxInFlight;
+    private final int _maxQueued;
+    private final int _maxPacketSize;
+    private final SubscriptionTree<Session> _subscriptions = new SubscriptionTree<>();
+    private final Map<String, Session> _sessions = new HashMap<>();
+    private final Map<String, Message> _retained = new LinkedHashMap<>();
+    private final List<ClientConnection> _connections = new ArrayList<>();
+    private final AtomicLong _received = new AtomicLong(0);
+    private final AtomicLong _sent = new AtomicLong(0);
+    private final AtomicLong _dropped = new AtomicLong(0);
+    private volatile int _clientCount = 0;
+    private volatile boolean _running = false;
+    private volatile int _port = -1;
+    private Selector _selector = null;
+    private ServerSocketChannel _server = null;
+    private Thread _thread = null;
+    private long _nextClientId = 0;
+
+    /**
+     * Constructs a new instance of {@link MqttBroker}.
+     * @param builder The builder.
+     */
+    private MqttBroker(Builder builder) {
+        _bindAddress = builder._bindAddress;
+        _configuredPort = builder._port;
+        _username = builder._username;
+        _password = builder._password;
+        _maxInFlight = builder._maxInFlight;
+        _maxQueued = builder._maxQueued;
+        _maxPacketSize = builder._maxPacketSize;
+    }
+
+    /**
+     * Starts listening for clients on the configured address and port. Does nothing if already running.
+     * @throws IOException if the port could not be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (_running) {
+            return;
+        }
+
+        _selector = Selector.open();
+        try {
+            _server = ServerSocketChannel.open();
+            _server.bind(new InetSocketAddress(_bindAddress, _configuredPort));
+            _server.configureBlocking(false);
+            _server.register(_selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException ex) {
+            if (_server != null) {
+                _server.close();
+            }
+            _selector.close();
+            throw ex;
+        }
+
+        _port = _server.socket().getLocalPort();
+        _running = true;
+        _thread = new Thread(this::run, "MqttBroker-io");
+        _thread.setDaemon(true);
+        _thread.start();
+        logger.info("MQTT broker listening on " + _bindAddress + ":" + _port);
+    }
+
+    /**
+     * Stops the broker, closing every client connection and discarding all sessions and retained messages. Does
+     * nothing if not running.
+     */
+    public synchronized void stop() {
+        if (!_running) {
+            return;
+        }
+
+        _running = false;
+        _selector.wakeup();
+        try {
+            _thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        _thread = null;
+        logger.info("MQTT broker stopped.");
+    }
+
+    /**
+     * Gets whether the broker is running.
+     * @return true if running; Otherwise, false.
+     */
+    public boolean isRunning() {
+        return _running;
+    }
+
+    /**
+     * Gets the port the broker listens on. Useful when it was built to pick any free port.
+     * @return The port, or -1 if the broker has never been started.
+     */
+    public int port() {
+        return _port;
+    }
+
+    /**
+     * Gets the number of clients currently connected.
+     * @return The client count.
+     */
+    public int clientCount() {
+        return _clientCount;
+    }
+
+    /**
+     * Gets the number of messages published to the broker so far, counting each QoS 2 message once.
+     * @return The received message count.
+     */
+    public long messagesReceived() {
+        return _received.get();
+    }
+
+    /**
+     * Gets the number of messages sent to subscribers so far. Copies queued for a client are counted when they are
+     * queued.
+     * @return The sent message count.
+     */
+    public long messagesSent() {
+        return _sent.get();
+    }
+
+    /**
+     * Gets the number of messages that were not sent to a subscriber: QoS 0 messages to a client with too much
+     * unwritten or that is away, and QoS 1 and 2 messages pushed out of a full queue.
+     * @return The dropped message count.
+     */
+    public long messagesDropped() {
+        return _dropped.get();
+    }
+
+    /**
+     * The I/O loop. Runs until {@link #stop()} is called.
+     */
+    private void run() {
+        long nextSweep = System.nanoTime() + SWEEP_INTERVAL;
+        try {
+            while (_running) {
+                _selector.select(TimeUnit.NANOSECONDS.toMillis(SWEEP_INTERVAL));
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    ClientConnection connection = (ClientConnection)key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+
+                        if (key.isValid() && key.isWritable() && !connection.flush()) {
+                            close(connection, false);
+                        }
+                    }
+                    catch (IOException ex) {
+                        logger.debug("Closing connection " + connection + ": " + ex.getMessage());
+                        close(connection, true);
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    sweep(now);
+                    nextSweep = now + SWEEP_INTERVAL;
+                }
+            }
+        }
+        catch (IOException ex) {
+            logger.error("MQTT broker I/O loop failed: " + ex.getMessage());
+            _running = false;
+        }
+        finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Closes every connection and the listening socket, and forgets all state.
+     */
+    private void shutdown() {
+        for (ClientConnection connection : new ArrayList<>(_connections)) {
+            connection.close();
+        }
+        _connections.clear();
+        _clientCount = 0;
+        for (Session session : _sessions.values()) {
+            removeSubscriptions(session);
+        }
+        _sessions.clear();
+        _retained.clear();
+
+        try {
+            _server.close();
+            _selector.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Accepts every pending connection.
+     * @throws IOException if the listening socket fails.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = _server.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+                ClientConnection connection = new ClientConnection(channel, key);
+                key.attach(connection);
+                _connections.add(connection);
+            }
+            catch (IOException ex) {
+                logger.debug("Failed to accept connection: " + ex.getMessage());
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Closes connections that have been silent for too long.
+     * @param now The current {@link System#nanoTime()}.
+     */
+    private void sweep(long now) {
+        for (ClientConnection connection : new ArrayList<>(_connections)) {
+            if (connection.isIdle(now, CONNECT_TIMEOUT)) {
+                logger.debug("Closing idle connection " + connection);
+                close(connection, true);
+            }
+        }
+    }
+
+    /**
+     * Reads from a connection and handles every complete packet received.
+     * @param connection The connection.
+     * @throws IOException if the read fails or the client broke the protocol.
+     */
+    private void read(ClientConnection connection) throws IOException {
+        ByteBuffer in = connection.read();
+        try {
+            while (connection.isOpen() && in.remaining() >= 2) {
+                int start = in.position();
+                int header = in.get(start) & 0xFF;
+                int length = 0;
+                int multiplier = 1;
+                int pos = start + 1;
+                int digit;
+                do {
+                    if (pos == in.limit()) {
+                        return;
+                    }
+                    if (pos - start > 4) {
+                        throw new MalformedPacketException("Remaining length is too long.");
+                    }
+                    digit = in.get(pos++) & 0xFF;
+                    length += (digit & 0x7F) * multiplier;
+                    multiplier *= 128;
+                } while ((digit & 0x80) != 0);
+
+                int size = pos - start + length;
+                if (size > _maxPacketSize) {
+                    throw new MalformedPacketException("Packet of " + size + " bytes exceeds the maximum size.");
+                }
+
+                if (in.limit() - pos < length) {
+                    connection.ensureCapacity(size);
+                    return;
+                }
+
+                ByteBuffer body = in.duplicate();
+                body.position(pos).limit(pos + length);
+                in.position(pos + length);
+                handle(connection, header, new PacketReader(body.slice()));
+            }
+        }
+        finally {
+            if (connection.isOpen()) {
+                connection.compact();
+            }
+        }
+    }
+
+    /**
+     * Handles one packet.
+     * @param connection The connection it arrived on.
+     * @param header The first byte of the fixed header.
+     * @param body The rest of the packet.
+     * @throws IOException if the client broke the protocol.
+     */
+    private void handle(ClientConnection connection, int header, PacketReader body) throws IOException {
+        int type = header >> 4;
+        Session session = connection.session();
+        if (session == null) {
+            if (type != Packets.CONNECT) {
+                throw new MalformedPacketException("Expected CONNECT, got packet type " + type);
+            }
+            connect(connection, body);
+            return;
+        }
+
+        switch (type) {
+            case Packets.PUBLISH:
+                publish(connection, session, header, body);
+                break;
+            case Packets.PUBACK:
+            case Packets.PUBCOMP:
+                session.completed(body.readShort());
+                break;
+            case Packets.PUBREC:
+                session.received(body.readShort());
+                break;
+            case Packets.PUBREL:
+                int packetId = body.readShort();
+                session.released(packetId);
+                connection.send(Packets.ack(Packets.PUBCOMP, packetId));
+                break;
+            case Packets.SUBSCRIBE:
+                subscribe(connection, session, header, body);
+                break;
+            case Packets.UNSUBSCRIBE:
+                unsubscribe(connection, session, header, body);
+                break;
+            case Packets.PINGREQ:
+                connection.send(Packets.pingresp());
+                break;
+            case Packets.DISCONNECT:
+                close(connection, false);
+                break;
+            default:
+                throw new MalformedPacketException("Unexpected packet type " + type);
+        }
+    }
+
+    /**
+     * Handles a CONNECT: checks the protocol level and credentials, resumes or starts the client's session, and takes
+     * over from any connection the client ID is already connected on.
+     * @param connection The connection.
+     * @param body The packet body.
+     * @throws IOException if the packet is malformed.
+     */
+    private void connect(ClientConnection connection, PacketReader body) throws IOException {
+        String protocol = body.readString();
+        int level = body.readByte();
+        if (!(protocol.equals("MQTT") && level == 4) && !(protocol.equals("MQIsdp") && level == 3)) {
+            refuse(connection, Packets.UNACCEPTABLE_PROTOCOL_VERSION);
+            return;
+        }
+
+        int flags = body.readByte();
+        if ((flags & 0x01) != 0) {
+            throw new MalformedPacketException("Reserved CONNECT flag is set.");
+        }
+
+        int keepAlive = body.readShort();
+        String clientId = body.readString();
+        Message will = null;
+        if ((flags & 0x04) != 0) {
+            String topic = body.readString();
+            byte[] payload = body.readBinary();
+            int qos = (flags >> 3) & 0x03;
+            if (qos == 3 || !Topics.isValidTopicName(topic)) {
+                throw new MalformedPacketException("Invalid will message.");
+            }
+            will = new Message(topic, payload, qos, (flags & 0x20) != 0);
+        }
+
+        String username = (flags & 0x80) != 0 ? body.readString() : null;
+        byte[] password = (flags & 0x40) != 0 ? body.readBinary() : null;
+        boolean clean = (flags & 0x02) != 0;
+        if (clientId.isEmpty()) {
+            if (!clean) {
+                refuse(connection, Packets.IDENTIFIER_REJECTED);
+                return;
+            }
+            clientId = "cyrushab-broker-" + _nextClientId++;
+        }
+
+        if (_username != null && !(_username.equals(username) && Arrays.equals(_password, password))) {
+            refuse(connection, Packets.BAD_USERNAME_OR_PASSWORD);
+            return;
+        }
+
+        Session existing = _sessions.get(clientId);
+        if (existing != null && existing.connection() != null) {
+            logger.debug("Client " + clientId + " connected again; closing its previous connection.");
+            close(existing.connection(), true);
+            existing = _sessions.get(clientId);
+        }
+
+        boolean resumed = !clean && existing != null && !existing.isClean();
+        Session session = resumed ? existing : new Session(clientId, clean, _maxInFlight, _maxQueued);
+        if (existing != null && !resumed) {
+            removeSubscriptions(existing);
+        }
+        _sessions.put(clientId, session);
+
+        connection.setSession(session);
+        connection.setWill(will);
+        connection.setKeepAlive(keepAlive);
+        _clientCount++;
+        connection.send(Packets.connack(resumed, Packets.CONNECTION_ACCEPTED));
+        session.attach(connection);
+        logger.debug("Client connected: " + connection + (resumed ? " (session resumed)" : ""));
+    }
+
+    /**
+     * Refuses a connection with the specified CONNACK return code and closes it once the CONNACK is written.
+     * @param connection The connection.
+     * @param returnCode The return code.
+     */
+    private void refuse(ClientConnection connection, int returnCode) {
+        logger.debug("Refusing connection " + connection + " with return code " + returnCode);
+        connection.send(Packets.connack(false, returnCode));
+        connection.closeWhenFlushed();
+    }
+
+    /**
+     * Handles a PUBLISH: forwards the message and acknowledges it as its QoS level requires.
+     * @param connection The connection.
+     * @param session The publisher's session.
+     * @param header The first byte of the fixed header.
+     * @param body The packet body.
+     * @throws IOException if the packet is malformed.
+     */
+    private void publish(ClientConnection connection, Session session, int header, PacketReader body)
+            throws IOException {
+        int qos = (header >> 1) & 0x03;
+        if (qos == 3) {
+            throw new MalformedPacketException("Invalid QoS level.");
+        }
+
+        String topic = body.readString();
+        if (!Topics.isValidTopicName(topic)) {
+            throw new MalformedPacketException("Invalid topic name: " + topic);
+        }
+
+        int packetId = qos > 0 ? body.readShort() : 0;
+        Message message = new Message(topic, body.readRemaining(), qos, (header & 0x01) != 0);
+        switch (qos) {
+            case 0:
+                route(message);
+                break;
+            case 1:
+                route(message);
+                connection.send(Packets.ack(Packets.PUBACK, packetId));
+                break;
+            default:
+                if (session.awaitRelease(packetId)) {
+                    route(message);
+                }
+                connection.send(Packets.ack(Packets.PUBREC, packetId));
+                break;
+        }
+    }
+
+    /**
+     * Retains a message if it asks to be, and sends it to every matching subscriber at the lower of its own QoS level
+     * and the one granted to the subscription.
+     * @param message The message.
+     */
+    private void route(Message message) {
+        _received.incrementAndGet();
+        if (message.retain()) {
+            if (message.payload().length == 0) {
+                _retained.remove(message.topic());
+            }
+            else {
+                _retained.put(message.topic(), message);
+            }
+        }
+
+        for (Map.Entry<Session, Integer> entry : _subscriptions.match(message.topic()).entrySet()) {
+            // Messages forwarded to established subscriptions never carry the retain flag.
+            deliver(entry.getKey(), message.with(Math.min(message.qos(), entry.getValue()), false));
+        }
+    }
+
+    /**
+     * Sends a message to a session, counting it as sent or dropped.
+     * @param session The session.
+     * @param message The message, at the QoS level and with the retain flag to send it with.
+     */
+    private void deliver(Session session, Message message) {
+        if (session.deliver(message)) {
+            _sent.incrementAndGet();
+        }
+        else {
+            _dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Handles a SUBSCRIBE: records each valid filter, acknowledges them all, and then sends the retained messages
+     * matching the new subscriptions.
+     * @param connection The connection.
+     * @param session The subscriber's session.
+     * @param header The first byte of the fixed header.
+     * @param body The packet body.
+     * @throws IOException if the packet is malformed.
+     */
+    private void subscribe(ClientConnection connection, Session session, int header, PacketReader body)
+            throws IOException {
+        if ((header & 0x0F) != 0x02) {
+            throw new MalformedPacketException("Invalid SUBSCRIBE flags.");
+        }
+
+        int packetId = body.readShort();
+        List<String> filters = new ArrayList<>();
+        List<Integer> granted = new ArrayList<>();
+        while (body.remaining() > 0) {
+            filters.add(body.readString());
+            int qos = body.readByte();
+            if (qos > 2) {
+                throw new MalformedPacketException("Invalid requested QoS: " + qos);
+            }
+            granted.add(qos);
+        }
+
+        if (filters.isEmpty()) {
+            throw new MalformedPacketException("SUBSCRIBE has no topic filters.");
+        }
+
+        byte[] returnCodes = new byte[filters.size()];
+        for (int i = 0; i < filters.size(); i++) {
+            String filter = filters.get(i);
+            if (Topics.isValidFilter(filter)) {
+                session.subscribe(filter, granted.get(i));
+                _subscriptions.add(filter, session, granted.get(i));
+                returnCodes[i] = (byte)(int)granted.get(i);
+            }
+            else {
+                returnCodes[i] = (byte)Packets.SUBSCRIPTION_FAILURE;
+            }
+        }
+        connection.send(Packets.suback(packetId, returnCodes));
+
+        for (int i = 0; i < filters.size(); i++) {
+            if (returnCodes[i] == (byte)Packets.SUBSCRIPTION_FAILURE) {
+                continue;
+            }
+
+            for (Message retained : _retained.values()) {
+                if (Topics.matches(filters.get(i), retained.topic())) {
+                    deliver(session, retained.with(Math.min(retained.qos(), granted.get(i)), true));
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles an UNSUBSCRIBE.
+     * @param connection The connection.
+     * @param session The subscriber's session.
+     * @param header The first byte of the fixed header.
+     * @param body The packet body.
+     * @throws IOException if the packet is malformed.
+     */
+    private void unsubscribe(ClientConnection connection, Session session, int header, PacketReader body)
+            throws IOException {
+        if ((header & 0x0F) != 0x02) {
+            throw new MalformedPacketException("Invalid UNSUBSCRIBE flags.");
+        }
+
+        int packetId = body.readShort();
+        do {
+            String filter = body.readString();
+            if (session.unsubscribe(filter)) {
+                _subscriptions.remove(filter, session);
+            }
+        } while (body.remaining() > 0);
+        connection.send(Packets.ack(Packets.UNSUBACK, packetId));
+    }
+
+    /**
+     * Closes a connection. A clean session ends with it; a persistent one is kept for when the client comes back.
+     * @param connection The connection.
+     * @param publishWill Whether to publish the client's will message, if it has one: true unless the client sent
+     *                    DISCONNECT.
+     */
+    private void close(ClientConnection connection, boolean publishWill) {
+        if (!_connections.remove(connection)) {
+            return;
+        }
+
+        connection.close();
+        Session session = connection.session();
+        if (session == null || session.connection() != connection) {
+            return;
+        }
+
+        _clientCount--;
+        session.detach();
+        if (session.isClean()) {
+            removeSubscriptions(session);
+            _sessions.remove(session.clientId(), session);
+        }
+
+        Message will = connection.will();
+        if (publishWill && will != null) {
+            route(will);
+        }
+        logger.debug("Client disconnected: " + session.clientId());
+    }
+
+    /**
+     * Removes every subscription of a session from the subscription tree.
+     * @param session The session.
+     */
+    private void removeSubscriptions(@Nullable Session session) {
+        if (session == null) {
+            return;
+        }
+
+        for (String filter : session.subscriptions().keySet()) {
+            _subscriptions.remove(filter, session);
+        }
+    }
+}
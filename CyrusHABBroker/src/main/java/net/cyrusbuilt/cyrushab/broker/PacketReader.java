@@ -0,0 +1,108 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the fields of one packet's variable header and payload. Every read checks that the packet is long enough, so a
+ * truncated packet fails with a {@link MalformedPacketException} instead of reading into the next one.
+ */
+final class PacketReader {
+    private final ByteBuffer _body;
+
+    /**
+     * Constructs a new instance of {@link PacketReader}.
+     * @param body The packet body: everything after the fixed header, and nothing more.
+     */
+    PacketReader(@NotNull ByteBuffer body) {
+        _body = body;
+    }
+
+    /**
+     * Gets the number of bytes left to read.
+     * @return The remaining byte count.
+     */
+    int remaining() {
+        return _body.remaining();
+    }
+
+    /**
+     * Reads a byte.
+     * @return The byte, from 0 to 255.
+     * @throws MalformedPacketException if the packet has no bytes left.
+     */
+    int readByte() throws MalformedPacketException {
+        require(1);
+        return _body.get() & 0xFF;
+    }
+
+    /**
+     * Reads a big-endian two byte integer.
+     * @return The integer, from 0 to 65535.
+     * @throws MalformedPacketException if the packet has fewer than two bytes left.
+     */
+    int readShort() throws MalformedPacketException {
+        require(2);
+        return _body.getShort() & 0xFFFF;
+    }
+
+    /**
+     * Reads length-prefixed binary data.
+     * @return The data.
+     * @throws MalformedPacketException if the packet is shorter than the length prefix says.
+     */
+    @NotNull
+    byte[] readBinary() throws MalformedPacketException {
+        byte[] data = new byte[readShort()];
+        require(data.length);
+        _body.get(data);
+        return data;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     * @return The string.
+     * @throws MalformedPacketException if the packet is too short or the string is not well-formed UTF-8.
+     */
+    @NotNull
+    String readString() throws MalformedPacketException {
+        int length = readShort();
+        require(length);
+        ByteBuffer bytes = _body.slice();
+        bytes.limit(length);
+        _body.position(_body.position() + length);
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        try {
+            return decoder.decode(bytes).toString();
+        }
+        catch (CharacterCodingException ex) {
+            throw new MalformedPacketException("String is not valid UTF-8.");
+        }
+    }
+
+    /**
+     * Reads the rest of the packet.
+     * @return The remaining bytes.
+     */
+    @NotNull
+    byte[] readRemaining() {
+        byte[] data = new byte[_body.remaining()];
+        _body.get(data);
+        return data;
+    }
+
+    /**
+     * Checks that the packet has at least the specified number of bytes left.
+     * @param length The byte count.
+     * @throws MalformedPacketException if it doesn't.
+     */
+    private void require(int length) throws MalformedPacketException {
+        if (_body.remaining() < length) {
+            throw new MalformedPacketException("Packet is shorter than its fields.");
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The MQTT 3.1.1 packet types and the encoding of every packet the broker sends.
+ */
+final class Packets {
+    static final int CONNECT = 1;
+    static final int CONNACK = 2;
+    static final int PUBLISH = 3;
+    static final int PUBACK = 4;
+    static final int PUBREC = 5;
+    static final int PUBREL = 6;
+    static final int PUBCOMP = 7;
+    static final int SUBSCRIBE = 8;
+    static final int SUBACK = 9;
+    static final int UNSUBSCRIBE = 10;
+    static final int UNSUBACK = 11;
+    static final int PINGREQ = 12;
+    static final int PINGRESP = 13;
+    static final int DISCONNECT = 14;
+
+    /**
+     * The CONNACK return code for an accepted connection.
+     */
+    static final int CONNECTION_ACCEPTED = 0;
+
+    /**
+     * The CONNACK return code for a protocol level the broker doesn't speak.
+     */
+    static final int UNACCEPTABLE_PROTOCOL_VERSION = 1;
+
+    /**
+     * The CONNACK return code for a client ID the broker won't accept.
+     */
+    static final int IDENTIFIER_REJECTED = 2;
+
+    /**
+     * The CONNACK return code for credentials that don't match.
+     */
+    static final int BAD_USERNAME_OR_PASSWORD = 4;
+
+    /**
+     * The SUBACK return code for a subscription that was refused.
+     */
+    static final int SUBSCRIPTION_FAILURE = 0x80;
+
+    /**
+     * The largest value the remaining length field can hold.
+     */
+    static final int MAX_REMAINING_LENGTH = 268435455;
+
+    private static final byte[] PINGRESP_PACKET = { (byte)(PINGRESP << 4), 0 };
+
+    private Packets() {
+    }
+
+    /**
+     * Gets the number of bytes needed to encode the specified remaining length.
+     * @param length The remaining length.
+     * @return The encoded size, from 1 to 4 bytes.
+     */
+    private static int lengthSize(int length) {
+        return length < 128 ? 1 : length < 16384 ? 2 : length < 2097152 ? 3 : 4;
+    }
+
+    /**
+     * Allocates a packet and writes its fixed header.
+     * @param header The first byte: the packet type and flags.
+     * @param length The remaining length.
+     * @return The buffer, positioned after the fixed header.
+     */
+    private static ByteBuffer allocate(int header, int length) {
+        ByteBuffer packet = ByteBuffer.allocate(1 + lengthSize(length) + length);
+        packet.put((byte)header);
+        do {
+            int digit = length % 128;
+            length /= 128;
+            packet.put((byte)(length > 0 ? digit | 0x80 : digit));
+        } while (length > 0);
+        return packet;
+    }
+
+    /**
+     * Encodes a CONNACK.
+     * @param sessionPresent Whether the broker resumed a session for the client.
+     * @param returnCode The return code.
+     * @return The packet, ready to be written.
+     */
+    @NotNull
+    static ByteBuffer connack(boolean sessionPresent, int returnCode) {
+        ByteBuffer packet = allocate(CONNACK << 4, 2);
+        packet.put((byte)(sessionPresent ? 1 : 0)).put((byte)returnCode);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes a packet made of just a packet ID: PUBACK, PUBREC, PUBREL, PUBCOMP or UNSUBACK.
+     * @param type The packet type.
+     * @param packetId The packet ID.
+     * @return The packet, ready to be written.
+     */
+    @NotNull
+    static ByteBuffer ack(int type, int packetId) {
+        // PUBREL is the only one of these with required flag bits.
+        ByteBuffer packet = allocate(type << 4 | (type == PUBREL ? 0x02 : 0), 2);
+        packet.putShort((short)packetId);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes a SUBACK.
+     * @param packetId The packet ID of the SUBSCRIBE.
+     * @param returnCodes The granted QoS level, or {@link #SUBSCRIPTION_FAILURE}, of each filter.
+     * @return The packet, ready to be written.
+     */
+    @NotNull
+    static ByteBuffer suback(int packetId, @NotNull byte[] returnCodes) {
+        ByteBuffer packet = allocate(SUBACK << 4, 2 + returnCodes.length);
+        packet.putShort((short)packetId).put(returnCodes);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Gets the PINGRESP packet.
+     * @return The packet, ready to be written.
+     */
+    @NotNull
+    static ByteBuffer pingresp() {
+        return ByteBuffer.wrap(PINGRESP_PACKET);
+    }
+
+    /**
+     * Encodes a PUBLISH.
+     * @param message The message, at the QoS level and with the retain flag to send it with.
+     * @param packetId The packet ID, ignored at QoS 0.
+     * @param dup Whether this is a redelivery.
+     * @return The packet, ready to be written.
+     */
+    @NotNull
+    static ByteBuffer publish(@NotNull Message message, int packetId, boolean dup) {
+        byte[] topic = message.topic().getBytes(StandardCharsets.UTF_8);
+        int qos = message.qos();
+        int length = 2 + topic.length + (qos > 0 ? 2 : 0) + message.payload().length;
+        int header = PUBLISH << 4 | (dup ? 0x08 : 0) | qos << 1 | (message.retain() ? 1 : 0);
+        ByteBuffer packet = allocate(header, length);
+        packet.putShort((short)topic.length).put(topic);
+        if (qos > 0) {
+            packet.putShort((short)packetId);
+        }
+        packet.put(message.payload());
+        packet.flip();
+        return packet;
+    }
+}
@@ -0,0 +1,233 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state the broker keeps for one client ID: its subscriptions, the QoS 1 and 2 messages it hasn't acknowledged
+ * yet, and the messages waiting for room in its in-flight window. A persistent session outlives its connection, so
+ * messages published while the client is away are queued for it and sent when it reconnects. Only ever touched by the
+ * broker's I/O thread.
+ */
+final class Session {
+    /**
+     * An outgoing QoS 1 or 2 message awaiting acknowledgement.
+     */
+    private static final class InFlight {
+        final Message message;
+        boolean released = false;
+
+        InFlight(Message message) {
+            this.message = message;
+        }
+    }
+
+    private final String _clientId;
+    private final boolean _clean;
+    private final int _maxInFlight;
+    private final int _maxQueued;
+    private final Map<String, Integer> _subscriptions = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, InFlight> _inFlight = new LinkedHashMap<>();
+    private final ArrayDeque<Message> _queued = new ArrayDeque<>();
+    private final Set<Integer> _awaitingRelease = new HashSet<>();
+    private ClientConnection _connection = null;
+    private int _nextPacketId = 1;
+
+    /**
+     * Constructs a new instance of {@link Session}.
+     * @param clientId The client ID.
+     * @param clean true if the session ends with the connection; false if it persists.
+     * @param maxInFlight The maximum number of QoS 1 and 2 messages sent to the client but not yet acknowledged.
+     * @param maxQueued The maximum number of QoS 1 and 2 messages waiting to be sent, beyond which the oldest are
+     *                  dropped.
+     */
+    Session(@NotNull String clientId, boolean clean, int maxInFlight, int maxQueued) {
+        _clientId = clientId;
+        _clean = clean;
+        _maxInFlight = maxInFlight;
+        _maxQueued = maxQueued;
+    }
+
+    /**
+     * Gets the client ID.
+     * @return The client ID.
+     */
+    @NotNull
+    String clientId() {
+        return _clientId;
+    }
+
+    /**
+     * Gets whether the session ends with the connection.
+     * @return true for a clean session; false for a persistent one.
+     */
+    boolean isClean() {
+        return _clean;
+    }
+
+    /**
+     * Gets the connection the client is currently connected on.
+     * @return The connection, or null if the client is away.
+     */
+    @Nullable
+    ClientConnection connection() {
+        return _connection;
+    }
+
+    /**
+     * Gets the subscriptions of the session.
+     * @return An unmodifiable map of topic filters to their granted QoS levels.
+     */
+    @NotNull
+    Map<String, Integer> subscriptions() {
+        return Collections.unmodifiableMap(_subscriptions);
+    }
+
+    /**
+     * Records a subscription, replacing any existing one for the same filter.
+     * @param filter The topic filter.
+     * @param qos The granted QoS level.
+     */
+    void subscribe(@NotNull String filter, int qos) {
+        _subscriptions.put(filter, qos);
+    }
+
+    /**
+     * Forgets a subscription.
+     * @param filter The topic filter.
+     * @return true if the session was subscribed to the filter; Otherwise, false.
+     */
+    boolean unsubscribe(@NotNull String filter) {
+        return _subscriptions.remove(filter) != null;
+    }
+
+    /**
+     * Attaches the session to a new connection, and sends the client everything it hasn't acknowledged yet: unreleased
+     * messages are published again with the DUP flag set, released ones are released again, and then the queued
+     * messages follow.
+     * @param connection The connection.
+     */
+    void attach(@NotNull ClientConnection connection) {
+        _connection = connection;
+        for (Map.Entry<Integer, InFlight> entry : _inFlight.entrySet()) {
+            InFlight inFlight = entry.getValue();
+            connection.send(inFlight.released ? Packets.ack(Packets.PUBREL, entry.getKey()) :
+                    Packets.publish(inFlight.message, entry.getKey(), true));
+        }
+        drain();
+    }
+
+    /**
+     * Detaches the session from its connection once the connection closes.
+     */
+    void detach() {
+        _connection = null;
+    }
+
+    /**
+     * Sends a message to the client. A QoS 0 message is sent only if the client is connected and keeping up; a QoS 1
+     * or 2 message is sent if there is room in the in-flight window, and queued otherwise.
+     * @param message The message, at the QoS level and with the retain flag to send it with.
+     * @return false if the message was dropped; Otherwise, true.
+     */
+    boolean deliver(@NotNull Message message) {
+        if (message.qos() == 0) {
+            return _connection != null && _connection.sendIfRoom(Packets.publish(message, 0, false));
+        }
+
+        if (_connection != null && _inFlight.size() < _maxInFlight && _queued.isEmpty()) {
+            send(message);
+            return true;
+        }
+
+        _queued.add(message);
+        if (_queued.size() > _maxQueued) {
+            _queued.poll();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Handles a PUBACK or PUBCOMP: the message with the specified packet ID is done, which makes room in the window.
+     * @param packetId The packet ID.
+     */
+    void completed(int packetId) {
+        if (_inFlight.remove(packetId) != null) {
+            drain();
+        }
+    }
+
+    /**
+     * Handles a PUBREC: the client has the QoS 2 message with the specified packet ID, so it is released.
+     * @param packetId The packet ID.
+     */
+    void received(int packetId) {
+        InFlight inFlight = _inFlight.get(packetId);
+        if (inFlight != null) {
+            inFlight.released = true;
+        }
+
+        if (_connection != null) {
+            _connection.send(Packets.ack(Packets.PUBREL, packetId));
+        }
+    }
+
+    /**
+     * Notes an incoming QoS 2 message, so it is forwarded only once however many times the client resends it before
+     * releasing it.
+     * @param packetId The packet ID.
+     * @return true if the message is new and should be forwarded; false if it is a resend.
+     */
+    boolean awaitRelease(int packetId) {
+        return _awaitingRelease.add(packetId);
+    }
+
+    /**
+     * Handles a PUBREL: the client is done with the incoming QoS 2 message with the specified packet ID.
+     * @param packetId The packet ID.
+     */
+    void released(int packetId) {
+        _awaitingRelease.remove(packetId);
+    }
+
+    /**
+     * Sends queued messages while there is room in the window.
+     */
+    private void drain() {
+        while (_connection != null && _inFlight.size() < _maxInFlight && !_queued.isEmpty()) {
+            send(_queued.poll());
+        }
+    }
+
+    /**
+     * Sends a QoS 1 or 2 message under a fresh packet ID and keeps it until it is acknowledged.
+     * @param message The message.
+     */
+    private void send(Message message) {
+        int packetId = nextPacketId();
+        _inFlight.put(packetId, new InFlight(message));
+        _connection.send(Packets.publish(message, packetId, false));
+    }
+
+    /**
+     * Picks the next packet ID not in use by an in-flight message.
+     * @return The packet ID, from 1 to 65535.
+     */
+    private int nextPacketId() {
+        while (true) {
+            int packetId = _nextPacketId;
+            _nextPacketId = packetId == 65535 ? 1 : packetId + 1;
+            if (!_inFlight.containsKey(packetId)) {
+                return packetId;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The subscriptions of every session, indexed by topic level, so matching a published topic only visits the branches
+ * that can match it instead of testing every filter. A subscriber with several filters matching the same topic gets
+ * the message once, at the highest QoS level among them.
+ * @param <T> The subscriber type.
+ */
+final class SubscriptionTree<T> {
+    /**
+     * One topic level. Its subscribers are those whose filter ends at this level.
+     */
+    private static final class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        final Map<T, Integer> subscribers = new HashMap<>();
+
+        boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+
+    private final Node<T> _root = new Node<>();
+    private int _size = 0;
+
+    /**
+     * Adds a subscription, replacing the subscriber's existing one for the same filter.
+     * @param filter A valid topic filter.
+     * @param subscriber The subscriber.
+     * @param qos The granted QoS level.
+     */
+    void add(@NotNull String filter, @NotNull T subscriber, int qos) {
+        Node<T> node = _root;
+        for (String level : Topics.split(filter)) {
+            node = node.children.computeIfAbsent(level, key -> new Node<>());
+        }
+
+        if (node.subscribers.put(subscriber, qos) == null) {
+            _size++;
+        }
+    }
+
+    /**
+     * Removes a subscription, along with any levels left with nothing under them.
+     * @param filter The topic filter.
+     * @param subscriber The subscriber.
+     * @return true if the subscription existed; Otherwise, false.
+     */
+    boolean remove(@NotNull String filter, @NotNull T subscriber) {
+        boolean[] removed = { false };
+        remove(_root, Topics.split(filter), 0, subscriber, removed);
+        if (removed[0]) {
+            _size--;
+        }
+        return removed[0];
+    }
+
+    private static <T> void remove(Node<T> node, String[] levels, int index, T subscriber, boolean[] removed) {
+        if (index == levels.length) {
+            removed[0] = node.subscribers.remove(subscriber) != null;
+            return;
+        }
+
+        Node<T> child = node.children.get(levels[index]);
+        if (child == null) {
+            return;
+        }
+
+        remove(child, levels, index + 1, subscriber, removed);
+        if (child.isEmpty()) {
+            node.children.remove(levels[index]);
+        }
+    }
+
+    /**
+     * Gets the subscribers whose filters match the specified topic.
+     * @param topic A valid topic name.
+     * @return The matching subscribers, each with the highest QoS level among its matching filters.
+     */
+    @NotNull
+    Map<T, Integer> match(@NotNull String topic) {
+        Map<T, Integer> result = new HashMap<>();
+        String[] levels = Topics.split(topic);
+        collect(_root, levels, 0, !topic.startsWith("$"), result);
+        return result;
+    }
+
+    private static <T> void collect(Node<T> node, String[] levels, int index, boolean wildcards,
+                                    Map<T, Integer> result) {
+        if (index == levels.length) {
+            merge(node.subscribers, result);
+            // "a/#" also matches "a".
+            Node<T> parent = node.children.get("#");
+            if (parent != null) {
+                merge(parent.subscribers, result);
+            }
+            return;
+        }
+
+        if (wildcards) {
+            Node<T> rest = node.children.get("#");
+            if (rest != null) {
+                merge(rest.subscribers, result);
+            }
+
+            Node<T> single = node.children.get("+");
+            if (single != null) {
+                collect(single, levels, index + 1, true, result);
+            }
+        }
+
+        Node<T> exact = node.children.get(levels[index]);
+        if (exact != null) {
+            collect(exact, levels, index + 1, true, result);
+        }
+    }
+
+    private static <T> void merge(Map<T, Integer> subscribers, Map<T, Integer> result) {
+        for (Map.Entry<T, Integer> entry : subscribers.entrySet()) {
+            result.merge(entry.getKey(), entry.getValue(), Math::max);
+        }
+    }
+
+    /**
+     * Gets the number of subscriptions.
+     * @return The subscription count.
+     */
+    int size() {
+        return _size;
+    }
+}
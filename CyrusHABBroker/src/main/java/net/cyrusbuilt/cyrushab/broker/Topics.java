@@ -0,0 +1,94 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Validation and matching of MQTT topic names and topic filters, following the MQTT 3.1.1 rules: levels are separated
+ * by '/', '+' matches exactly one level, '#' matches any number of trailing levels (including none), and topics that
+ * start with '$' are not matched by a filter that starts with a wildcard.
+ */
+final class Topics {
+    /**
+     * The longest topic name or filter the protocol can carry, in UTF-8 bytes.
+     */
+    static final int MAX_LENGTH = 65535;
+
+    private Topics() {
+    }
+
+    /**
+     * Gets whether the specified string may be published to. Topic names must not be empty or contain wildcards.
+     * @param topic The topic name.
+     * @return true if the topic name is valid; Otherwise, false.
+     */
+    static boolean isValidTopicName(@NotNull String topic) {
+        return !topic.isEmpty() && topic.indexOf('+') < 0 && topic.indexOf('#') < 0 && topic.indexOf('\0') < 0;
+    }
+
+    /**
+     * Gets whether the specified string may be subscribed to. A '+' must fill a whole level, and a '#' must fill the
+     * last level.
+     * @param filter The topic filter.
+     * @return true if the topic filter is valid; Otherwise, false.
+     */
+    static boolean isValidFilter(@NotNull String filter) {
+        if (filter.isEmpty() || filter.indexOf('\0') >= 0) {
+            return false;
+        }
+
+        String[] levels = split(filter);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals("#")) {
+                if (i != levels.length - 1) {
+                    return false;
+                }
+            }
+            else if (!level.equals("+") && (level.indexOf('+') >= 0 || level.indexOf('#') >= 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits a topic name or filter into its levels. Empty levels are kept, so "a//b" has three levels and "/a" has
+     * two.
+     * @param topic The topic name or filter.
+     * @return The levels.
+     */
+    @NotNull
+    static String[] split(@NotNull String topic) {
+        return topic.split("/", -1);
+    }
+
+    /**
+     * Gets whether the specified topic filter matches the specified topic name.
+     * @param filter A valid topic filter.
+     * @param topic A valid topic name.
+     * @return true if the filter matches the topic; Otherwise, false.
+     */
+    static boolean matches(@NotNull String filter, @NotNull String topic) {
+        if (topic.startsWith("$") && (filter.startsWith("+") || filter.startsWith("#"))) {
+            return false;
+        }
+
+        String[] filterLevels = split(filter);
+        String[] topicLevels = split(topic);
+        for (int i = 0; i < filterLevels.length; i++) {
+            String level = filterLevels[i];
+            if (level.equals("#")) {
+                return true;
+            }
+
+            if (i >= topicLevels.length) {
+                return false;
+            }
+
+            if (!level.equals("+") && !level.equals(topicLevels[i])) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+}
@@ -0,0 +1,289 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MqttBrokerTest {
+    private MqttBroker _broker;
+    private final List<MqttClient> _clients = new ArrayList<>();
+
+    /**
+     * A received message and the topic it arrived on.
+     */
+    private static final class Received {
+        final String topic;
+        final MqttMessage message;
+
+        Received(String topic, MqttMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+
+        String payload() {
+            return new String(message.getPayload(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new MqttBroker.Builder().setPort(0).build();
+        _broker.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (MqttClient client : _clients) {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+            client.close();
+        }
+        _broker.stop();
+    }
+
+    private MqttClient client(String clientId, boolean clean, BlockingQueue<Received> received) throws MqttException {
+        MqttClient client = new MqttClient("tcp://127.0.0.1:" + _broker.port(), clientId, new MemoryPersistence());
+        _clients.add(client);
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                received.add(new Received(topic, message));
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(clean);
+        client.connect(options);
+        return client;
+    }
+
+    private static Received next(BlockingQueue<Received> received) throws InterruptedException {
+        Received message = received.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Timed out waiting for a message.", message);
+        return message;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void deliversAtEachQosLevelThroughWildcards() throws Exception {
+        BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+        MqttClient subscriber = client("subscriber", true, received);
+        subscriber.subscribe(new String[] { "cyrushab/thing/status/+", "cyrushab/thing/control/#" },
+                new int[] { 2, 1 });
+        MqttClient publisher = client("publisher", true, new LinkedBlockingQueue<>());
+
+        for (int qos = 0; qos <= 2; qos++) {
+            publisher.publish("cyrushab/thing/status/" + qos, bytes("status" + qos), qos, false);
+            Received message = next(received);
+            assertEquals("cyrushab/thing/status/" + qos, message.topic);
+            assertEquals("status" + qos, message.payload());
+            assertEquals(qos, message.message.getQos());
+            assertFalse(message.message.isRetained());
+        }
+
+        // Delivered at the lower of the published and granted QoS levels.
+        publisher.publish("cyrushab/thing/control/4", bytes("on"), 2, false);
+        assertEquals(1, next(received).message.getQos());
+
+        publisher.publish("cyrushab/application", bytes("ignored"), 1, false);
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(5, _broker.messagesReceived());
+        assertEquals(4, _broker.messagesSent());
+    }
+
+    @Test
+    public void sendsRetainedMessagesToNewSubscribers() throws Exception {
+        MqttClient publisher = client("publisher", true, new LinkedBlockingQueue<>());
+        publisher.publish("cyrushab/thing/state/1", bytes("one"), 1, true);
+        publisher.publish("cyrushab/thing/state/2", bytes("two"), 1, true);
+        publisher.publish("cyrushab/thing/state/2", new byte[0], 1, true);
+
+        BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+        MqttClient subscriber = client("subscriber", true, received);
+        subscriber.subscribe("cyrushab/thing/state/+", 1);
+        Received message = next(received);
+        assertEquals("cyrushab/thing/state/1", message.topic);
+        assertEquals("one", message.payload());
+        assertTrue(message.message.isRetained());
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void persistentSessionQueuesMessagesWhileAway() throws Exception {
+        BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+        MqttClient subscriber = client("daemon", false, received);
+        subscriber.subscribe("cyrushab/thing/control/+", 2);
+        subscriber.disconnect();
+
+        MqttClient publisher = client("publisher", true, new LinkedBlockingQueue<>());
+        publisher.publish("cyrushab/thing/control/1", bytes("a"), 1, false);
+        publisher.publish("cyrushab/thing/control/2", bytes("b"), 2, false);
+        publisher.publish("cyrushab/thing/control/3", bytes("lost"), 0, false);
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(false);
+        subscriber.connect(options);
+        assertEquals("a", next(received).payload());
+        assertEquals("b", next(received).payload());
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cleanSessionForgetsSubscriptions() throws Exception {
+        BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+        MqttClient subscriber = client("app", true, received);
+        subscriber.subscribe("cyrushab/#", 1);
+        subscriber.disconnect();
+        subscriber.connect();
+
+        MqttClient publisher = client("publisher", true, new LinkedBlockingQueue<>());
+        publisher.publish("cyrushab/application", bytes("x"), 1, false);
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void rejectsWrongCredentials() throws Exception {
+        _broker.stop();
+        _broker = new MqttBroker.Builder().setPort(0).setCredentials("hab", "secret").build();
+        _broker.start();
+
+        MqttClient client = new MqttClient("tcp://127.0.0.1:" + _broker.port(), "app", new MemoryPersistence());
+        _clients.add(client);
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setUserName("hab");
+        options.setPassword("wrong".toCharArray());
+        try {
+            client.connect(options);
+            fail("Connected with the wrong password.");
+        }
+        catch (MqttException ex) {
+            assertEquals(MqttException.REASON_CODE_FAILED_AUTHENTICATION, ex.getReasonCode());
+        }
+
+        options.setPassword("secret".toCharArray());
+        client.connect(options);
+        assertTrue(client.isConnected());
+    }
+
+    @Test
+    public void newConnectionTakesOverClientId() throws Exception {
+        CountDownLatch lost = new CountDownLatch(1);
+        MqttClient first = client("device", true, new LinkedBlockingQueue<>());
+        first.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                lost.countDown();
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+
+        client("device", true, new LinkedBlockingQueue<>());
+        assertTrue(lost.await(10, TimeUnit.SECONDS));
+        assertEquals(1, _broker.clientCount());
+    }
+
+    @Test
+    public void publishesWillWhenConnectionDrops() throws Exception {
+        BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+        MqttClient subscriber = client("app", true, received);
+        subscriber.subscribe("cyrushab/system/status/+", 1);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), _broker.port())) {
+            socket.getOutputStream().write(connectWithWill("device", "cyrushab/system/status/device", "offline"));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertEquals(0x20, in.readUnsignedByte());
+            assertEquals(2, in.readUnsignedByte());
+            in.readUnsignedByte();
+            assertEquals(0, in.readUnsignedByte());
+        }
+
+        Received will = next(received);
+        assertEquals("cyrushab/system/status/device", will.topic);
+        assertEquals("offline", will.payload());
+    }
+
+    @Test
+    public void closesConnectionOnProtocolViolation() throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), _broker.port())) {
+            socket.setSoTimeout(10000);
+            // A PINGREQ before CONNECT.
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[] { (byte)0xC0, 0 });
+            InputStream in = socket.getInputStream();
+            assertEquals(-1, in.read());
+        }
+        catch (EOFException ignored) {
+        }
+        assertEquals(0, _broker.clientCount());
+    }
+
+    /**
+     * Builds a CONNECT packet with a QoS 1 will message and a clean session.
+     */
+    private static byte[] connectWithWill(String clientId, String willTopic, String willMessage) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeString(body, bytes("MQTT"));
+        body.write(4);
+        body.write(0x02 | 0x04 | 0x08);
+        body.write(0);
+        body.write(60);
+        writeString(body, bytes(clientId));
+        writeString(body, bytes(willTopic));
+        writeString(body, bytes(willMessage));
+
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        packet.write(0x10);
+        packet.write(body.size());
+        packet.write(body.toByteArray(), 0, body.size());
+        return packet.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, byte[] value) {
+        out.write(value.length >> 8);
+        out.write(value.length);
+        out.write(value, 0, value.length);
+    }
+}
@@ -0,0 +1,70 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionTreeTest {
+    @Test
+    public void matchesExactAndWildcardFilters() {
+        SubscriptionTree<String> tree = new SubscriptionTree<>();
+        tree.add("cyrushab/thing/status/4", "exact", 1);
+        tree.add("cyrushab/thing/status/+", "single", 0);
+        tree.add("cyrushab/#", "multi", 2);
+        tree.add("cyrushab/thing/control/+", "other", 2);
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("exact", 1);
+        expected.put("single", 0);
+        expected.put("multi", 2);
+        assertEquals(expected, tree.match("cyrushab/thing/status/4"));
+        assertEquals(Collections.singletonMap("multi", 2), tree.match("cyrushab"));
+        assertTrue(tree.match("other/thing").isEmpty());
+    }
+
+    @Test
+    public void subscriberGetsHighestQosOfOverlappingFilters() {
+        SubscriptionTree<String> tree = new SubscriptionTree<>();
+        tree.add("cyrushab/+/status/4", "app", 0);
+        tree.add("cyrushab/thing/#", "app", 2);
+        tree.add("cyrushab/thing/status/4", "app", 1);
+        assertEquals(Collections.singletonMap("app", 2), tree.match("cyrushab/thing/status/4"));
+        assertEquals(3, tree.size());
+    }
+
+    @Test
+    public void resubscribingReplacesQos() {
+        SubscriptionTree<String> tree = new SubscriptionTree<>();
+        tree.add("cyrushab/#", "app", 2);
+        tree.add("cyrushab/#", "app", 0);
+        assertEquals(1, tree.size());
+        assertEquals(Collections.singletonMap("app", 0), tree.match("cyrushab/thing"));
+    }
+
+    @Test
+    public void wildcardsSkipDollarTopics() {
+        SubscriptionTree<String> tree = new SubscriptionTree<>();
+        tree.add("#", "all", 0);
+        tree.add("+/broker", "single", 0);
+        tree.add("$SYS/#", "sys", 0);
+        assertEquals(Collections.singletonMap("sys", 0), tree.match("$SYS/broker"));
+    }
+
+    @Test
+    public void removeForgetsOnlyThatSubscription() {
+        SubscriptionTree<String> tree = new SubscriptionTree<>();
+        tree.add("cyrushab/thing/+", "a", 1);
+        tree.add("cyrushab/thing/+", "b", 1);
+        assertTrue(tree.remove("cyrushab/thing/+", "a"));
+        assertFalse(tree.remove("cyrushab/thing/+", "a"));
+        assertFalse(tree.remove("cyrushab/other", "b"));
+        assertEquals(Collections.singletonMap("b", 1), tree.match("cyrushab/thing/4"));
+        assertTrue(tree.remove("cyrushab/thing/+", "b"));
+        assertEquals(0, tree.size());
+        assertTrue(tree.match("cyrushab/thing/4").isEmpty());
+    }
+}
@@ -0,0 +1,48 @@
+package net.cyrusbuilt.cyrushab.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TopicsTest {
+    @Test
+    public void validatesTopicNames() {
+        assertTrue(Topics.isValidTopicName("cyrushab/thing/status/4"));
+        assertTrue(Topics.isValidTopicName("/"));
+        assertFalse(Topics.isValidTopicName(""));
+        assertFalse(Topics.isValidTopicName("cyrushab/+/status"));
+        assertFalse(Topics.isValidTopicName("cyrushab/#"));
+    }
+
+    @Test
+    public void validatesFilters() {
+        assertTrue(Topics.isValidFilter("#"));
+        assertTrue(Topics.isValidFilter("+"));
+        assertTrue(Topics.isValidFilter("cyrushab/+/status/#"));
+        assertTrue(Topics.isValidFilter("/+/"));
+        assertFalse(Topics.isValidFilter(""));
+        assertFalse(Topics.isValidFilter("cyrushab/#/status"));
+        assertFalse(Topics.isValidFilter("cyrushab/thing+"));
+        assertFalse(Topics.isValidFilter("cyrushab/thing#"));
+    }
+
+    @Test
+    public void matchesWildcards() {
+        assertTrue(Topics.matches("cyrushab/thing/status/4", "cyrushab/thing/status/4"));
+        assertTrue(Topics.matches("cyrushab/+/status/+", "cyrushab/thing/status/4"));
+        assertTrue(Topics.matches("cyrushab/#", "cyrushab/thing/status/4"));
+        assertTrue(Topics.matches("cyrushab/#", "cyrushab"));
+        assertTrue(Topics.matches("#", "cyrushab/thing"));
+        assertTrue(Topics.matches("+/+", "/thing"));
+        assertFalse(Topics.matches("cyrushab/+", "cyrushab/thing/status"));
+        assertFalse(Topics.matches("cyrushab/thing/status", "cyrushab/thing"));
+        assertFalse(Topics.matches("cyrushab/thing", "cyrushab/thing/status"));
+    }
+
+    @Test
+    public void wildcardsDoNotMatchLeadingDollarTopics() {
+        assertFalse(Topics.matches("#", "$SYS/broker/clients"));
+        assertFalse(Topics.matches("+/broker/clients", "$SYS/broker/clients"));
+        assertTrue(Topics.matches("$SYS/#", "$SYS/broker/clients"));
+    }
+}
@@ -1,5 +1,11 @@
 package net.cyrusbuilt.cyrushab.daemon;
 
+import net.cyrusbuilt.cyrushab.core.events.OverflowPolicy;
+import net.cyrusbuilt.cyrushab.core.mqtt.MqttManager;
+import net.cyrusbuilt.cyrushab.core.mqtt.PersistenceMode;
+import net.cyrusbuilt.cyrushab.core.mqtt.ProtocolVersion;
+import net.cyrusbuilt.cyrushab.core.mqtt.QosPolicy;
+import net.cyrusbuilt.cyrushab.core.mqtt.ReconnectPolicy;
 import net.cyrusbuilt.cyrushab.core.things.Thing;
 import net.cyrusbuilt.cyrushab.core.things.ThingType;
 import net.cyrusbuilt.cyrushab.core.things.dimmablelight.DimmableLight;
@@ -35,9 +41,51 @@ public final class Configuration {
     private static final String CONFIG_THING_STATUS_TOPIC_BASE = "thing_status_topic_base";
     private static final String CONFIG_THING_CONTROL_TOPIC_BASE = "thing_control_topic_base";
     private static final String CONFIG_APP_TOPIC = "app_topic";
+    private static final String CONFIG_INBOUND_WORKERS = "inbound_workers";
+    private static final String CONFIG_INBOUND_QUEUE_CAPACITY = "inbound_queue_capacity";
+    private static final String CONFIG_INBOUND_OVERFLOW_POLICY = "inbound_overflow_policy";
+    private static final String CONFIG_DRAIN_TIMEOUT = "drain_timeout_ms";
+    private static final String CONFIG_VIRTUAL_THREADS = "virtual_threads";
+    private static final String CONFIG_OUTBOUND_WORKERS = "outbound_workers";
+    private static final String CONFIG_MQTT_MAX_IN_FLIGHT = "mqtt_max_inflight";
+    private static final String CONFIG_MQTT_PUBLISH_CONNECTIONS = "mqtt_publish_connections";
+    private static final String CONFIG_MQTT_PERSISTENT_SESSION = "mqtt_persistent_session";
+    private static final String CONFIG_MQTT_PROTOCOL_VERSION = "mqtt_protocol_version";
+    private static final String CONFIG_MQTT_CONTROL_EXPIRY = "mqtt_control_expiry_seconds";
+    private static final String CONFIG_MQTT_COMPRESSION_THRESHOLD = "mqtt_compression_threshold";
+    private static final String CONFIG_LISTENER_QUEUE_CAPACITY = "listener_queue_capacity";
+    private static final String CONFIG_LISTENER_OVERFLOW_POLICY = "listener_overflow_policy";
+    private static final String CONFIG_MQTT_PERSISTENCE = "mqtt_persistence";
+    private static final String CONFIG_MQTT_PERSISTENCE_DIR = "mqtt_persistence_dir";
+    private static final String CONFIG_OFFLINE_BUFFER_CAPACITY = "offline_buffer_capacity";
+    private static final String CONFIG_EMBEDDED_BROKER = "embedded_broker";
+    private static final String CONFIG_EMBEDDED_BROKER_ENABLED = "enabled";
+    private static final String CONFIG_EMBEDDED_BROKER_BIND_ADDRESS = "bind_address";
+    private static final String CONFIG_RECONNECT = "reconnect";
+    private static final String CONFIG_RECONNECT_BASE_DELAY = "base_delay_ms";
+    private static final String CONFIG_RECONNECT_MAX_DELAY = "max_delay_ms";
+    private static final String CONFIG_RECONNECT_JITTER = "jitter";
+    private static final String CONFIG_QOS = "qos";
+    private static final String CONFIG_QOS_DEFAULT = "default";
+    private static final String CONFIG_QOS_SYSTEM_CONTROL = "system_control";
+    private static final String CONFIG_QOS_SYSTEM_STATUS = "system_status";
+    private static final String CONFIG_QOS_THING_CONTROL = "thing_control";
+    private static final String CONFIG_QOS_THING_STATUS = "thing_status";
+    private static final String CONFIG_QOS_APPLICATION = "application";
+    private static final int DEFAULT_INBOUND_QUEUE_CAPACITY = 10000;
+    private static final long DEFAULT_DRAIN_TIMEOUT = 5000L;
+    private static final int DEFAULT_VIRTUAL_OUTBOUND_WORKERS = 64;
+    private static final int DEFAULT_OFFLINE_BUFFER_CAPACITY = 1000;
+    private static final String DEFAULT_EMBEDDED_BROKER_BIND_ADDRESS = "0.0.0.0";
+    private static final String SPOOL_FILE_NAME = "events.spool";
+    private static final String OFFLINE_SPILL_FILE_NAME = "offline.spill";
+    private static final String MQTT_DIR_NAME = "mqtt";
 
     private static File _configFile = null;
     private static File _thingRegistry = null;
+    private static File _spoolFile = null;
+    private static File _offlineSpillFile = null;
+    private static File _defaultMqttPersistenceDir = new File(System.getProperty("java.io.tmpdir"));
     private static String _clientID = StringUtils.EMPTY;
     private static String _mqttBroker = StringUtils.EMPTY;
     private static long _port = 1883;
@@ -48,6 +96,27 @@ public final class Configuration {
     private static String _thingStatusTopicBase = StringUtils.EMPTY;
     private static String _thingControlTopicBase = StringUtils.EMPTY;
     private static String _appTopic = StringUtils.EMPTY;
+    private static int _inboundWorkers = 0;
+    private static int _inboundQueueCapacity = DEFAULT_INBOUND_QUEUE_CAPACITY;
+    private static OverflowPolicy _inboundOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private static long _drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+    private static boolean _virtualThreads = false;
+    private static int _outboundWorkers = 0;
+    private static int _mqttMaxInFlight = MqttManager.DEFAULT_MAX_IN_FLIGHT;
+    private static int _mqttPublishConnections = 0;
+    private static boolean _mqttPersistentSession = false;
+    private static ProtocolVersion _mqttProtocolVersion = ProtocolVersion.MQTT_3_1_1;
+    private static long _mqttControlExpiry = 0;
+    private static int _mqttCompressionThreshold = MqttManager.COMPRESSION_DISABLED;
+    private static int _listenerQueueCapacity = MqttManager.DEFAULT_LISTENER_QUEUE_CAPACITY;
+    private static OverflowPolicy _listenerOverflowPolicy = OverflowPolicy.BLOCK;
+    private static boolean _embeddedBroker = false;
+    private static String _embeddedBrokerBindAddress = DEFAULT_EMBEDDED_BROKER_BIND_ADDRESS;
+    private static int _offlineBufferCapacity = DEFAULT_OFFLINE_BUFFER_CAPACITY;
+    private static QosPolicy _qosPolicy = QosPolicy.EXACTLY_ONCE;
+    private static ReconnectPolicy _reconnectPolicy = ReconnectPolicy.DEFAULT;
+    private static PersistenceMode _mqttPersistence = PersistenceMode.FILE;
+    private static File _mqttPersistenceDir = _defaultMqttPersistenceDir;
     private static List<Thing> _allThings = null;
 
     /**
@@ -62,7 +131,7 @@ public final class Configuration {
      * created first.
      * @throws FileNotFoundException if unable to create the config directory or unable to retrieve the default config
      * from the internal resource, or unable to copy the default config file to the config directory, or unable to
-     * create the thing directory.
+     * create the thing or spool directory.
      */
     public static void initialize() throws FileNotFoundException {
         _allThings = new ArrayList<>();
@@ -121,6 +190,18 @@ public final class Configuration {
             }
 
             _thingRegistry = thingRegistry;
+
+            String spoolPath = execDir.getAbsolutePath() + File.separator + "spool";
+            File spoolDir = new File(spoolPath);
+            if (!spoolDir.exists()) {
+                if (!spoolDir.mkdir()) {
+                    throw new FileNotFoundException("Unable to create directory: " + spoolDir.getAbsolutePath());
+                }
+            }
+
+            _spoolFile = new File(spoolDir, SPOOL_FILE_NAME);
+            _offlineSpillFile = new File(spoolDir, OFFLINE_SPILL_FILE_NAME);
+            _defaultMqttPersistenceDir = new File(execDir, MQTT_DIR_NAME);
         }
     }
 
@@ -143,12 +224,138 @@ public final class Configuration {
             _thingStatusTopicBase = (String)jsonObject.get(CONFIG_THING_STATUS_TOPIC_BASE);
             _thingControlTopicBase = (String)jsonObject.get(CONFIG_THING_CONTROL_TOPIC_BASE);
             _appTopic = (String)jsonObject.get(CONFIG_APP_TOPIC);
+            _inboundWorkers = (int)optLong(jsonObject, CONFIG_INBOUND_WORKERS, 0);
+            _inboundQueueCapacity = (int)optLong(jsonObject, CONFIG_INBOUND_QUEUE_CAPACITY,
+                    DEFAULT_INBOUND_QUEUE_CAPACITY);
+            _inboundOverflowPolicy = OverflowPolicy.valueOf(optString(jsonObject, CONFIG_INBOUND_OVERFLOW_POLICY,
+                    OverflowPolicy.DROP_OLDEST.name()).toUpperCase());
+            _drainTimeout = optLong(jsonObject, CONFIG_DRAIN_TIMEOUT, DEFAULT_DRAIN_TIMEOUT);
+            _virtualThreads = optBoolean(jsonObject, CONFIG_VIRTUAL_THREADS, false);
+            _outboundWorkers = (int)optLong(jsonObject, CONFIG_OUTBOUND_WORKERS, 0);
+            _mqttMaxInFlight = (int)optLong(jsonObject, CONFIG_MQTT_MAX_IN_FLIGHT, MqttManager.DEFAULT_MAX_IN_FLIGHT);
+            _mqttPublishConnections = (int)optLong(jsonObject, CONFIG_MQTT_PUBLISH_CONNECTIONS, 0);
+            _mqttPersistentSession = optBoolean(jsonObject, CONFIG_MQTT_PERSISTENT_SESSION, false);
+            _mqttProtocolVersion = ProtocolVersion.fromString(optString(jsonObject, CONFIG_MQTT_PROTOCOL_VERSION,
+                    ProtocolVersion.MQTT_3_1_1.toString()));
+            _mqttControlExpiry = optLong(jsonObject, CONFIG_MQTT_CONTROL_EXPIRY, 0);
+            _mqttCompressionThreshold = (int)optLong(jsonObject, CONFIG_MQTT_COMPRESSION_THRESHOLD,
+                    MqttManager.COMPRESSION_DISABLED);
+            _listenerQueueCapacity = (int)optLong(jsonObject, CONFIG_LISTENER_QUEUE_CAPACITY,
+                    MqttManager.DEFAULT_LISTENER_QUEUE_CAPACITY);
+            _listenerOverflowPolicy = OverflowPolicy.valueOf(optString(jsonObject, CONFIG_LISTENER_OVERFLOW_POLICY,
+                    OverflowPolicy.BLOCK.name()).toUpperCase());
+            readEmbeddedBroker((JSONObject)jsonObject.get(CONFIG_EMBEDDED_BROKER));
+            _offlineBufferCapacity = (int)optLong(jsonObject, CONFIG_OFFLINE_BUFFER_CAPACITY,
+                    DEFAULT_OFFLINE_BUFFER_CAPACITY);
+            _qosPolicy = readQosPolicy((JSONObject)jsonObject.get(CONFIG_QOS));
+            _reconnectPolicy = readReconnectPolicy((JSONObject)jsonObject.get(CONFIG_RECONNECT));
+            _mqttPersistence = PersistenceMode.valueOf(optString(jsonObject, CONFIG_MQTT_PERSISTENCE,
+                    PersistenceMode.FILE.name()).toUpperCase());
+            String persistenceDir = optString(jsonObject, CONFIG_MQTT_PERSISTENCE_DIR, null);
+            _mqttPersistenceDir = persistenceDir == null ? _defaultMqttPersistenceDir : new File(persistenceDir);
         }
         catch (Exception ex) {
             logger.error("Failed to read config: " + ex.getMessage());
         }
     }
 
+    /**
+     * Gets an optional numeric value from the config object.
+     * @param jsonObject The config object.
+     * @param key The config key.
+     * @param defaultValue The value to return if the key is not present.
+     * @return The configured value or the default value.
+     */
+    private static long optLong(@NotNull JSONObject jsonObject, @NotNull String key, long defaultValue) {
+        Object value = jsonObject.get(key);
+        return value == null ? defaultValue : (long)value;
+    }
+
+    /**
+     * Reads the "embedded_broker" config section. Without one, no broker is embedded.
+     * @param brokerObject The "embedded_broker" config section, or null if there isn't one.
+     */
+    private static void readEmbeddedBroker(@Nullable JSONObject brokerObject) {
+        if (brokerObject == null) {
+            _embeddedBroker = false;
+            _embeddedBrokerBindAddress = DEFAULT_EMBEDDED_BROKER_BIND_ADDRESS;
+            return;
+        }
+
+        _embeddedBroker = optBoolean(brokerObject, CONFIG_EMBEDDED_BROKER_ENABLED, false);
+        _embeddedBrokerBindAddress = optString(brokerObject, CONFIG_EMBEDDED_BROKER_BIND_ADDRESS,
+                DEFAULT_EMBEDDED_BROKER_BIND_ADDRESS);
+    }
+
+    /**
+     * Builds the MQTT reconnect policy from the "reconnect" config section. Settings that are not configured keep
+     * their defaults.
+     * @param reconnectObject The "reconnect" config section, or null if there isn't one.
+     * @return The reconnect policy.
+     * @throws IllegalArgumentException if a setting is out of range.
+     */
+    private static ReconnectPolicy readReconnectPolicy(@Nullable JSONObject reconnectObject) {
+        if (reconnectObject == null) {
+            return ReconnectPolicy.DEFAULT;
+        }
+
+        ReconnectPolicy defaults = ReconnectPolicy.DEFAULT;
+        Object jitter = reconnectObject.get(CONFIG_RECONNECT_JITTER);
+        return new ReconnectPolicy.Builder()
+                .setBaseDelay(optLong(reconnectObject, CONFIG_RECONNECT_BASE_DELAY, defaults.getBaseDelay()))
+                .setMaxDelay(optLong(reconnectObject, CONFIG_RECONNECT_MAX_DELAY, defaults.getMaxDelay()))
+                .setJitter(jitter == null ? defaults.getJitter() : ((Number)jitter).doubleValue())
+                .build();
+    }
+
+    /**
+     * Builds the QoS policy from the "qos" config section, which maps each of the configured topics (and everything
+     * below them) to a QoS level. Topics that are not configured use the default level, which is 2 if not set.
+     * @param qosObject The "qos" config section, or null if there isn't one.
+     * @return The QoS policy.
+     * @throws IllegalArgumentException if a QoS level is not 0, 1, or 2.
+     */
+    private static QosPolicy readQosPolicy(@Nullable JSONObject qosObject) {
+        if (qosObject == null) {
+            return QosPolicy.EXACTLY_ONCE;
+        }
+
+        int defaultQos = (int)optLong(qosObject, CONFIG_QOS_DEFAULT, 2);
+        return new QosPolicy.Builder()
+                .setDefaultQos(defaultQos)
+                .addRule(_sysControlTopic + "/#", (int)optLong(qosObject, CONFIG_QOS_SYSTEM_CONTROL, defaultQos))
+                .addRule(_sysStatusTopic + "/#", (int)optLong(qosObject, CONFIG_QOS_SYSTEM_STATUS, defaultQos))
+                .addRule(_thingControlTopicBase + "/#",
+                        (int)optLong(qosObject, CONFIG_QOS_THING_CONTROL, defaultQos))
+                .addRule(_thingStatusTopicBase + "/#", (int)optLong(qosObject, CONFIG_QOS_THING_STATUS, defaultQos))
+                .addRule(_appTopic + "/#", (int)optLong(qosObject, CONFIG_QOS_APPLICATION, defaultQos))
+                .build();
+    }
+
+    /**
+     * Gets an optional boolean value from the config object.
+     * @param jsonObject The config object.
+     * @param key The config key.
+     * @param defaultValue The value to return if the key is not present.
+     * @return The configured value or the default value.
+     */
+    private static boolean optBoolean(@NotNull JSONObject jsonObject, @NotNull String key, boolean defaultValue) {
+        Object value = jsonObject.get(key);
+        return value == null ? defaultValue : (boolean)value;
+    }
+
+    /**
+     * Gets an optional string value from the config object.
+     * @param jsonObject The config object.
+     * @param key The config key.
+     * @param defaultValue The value to return if the key is not present or blank.
+     * @return The configured value or the default value.
+     */
+    private static String optString(@NotNull JSONObject jsonObject, @NotNull String key, String defaultValue) {
+        String value = (String)jsonObject.get(key);
+        return StringUtils.isBlank(value) ? defaultValue : value;
+    }
+
     /**
      * Saves configuration changes to the config file.
      */
@@ -415,6 +622,240 @@ public final class Configuration {
         return _appTopic;
     }
 
+    /**
+     * Gets the topic the daemon sends an app its replies on once the app has announced it can inflate compressed
+     * payloads: {@code <app_topic>/reply/<clientID>}. Replies there may be compressed, so the shared application
+     * topic only ever carries plain payloads that every app can read.
+     * @param clientID The client ID of the app.
+     * @return The app's reply topic.
+     */
+    public static String applicationReplyTopic(@NotNull String clientID) {
+        return _appTopic + "/reply/" + clientID;
+    }
+
+    /**
+     * Gets the base topic for the retained per-thing state messages. Each thing's latest status is kept on
+     * {@code <base>/<thingId>}, below the application topic.
+     * @return The thing state topic base.
+     */
+    public static String thingStateTopicBase() {
+        return _appTopic + "/state";
+    }
+
+    /**
+     * Gets the number of worker threads used to process inbound events. Events for the same thing are always handled
+     * by the same worker. Defaults to the number of available processors.
+     * @return The inbound worker count.
+     */
+    public static int inboundWorkers() {
+        if (_inboundWorkers > 0) {
+            return _inboundWorkers;
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Gets the maximum number of events waiting in the inbound queue, shared evenly between the inbound workers.
+     * @return The inbound queue capacity.
+     */
+    public static int inboundQueueCapacity() {
+        return _inboundQueueCapacity;
+    }
+
+    /**
+     * Gets what happens to thing status messages when the inbound queue is full. Control and system messages are
+     * never dropped.
+     * @return The inbound overflow policy.
+     */
+    public static OverflowPolicy inboundOverflowPolicy() {
+        return _inboundOverflowPolicy;
+    }
+
+    /**
+     * Gets how long to wait on stop or restart for queued events to be processed before the rest are spooled to disk.
+     * @return The drain timeout in milliseconds.
+     */
+    public static long drainTimeout() {
+        return _drainTimeout;
+    }
+
+    /**
+     * Gets whether or not inbound handling, outbound publishing, and listener notification should run on virtual
+     * threads. Only takes effect on Java 21 or later; older JVMs fall back to platform threads.
+     * @return true if virtual threads are requested; Otherwise, false.
+     */
+    public static boolean virtualThreads() {
+        return _virtualThreads;
+    }
+
+    /**
+     * Gets the number of workers used to publish outbound events. Events for the same topic are always published by
+     * the same worker, in order. Defaults to a single worker, or {@value #DEFAULT_VIRTUAL_OUTBOUND_WORKERS} when
+     * running on virtual threads, where a worker blocked on a publish costs next to nothing.
+     * @param virtual Set true if the workers run on virtual threads.
+     * @return The outbound worker count.
+     */
+    public static int outboundWorkers(boolean virtual) {
+        if (_outboundWorkers > 0) {
+            return _outboundWorkers;
+        }
+        return virtual ? DEFAULT_VIRTUAL_OUTBOUND_WORKERS : 1;
+    }
+
+    /**
+     * Gets the maximum number of published messages that may be awaiting delivery confirmation from the broker at
+     * once.
+     * @return The MQTT in-flight window size.
+     */
+    public static int mqttMaxInFlight() {
+        return Math.max(1, _mqttMaxInFlight);
+    }
+
+    /**
+     * Gets whether the daemon asks the broker to keep its MQTT session while it is disconnected, so QoS 1 and 2
+     * messages on its subscriptions are queued for it rather than lost. Defaults to a clean session on every connect.
+     * @return true to use a persistent session; Otherwise, false.
+     */
+    public static boolean mqttPersistentSession() {
+        return _mqttPersistentSession;
+    }
+
+    /**
+     * Gets the version of the MQTT protocol spoken to the broker. Defaults to 3.1.1. Over MQTT 5, the thing type, thing
+     * ID and correlation ID of control and state messages travel as message properties.
+     * @return The MQTT protocol version.
+     */
+    public static ProtocolVersion mqttProtocolVersion() {
+        return _mqttProtocolVersion;
+    }
+
+    /**
+     * Gets how long a thing control message stays valid once published. Over MQTT 5 the broker discards a control
+     * message it can't deliver in time, so a device that comes back online doesn't act on stale commands. 0 (the
+     * default) means control messages never expire.
+     * @return The control message expiry in seconds.
+     */
+    public static long mqttControlExpirySeconds() {
+        return Math.max(0, _mqttControlExpiry);
+    }
+
+    /**
+     * Gets the size from which the daemon compresses its replies to apps that announce they can inflate them. Those
+     * replies go to the app's own reply topic (see {@link #applicationReplyTopic(String)}). Meant for the thing
+     * inventory and device statuses of large installs, sent to apps on slow links. 0 (the default) turns compression
+     * off.
+     * @return The compression threshold in bytes.
+     */
+    public static int mqttCompressionThreshold() {
+        return Math.max(MqttManager.COMPRESSION_DISABLED, _mqttCompressionThreshold);
+    }
+
+    /**
+     * Gets the number of MQTT events that may wait for each listener and message handler before the listener overflow
+     * policy applies.
+     * @return The listener queue capacity.
+     */
+    public static int listenerQueueCapacity() {
+        return Math.max(1, _listenerQueueCapacity);
+    }
+
+    /**
+     * Gets what happens to a received or delivered MQTT message when a listener's queue is full. Defaults to blocking
+     * the MQTT client until the listener catches up. Only applies to thing status messages and delivery events; system
+     * and thing control messages and connection events are never dropped, whatever this is set to.
+     * @return The listener overflow policy.
+     */
+    public static OverflowPolicy listenerOverflowPolicy() {
+        return _listenerOverflowPolicy;
+    }
+
+    /**
+     * Gets whether the daemon runs its own MQTT broker, for single-box installs without a separate one. The embedded
+     * broker listens on the configured port and, if a username is configured, requires the configured credentials.
+     * @return true to start the embedded broker; Otherwise, false.
+     */
+    public static boolean embeddedBroker() {
+        return _embeddedBroker;
+    }
+
+    /**
+     * Gets the address the embedded broker listens on. Defaults to all interfaces, so things on the network can
+     * connect.
+     * @return The bind address.
+     */
+    public static String embeddedBrokerBindAddress() {
+        return _embeddedBrokerBindAddress;
+    }
+
+    /**
+     * Gets the number of MQTT connections used for publishing, separate from the one that receives messages. 0 means
+     * a single connection does both.
+     * @return The publisher connection count.
+     */
+    public static int mqttPublishConnections() {
+        return Math.max(0, _mqttPublishConnections);
+    }
+
+    /**
+     * Gets the policy that picks the QoS level for each topic the daemon publishes or subscribes to.
+     * @return The QoS policy.
+     */
+    public static QosPolicy qosPolicy() {
+        return _qosPolicy;
+    }
+
+    /**
+     * Gets the policy for backing off between attempts to reconnect to the MQTT broker after the connection is lost.
+     * @return The reconnect policy.
+     */
+    public static ReconnectPolicy reconnectPolicy() {
+        return _reconnectPolicy;
+    }
+
+    /**
+     * Gets where the MQTT client keeps in-flight QoS 1 and 2 messages. Defaults to one file per message.
+     * @return The MQTT persistence mode.
+     */
+    public static PersistenceMode mqttPersistence() {
+        return _mqttPersistence;
+    }
+
+    /**
+     * Gets the directory the MQTT client keeps in-flight messages in, for the file-backed persistence modes. Defaults
+     * to the "mqtt" subdirectory of the execution directory.
+     * @return The MQTT persistence directory.
+     */
+    public static File mqttPersistenceDir() {
+        return _mqttPersistenceDir;
+    }
+
+    /**
+     * Gets the file that events still pending on stop are spooled to, to be replayed on the next start.
+     * @return The spool file, or null if the execution directory could not be determined.
+     */
+    @Nullable
+    public static File spoolFile() {
+        return _spoolFile;
+    }
+
+    /**
+     * Gets the number of messages published during a broker outage that are held in memory for sending once the
+     * connection is back. Older messages beyond that are spilled to {@link #offlineSpillFile()}.
+     * @return The offline buffer capacity, or 0 if publishing while disconnected should fail instead.
+     */
+    public static int offlineBufferCapacity() {
+        return Math.max(0, _offlineBufferCapacity);
+    }
+
+    /**
+     * Gets the file that messages published during a broker outage are spilled to once the offline buffer is full.
+     * @return The spill file, or null if the execution directory could not be determined.
+     */
+    @Nullable
+    public static File offlineSpillFile() {
+        return _offlineSpillFile;
+    }
+
     /**
      * Gets a thing from the thing registry by ID.
      * @param thingID The thing ID.
@@ -1,16 +1,38 @@
 package net.cyrusbuilt.cyrushab.daemon;
 
+import net.cyrusbuilt.cyrushab.broker.MqttBroker;
 import net.cyrusbuilt.cyrushab.core.application.HeartBeatPacket;
 import net.cyrusbuilt.cyrushab.core.application.ThingInventoryPacket;
+import net.cyrusbuilt.cyrushab.core.events.CoalescingEventQueue;
+import net.cyrusbuilt.cyrushab.core.events.EventQueueProcessor;
+import net.cyrusbuilt.cyrushab.core.events.OverflowPolicy;
+import net.cyrusbuilt.cyrushab.core.events.ShardedEventProcessor;
+import net.cyrusbuilt.cyrushab.core.events.TaskPriority;
+import net.cyrusbuilt.cyrushab.core.events.TaskScheduler;
+import net.cyrusbuilt.cyrushab.core.events.ThreadFactories;
+import net.cyrusbuilt.cyrushab.core.mqtt.DeliveryLatency;
+import net.cyrusbuilt.cyrushab.core.mqtt.DispatchStats;
 import net.cyrusbuilt.cyrushab.core.mqtt.HABMqttException;
+import net.cyrusbuilt.cyrushab.core.mqtt.MessageProperties;
+import net.cyrusbuilt.cyrushab.core.mqtt.MqttEventSpool;
 import net.cyrusbuilt.cyrushab.core.mqtt.MqttManager;
+import net.cyrusbuilt.cyrushab.core.mqtt.OfflineBuffer;
+import net.cyrusbuilt.cyrushab.core.mqtt.ProtocolVersion;
+import net.cyrusbuilt.cyrushab.core.telemetry.AppCapability;
+import net.cyrusbuilt.cyrushab.core.telemetry.EventTrace;
+import net.cyrusbuilt.cyrushab.core.telemetry.LatencyHistogram;
 import net.cyrusbuilt.cyrushab.core.telemetry.SystemControlPacket;
 import net.cyrusbuilt.cyrushab.core.telemetry.SystemStatus;
 import net.cyrusbuilt.cyrushab.core.telemetry.SystemStatusPacket;
+import net.cyrusbuilt.cyrushab.core.telemetry.TraceRecorder;
+import net.cyrusbuilt.cyrushab.core.telemetry.TraceStage;
 import net.cyrusbuilt.cyrushab.core.things.BasicThingUtils;
+import net.cyrusbuilt.cyrushab.core.things.DecodedPacket;
 import net.cyrusbuilt.cyrushab.core.things.MinimalThingInfo;
 import net.cyrusbuilt.cyrushab.core.things.Packet;
 import net.cyrusbuilt.cyrushab.core.things.Thing;
+import net.cyrusbuilt.cyrushab.core.things.ThingParseException;
+import net.cyrusbuilt.cyrushab.core.things.ThingType;
 import net.cyrusbuilt.cyrushab.core.things.dimmablelight.DimmableLight;
 import net.cyrusbuilt.cyrushab.core.things.dimmablelight.DimmableLightControlPacket;
 import net.cyrusbuilt.cyrushab.core.things.dimmablelight.DimmableLightStatusPacket;
@@ -25,6 +47,7 @@ import net.cyrusbuilt.cyrushab.core.things.switches.SwitchStatusPacket;
 import net.cyrusbuilt.cyrushab.core.things.thermostat.Thermostat;
 import net.cyrusbuilt.cyrushab.core.things.thermostat.ThermostatControlPacket;
 import net.cyrusbuilt.cyrushab.core.things.thermostat.ThermostatStatusPacket;
+import net.cyrusbuilt.cyrushab.daemon.TopicRouter.TopicClass;
 
 import org.apache.commons.daemon.Daemon;
 import org.apache.commons.daemon.DaemonContext;
@@ -35,13 +58,20 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
-import java.util.ArrayDeque;
-import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * The main class of this daemon. Responsible for processing control and status messages for client devices as well as
@@ -49,21 +79,23 @@ import java.util.concurrent.LinkedBlockingDeque;
  */
 public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
     private static final Logger logger = LoggerFactory.getLogger(HABDaemon.class);
-    private static final int MAX_RECONNECT_ATTEMPTS = 3;
+    private static final long PROCESSOR_STOP_TIMEOUT_MS = 2000L;
+    private static final long RESTART_DELAY_MS = 500L;
+    private static final Timestamp STATE_FINGERPRINT_TIMESTAMP = new Timestamp(0L);
 
     private static HABDaemon _instance;
     private DaemonContext _thisContext;
-    private Thread _mainThread = null;
-    private Thread _inboundEventProcessor = null;
-    private Thread _outboundEventProcessor = null;
-    private Queue<MqttManager.MqttEvent> _inboundEventQueue;
-    private Queue<MqttManager.MqttEvent> _outboundEventQueue;
-    private BlockingDeque<Runnable> _systemQueue;
-    private int _reconnects = 0;
-    private TimerTask _reconnectTask;
-    private Timer _reconnectTimer;
+    private final TaskScheduler _scheduler;
+    private EventQueueProcessor<InboundEvent> _systemControlProcessor = null;
+    private ShardedEventProcessor<InboundEvent> _inboundEventProcessor = null;
+    private ShardedEventProcessor<MqttManager.MqttEvent> _outboundEventProcessor = null;
+    private volatile ThreadFactory _threadFactory = ThreadFactories.platform();
+    private MqttBroker _embeddedBroker = null;
+    private volatile boolean _virtualThreads = false;
+    private volatile TopicRouter _topicRouter = null;
     private volatile SystemStatus _status = SystemStatus.DISABLED;
-    private volatile int _eventID = 0;
+    private final TraceRecorder _traces = new TraceRecorder();
+    private final Map<Integer, String> _publishedStates = new ConcurrentHashMap<>();
 
     /**
      * Constructs a new instance of {@link HABDaemon}.
@@ -71,10 +103,7 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
     public HABDaemon() {
         super();
         _instance = this;
-        _inboundEventQueue = new ArrayDeque<>();
-        _outboundEventQueue = new ArrayDeque<>();
-        _systemQueue = new LinkedBlockingDeque<>();
-        _reconnectTimer = new Timer("MQTTReconnectTimer");
+        _scheduler = new TaskScheduler("CyrusHAB_MainLoop");
     }
 
     /**
@@ -93,6 +122,11 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         if (_status != status) {
             logger.info("Setting system status: " + status.name());
             _status = status;
+
+            // Outbound events stay queued while the system is disabled.
+            if (_outboundEventProcessor != null) {
+                _outboundEventProcessor.setPaused(status == SystemStatus.DISABLED);
+            }
         }
     }
 
@@ -120,8 +154,42 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         return _status == SystemStatus.DISABLED;
     }
 
-    public synchronized int getNextEventID() {
-        return _eventID++;
+    /**
+     * Starts the embedded MQTT broker, if configured, on the configured port. The MQTT manager then connects to it
+     * like any other broker.
+     */
+    private void startEmbeddedBroker() {
+        if (!Configuration.embeddedBroker()) {
+            return;
+        }
+
+        MqttBroker.Builder builder = new MqttBroker.Builder()
+                .setBindAddress(Configuration.embeddedBrokerBindAddress())
+                .setPort((int)Configuration.port());
+        if (StringUtils.isNotBlank(Configuration.username())) {
+            builder.setCredentials(Configuration.username(), StringUtils.defaultString(Configuration.password()));
+        }
+
+        MqttBroker broker = builder.build();
+        try {
+            logger.info("Starting embedded MQTT broker...");
+            broker.start();
+            _embeddedBroker = broker;
+        }
+        catch (IOException e) {
+            logger.error("Failed to start embedded MQTT broker: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the embedded MQTT broker, if it is running.
+     */
+    private void stopEmbeddedBroker() {
+        if (_embeddedBroker != null) {
+            logger.info("Stopping embedded MQTT broker...");
+            _embeddedBroker.stop();
+            _embeddedBroker = null;
+        }
     }
 
     /**
@@ -133,19 +201,34 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
 
         MqttManager mgr = MqttManager.getInstance();
         mgr.setBrokerUrl(brokerUrl);
-        mgr.setCleanSession(true);
+        mgr.setCleanSession(!Configuration.mqttPersistentSession());
+        ProtocolVersion version = Configuration.mqttProtocolVersion();
+        if (_embeddedBroker != null && version != ProtocolVersion.MQTT_3_1_1) {
+            logger.warn("The embedded MQTT broker only speaks MQTT 3.1.1. Ignoring protocol version " + version);
+            version = ProtocolVersion.MQTT_3_1_1;
+        }
+        mgr.setProtocolVersion(version);
         mgr.setClientID(Configuration.clientID());
         mgr.setUsername(Configuration.username());
         mgr.setPassword(Configuration.password());
+        mgr.setListenerQueue(Configuration.listenerQueueCapacity(), Configuration.listenerOverflowPolicy());
         mgr.addListener(this);
+        mgr.setThreadFactory(_threadFactory);
+        mgr.setMaxInFlight(Configuration.mqttMaxInFlight());
+        mgr.setCompressionThreshold(Configuration.mqttCompressionThreshold());
+        mgr.setQosPolicy(Configuration.qosPolicy());
+        mgr.setPublishConnections(Configuration.mqttPublishConnections());
+        mgr.setPersistence(Configuration.mqttPersistence(), Configuration.mqttPersistenceDir());
+        mgr.setOfflineBuffer(createOfflineBuffer());
+        mgr.setReconnectPolicy(Configuration.reconnectPolicy());
+        mgr.retain(Configuration.thingStateTopicBase() + "/+");
+        classifyDeliveries(mgr.deliveryLatency());
         try {
             mgr.initialize();
-            logger.info("Subscribing to topic: " + Configuration.systemControlTopic());
-            mgr.subscribe(Configuration.systemControlTopic());
-            logger.info("Subscribing to topic: " + Configuration.thingStatusTopicBase());
-            mgr.subscribe(Configuration.thingStatusTopicBase());
-            logger.info("Subscribing to topic: " + Configuration.thingControlTopicBase());
-            mgr.subscribe(Configuration.thingControlTopicBase());
+            mgr.connect();
+            subscribe(mgr, Configuration.systemControlTopic(), TopicClass.SYSTEM_CONTROL);
+            subscribe(mgr, Configuration.thingStatusTopicBase(), TopicClass.THING_STATUS);
+            subscribe(mgr, Configuration.thingControlTopicBase(), TopicClass.THING_CONTROL);
         }
         catch (HABMqttException ex) {
             logger.error("MQTT Manager initialization failure: " + ex.getMessage());
@@ -154,67 +237,353 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
     }
 
     /**
-     * Main system loop. Processes tasks in the system queue.
+     * Creates the buffer that holds messages published while the broker is unreachable. Only the latest system status
+     * is worth sending after an outage, so its topic is coalesced, and so are the per-thing state topics. Thing
+     * statuses on the application topic all share it, so they can't be.
+     * @return The offline buffer, or null if it is disabled or its spill file could not be read.
      */
-    private void loop() {
-        try {
-            _systemQueue.take().run();
-            Thread.sleep(50);
+    @Nullable
+    private static OfflineBuffer createOfflineBuffer() {
+        int capacity = Configuration.offlineBufferCapacity();
+        if (capacity == 0) {
+            return null;
         }
-        catch (InterruptedException ignored) {
 
+        try {
+            OfflineBuffer buffer = new OfflineBuffer(capacity, Configuration.offlineSpillFile());
+            buffer.coalesce(Configuration.systemStatusTopic() + "/+");
+            buffer.coalesce(Configuration.thingStateTopicBase() + "/+");
+            if (!buffer.isEmpty()) {
+                logger.info("Recovered " + buffer.size() + " messages published during a previous broker outage.");
+            }
+            return buffer;
+        }
+        catch (IOException | IllegalArgumentException ex) {
+            logger.error("Failed to create offline publish buffer: " + ex.getMessage());
+            return null;
         }
     }
 
     /**
-     * Processes any available events in the inbound queue.
+     * Sets up the topic classes that the MQTT manager records delivery latency under, one for each kind of message
+     * the daemon publishes.
+     * @param latency The MQTT manager's delivery latency.
      */
-    private synchronized void processInboundEventQueue() {
-        // NOTE we need to continue processing incoming messages even when the system is disabled.
-        // Just in case we get a shutdown or enable command.
-        MqttManager.MqttEvent event = dequeueInboundEvent();
-        if (event != null) {
-            logger.info("Processing inbound event ID " + event.messageId() + " from topic: " + event.topic());
-            processMqttMessage(event);
+    private static void classifyDeliveries(@NotNull DeliveryLatency latency) {
+        latency.classify(Configuration.systemStatusTopic() + "/+", "system_status");
+        latency.classify(Configuration.thingControlTopicBase() + "/+", "thing_control");
+        latency.classify(Configuration.thingStateTopicBase() + "/+", "thing_state");
+        latency.classify(Configuration.applicationTopic(), "application");
+        latency.classify(Configuration.applicationReplyTopic("+"), "application");
+    }
+
+    /**
+     * Subscribes to one of the daemon's topics with a handler that queues its messages already classified, so the
+     * topic doesn't have to be looked up again for each message. Only thing status messages are subject to the
+     * listener overflow policy; system and thing control messages are never dropped.
+     * @param mgr The MQTT manager.
+     * @param topic The topic to subscribe to.
+     * @param topicClass The class of the topic.
+     * @throws HABMqttException if the subscription fails.
+     */
+    private void subscribe(@NotNull MqttManager mgr, @NotNull String topic, @NotNull TopicClass topicClass)
+            throws HABMqttException {
+        logger.info("Subscribing to topic: " + topic);
+        OverflowPolicy policy = topicClass == TopicClass.THING_STATUS ? Configuration.listenerOverflowPolicy() :
+                OverflowPolicy.BLOCK;
+        mgr.subscribe(topic, event -> onMessageReceived(event, topicClass), Configuration.listenerQueueCapacity(),
+                policy);
+    }
+
+    /**
+     * Builds the topic router from the current configuration. Called whenever the configuration is (re)loaded.
+     * @return The topic router.
+     */
+    @NotNull
+    private TopicRouter createTopicRouter() {
+        TopicRouter router = new TopicRouter(Configuration.systemControlTopic(),
+                Configuration.thingControlTopicBase(), Configuration.thingStatusTopicBase());
+
+        router.addRoute(ThingType.UNKNOWN, (event, decoded) -> {
+            MinimalThingInfo info = decoded.getInfo();
+            logger.error("Unknown thing type: " + info.getThingType().getValue() +
+                    ", DEV_ID: " + info.getID() + ", CLIENT_ID: " + info.getClientID());
+        });
+
+        // We received a system control message.
+        router.addRoute(TopicClass.SYSTEM_CONTROL, ThingType.SYSTEM,
+                packetRoute(SystemControlPacket.class, this::processSystemCommand));
+
+        // TODO process app commands.
+
+        // Control messages received on the main control topic.
+        router.addRoute(TopicClass.THING_CONTROL, ThingType.DIMMABLE_LIGHT,
+                controlPacketRoute(DimmableLightControlPacket.class, this::processDimmableLightControlPacket));
+        router.addRoute(TopicClass.THING_CONTROL, ThingType.DOOR,
+                controlPacketRoute(DoorControlPacket.class, this::processDoorControlPacket));
+        router.addRoute(TopicClass.THING_CONTROL, ThingType.THERMOSTAT,
+                controlPacketRoute(ThermostatControlPacket.class, this::processThermostatControlPacket));
+        router.addRoute(TopicClass.THING_CONTROL, ThingType.SWITCH,
+                controlPacketRoute(SwitchControlPacket.class, this::processSwitchControlPacket));
+
+        // Status messages received from Things.
+        router.addRoute(TopicClass.THING_STATUS, ThingType.DIMMABLE_LIGHT,
+                packetRoute(DimmableLightStatusPacket.class, this::processDimmableLightStatusPacket));
+        router.addRoute(TopicClass.THING_STATUS, ThingType.DOOR,
+                packetRoute(DoorStatusPacket.class, this::processDoorStatusPacket));
+        router.addRoute(TopicClass.THING_STATUS, ThingType.MOTION_SENSOR,
+                packetRoute(MotionSensorStatusPacket.class, this::processMotionSensorStatusPacket));
+        router.addRoute(TopicClass.THING_STATUS, ThingType.THERMOSTAT,
+                packetRoute(ThermostatStatusPacket.class, this::processThermostatStatusPacket));
+        router.addRoute(TopicClass.THING_STATUS, ThingType.SWITCH,
+                packetRoute(SwitchStatusPacket.class, this::processSwitchStatusPacket));
+
+        // A processed control message is ready to publish.
+        TopicRouter.Route relay = (event, decoded) -> publishThingControlMessage(event, decoded.getInfo());
+        router.addRoute(TopicClass.CONTROL_RELAY, ThingType.DIMMABLE_LIGHT, relay);
+        router.addRoute(TopicClass.CONTROL_RELAY, ThingType.DOOR, relay);
+        router.addRoute(TopicClass.CONTROL_RELAY, ThingType.THERMOSTAT, relay);
+        router.addRoute(TopicClass.CONTROL_RELAY, ThingType.SWITCH, relay);
+
+        TopicRouter.Route readOnly = (event, decoded) ->
+                logger.warn("Cannot send control packets to MotionSensor types as they are read-only.");
+        router.addRoute(TopicClass.THING_CONTROL, ThingType.MOTION_SENSOR, readOnly);
+        router.addRoute(TopicClass.CONTROL_RELAY, ThingType.MOTION_SENSOR, readOnly);
+        return router;
+    }
+
+    /**
+     * Creates a route that passes the decoded packet to the specified handler if it is of the specified type.
+     * @param packetClass The packet type the handler accepts.
+     * @param handler The packet handler.
+     * @param <T> The packet type.
+     * @return The route.
+     */
+    @NotNull
+    private static <T extends Packet> TopicRouter.Route packetRoute(@NotNull Class<T> packetClass,
+                                                                    @NotNull Consumer<T> handler) {
+        return (event, decoded) -> {
+            Packet packet = decoded.getPacket();
+            if (packetClass.isInstance(packet)) {
+                handler.accept(packetClass.cast(packet));
+            }
+        };
+    }
+
+    /**
+     * Creates a route that passes the decoded control packet, along with the event it arrived in, to the specified
+     * handler if it is of the specified type. The handler passes the event's trace on to the message it publishes.
+     * @param packetClass The packet type the handler accepts.
+     * @param handler The packet handler.
+     * @param <T> The packet type.
+     * @return The route.
+     */
+    @NotNull
+    private static <T extends Packet> TopicRouter.Route controlPacketRoute(
+            @NotNull Class<T> packetClass, @NotNull BiConsumer<T, MqttManager.MqttEvent> handler) {
+        return (event, decoded) -> {
+            Packet packet = decoded.getPacket();
+            if (packetClass.isInstance(packet)) {
+                handler.accept(packetClass.cast(packet), event);
+            }
+        };
+    }
+
+    /**
+     * Decodes the message carried by the specified event in a single pass. Messages on the control topics are decoded
+     * into their control packet and messages on the status topic into their status packet. Anything else (ie. a
+     * processed control message waiting to be relayed) only needs the basic thing info.
+     * @param event The event to decode.
+     * @param topicClass The class of the topic the event arrived on.
+     * @return null if the event message is empty; Otherwise, the decoded message.
+     * @throws ThingParseException if the message could not be parsed.
+     */
+    @Nullable
+    private static DecodedPacket decodeMessage(@NotNull MqttManager.MqttEvent event, @NotNull TopicClass topicClass)
+            throws ThingParseException {
+        byte[] payload = event.payload();
+        switch (topicClass) {
+            case SYSTEM_CONTROL:
+            case THING_CONTROL:
+                return BasicThingUtils.decodePacket(payload, true);
+            case THING_STATUS:
+                return BasicThingUtils.decodePacket(payload, false);
+            default:
+                MinimalThingInfo info = BasicThingUtils.parseMinimalThingInfoFromJson(payload);
+                return info == null ? null : new DecodedPacket(info, null);
         }
+    }
 
+    /**
+     * Decodes the message carried by the specified event, marking the {@link TraceStage#PARSED} stage of its trace.
+     * @param event The event to decode.
+     * @param topicClass The class of the topic the event arrived on.
+     * @return The decoded message, or null if it is empty or could not be decoded.
+     */
+    @Nullable
+    private static DecodedPacket tryDecodeMessage(@NotNull MqttManager.MqttEvent event,
+                                                  @NotNull TopicClass topicClass) {
         try {
-            Thread.sleep(50);
+            DecodedPacket decoded = decodeMessage(event, topicClass);
+            event.trace().mark(TraceStage.PARSED);
+            return decoded;
         }
-        catch (InterruptedException ignored) {
+        catch (ThingParseException e) {
+            logger.warn("Unable to decode inbound event " + event.correlationId());
+            return null;
         }
     }
 
     /**
-     * Processes any available events in the outbound queue if the system is enabled.
+     * Gets the thing info carried by the properties of the specified event, if it arrived over MQTT 5 with them.
+     * @param event The event.
+     * @return The thing info, or null if the event doesn't carry both a thing type and a thing ID.
      */
-    private synchronized void processOutboundEventQueue() {
-        if (!isDisabled()) {
-            MqttManager.MqttEvent event = dequeueOutboundEvent();
-            if (event != null) {
-                logger.info("Processing outbound event ID " + event.messageId() + " for topic " + event.topic());
-                processMqttMessage(event);
-            }
-        }
+    @Nullable
+    private static MinimalThingInfo propertiesInfo(@NotNull MqttManager.MqttEvent event) {
+        ThingType type = event.properties().thingType();
+        Integer id = event.properties().thingID();
+        return type == null || id == null ? null : new MinimalThingInfo(id, null, type);
+    }
 
-        try {
-            Thread.sleep(50);
+    /**
+     * Wraps a received MQTT event for the inbound queue. The thing ID assigns the event to a worker, so messages for
+     * the same thing are processed in order while messages for different things are processed in parallel. Messages
+     * that can't be decoded (and system messages, which carry no ID) all go to the same worker. If the message
+     * properties carry the thing type and ID, the event is routed on those and its packet is decoded later by the
+     * worker; otherwise the packet is decoded once up front, on the MQTT client's thread.
+     * @param event The received event.
+     * @param topicClass The class of the topic the event arrived on.
+     * @return The inbound event.
+     */
+    @NotNull
+    private InboundEvent toInboundEvent(@NotNull MqttManager.MqttEvent event, @NotNull TopicClass topicClass) {
+        MinimalThingInfo info = propertiesInfo(event);
+        if (info != null) {
+            return new InboundEvent(event, topicClass, info);
         }
-        catch (InterruptedException ignored) {
+        return new InboundEvent(event, topicClass, tryDecodeMessage(event, topicClass));
+    }
+
+    /**
+     * Processes an event taken from the inbound queue.
+     * @param inbound The inbound event.
+     */
+    private void processInboundEvent(@NotNull InboundEvent inbound) {
+        // NOTE we need to continue processing incoming messages even when the system is disabled.
+        // Just in case we get a shutdown or enable command.
+        MqttManager.MqttEvent event = inbound.event();
+        logger.info("Processing inbound event " + event.correlationId() + " (ID " + event.messageId() +
+                ") from topic: " + event.topic());
+        DecodedPacket decoded = inbound.decoded();
+        if (decoded == null && inbound.info() != null) {
+            // Routed on its message properties; the payload is only parsed now.
+            decoded = tryDecodeMessage(event, inbound.topicClass());
+            if (decoded == null) {
+                return;
+            }
         }
+        processMqttMessage(event, inbound.topicClass(), decoded);
     }
 
-    private void publishThingControlMessage(String topic, String message) {
+    /**
+     * Processes an event taken from the outbound queue. The outbound processor is paused while the system is
+     * disabled, so this is only called when the system is enabled.
+     * @param event The outbound event.
+     */
+    private void processOutboundEvent(@NotNull MqttManager.MqttEvent event) {
+        logger.info("Processing outbound event " + event.correlationId() + " for topic " + event.topic());
+        processMqttMessage(event, _topicRouter.classify(event.topic()), null);
+    }
+
+    /**
+     * Publishes a message without waiting for the broker to confirm delivery. A failed delivery is logged.
+     * @param topic The topic to publish to.
+     * @param message The message to publish.
+     * @param description What the message is, for the log.
+     * @throws HABMqttException if unable to connect to the broker.
+     */
+    private static void publishAsync(@NotNull String topic, @NotNull String message, @NotNull String description)
+            throws HABMqttException {
+        publishAsync(topic, message, description, false);
+    }
+
+    /**
+     * Publishes a message without waiting for the broker to confirm delivery, compressing it if it is compressible
+     * and at least as big as the configured compression threshold. A failed delivery is logged.
+     * @param topic The topic to publish to.
+     * @param message The message to publish.
+     * @param description What the message is, for the log.
+     * @param compressible true if the app the message is for announced it can inflate compressed payloads.
+     * @throws HABMqttException if unable to connect to the broker.
+     */
+    private static void publishAsync(@NotNull String topic, @NotNull String message, @NotNull String description,
+                                     boolean compressible) throws HABMqttException {
+        MqttManager.getInstance().publishAsync(topic, message.getBytes(StandardCharsets.UTF_8), null,
+                MessageProperties.NONE, compressible).whenComplete((result, error) -> {
+            if (error != null) {
+                logger.error("Failed to publish " + description + ": " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Publishes a processed control message to its thing. The outbound worker moves on as soon as the message is
+     * handed to the MQTT client; the trace is recorded once the broker confirms delivery. Over MQTT 5 the message
+     * carries the thing type, thing ID and correlation ID as properties, and expires after the configured control
+     * expiry so a device that was offline doesn't act on a stale command.
+     * @param event The outbound event carrying the control message.
+     * @param info The thing the message is for.
+     */
+    private void publishThingControlMessage(@NotNull MqttManager.MqttEvent event, @NotNull MinimalThingInfo info) {
+        EventTrace trace = event.trace();
+        ThingType type = info.getThingType();
+        MessageProperties properties = new MessageProperties.Builder()
+                .setThingType(type)
+                .setThingID(info.getID())
+                .setCorrelationId(event.correlationId())
+                .setMessageExpiry(Configuration.mqttControlExpirySeconds())
+                .build();
         try {
-            logger.info("Publishing thing control message. Topic: " + topic + ", Message: " + message);
-            MqttManager.getInstance().publish(topic, message);
+            logger.info("Publishing thing control message " + event.correlationId() + ". Topic: " + event.topic());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Thing control message " + event.correlationId() + ": " + event.message());
+            }
+            MqttManager.getInstance().publishAsync(event.topic(), event.payload(), trace, properties)
+                    .whenComplete((result, error) -> {
+                        if (error != null) {
+                            logger.error("Failed to publish thing control message " + event.correlationId() +
+                                    ": " + error.getMessage());
+                            return;
+                        }
+
+                        _traces.record(type, trace);
+                        logger.debug(trace.toString());
+                    });
         }
         catch (HABMqttException e) {
-            logger.error("Failed to publish thing control message: " + e.getMessage());
+            logger.error("Failed to publish thing control message " + event.correlationId() + ": " + e.getMessage());
         }
     }
 
-    private void publishThingInventory(String clientID) {
+    /**
+     * Gets the topic to send a reply to the app that sent the specified packet on. An app that announced it can
+     * inflate compressed payloads gets its replies on its own reply topic, where they may be compressed; any other app
+     * gets them, never compressed, on the shared application topic.
+     * @param packet The packet the app sent.
+     * @return The app's reply topic, or null to reply on the shared application topic.
+     */
+    @Nullable
+    private static String replyTopicFor(@NotNull SystemControlPacket packet) {
+        String clientID = packet.getClientID();
+        if (!packet.hasCapability(AppCapability.COMPRESSION) || StringUtils.isEmpty(clientID) ||
+                StringUtils.containsAny(clientID, '/', '+', '#')) {
+            return null;
+        }
+        return Configuration.applicationReplyTopic(clientID);
+    }
+
+    private void publishThingInventory(String clientID, @Nullable String replyTopic) {
         ThingInventoryPacket packet = new ThingInventoryPacket.Builder()
                 .setClientID(clientID)
                 .setHostID(Configuration.clientID())
@@ -223,12 +592,12 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
                 .build();
 
         String message = packet.toJsonString();
-        String topic = Configuration.applicationTopic();
+        String topic = replyTopic != null ? replyTopic : Configuration.applicationTopic();
 
         try {
             logger.info("Publishing thing inventory message to topic: " + topic);
             logger.debug("Inventory: " + message);
-            MqttManager.getInstance().publish(topic, message);
+            publishAsync(topic, message, "thing inventory message", replyTopic != null);
         }
         catch (HABMqttException e) {
             logger.error("Failed to publish thing inventory message: " + e.getMessage());
@@ -249,88 +618,153 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         try {
             logger.info("Publishing system heartbeat message to topic: " + topic);
             logger.debug("Heartbeat: " + message);
-            MqttManager.getInstance().publish(topic, message);
+            publishAsync(topic, message, "heartbeat message");
         }
         catch (HABMqttException e) {
             logger.error("Failed to publish heartbeat message: " + e.getMessage());
         }
     }
 
-    private void publishAllDeviceStatuses() {
-        String topic = Configuration.applicationTopic();
+    /**
+     * Builds a status packet from the current state of a thing in the registry.
+     * @param thing The thing.
+     * @param timestamp The timestamp to give the packet.
+     * @return The status packet, or null if the type of thing has none.
+     */
+    @Nullable
+    private static Packet statusPacketFor(@NotNull Thing thing, @NotNull Timestamp timestamp) {
+        Packet packet = null;
+        switch (thing.type()) {
+            case SWITCH:
+                Switch sw = (Switch)thing;
+                packet = new SwitchStatusPacket.Builder()
+                        .setReadonly(sw.isReadonly())
+                        .setEnabled(sw.isEnabled())
+                        .setID(sw.id())
+                        .setClientID(sw.clientID())
+                        .setName(sw.name())
+                        .setState(sw.state())
+                        .setTimestamp(timestamp)
+                        .build();
+                break;
+            case THERMOSTAT:
+                Thermostat t = (Thermostat)thing;
+                packet = new ThermostatStatusPacket.Builder()
+                        .setClientID(t.clientID())
+                        .setEnabled(t.isEnabled())
+                        .setReadonly(t.isReadonly())
+                        .setID(t.id())
+                        .setMode(t.mode())
+                        .setState(t.state())
+                        .setTimestamp(timestamp)
+                        .build();
+                break;
+            case MOTION_SENSOR:
+                MotionSensor ms = (MotionSensor)thing;
+                packet = new MotionSensorStatusPacket.Builder()
+                        .setClientID(ms.clientID())
+                        .setThingID(ms.id())
+                        .setEnabled(ms.isEnabled())
+                        .setState(ms.getState())
+                        .setTimestamp(timestamp)
+                        .build();
+                break;
+            case DIMMABLE_LIGHT:
+                DimmableLight dl = (DimmableLight)thing;
+                packet = new DimmableLightStatusPacket.Builder()
+                        .setClientID(dl.clientID())
+                        .setThingID(dl.id())
+                        .setEnabled(dl.isEnabled())
+                        .setReadonly(dl.isReadonly())
+                        .setLevel(dl.level())
+                        .setMinLevel(dl.minLevel())
+                        .setMaxLevel(dl.maxLevel())
+                        .setTimestamp(timestamp)
+                        .build();
+                break;
+            case DOOR:
+                Door d = (Door)thing;
+                packet = new DoorStatusPacket.Builder()
+                        .setThingID(d.id())
+                        .setClientID(d.clientID())
+                        .setEnabled(d.isEnabled())
+                        .setReadonly(d.isReadonly())
+                        .setState(d.getState())
+                        .setLocked(d.isLocked())
+                        .setTimestamp(timestamp)
+                        .build();
+                break;
+            case UNKNOWN:
+            default:
+                // TODO handle anything else.
+                break;
+        }
+        return packet;
+    }
+
+    /**
+     * Publishes the latest status of a thing as a retained message on its own state topic, so that apps get it as
+     * soon as they subscribe instead of asking for every status. Nothing is published if the status hasn't changed
+     * since it was last published; the timestamp alone doesn't count as a change.
+     * @param thing The thing whose status to publish.
+     */
+    private void publishThingState(@NotNull Thing thing) {
+        Packet packet = statusPacketFor(thing, STATE_FINGERPRINT_TIMESTAMP);
+        if (packet == null) {
+            return;
+        }
+
+        if (StringUtils.isBlank(packet.getClientID())) {
+            packet.setClientID(Configuration.clientID());
+        }
+
+        String fingerprint = packet.toJsonString();
+        String previous = _publishedStates.put(thing.id(), fingerprint);
+        if (fingerprint.equals(previous)) {
+            return;
+        }
+
+        packet.setTimestamp(Util.getCurrentTimestamp());
+        String topic = Configuration.thingStateTopicBase() + "/" + thing.id();
+        MessageProperties properties = new MessageProperties.Builder()
+                .setThingType(thing.type())
+                .setThingID(thing.id())
+                .build();
+        try {
+            logger.debug("Publishing thing state to topic: " + topic);
+            byte[] payload = packet.toJsonString().getBytes(StandardCharsets.UTF_8);
+            MqttManager.getInstance().publishAsync(topic, payload, null, properties).whenComplete((result, error) -> {
+                if (error != null) {
+                    // Forget what was published so the next status for this thing is sent again.
+                    _publishedStates.remove(thing.id(), fingerprint);
+                    logger.error("Failed to publish thing state: " + error.getMessage());
+                }
+            });
+        }
+        catch (HABMqttException e) {
+            _publishedStates.remove(thing.id(), fingerprint);
+            logger.error("Failed to publish thing state: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Publishes the state of every thing in the registry whose status has changed since it was last published.
+     */
+    private void publishAllThingStates() {
         for (Thing thing : Configuration.getThingRegistry()) {
-            Packet packet = null;
-            switch (thing.type()) {
-                case SWITCH:
-                    Switch sw = (Switch)thing;
-                    packet = new SwitchStatusPacket.Builder()
-                            .setReadonly(sw.isReadonly())
-                            .setEnabled(sw.isEnabled())
-                            .setID(sw.id())
-                            .setClientID(sw.clientID())
-                            .setName(sw.name())
-                            .setState(sw.state())
-                            .setTimestamp(Util.getCurrentTimestamp())
-                            .build();
-                    break;
-                case THERMOSTAT:
-                    Thermostat t = (Thermostat)thing;
-                    packet = new ThermostatStatusPacket.Builder()
-                            .setClientID(t.clientID())
-                            .setEnabled(t.isEnabled())
-                            .setReadonly(t.isReadonly())
-                            .setID(t.id())
-                            .setMode(t.mode())
-                            .setState(t.state())
-                            .setTimestamp(Util.getCurrentTimestamp())
-                            .build();
-                    break;
-                case MOTION_SENSOR:
-                    MotionSensor ms = (MotionSensor)thing;
-                    packet = new MotionSensorStatusPacket.Builder()
-                            .setClientID(ms.clientID())
-                            .setThingID(ms.id())
-                            .setEnabled(ms.isEnabled())
-                            .setState(ms.getState())
-                            .setTimestamp(Util.getCurrentTimestamp())
-                            .build();
-                    break;
-                case DIMMABLE_LIGHT:
-                    DimmableLight dl = (DimmableLight)thing;
-                    packet = new DimmableLightStatusPacket.Builder()
-                            .setClientID(dl.clientID())
-                            .setThingID(dl.id())
-                            .setEnabled(dl.isEnabled())
-                            .setReadonly(dl.isReadonly())
-                            .setLevel(dl.level())
-                            .setMinLevel(dl.minLevel())
-                            .setMaxLevel(dl.maxLevel())
-                            .setTimestamp(Util.getCurrentTimestamp())
-                            .build();
-                    break;
-                case DOOR:
-                    Door d = (Door)thing;
-                    packet = new DoorStatusPacket.Builder()
-                            .setThingID(d.id())
-                            .setClientID(d.clientID())
-                            .setEnabled(d.isEnabled())
-                            .setReadonly(d.isReadonly())
-                            .setState(d.getState())
-                            .setLocked(d.isLocked())
-                            .setTimestamp(Util.getCurrentTimestamp())
-                            .build();
-                    break;
-                case UNKNOWN:
-                default:
-                    // TODO handle anything else.
-                    break;
-            }
+            publishThingState(thing);
+        }
+    }
 
+    private void publishAllDeviceStatuses(@Nullable String replyTopic) {
+        String topic = replyTopic != null ? replyTopic : Configuration.applicationTopic();
+        for (Thing thing : Configuration.getThingRegistry()) {
+            Packet packet = statusPacketFor(thing, Util.getCurrentTimestamp());
             if (packet != null) {
                 String message = packet.toJsonString();
                 try {
                     logger.info("Publishing batch Thing status message to topic: " + topic + ", message: " + message);
-                    MqttManager.getInstance().publish(topic, message);
+                    publishAsync(topic, message, "Thing status message", replyTopic != null);
                 }
                 catch (HABMqttException e) {
                     logger.error("Failed publishing Thing status message: " + e.getMessage());
@@ -343,9 +777,10 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         logger.info("Received system command : " + packet.getCommand().name() +
                 " from client ID: " + packet.getClientID() +
                 " at " + packet.getTimestamp().toString());
+        String replyTopic = replyTopicFor(packet);
         switch (packet.getCommand()) {
             case ENABLE:
-                _systemQueue.add(() -> {
+                _scheduler.submit("enable", TaskPriority.HIGH, () -> {
                     if (isDisabled()) {
                         logger.info("Re-enabling system...");
                         setSystemStatus(SystemStatus.NORMAL);
@@ -358,7 +793,7 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
                 break;
 
             case DISABLE:
-                _systemQueue.add(() -> {
+                _scheduler.submit("disable", TaskPriority.HIGH, () -> {
                     if (isDisabled()) {
                         logger.info("System already disabled. Ignoring command.");
                     }
@@ -372,38 +807,47 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
 
             case RESTART:
                 logger.warn("Restarting the system...");
-                _systemQueue.add(() -> {
-                    try {
-                        doStop();
-                        Thread.sleep(500);
-                        init(_thisContext);
-                        doStart();
-                    }
-                    catch (Exception e) {
-                        e.printStackTrace();
-                        logger.error("Failed to restart.");
-                    }
+                _scheduler.submit("restart", TaskPriority.HIGH, () -> {
+                    doStop();
+
+                    // Give the broker a moment to let go of our session before we reconnect. This is a delayed task
+                    // rather than a sleep so the main loop stays free in the meantime.
+                    _scheduler.schedule("restart", TaskPriority.HIGH, () -> {
+                        try {
+                            init(_thisContext);
+                            doStart();
+                        }
+                        catch (Exception e) {
+                            e.printStackTrace();
+                            logger.error("Failed to restart.");
+                        }
+                    }, RESTART_DELAY_MS, TimeUnit.MILLISECONDS);
                 });
                 break;
 
             case SHUTDOWN:
-                _systemQueue.add(this::destroy);
+                _scheduler.submit("shutdown", TaskPriority.HIGH, this::destroy);
                 break;
 
             case HEARTBEAT:
-                _systemQueue.add(() -> publishHeartbeat(packet.getClientID()));
+                _scheduler.submit("heartbeat", TaskPriority.NORMAL, () -> publishHeartbeat(packet.getClientID()));
                 break;
 
             case GET_SYS_STATUS:
-                _systemQueue.add(this::publishSystemStatus);
+                _scheduler.submit("get_sys_status", TaskPriority.NORMAL, () -> {
+                    logQueueMetrics();
+                    publishSystemStatus();
+                });
                 break;
 
             case GET_ALL_THE_THINGS:
-                _systemQueue.add(() -> publishThingInventory(packet.getClientID()));
+                _scheduler.submit("get_all_the_things", TaskPriority.LOW,
+                        () -> publishThingInventory(packet.getClientID(), replyTopic));
                 break;
 
             case GET_ALL_DEVICE_STATUS:
-                _systemQueue.add(this::publishAllDeviceStatuses);
+                _scheduler.submit("get_all_device_status", TaskPriority.LOW,
+                        () -> publishAllDeviceStatuses(replyTopic));
                 break;
 
             case UNKNOWN:
@@ -412,7 +856,8 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         }
     }
 
-    private void processThermostatControlPacket(@NotNull ThermostatControlPacket packet) {
+    private void processThermostatControlPacket(@NotNull ThermostatControlPacket packet,
+                                                @NotNull MqttManager.MqttEvent source) {
         logger.info("Received thermostat control message from: " + packet.getClientID() + " at " + packet.getTimestamp().toString());
         Thermostat thermostat = (Thermostat)Configuration.getThingFromRegistry(packet.getID());
         if (thermostat == null) {
@@ -434,9 +879,9 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         packet.setClientID(Configuration.clientID());
         packet.setTimestamp(Util.getCurrentTimestamp());
 
-        String message = packet.toJsonString();
+        byte[] payload = packet.toJsonBytes();
         String topic = Configuration.thingControlTopicBase() + "/" + thermostat.id();
-        MqttManager.MqttEvent event = new MqttManager.MqttEvent(topic, message, getNextEventID());
+        MqttManager.MqttEvent event = new MqttManager.MqttEvent(topic, payload, source.messageId(), source.trace());
         enqueueOutboundEvent(event);
     }
 
@@ -450,20 +895,22 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
 
         try {
             thermostat.mapFromStatusPacket(packet);
+            publishThingState(thermostat);
             packet.setClientID(Configuration.clientID());
             packet.setTimestamp(Util.getCurrentTimestamp());
             String message = packet.toJsonString();
             String topic = Configuration.applicationTopic();
 
             logger.info("Publishing thermostat status to topic " + topic);
-            MqttManager.getInstance().publish(topic, message);
+            publishAsync(topic, message, "status");
         }
         catch (Exception e) {
             logger.error("Error publishing status: " + e.getMessage());
         }
     }
 
-    private void processSwitchControlPacket(@NotNull SwitchControlPacket packet) {
+    private void processSwitchControlPacket(@NotNull SwitchControlPacket packet,
+                                            @NotNull MqttManager.MqttEvent source) {
         logger.info("Received Switch control message from: " + packet.getClientID() + " at " + packet.getTimestamp().toString());
         Switch sw = (Switch)Configuration.getThingFromRegistry(packet.getID());
         if (sw == null) {
@@ -479,9 +926,9 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         packet.setClientID(Configuration.clientID());
         packet.setTimestamp(Util.getCurrentTimestamp());
 
-        String message = packet.toJsonString();
+        byte[] payload = packet.toJsonBytes();
         String topic = Configuration.thingControlTopicBase() + "/" + packet.getID();
-        MqttManager.MqttEvent event = new MqttManager.MqttEvent(topic, message, getNextEventID());
+        MqttManager.MqttEvent event = new MqttManager.MqttEvent(topic, payload, source.messageId(), source.trace());
         enqueueOutboundEvent(event);
     }
 
@@ -495,20 +942,22 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
 
         try {
             sw.mapFromStatusPacket(packet);
+            publishThingState(sw);
             packet.setClientID(Configuration.clientID());
             packet.setTimestamp(Util.getCurrentTimestamp());
             String message = packet.toJsonString();
             String topic = Configuration.applicationTopic();
 
             logger.info("Publishing Switch status to topic: " + topic);
-            MqttManager.getInstance().publish(topic, message);
+            publishAsync(topic, message, "status");
         }
         catch (Exception e) {
             logger.error("Error publishing status: " + e.getMessage());
         }
     }
 
-    private void processDimmableLightControlPacket(@NotNull DimmableLightControlPacket packet) {
+    private void processDimmableLightControlPacket(@NotNull DimmableLightControlPacket packet,
+                                                   @NotNull MqttManager.MqttEvent source) {
         logger.info("Received Dimmable Light control message from: " + packet.getClientID() + " at " + packet.getTimestamp().toString());
         DimmableLight dml = (DimmableLight)Configuration.getThingFromRegistry(packet.getThingID());
         if (dml == null) {
@@ -526,9 +975,9 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         packet.setClientID(Configuration.clientID());
         packet.setTimestamp(Util.getCurrentTimestamp());
 
-        String message = packet.toJsonString();
+        byte[] payload = packet.toJsonBytes();
         String topic = Configuration.thingControlTopicBase() + "/" + packet.getThingID();
-        MqttManager.MqttEvent event = new MqttManager.MqttEvent(topic, message, getNextEventID());
+        MqttManager.MqttEvent event = new MqttManager.MqttEvent(topic, payload, source.messageId(), source.trace());
         enqueueOutboundEvent(event);
     }
 
@@ -542,13 +991,14 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
 
         try {
             dml.mapFromStatusPacket(packet);
+            publishThingState(dml);
             packet.setClientID(Configuration.clientID());
             packet.setTimestamp(Util.getCurrentTimestamp());
             String message = packet.toJsonString();
             String topic = Configuration.applicationTopic();
 
             logger.info("Publishing Dimmable light status to topic: " + topic);
-            MqttManager.getInstance().publish(topic, message);
+            publishAsync(topic, message, "status");
         }
         catch (Exception e) {
             logger.error("Error publishing status: " + e.getMessage());
@@ -565,20 +1015,21 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
 
         try {
             d.mapFromStatusPacket(packet);
+            publishThingState(d);
             packet.setClientID(Configuration.clientID());
             packet.setTimestamp(Util.getCurrentTimestamp());
             String message = packet.toJsonString();
             String topic = Configuration.applicationTopic();
 
             logger.info("Publishing Door status to topic: " + topic);
-            MqttManager.getInstance().publish(topic, message);
+            publishAsync(topic, message, "status");
         }
         catch (Exception e) {
             logger.error("Error publishing status: " + e.getMessage());
         }
     }
 
-    private void processDoorControlPacket(@NotNull DoorControlPacket packet) {
+    private void processDoorControlPacket(@NotNull DoorControlPacket packet, @NotNull MqttManager.MqttEvent source) {
         logger.info("Received door control message from: " + packet.getClientID() + " at " + packet.getTimestamp().toString());
         Door door = (Door)Configuration.getThingFromRegistry(packet.getThingID());
         if (door == null) {
@@ -595,9 +1046,9 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         packet.setClientID(Configuration.clientID());
         packet.setTimestamp(Util.getCurrentTimestamp());
 
-        String message = packet.toJsonString();
+        byte[] payload = packet.toJsonBytes();
         String topic = Configuration.thingControlTopicBase() + "/" + packet.getThingID();
-        MqttManager.MqttEvent event = new MqttManager.MqttEvent(topic, message, getNextEventID());
+        MqttManager.MqttEvent event = new MqttManager.MqttEvent(topic, payload, source.messageId(), source.trace());
         enqueueOutboundEvent(event);
     }
 
@@ -611,13 +1062,14 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
 
         try {
             sensor.mapFromStatusPacket(packet);
+            publishThingState(sensor);
             packet.setClientID(Configuration.clientID());
             packet.setTimestamp(Util.getCurrentTimestamp());
             String message = packet.toJsonString();
             String topic = Configuration.applicationTopic();
 
             logger.info("Publishing MotionSensor status to topic: " + topic);
-            MqttManager.getInstance().publish(topic, message);
+            publishAsync(topic, message, "status");
         }
         catch (Exception e) {
             logger.error("Error publishing status: " + e.getMessage());
@@ -627,133 +1079,27 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
     /**
      * Processes the specified MQTT event.
      * @param event The event to process.
+     * @param topicClass The class of the topic the event arrived on.
+     * @param decoded The packet already decoded from the event message, or null to decode it here.
      */
-    private void processMqttMessage(@NotNull MqttManager.MqttEvent event) {
-        String topic = event.topic();
-        String message = event.message();
-        boolean isControl = StringUtils.equalsIgnoreCase(topic, Configuration.thingControlTopicBase());
+    private void processMqttMessage(@NotNull MqttManager.MqttEvent event, @NotNull TopicClass topicClass,
+                                    @Nullable DecodedPacket decoded) {
         try {
-            MinimalThingInfo info = BasicThingUtils.parseMinimalThingInfoFromJson(message);
-            if (info != null) {
-                switch (info.getThingType()) {
-                    case UNKNOWN:
-                        logger.error("Unknown thing type: " + info.getThingType().getValue() +
-                                        ", DEV_ID: " + info.getID() + ", CLIENT_ID: " + info.getClientID());
-                        break;
-                    case SYSTEM:
-                        isControl = StringUtils.equalsIgnoreCase(topic, Configuration.systemControlTopic());
-                        if (isControl) {
-                            // We received a system control message.
-                            SystemControlPacket sysCtrl = SystemControlPacket.fromJsonString(message);
-                            if (sysCtrl != null) {
-                                processSystemCommand(sysCtrl);
-                            }
-                        }
-                        break;
-                    case APP:
-                        // TODO process app commands.
-                        break;
-                    case DIMMABLE_LIGHT:
-                        if (isControl) {
-                            DimmableLightControlPacket dmlCtrl = DimmableLightControlPacket.fromJsonString(message);
-                            if (dmlCtrl != null) {
-                                processDimmableLightControlPacket(dmlCtrl);
-                            }
-                        }
-                        else {
-                            if (topic.startsWith(Configuration.thingControlTopicBase())) {
-                                publishThingControlMessage(topic, message);
-                            }
-
-                            if (topic.equalsIgnoreCase(Configuration.thingStatusTopicBase())) {
-                                DimmableLightStatusPacket dmlStatus = DimmableLightStatusPacket.fromJsonString(message);
-                                if (dmlStatus != null) {
-                                    processDimmableLightStatusPacket(dmlStatus);
-                                }
-                            }
-                        }
-                        break;
-                    case DOOR:
-                        if (isControl) {
-                            DoorControlPacket doorCtrl = DoorControlPacket.fromJsonString(message);
-                            if (doorCtrl != null) {
-                                processDoorControlPacket(doorCtrl);
-                            }
-                        }
-                        else {
-                            if (topic.startsWith(Configuration.thingControlTopicBase())) {
-                                publishThingControlMessage(topic, message);
-                            }
-
-                            if (topic.equalsIgnoreCase(Configuration.thingStatusTopicBase())) {
-                                DoorStatusPacket dstatus = DoorStatusPacket.fromJsonString(message);
-                                if (dstatus != null) {
-                                    processDoorStatusPacket(dstatus);
-                                }
-                            }
-                        }
-                        break;
-                    case MOTION_SENSOR:
-                        if (isControl) {
-                            logger.warn("Cannot send control packets to MotionSensor types as they are read-only.");
-                        }
-                        else {
-                            if (topic.startsWith(Configuration.thingControlTopicBase())) {
-                                logger.warn("Cannot send control packets to MotionSensor types as they are read-only.");
-                            }
-
-                            // We received a status message from a Thing.
-                            if (topic.equalsIgnoreCase(Configuration.thingStatusTopicBase())) {
-                                MotionSensorStatusPacket mstatus = MotionSensorStatusPacket.fromJsonString(message);
-                                if (mstatus != null) {
-                                    processMotionSensorStatusPacket(mstatus);
-                                }
-                            }
-                        }
-                        break;
-                    case THERMOSTAT:
-                        if (isControl) {
-                            // We received a thermostat control message on the main control topic.
-                            ThermostatControlPacket thermoCtrl = ThermostatControlPacket.fromJsonString(message);
-                            if (thermoCtrl != null) {
-                                processThermostatControlPacket(thermoCtrl);
-                            }
-                        }
-                        else {
-                            // A processed control message is ready to publish.
-                            if (topic.startsWith(Configuration.thingControlTopicBase())) {
-                                publishThingControlMessage(topic, message);
-                            }
-
-                            // We received a status message from a Thing.
-                            if (topic.equalsIgnoreCase(Configuration.thingStatusTopicBase())) {
-                                ThermostatStatusPacket tstatus = ThermostatStatusPacket.fromJsonString(message);
-                                if (tstatus != null) {
-                                    processThermostatStatusPacket(tstatus);
-                                }
-                            }
-                        }
-                        break;
-                    case SWITCH:
-                        if (isControl) {
-                            SwitchControlPacket switchCtrl = SwitchControlPacket.fromJsonString(message);
-                            if (switchCtrl != null) {
-                                processSwitchControlPacket(switchCtrl);
-                            }
-                        }
-                        else {
-                            if (topic.startsWith(Configuration.thingControlTopicBase())) {
-                                publishThingControlMessage(topic, message);
-                            }
-
-                            if (topic.equalsIgnoreCase(Configuration.thingStatusTopicBase())) {
-                                SwitchStatusPacket swStatus = SwitchStatusPacket.fromJsonString(message);
-                                if (swStatus != null) {
-                                    processSwitchStatusPacket(swStatus);
-                                }
-                            }
-                        }
-                        break;
+            if (decoded == null) {
+                decoded = decodeMessage(event, topicClass);
+            }
+
+            if (decoded != null) {
+                // A relayed control message was routed when it first arrived.
+                if (topicClass != TopicClass.CONTROL_RELAY) {
+                    event.trace().mark(TraceStage.ROUTED);
+                }
+
+                _topicRouter.route(topicClass, event, decoded);
+
+                // Control messages are traced until they are published; everything else ends here.
+                if (topicClass != TopicClass.THING_CONTROL && topicClass != TopicClass.CONTROL_RELAY) {
+                    _traces.record(decoded.getInfo().getThingType(), event.trace());
                 }
             }
         }
@@ -767,94 +1113,86 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
      * Enqueues an event in the inbound event queue for processing.
      * @param event The event to add to the inbound event queue.
      */
-    private synchronized void enqueueInboundEvent(@NotNull MqttManager.MqttEvent event) {
-        logger.info("Enqueueing inbound event ID " + event.messageId());
-        _inboundEventQueue.add(event);
+    private void enqueueInboundEvent(@NotNull MqttManager.MqttEvent event) {
+        enqueueInboundEvent(event, _topicRouter.classify(event.topic()));
     }
 
     /**
-     * Enqueues an event in the outbound event queue for processing.
-     * @param event The event to add to the outbound event queue.
+     * Enqueues an event whose topic class is already known in the inbound event queue for processing.
+     * @param event The event to add to the inbound event queue.
+     * @param topicClass The class of the topic the event arrived on.
      */
-    private synchronized void enqueueOutboundEvent(@NotNull MqttManager.MqttEvent event) {
-        logger.info("Enqueueing outbound event ID " + event.messageId());
-        _outboundEventQueue.add(event);
+    private void enqueueInboundEvent(@NotNull MqttManager.MqttEvent event, @NotNull TopicClass topicClass) {
+        logger.info("Enqueueing inbound event " + event.correlationId() + " (ID " + event.messageId() + ")");
+        if (topicClass == TopicClass.SYSTEM_CONTROL) {
+            // System control messages get their own lane so they never wait behind device traffic.
+            _systemControlProcessor.enqueue(toInboundEvent(event, topicClass));
+        }
+        else if (!_inboundEventProcessor.enqueue(toInboundEvent(event, topicClass))) {
+            logger.warn("Inbound queue full. Dropped status event " + event.correlationId());
+        }
     }
 
     /**
-     * Gets the next event in the inbound event queue and then removes it from the queue.
-     * @return The next event in the inbound event queue.
+     * Enqueues an event in the outbound event queue for processing.
+     * @param event The event to add to the outbound event queue.
      */
-    @Nullable
-    private synchronized MqttManager.MqttEvent dequeueInboundEvent() {
-        if (_inboundEventQueue != null && !_inboundEventQueue.isEmpty()) {
-            return _inboundEventQueue.remove();
-        }
-        return null;
+    private void enqueueOutboundEvent(@NotNull MqttManager.MqttEvent event) {
+        logger.info("Enqueueing outbound event " + event.correlationId());
+        event.trace().mark(TraceStage.ENQUEUED);
+        _outboundEventProcessor.enqueue(event);
     }
 
     /**
-     * Gets the next event in the outbound event queue and then removes it from the queue.
-     * @return The next event in the outbound event queue.
+     * (non-javadoc)
+     * @see net.cyrusbuilt.cyrushab.core.mqtt.MqttManager.MqttEventListener#onConnectionLost(Throwable)
      */
-    @Nullable
-    private synchronized MqttManager.MqttEvent dequeueOutboundEvent() {
-        if (_outboundEventQueue != null && !_outboundEventQueue.isEmpty()) {
-            return _outboundEventQueue.remove();
-        }
-        return null;
+    @Override
+    public void onConnectionLost(Throwable cause) {
+        // The MQTT manager reconnects by itself, backing off per the reconnect policy.
+        logger.error("MQTT connection lost! Cause: " + cause.toString() + ". Reconnecting...");
+        setSystemStatus(SystemStatus.RECONNECTING);
     }
 
     /**
      * (non-javadoc)
-     * @see net.cyrusbuilt.cyrushab.core.mqtt.MqttManager.MqttEventListener#onConnectionLost(Throwable)
+     * @see net.cyrusbuilt.cyrushab.core.mqtt.MqttManager.MqttEventListener#onReconnectFailed(int, long, Throwable)
      */
     @Override
-    public void onConnectionLost(Throwable cause) {
+    public void onReconnectFailed(int attempt, long nextDelayMillis, Throwable cause) {
+        logger.error("Failed to re-establish connection to MQTT broker: " + Configuration.mqttBroker() +
+                ", Reason: " + cause.getMessage() + ". Attempt " + attempt + "; retrying in " + nextDelayMillis +
+                " ms.");
         setSystemStatus(SystemStatus.DISCONNECTED);
-        _reconnects++;
-        logger.error("MQTT connection lost! Cause: " + cause.toString());
-        logger.error("Attempting reconnect (attempt " + _reconnects + " of " + MAX_RECONNECT_ATTEMPTS + ") ...");
-        try {
-            if (_reconnects < MAX_RECONNECT_ATTEMPTS) {
-                setSystemStatus(SystemStatus.RECONNECTING);
-                MqttManager.getInstance().connect();
-                logger.info("Successfully reconnected to " + Configuration.mqttBroker());
-                setSystemStatus(SystemStatus.NORMAL);
-                publishSystemStatus();
-            } else {
-                logger.error("Failed to reconnect to MQTT host.");
-                Timestamp nextRun = new Timestamp(System.currentTimeMillis() + 30000L);
-                logger.error("Will attempt again at " + nextRun.toLocalDateTime().toString());
-                _reconnects = 0;
-                try {
-                    _reconnectTimer.scheduleAtFixedRate(_reconnectTask, 30000L, 30000L);
-                }
-                catch (IllegalStateException e) {
-                    logger.warn(e.getMessage());
-                }
-            }
-        }
-        catch (HABMqttException ex) {
-            logger.error("Failed to re-establish connection to MQTT broker: " + Configuration.mqttBroker() +
-                    ", Reason: " + ex.getMessage());
-            setSystemStatus(SystemStatus.DISCONNECTED);
-            onConnectionLost(ex);
-        }
     }
 
     /**
      * (non-javadoc)
-     * @see MqttManager.MqttEventListener#onMessageReceived(MqttManager.MqttEvent)
+     * @see net.cyrusbuilt.cyrushab.core.mqtt.MqttManager.MqttEventListener#onReconnected()
      */
     @Override
-    public void onMessageReceived(MqttManager.MqttEvent event) {
-        logger.info("MQTT message received.\nMessage ID: " + event.messageId() +
+    public void onReconnected() {
+        logger.info("Successfully reconnected to " + Configuration.mqttBroker());
+        setSystemStatus(SystemStatus.NORMAL);
+        publishSystemStatus();
+    }
+
+    /**
+     * Handles a message received on one of the daemon's topics.
+     * @param event The received event.
+     * @param topicClass The class of the topic the message arrived on.
+     */
+    private void onMessageReceived(@NotNull MqttManager.MqttEvent event, @NotNull TopicClass topicClass) {
+        logger.info("MQTT message received.\nCorrelation ID: " + event.correlationId() +
+                "\nMessage ID: " + event.messageId() +
                 "\nTopic: " + event.topic() +
-                "\nMessage: " + event.message());
+                "\nPayload: " + event.payload().length + " bytes");
+        if (logger.isDebugEnabled()) {
+            logger.debug("Message " + event.correlationId() + ": " + event.message());
+        }
 
         // Queue actionable events for processing on a separate thread.
-        enqueueInboundEvent(event);
+        enqueueInboundEvent(event, topicClass);
     }
 
     /**
@@ -863,9 +1201,10 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
      */
     @Override
     public void onMessageDelivered(MqttManager.MqttEvent event) {
-        logger.info("Message delivered to topic: " + event.topic() +
-                "\nMessage ID: " + event.messageId() +
-                "\nMessage: " + event.message());
+        // Delivery latency is recorded by the MQTT manager; the payload is left alone so it is never fetched.
+        if (logger.isDebugEnabled()) {
+            logger.debug("Message " + event.messageId() + " delivered to topic: " + event.topic());
+        }
     }
 
     /**
@@ -886,85 +1225,53 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
             logger.error("Cannot read configuration: " + ex.getMessage());
             System.exit(1);
         }
+    }
 
-        // MQTT reconnect task. Should be scheduled when the connection to the MQTT host is lost.
-        _reconnectTask = new TimerTask() {
-            @Override
-            public void run() {
-                if (getStatus() == SystemStatus.DISCONNECTED || getStatus() == SystemStatus.RECONNECTING) {
-                    logger.warn("MQTT still disconnected. Attempting periodic reconnect....");
-                    onConnectionLost(new Throwable("Previous connection failure."));
-                    if (getStatus() == SystemStatus.NORMAL) {
-                        cancel();
-                        _reconnectTimer.purge();
-                    }
-                }
-                else {
-                    logger.info("MQTT reconnected. Cancelling reconnect task.");
-                    cancel();
-                    _reconnectTimer.purge();
-                }
-            }
-        };
-
-        // Main system thread. Runs the main loop which processes tasks in the system queue.
-        if (_mainThread == null) {
-            _mainThread = new Thread() {
-                private final Object syncLock = new Object();
-                private volatile long lastTick = 0;
-
-                @Override
-                public synchronized void start() {
-                    HABDaemon.this.setSystemStatus(SystemStatus.NORMAL);
-                    super.start();
-                }
-
-                @Override
-                public void run() {
-                    synchronized (syncLock) {
-                        while (!isInterrupted()) {
-                            long now = System.currentTimeMillis();
-                            if ((now - lastTick) >= 1000) {
-                                lastTick = now;
-                            }
-
-                            HABDaemon.this.loop();
-                        }
-                    }
-                }
-            };
-            _mainThread.setName("CyrusHAB_MainLoop");
+    /**
+     * Creates the inbound and outbound event processors from the current configuration, so a restart picks up a
+     * changed worker count, queue capacity or overflow policy. Events left in the processors of the last start, such
+     * as any that arrived after they were spooled, are moved over to the new ones in order.
+     */
+    private void initEventProcessors() {
+        List<InboundEvent> systemControl = new ArrayList<>();
+        List<InboundEvent> inbound = new ArrayList<>();
+        List<MqttManager.MqttEvent> outbound = new ArrayList<>();
+        if (_systemControlProcessor != null) {
+            _systemControlProcessor.drainTo(systemControl);
+        }
+        if (_inboundEventProcessor != null) {
+            _inboundEventProcessor.drainTo(inbound);
+        }
+        if (_outboundEventProcessor != null) {
+            _outboundEventProcessor.drainTo(outbound);
         }
 
-        // Thread for processing events in the inbound queue.
-        _inboundEventProcessor = new Thread() {
-            private final Object syncLock = new Object();
-
-            @Override
-            public void run() {
-                synchronized (syncLock) {
-                    while (isRunning()) {
-                        HABDaemon.this.processInboundEventQueue();
-                    }
-                }
-            }
-        };
-        _inboundEventProcessor.setName("CyrusHAB_InboundEventProcessor");
-
-        // Thread for processing events in the outbound queue.
-        _outboundEventProcessor = new Thread() {
-            private final Object syncLock = new Object();
-
-            @Override
-            public void run() {
-                synchronized (syncLock) {
-                    while (isRunning()) {
-                        HABDaemon.this.processOutboundEventQueue();
-                    }
-                }
-            }
-        };
-        _outboundEventProcessor.setName("CyrusHAB_OutboundEventProcessor");
+        _systemControlProcessor = new EventQueueProcessor<>("CyrusHAB_SystemControlProcessor",
+                this::processInboundEvent);
+
+        int inboundWorkers = Configuration.inboundWorkers();
+        int capacity = Math.max(1, Configuration.inboundQueueCapacity() / inboundWorkers);
+        OverflowPolicy policy = Configuration.inboundOverflowPolicy();
+        logger.info("Creating inbound event processor with " + inboundWorkers + " workers, " + capacity +
+                " events per worker queue, overflow policy " + policy.name() + "...");
+        _inboundEventProcessor = new ShardedEventProcessor<>("CyrusHAB_InboundEventProcessor", inboundWorkers,
+                InboundEvent::thingID, this::processInboundEvent,
+                () -> new CoalescingEventQueue<>(capacity, policy, InboundEvent::coalesceKey));
+
+        // Events are sharded by topic so each topic still sees its messages in order.
+        int outboundWorkers = Configuration.outboundWorkers(_virtualThreads);
+        logger.info("Creating outbound event processor with " + outboundWorkers + " workers...");
+        _outboundEventProcessor = new ShardedEventProcessor<>("CyrusHAB_OutboundEventProcessor", outboundWorkers,
+                event -> Objects.hashCode(event.topic()), this::processOutboundEvent);
+        _outboundEventProcessor.setPaused(isDisabled());
+
+        _systemControlProcessor.setThreadFactory(_threadFactory);
+        _inboundEventProcessor.setThreadFactory(_threadFactory);
+        _outboundEventProcessor.setThreadFactory(_threadFactory);
+
+        systemControl.forEach(_systemControlProcessor::enqueue);
+        inbound.forEach(_inboundEventProcessor::enqueue);
+        outbound.forEach(_outboundEventProcessor::enqueue);
     }
 
     /**
@@ -983,12 +1290,28 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
             System.exit(1);
         }
 
-        // Init the MQTT manager.
+        // Compile the configured topics before any events can arrive.
+        _topicRouter = createTopicRouter();
+
+        // Pick platform or virtual threads for the event processors and MQTT listener notification.
+        _threadFactory = ThreadFactories.forMode(Configuration.virtualThreads());
+        _virtualThreads = _threadFactory == ThreadFactories.virtual();
+        logger.info("Using " + (_virtualThreads ? "virtual" : "platform") + " threads for event processing.");
+
+        // Create the event processors before we subscribe to anything, and give them whatever was left over from
+        // the last stop before any new events arrive.
+        initEventProcessors();
+        replaySpooledEvents();
+
+        // Start the embedded broker, if any, and then init the MQTT manager.
+        startEmbeddedBroker();
         initMqttManager();
         setSystemStatus(SystemStatus.NORMAL);
+        publishAllThingStates();
 
         // Start the processor threads.
         logger.info("Starting inbound event queue processor...");
+        _systemControlProcessor.start();
         _inboundEventProcessor.start();
 
         logger.info("Starting outbound event queue processor...");
@@ -1005,39 +1328,147 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
     public void start() throws Exception {
         // Start the main thread then call the internal start method.
         logger.info("HABDaemon starting...");
-        _mainThread.start();
+        setSystemStatus(SystemStatus.NORMAL);
+        _scheduler.start();
 
         // NOTE: We have our own private start method for starting subsystems that allows us to do a restart.
-        // _mainThread is only started once and remains active until destroy() is called. So even when a call
-        // is made to doStop() the main thread continues running to process system tasks like restarting the
+        // The scheduler is only started once and remains active until destroy() is called. So even when a call
+        // is made to doStop() the main loop continues running to process system tasks like restarting the
         // subsystems. This allows us to "restart" internally without having to tear down the whole daemon and
         // relaunch it.
         doStart();
     }
 
     /**
-     * Main shutdown routine. Publishes the shutdown if it can, then stops the inbound and outbound queue processors,
-     * and then finally stops the MQTT manager.
+     * Waits up to the configured drain timeout for the event queues to empty. The inbound queues are drained first,
+     * since processing a control message queues an outbound event. Then waits for published messages to be
+     * confirmed by the broker.
+     * @return true if all the queues were drained; Otherwise, false.
+     */
+    private boolean drainEventQueues() {
+        long timeout = Configuration.drainTimeout();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        logger.info("Draining event queues (up to " + timeout + "ms)...");
+        try {
+            boolean drained = _systemControlProcessor.awaitIdle(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+            drained &= _inboundEventProcessor.awaitIdle(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+            drained &= _outboundEventProcessor.awaitIdle(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+            drained &= MqttManager.getInstance().awaitInFlight(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+            return drained;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Gets the time left until the specified deadline.
+     * @param deadline The deadline, as a {@link System#nanoTime()} reading.
+     * @return The remaining time in nanoseconds, or 0 if the deadline has passed.
+     */
+    private static long remainingNanos(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    /**
+     * Writes the events still waiting in the (stopped) event processors to the spool file so they can be replayed on
+     * the next start.
+     */
+    private void spoolPendingEvents() {
+        List<InboundEvent> inbound = new ArrayList<>();
+        _systemControlProcessor.drainTo(inbound);
+        _inboundEventProcessor.drainTo(inbound);
+        List<MqttManager.MqttEvent> outbound = new ArrayList<>();
+        _outboundEventProcessor.drainTo(outbound);
+        if (inbound.isEmpty() && outbound.isEmpty()) {
+            return;
+        }
+
+        File spoolFile = Configuration.spoolFile();
+        if (spoolFile == null) {
+            logger.error("No spool file available. Dropping " + (inbound.size() + outbound.size()) +
+                    " pending events.");
+            return;
+        }
+
+        MqttEventSpool spool = new MqttEventSpool();
+        spool.addInbound(inbound.stream().map(InboundEvent::event).collect(Collectors.toList()));
+        spool.addOutbound(outbound);
+        try {
+            spool.save(spoolFile);
+            logger.info("Spooled " + inbound.size() + " inbound and " + outbound.size() + " outbound events to " +
+                    spoolFile.getAbsolutePath());
+        }
+        catch (IOException e) {
+            logger.error("Failed to spool pending events: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Re-queues events spooled by the last stop, then deletes the spool file.
+     */
+    private void replaySpooledEvents() {
+        File spoolFile = Configuration.spoolFile();
+        if (spoolFile == null || !spoolFile.exists()) {
+            return;
+        }
+
+        try {
+            MqttEventSpool spool = MqttEventSpool.load(spoolFile);
+            logger.info("Replaying " + spool.inbound().size() + " inbound and " + spool.outbound().size() +
+                    " outbound spooled events...");
+            for (MqttManager.MqttEvent event : spool.inbound()) {
+                enqueueInboundEvent(event);
+            }
+
+            for (MqttManager.MqttEvent event : spool.outbound()) {
+                enqueueOutboundEvent(event);
+            }
+        }
+        catch (IOException e) {
+            logger.error("Unable to read spool file: " + e.getMessage());
+        }
+
+        if (!spoolFile.delete()) {
+            logger.warn("Unable to delete spool file: " + spoolFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Main shutdown routine. Publishes the shutdown if it can, gives the inbound and outbound queue processors up to
+     * the drain timeout to finish what is queued, stops them and spools whatever is left to disk, and then finally
+     * stops the MQTT manager.
      */
     private void doStop() {
         // Let everyone know we are shutting down first.
         logger.info("Stop requested.");
+        boolean wasDisabled = isDisabled();
         setSystemStatus(SystemStatus.SHUTDOWN);
         publishSystemStatus();
 
+        // Outbound events stay held if the system was disabled; they are spooled rather than published.
+        _outboundEventProcessor.setPaused(wasDisabled);
+        if (!drainEventQueues()) {
+            logger.warn("Event queues not drained before the deadline. Spooling the rest to disk.");
+        }
+
         try {
             logger.info("Stopping inbound event queue processor...");
-            _inboundEventProcessor.interrupt();
+            _systemControlProcessor.stop(PROCESSOR_STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            _inboundEventProcessor.stop(PROCESSOR_STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
             logger.info("Stopping outbound event queue processor...");
-            _outboundEventProcessor.interrupt();
+            _outboundEventProcessor.stop(PROCESSOR_STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         }
         catch (Exception ex) {
             logger.error(ex.getMessage());
             //throw ex;
         }
+        spoolPendingEvents();
 
         logger.info("Stopping MQTT manager...");
         MqttManager.getInstance().shutdown();
+        stopEmbeddedBroker();
     }
 
     /**
@@ -1066,19 +1497,102 @@ public class HABDaemon implements Daemon, MqttManager.MqttEventListener {
         }
 
         logger.info("Stopping HABDaemon...");
-        _mainThread.interrupt();
-        _mainThread = null;
+        _scheduler.stop(PROCESSOR_STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        _scheduler.clear();
         logger.info("HABDaemon stopped.");
+        _systemControlProcessor.clear();
+        _systemControlProcessor = null;
+        _inboundEventProcessor.clear();
         _inboundEventProcessor = null;
-        _inboundEventQueue.clear();
-        _inboundEventQueue = null;
+        _outboundEventProcessor.clear();
         _outboundEventProcessor = null;
-        _outboundEventQueue.clear();
-        _outboundEventQueue = null;
         logger.info("HABDaemon destroyed.");
         System.exit(0);
     }
 
+    /**
+     * Gets the number of system control messages waiting to be processed.
+     * @return The system control queue depth.
+     */
+    public int getSystemControlQueueDepth() {
+        return _systemControlProcessor == null ? 0 : _systemControlProcessor.size();
+    }
+
+    /**
+     * Gets the histogram of how long system control messages waited before being processed.
+     * @return The system control queue latency, or null if the processors have not been created.
+     */
+    @Nullable
+    public LatencyHistogram getSystemControlQueueLatency() {
+        return _systemControlProcessor == null ? null : _systemControlProcessor.queue().waitLatency();
+    }
+
+    /**
+     * Gets the number of device messages waiting to be processed across all inbound workers.
+     * @return The inbound queue depth.
+     */
+    public int getInboundQueueDepth() {
+        return _inboundEventProcessor == null ? 0 : _inboundEventProcessor.size();
+    }
+
+    /**
+     * Gets a snapshot of how long device messages waited before being processed, across all inbound workers.
+     * @return The inbound queue latency, or null if the processors have not been created.
+     */
+    @Nullable
+    public LatencyHistogram getInboundQueueLatency() {
+        return _inboundEventProcessor == null ? null : _inboundEventProcessor.waitLatency();
+    }
+
+    /**
+     * Gets the per-stage latency of traced messages, by thing type. Control messages are traced from the moment they
+     * arrive until the broker confirms delivery to the thing; other messages until they are routed to their handler.
+     * @return An unmodifiable map of thing types to stage latency histograms.
+     */
+    public Map<ThingType, TraceRecorder.StageLatency> getTraceLatency() {
+        return _traces.latency();
+    }
+
+    /**
+     * Gets the time from publishing a message to the broker acknowledging it, by topic class: system_status,
+     * thing_control, thing_state, application and other.
+     * @return An unmodifiable map of topic classes to delivery latency histograms.
+     */
+    public Map<String, LatencyHistogram> getDeliveryLatency() {
+        return MqttManager.getInstance().deliveryLatency().histograms();
+    }
+
+    /**
+     * Logs the depth and wait latency of the system control and device event queues, the dispatch lag of each MQTT
+     * listener, the traced message latency of each thing type, and the delivery latency of each topic class.
+     */
+    private void logQueueMetrics() {
+        if (_systemControlProcessor == null || _inboundEventProcessor == null) {
+            return;
+        }
+
+        logger.info("System control queue: depth=" + getSystemControlQueueDepth() + " " +
+                getSystemControlQueueLatency());
+        logger.info("Inbound device queue: depth=" + getInboundQueueDepth() + " " + getInboundQueueLatency() +
+                " coalesced=" + _inboundEventProcessor.coalescedCount() +
+                " dropped=" + _inboundEventProcessor.droppedCount());
+        for (Map.Entry<String, TaskScheduler.TaskStats> entry : _scheduler.stats().entrySet()) {
+            logger.info("System task " + entry.getKey() + ": " + entry.getValue());
+        }
+
+        for (DispatchStats stats : MqttManager.getInstance().dispatchStats()) {
+            logger.info("MQTT listener " + stats.name() + ": " + stats);
+        }
+
+        for (Map.Entry<ThingType, TraceRecorder.StageLatency> entry : getTraceLatency().entrySet()) {
+            logger.info("Message latency " + entry.getKey().name() + ": " + entry.getValue());
+        }
+
+        for (Map.Entry<String, LatencyHistogram> entry : getDeliveryLatency().entrySet()) {
+            logger.info("Delivery latency " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
     private void publishSystemStatus() {
         // We publish system status no-matter-what, so we don't go through the outbound event queue.
         // As long as the MQTT manager is still alive, we send the status.
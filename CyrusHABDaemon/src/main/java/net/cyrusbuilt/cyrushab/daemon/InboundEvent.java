@@ -0,0 +1,111 @@
+package net.cyrusbuilt.cyrushab.daemon;
+
+import net.cyrusbuilt.cyrushab.core.mqtt.MqttManager;
+import net.cyrusbuilt.cyrushab.core.things.DecodedPacket;
+import net.cyrusbuilt.cyrushab.core.things.MinimalThingInfo;
+import net.cyrusbuilt.cyrushab.core.things.ThingType;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An MQTT event waiting in the inbound queue, along with the packet decoded from it when it arrived, or the thing info
+ * carried by its message properties if it was routed on those instead.
+ */
+final class InboundEvent {
+    private final MqttManager.MqttEvent _event;
+    private final TopicRouter.TopicClass _topicClass;
+    private final DecodedPacket _decoded;
+    private final MinimalThingInfo _info;
+
+    /**
+     * Constructs a new instance of {@link InboundEvent}.
+     * @param event The MQTT event.
+     * @param topicClass The class of the topic the event arrived on.
+     * @param decoded The packet decoded from the event message, or null if it could not be decoded.
+     */
+    InboundEvent(@NotNull MqttManager.MqttEvent event, @NotNull TopicRouter.TopicClass topicClass,
+                 @Nullable DecodedPacket decoded) {
+        _event = event;
+        _topicClass = topicClass;
+        _decoded = decoded;
+        _info = decoded == null ? null : decoded.getInfo();
+    }
+
+    /**
+     * Constructs a new instance of {@link InboundEvent} for an event routed on the thing info carried by its message
+     * properties. Its packet is decoded once it is taken from the queue.
+     * @param event The MQTT event.
+     * @param topicClass The class of the topic the event arrived on.
+     * @param info The thing info from the message properties.
+     */
+    InboundEvent(@NotNull MqttManager.MqttEvent event, @NotNull TopicRouter.TopicClass topicClass,
+                 @NotNull MinimalThingInfo info) {
+        _event = event;
+        _topicClass = topicClass;
+        _decoded = null;
+        _info = info;
+    }
+
+    /**
+     * Gets the MQTT event.
+     * @return The event.
+     */
+    MqttManager.MqttEvent event() {
+        return _event;
+    }
+
+    /**
+     * Gets the class of the topic the event arrived on.
+     * @return The topic class.
+     */
+    TopicRouter.TopicClass topicClass() {
+        return _topicClass;
+    }
+
+    /**
+     * Gets the packet decoded from the event message.
+     * @return The decoded packet, or null if the message could not be decoded or hasn't been yet.
+     */
+    @Nullable
+    DecodedPacket decoded() {
+        return _decoded;
+    }
+
+    /**
+     * Gets the thing info decoded from the event message or carried by its properties.
+     * @return The thing info, or null if the message could not be decoded.
+     */
+    @Nullable
+    MinimalThingInfo info() {
+        return _info;
+    }
+
+    /**
+     * Gets the ID of the thing the event is about.
+     * @return The thing ID, or 0 if unknown. System messages carry no ID and also return 0.
+     */
+    int thingID() {
+        MinimalThingInfo info = info();
+        return info == null ? 0 : info.getID();
+    }
+
+    /**
+     * Gets the key used to coalesce this event with an older, still queued event. Only status snapshots from things
+     * are coalesced (and may be dropped under load); control and system messages never are.
+     * @return The coalesce key, or null if the event must not be coalesced or dropped.
+     */
+    @Nullable
+    Object coalesceKey() {
+        MinimalThingInfo info = info();
+        if (_topicClass != TopicRouter.TopicClass.THING_STATUS || info == null) {
+            return null;
+        }
+
+        ThingType type = info.getThingType();
+        if (type == ThingType.SYSTEM || type == ThingType.APP || type == ThingType.UNKNOWN) {
+            return null;
+        }
+        return ((long)type.getValue() << 32) | (info.getID() & 0xFFFFFFFFL);
+    }
+}
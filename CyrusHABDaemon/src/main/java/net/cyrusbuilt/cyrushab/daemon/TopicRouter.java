@@ -0,0 +1,173 @@
+package net.cyrusbuilt.cyrushab.daemon;
+
+import net.cyrusbuilt.cyrushab.core.mqtt.MqttManager;
+import net.cyrusbuilt.cyrushab.core.things.DecodedPacket;
+import net.cyrusbuilt.cyrushab.core.things.ThingType;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routes MQTT events to their handlers. The configured topics are compiled into a lookup table when the router is
+ * built, so each topic is classified once when it arrives rather than compared against every configured topic in
+ * every branch. Handlers are then found in a table indexed by topic class and thing type.
+ */
+final class TopicRouter {
+    /**
+     * The kinds of topic the daemon handles.
+     */
+    enum TopicClass {
+        /**
+         * The system control topic.
+         */
+        SYSTEM_CONTROL,
+
+        /**
+         * The main thing control topic, where apps send control messages for the daemon to process.
+         */
+        THING_CONTROL,
+
+        /**
+         * The thing status topic, where things report their state.
+         */
+        THING_STATUS,
+
+        /**
+         * A topic under the thing control topic base, where processed control messages are relayed to things.
+         */
+        CONTROL_RELAY,
+
+        /**
+         * Any other topic.
+         */
+        OTHER
+    }
+
+    /**
+     * Handles an event routed to it.
+     */
+    interface Route {
+        /**
+         * Handles the specified event.
+         * @param event The MQTT event.
+         * @param decoded The packet decoded from the event message.
+         */
+        void route(@NotNull MqttManager.MqttEvent event, @NotNull DecodedPacket decoded);
+    }
+
+    private final Map<String, TopicClass> _exact = new HashMap<>();
+    private final String[] _exactTopics;
+    private final TopicClass[] _exactClasses;
+    private final String _relayPrefix;
+    private final Route[][] _routes = new Route[TopicClass.values().length][ThingType.values().length];
+
+    /**
+     * Constructs a new instance of {@link TopicRouter} for the specified topics. If the same topic is configured more
+     * than once, the first class it is given wins (in the order of the parameters).
+     * @param systemControlTopic The system control topic.
+     * @param thingControlTopicBase The thing control topic base.
+     * @param thingStatusTopicBase The thing status topic base.
+     */
+    TopicRouter(String systemControlTopic, String thingControlTopicBase, String thingStatusTopicBase) {
+        addExact(systemControlTopic, TopicClass.SYSTEM_CONTROL);
+        addExact(thingControlTopicBase, TopicClass.THING_CONTROL);
+        addExact(thingStatusTopicBase, TopicClass.THING_STATUS);
+        _exactTopics = _exact.keySet().toArray(new String[0]);
+        _exactClasses = new TopicClass[_exactTopics.length];
+        for (int i = 0; i < _exactTopics.length; i++) {
+            _exactClasses[i] = _exact.get(_exactTopics[i]);
+        }
+        _relayPrefix = StringUtils.defaultString(thingControlTopicBase);
+    }
+
+    /**
+     * Adds a topic to the exact match table.
+     * @param topic The topic. Ignored if empty.
+     * @param topicClass The class to give the topic.
+     */
+    private void addExact(@Nullable String topic, @NotNull TopicClass topicClass) {
+        if (StringUtils.isEmpty(topic)) {
+            return;
+        }
+
+        for (String existing : _exact.keySet()) {
+            if (existing.equalsIgnoreCase(topic)) {
+                return;
+            }
+        }
+        _exact.put(topic, topicClass);
+    }
+
+    /**
+     * Registers the handler for events of the specified thing type on the specified class of topic, replacing any
+     * handler already registered for them.
+     * @param topicClass The topic class.
+     * @param type The thing type.
+     * @param route The handler.
+     */
+    void addRoute(@NotNull TopicClass topicClass, @NotNull ThingType type, @NotNull Route route) {
+        _routes[topicClass.ordinal()][type.ordinal()] = route;
+    }
+
+    /**
+     * Registers the handler for events of the specified thing type on every class of topic.
+     * @param type The thing type.
+     * @param route The handler.
+     */
+    void addRoute(@NotNull ThingType type, @NotNull Route route) {
+        for (TopicClass topicClass : TopicClass.values()) {
+            addRoute(topicClass, type, route);
+        }
+    }
+
+    /**
+     * Classifies the specified topic. Configured topics match regardless of case; relay topics must start with the
+     * thing control topic base exactly.
+     * @param topic The topic to classify.
+     * @return The topic class.
+     */
+    @NotNull
+    TopicClass classify(@Nullable String topic) {
+        if (topic == null) {
+            return TopicClass.OTHER;
+        }
+
+        TopicClass topicClass = _exact.get(topic);
+        if (topicClass != null) {
+            return topicClass;
+        }
+
+        for (int i = 0; i < _exactTopics.length; i++) {
+            if (_exactTopics[i].equalsIgnoreCase(topic)) {
+                return _exactClasses[i];
+            }
+        }
+
+        if (!_relayPrefix.isEmpty() && topic.startsWith(_relayPrefix)) {
+            return TopicClass.CONTROL_RELAY;
+        }
+        return TopicClass.OTHER;
+    }
+
+    /**
+     * Passes an event to the handler registered for its topic class and thing type.
+     * @param topicClass The class of the topic the event arrived on.
+     * @param event The MQTT event.
+     * @param decoded The packet decoded from the event message.
+     * @return true if a handler was found; Otherwise, false.
+     */
+    boolean route(@NotNull TopicClass topicClass, @NotNull MqttManager.MqttEvent event,
+                  @NotNull DecodedPacket decoded) {
+        Route route = _routes[topicClass.ordinal()][decoded.getInfo().getThingType().ordinal()];
+        if (route == null) {
+            return false;
+        }
+
+        route.route(event, decoded);
+        return true;
+    }
+}
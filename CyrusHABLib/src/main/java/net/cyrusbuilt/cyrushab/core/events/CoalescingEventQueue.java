@@ -0,0 +1,388 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import net.cyrusbuilt.cyrushab.core.telemetry.LatencyHistogram;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, blocking FIFO event queue with latest-wins coalescing. Events that have a coalesce key (for example, a
+ * status snapshot keyed by thing ID) replace an older event with the same key that is still waiting in the queue,
+ * keeping its place in line. Only events with a coalesce key are droppable; what happens to them when the queue is full
+ * is decided by the {@link OverflowPolicy}. Events without a key are never dropped.
+ * <p>
+ * The queue also counts events that have been admitted but not yet completed. Consumers call {@link #complete(int)}
+ * once they are done with the events they took, which lets other threads wait for everything queued so far to be
+ * handled with {@link #awaitCompletion(long, TimeUnit)}.
+ * @param <T> The event type.
+ */
+public class CoalescingEventQueue<T> {
+    /**
+     * Gets the coalesce key of an event.
+     * @param <T> The event type.
+     */
+    public interface Coalescer<T> {
+        /**
+         * Gets the key used to coalesce the specified event with older events still in the queue.
+         * @param event The event.
+         * @return The coalesce key, or null if the event must not be coalesced or dropped.
+         */
+        @Nullable
+        Object coalesceKey(T event);
+    }
+
+    /**
+     * A queued event.
+     * @param <T> The event type.
+     */
+    private static final class Slot<T> {
+        T event;
+        final Object key;
+        final long enqueuedAt;
+
+        Slot(T event, Object key) {
+            this.event = event;
+            this.key = key;
+            this.enqueuedAt = System.nanoTime();
+        }
+    }
+
+    private final int _capacity;
+    private final OverflowPolicy _policy;
+    private final Coalescer<T> _coalescer;
+    private final ArrayDeque<Slot<T>> _slots = new ArrayDeque<>();
+    private final Map<Object, Slot<T>> _pending = new HashMap<>();
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Condition _notFull = _lock.newCondition();
+    private final Condition _completed = _lock.newCondition();
+    private final AtomicLong _coalesced = new AtomicLong(0);
+    private final AtomicLong _dropped = new AtomicLong(0);
+    private final LatencyHistogram _waitLatency = new LatencyHistogram();
+    private int _incomplete = 0;
+
+    /**
+     * Constructs a new instance of {@link CoalescingEventQueue}.
+     * @param capacity The maximum number of events the queue holds.
+     * @param policy What to do with droppable events when the queue is full.
+     * @param coalescer Gets the coalesce key of each event. If null, nothing is coalesced or dropped.
+     */
+    public CoalescingEventQueue(int capacity, @NotNull OverflowPolicy policy, @Nullable Coalescer<T> coalescer) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+
+        _capacity = capacity;
+        _policy = policy;
+        _coalescer = coalescer;
+    }
+
+    /**
+     * Constructs a new, unbounded instance of {@link CoalescingEventQueue} that does not coalesce events.
+     */
+    public CoalescingEventQueue() {
+        this(Integer.MAX_VALUE, OverflowPolicy.BLOCK, null);
+    }
+
+    /**
+     * Gets the maximum number of events the queue holds.
+     * @return The capacity.
+     */
+    public int capacity() {
+        return _capacity;
+    }
+
+    /**
+     * Gets the overflow policy.
+     * @return The overflow policy.
+     */
+    public OverflowPolicy policy() {
+        return _policy;
+    }
+
+    /**
+     * Gets the number of events that replaced an older queued event with the same key.
+     * @return The coalesced event count.
+     */
+    public long coalescedCount() {
+        return _coalesced.get();
+    }
+
+    /**
+     * Gets the number of events discarded because the queue was full.
+     * @return The dropped event count.
+     */
+    public long droppedCount() {
+        return _dropped.get();
+    }
+
+    /**
+     * Gets the histogram of how long events waited in the queue before being taken. A coalesced event is measured from
+     * when the event it replaced was queued.
+     * @return The queue wait latency histogram.
+     */
+    public LatencyHistogram waitLatency() {
+        return _waitLatency;
+    }
+
+    /**
+     * Gets the number of events waiting in the queue.
+     * @return The queue depth.
+     */
+    public int size() {
+        _lock.lock();
+        try {
+            return _slots.size();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Adds an event to the tail of the queue, coalescing it with an older queued event that has the same key. If the
+     * queue is full, the overflow policy decides what happens to a droppable event. An event that is not droppable
+     * waits for space; if the waiting thread is interrupted, the event is admitted over capacity rather than lost.
+     * @param event The event to add.
+     * @return true if the event was queued or coalesced; false if it was dropped.
+     */
+    public boolean offer(@NotNull T event) {
+        Object key = _coalescer == null ? null : _coalescer.coalesceKey(event);
+        _lock.lock();
+        try {
+            if (key != null) {
+                Slot<T> existing = _pending.get(key);
+                if (existing != null) {
+                    existing.event = event;
+                    _coalesced.incrementAndGet();
+                    return true;
+                }
+            }
+
+            while (_slots.size() >= _capacity) {
+                if (key != null && _policy == OverflowPolicy.DROP_NEWEST) {
+                    _dropped.incrementAndGet();
+                    return false;
+                }
+
+                if (key != null && _policy == OverflowPolicy.DROP_OLDEST && dropOldest()) {
+                    break;
+                }
+
+                try {
+                    _notFull.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            Slot<T> slot = new Slot<>(event, key);
+            _slots.addLast(slot);
+            if (key != null) {
+                _pending.put(key, slot);
+            }
+            _incomplete++;
+            _notEmpty.signal();
+            return true;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Puts an event that was taken from the queue back at the head of the queue, ignoring capacity. If a newer event
+     * with the same key has been queued since, the returned event is discarded in favour of the newer one.
+     * @param event The event to put back.
+     */
+    public void pushBack(@NotNull T event) {
+        Object key = _coalescer == null ? null : _coalescer.coalesceKey(event);
+        _lock.lock();
+        try {
+            if (key != null) {
+                if (_pending.containsKey(key)) {
+                    completeLocked(1);
+                    return;
+                }
+            }
+
+            Slot<T> slot = new Slot<>(event, key);
+            _slots.addFirst(slot);
+            if (key != null) {
+                _pending.put(key, slot);
+            }
+            _notEmpty.signal();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the event at the head of the queue, waiting if necessary for one to arrive.
+     * @return The event at the head of the queue.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @NotNull
+    public T take() throws InterruptedException {
+        _lock.lockInterruptibly();
+        try {
+            while (_slots.isEmpty()) {
+                _notEmpty.await();
+            }
+            return removeFirst();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to the specified number of available events and adds them to the specified collection without
+     * waiting.
+     * @param target The collection to add the events to.
+     * @param maxEvents The maximum number of events to remove.
+     * @return The number of events removed.
+     */
+    public int drainTo(@NotNull Collection<? super T> target, int maxEvents) {
+        _lock.lock();
+        try {
+            int count = 0;
+            while (count < maxEvents && !_slots.isEmpty()) {
+                target.add(removeFirst());
+                count++;
+            }
+            return count;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all events from the queue.
+     */
+    public void clear() {
+        _lock.lock();
+        try {
+            completeLocked(_slots.size());
+            _slots.clear();
+            _pending.clear();
+            _notFull.signalAll();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Marks events taken from the queue as complete, either because they were handled or because they were handed off
+     * somewhere else. Events discarded by the queue itself (coalesced, dropped, or cleared) are completed
+     * automatically.
+     * @param count The number of events to mark complete.
+     */
+    public void complete(int count) {
+        _lock.lock();
+        try {
+            completeLocked(count);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of events admitted to the queue that have not been completed yet. This includes events still
+     * waiting in the queue and events that have been taken but not yet marked complete.
+     * @return The incomplete event count.
+     */
+    public int incompleteCount() {
+        _lock.lock();
+        try {
+            return _incomplete;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every event admitted to the queue so far has been completed, or the timeout elapses.
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return true if all events were completed; false if the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitCompletion(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        _lock.lockInterruptibly();
+        try {
+            while (_incomplete > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = _completed.awaitNanos(remaining);
+            }
+            return true;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Decrements the incomplete event count. Must be called with the lock held.
+     * @param count The number of events completed.
+     */
+    private void completeLocked(int count) {
+        _incomplete = Math.max(0, _incomplete - count);
+        if (_incomplete == 0) {
+            _completed.signalAll();
+        }
+    }
+
+    /**
+     * Removes the head slot. Must be called with the lock held and the queue not empty.
+     * @return The event in the head slot.
+     */
+    private T removeFirst() {
+        Slot<T> slot = _slots.removeFirst();
+        if (slot.key != null) {
+            _pending.remove(slot.key);
+        }
+        _waitLatency.recordSince(slot.enqueuedAt);
+        _notFull.signal();
+        return slot.event;
+    }
+
+    /**
+     * Discards the oldest droppable event. Must be called with the lock held.
+     * @return true if an event was discarded; false if nothing in the queue is droppable.
+     */
+    private boolean dropOldest() {
+        Iterator<Slot<T>> iterator = _slots.iterator();
+        while (iterator.hasNext()) {
+            Slot<T> slot = iterator.next();
+            if (slot.key != null) {
+                iterator.remove();
+                _pending.remove(slot.key);
+                _dropped.incrementAndGet();
+                completeLocked(1);
+                return true;
+            }
+        }
+        return false;
+    }
+}
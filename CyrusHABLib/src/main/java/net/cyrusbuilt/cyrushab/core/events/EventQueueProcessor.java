@@ -0,0 +1,313 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes events from a queue on a dedicated thread. The processor thread parks until an event arrives and then
+ * drains everything that is available in a single pass, so there is no poll interval adding latency to each event or
+ * capping throughput. Processing can be paused, in which case events remain queued until the processor is resumed.
+ * @param <T> The event type.
+ */
+public class EventQueueProcessor<T> {
+    /**
+     * Handles events taken from the queue.
+     * @param <T> The event type.
+     */
+    public interface EventHandler<T> {
+        /**
+         * Handles the specified event. Called on the processor thread.
+         * @param event The event to handle.
+         */
+        void handle(T event);
+    }
+
+    /**
+     * The default maximum number of events drained from the queue in a single pass.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final Logger logger = LoggerFactory.getLogger(EventQueueProcessor.class);
+
+    private final String _name;
+    private final EventHandler<T> _handler;
+    private final int _batchSize;
+    private final CoalescingEventQueue<T> _queue;
+    private final Object _pauseLock = new Object();
+    private final AtomicLong _processed = new AtomicLong(0);
+    private volatile boolean _paused = false;
+    private volatile boolean _running = false;
+    private volatile ThreadFactory _threadFactory = ThreadFactories.platform();
+    private volatile Thread _thread = null;
+
+    /**
+     * Constructs a new instance of {@link EventQueueProcessor} with the thread name, event handler, queue, and batch
+     * size.
+     * @param name The name to give the processor thread.
+     * @param handler The handler to pass each event to.
+     * @param queue The queue to take events from. Use this to bound the queue or coalesce events.
+     * @param batchSize The maximum number of events to drain from the queue in a single pass.
+     */
+    public EventQueueProcessor(@NotNull String name, @NotNull EventHandler<T> handler,
+                               @NotNull CoalescingEventQueue<T> queue, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+        }
+
+        _name = name;
+        _handler = handler;
+        _batchSize = batchSize;
+        _queue = queue;
+    }
+
+    /**
+     * Constructs a new instance of {@link EventQueueProcessor} with the thread name, event handler, and queue, using
+     * {@link #DEFAULT_BATCH_SIZE}.
+     * @param name The name to give the processor thread.
+     * @param handler The handler to pass each event to.
+     * @param queue The queue to take events from. Use this to bound the queue or coalesce events.
+     */
+    public EventQueueProcessor(@NotNull String name, @NotNull EventHandler<T> handler,
+                               @NotNull CoalescingEventQueue<T> queue) {
+        this(name, handler, queue, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructs a new instance of {@link EventQueueProcessor} with the thread name, event handler, and batch size.
+     * The queue is unbounded.
+     * @param name The name to give the processor thread.
+     * @param handler The handler to pass each event to.
+     * @param batchSize The maximum number of events to drain from the queue in a single pass.
+     */
+    public EventQueueProcessor(@NotNull String name, @NotNull EventHandler<T> handler, int batchSize) {
+        this(name, handler, new CoalescingEventQueue<>(), batchSize);
+    }
+
+    /**
+     * Constructs a new instance of {@link EventQueueProcessor} with the thread name and event handler, using
+     * {@link #DEFAULT_BATCH_SIZE}. The queue is unbounded.
+     * @param name The name to give the processor thread.
+     * @param handler The handler to pass each event to.
+     */
+    public EventQueueProcessor(@NotNull String name, @NotNull EventHandler<T> handler) {
+        this(name, handler, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Gets the name of the processor.
+     * @return The processor name.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Adds an event to the queue. Wakes the processor thread if it is waiting for events. If the queue is bounded and
+     * full, its overflow policy decides whether the event is dropped or the caller waits for space.
+     * @param event The event to enqueue.
+     * @return true if the event was queued or coalesced with an older event; false if it was dropped.
+     */
+    public boolean enqueue(@NotNull T event) {
+        return _queue.offer(event);
+    }
+
+    /**
+     * Gets the queue this processor takes events from.
+     * @return The event queue.
+     */
+    public CoalescingEventQueue<T> queue() {
+        return _queue;
+    }
+
+    /**
+     * Gets the number of events waiting in the queue.
+     * @return The queue depth.
+     */
+    public int size() {
+        return _queue.size();
+    }
+
+    /**
+     * Gets the total number of events handled since the processor was constructed.
+     * @return The processed event count.
+     */
+    public long processedCount() {
+        return _processed.get();
+    }
+
+    /**
+     * Waits until every event queued so far has been handled, or the timeout elapses. Returns straight away if the
+     * processor is stopped or paused, since nothing would be handled while waiting.
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return true if no events are left to handle; Otherwise, false.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitIdle(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        if (!isRunning() || _paused) {
+            return _queue.incompleteCount() == 0;
+        }
+        return _queue.awaitCompletion(timeout, unit);
+    }
+
+    /**
+     * Removes all events waiting in the queue and adds them to the specified collection, in queue order.
+     * @param target The collection to add the events to.
+     * @return The number of events removed.
+     */
+    public int drainTo(@NotNull Collection<? super T> target) {
+        int count = _queue.drainTo(target, Integer.MAX_VALUE);
+        _queue.complete(count);
+        return count;
+    }
+
+    /**
+     * Removes all events waiting in the queue.
+     */
+    public void clear() {
+        _queue.clear();
+    }
+
+    /**
+     * Gets whether or not the processor thread is running.
+     * @return true if running; Otherwise, false.
+     */
+    public synchronized boolean isRunning() {
+        return _running;
+    }
+
+    /**
+     * Gets whether or not processing is paused.
+     * @return true if paused; Otherwise, false.
+     */
+    public boolean isPaused() {
+        return _paused;
+    }
+
+    /**
+     * Sets the factory used to create the processor thread, such as {@link ThreadFactories#virtual()}. Takes effect
+     * the next time the processor is started.
+     * @param factory The thread factory.
+     */
+    public void setThreadFactory(@NotNull ThreadFactory factory) {
+        _threadFactory = factory;
+    }
+
+    /**
+     * Pauses or resumes processing. While paused, events continue to be queued but are not handled.
+     * @param paused Set true to pause; false to resume.
+     */
+    public void setPaused(boolean paused) {
+        synchronized (_pauseLock) {
+            _paused = paused;
+            _pauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Starts the processor thread. Does nothing if already running.
+     */
+    public synchronized void start() {
+        if (_running) {
+            return;
+        }
+
+        _running = true;
+        _thread = _threadFactory.newThread(this::run);
+        _thread.setName(_name);
+        _thread.start();
+    }
+
+    /**
+     * Stops the processor thread, waiting up to the specified time for it to exit. Events still in the queue are left
+     * in place. A thread that is still busy with an event when the time is up finishes that event and then exits
+     * without taking another, even if the processor has been started again in the meantime.
+     * @param timeout The maximum time to wait for the thread to exit.
+     * @param unit The unit of the timeout.
+     */
+    public void stop(long timeout, @NotNull TimeUnit unit) {
+        Thread thread;
+        synchronized (this) {
+            if (!_running) {
+                return;
+            }
+
+            _running = false;
+            thread = _thread;
+            _thread = null;
+        }
+
+        thread.interrupt();
+        try {
+            thread.join(unit.toMillis(timeout));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Blocks the processor thread while processing is paused.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void waitWhilePaused() throws InterruptedException {
+        synchronized (_pauseLock) {
+            while (_paused) {
+                _pauseLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Processor thread body. Parks until an event is available, then drains and handles up to a batch of events. Runs
+     * only for as long as it is the processor's current thread, so a thread left over from a stop that timed out
+     * never handles events alongside the one a restart created.
+     */
+    private void run() {
+        Thread self = Thread.currentThread();
+        List<T> batch = new ArrayList<>(_batchSize);
+        while (_thread == self) {
+            int handled = 0;
+            try {
+                waitWhilePaused();
+                batch.add(_queue.take());
+                _queue.drainTo(batch, _batchSize - 1);
+                for (int i = 0; i < batch.size(); i++) {
+                    if (_paused || _thread != self) {
+                        // Put back whatever we haven't handled yet, preserving order.
+                        for (int j = batch.size() - 1; j >= i; j--) {
+                            _queue.pushBack(batch.get(j));
+                        }
+                        break;
+                    }
+
+                    try {
+                        _handler.handle(batch.get(i));
+                    }
+                    catch (RuntimeException e) {
+                        logger.error("Unhandled error in event processor " + _name + ": " + e.toString());
+                    }
+                    _processed.incrementAndGet();
+                    handled++;
+                }
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            finally {
+                if (handled > 0) {
+                    _queue.complete(handled);
+                }
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+/**
+ * What a bounded event queue does with a droppable event when it is full. Events that are not droppable are never
+ * discarded; the enqueueing thread waits for space instead.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait for space to become available.
+     */
+    BLOCK,
+
+    /**
+     * Discard the incoming event.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discard the oldest droppable event waiting in the queue to make room for the incoming event.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,261 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import net.cyrusbuilt.cyrushab.core.telemetry.LatencyHistogram;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Spreads events across a fixed pool of {@link EventQueueProcessor} shards, each with its own thread. Events are
+ * assigned to a shard by key, so all events with the same key are handled in the order they were enqueued while events
+ * with different keys are handled in parallel.
+ * @param <T> The event type.
+ */
+public class ShardedEventProcessor<T> {
+    /**
+     * Extracts the shard key from an event.
+     * @param <T> The event type.
+     */
+    public interface KeyExtractor<T> {
+        /**
+         * Gets the key used to pick the shard for the specified event.
+         * @param event The event.
+         * @return The shard key.
+         */
+        int keyOf(T event);
+    }
+
+    private final String _name;
+    private final KeyExtractor<T> _keyExtractor;
+    private final List<EventQueueProcessor<T>> _shards;
+
+    /**
+     * Constructs a new instance of {@link ShardedEventProcessor} with a queue per shard created by the specified
+     * factory.
+     * @param name The base name for the shard threads. Each thread is named with this and the shard index.
+     * @param shardCount The number of shards (threads).
+     * @param keyExtractor Extracts the shard key from each event. Called on the enqueueing thread.
+     * @param handler The handler to pass each event to. Called on the shard threads.
+     * @param queueFactory Creates the queue for each shard.
+     */
+    public ShardedEventProcessor(@NotNull String name, int shardCount, @NotNull KeyExtractor<T> keyExtractor,
+                                 @NotNull EventQueueProcessor.EventHandler<T> handler,
+                                 @NotNull Supplier<CoalescingEventQueue<T>> queueFactory) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1.");
+        }
+
+        _name = name;
+        _keyExtractor = keyExtractor;
+        List<EventQueueProcessor<T>> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new EventQueueProcessor<>(name + "-" + i, handler, queueFactory.get()));
+        }
+        _shards = Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Constructs a new instance of {@link ShardedEventProcessor} with an unbounded queue per shard.
+     * @param name The base name for the shard threads. Each thread is named with this and the shard index.
+     * @param shardCount The number of shards (threads).
+     * @param keyExtractor Extracts the shard key from each event. Called on the enqueueing thread.
+     * @param handler The handler to pass each event to. Called on the shard threads.
+     */
+    public ShardedEventProcessor(@NotNull String name, int shardCount, @NotNull KeyExtractor<T> keyExtractor,
+                                 @NotNull EventQueueProcessor.EventHandler<T> handler) {
+        this(name, shardCount, keyExtractor, handler, CoalescingEventQueue::new);
+    }
+
+    /**
+     * Gets the base name of the processor.
+     * @return The processor name.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Gets the number of shards.
+     * @return The shard count.
+     */
+    public int shardCount() {
+        return _shards.size();
+    }
+
+    /**
+     * Gets the shards that make up this processor.
+     * @return An unmodifiable list of the shards.
+     */
+    public List<EventQueueProcessor<T>> shards() {
+        return _shards;
+    }
+
+    /**
+     * Gets the shard index for the specified key.
+     * @param key The shard key.
+     * @return The index of the shard that handles the key.
+     */
+    public int shardIndexOf(int key) {
+        // Spread sequential IDs so neighbouring things don't cluster when the shard count shares a factor with them.
+        int h = key * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), _shards.size());
+    }
+
+    /**
+     * Adds an event to the queue of the shard that owns its key.
+     * @param event The event to enqueue.
+     * @return true if the event was queued or coalesced with an older event; false if it was dropped.
+     */
+    public boolean enqueue(@NotNull T event) {
+        return _shards.get(shardIndexOf(_keyExtractor.keyOf(event))).enqueue(event);
+    }
+
+    /**
+     * Gets the total number of events waiting across all shards.
+     * @return The queue depth.
+     */
+    public int size() {
+        int size = 0;
+        for (EventQueueProcessor<T> shard : _shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the total number of events handled across all shards.
+     * @return The processed event count.
+     */
+    public long processedCount() {
+        long count = 0;
+        for (EventQueueProcessor<T> shard : _shards) {
+            count += shard.processedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Gets the total number of events coalesced with an older queued event across all shards.
+     * @return The coalesced event count.
+     */
+    public long coalescedCount() {
+        long count = 0;
+        for (EventQueueProcessor<T> shard : _shards) {
+            count += shard.queue().coalescedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Gets the total number of events dropped because a shard queue was full.
+     * @return The dropped event count.
+     */
+    public long droppedCount() {
+        long count = 0;
+        for (EventQueueProcessor<T> shard : _shards) {
+            count += shard.queue().droppedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Gets a histogram of how long events waited in the shard queues, combined across all shards. This is a snapshot;
+     * it does not change as more events are processed.
+     * @return The combined queue wait latency histogram.
+     */
+    public LatencyHistogram waitLatency() {
+        LatencyHistogram combined = new LatencyHistogram();
+        for (EventQueueProcessor<T> shard : _shards) {
+            combined.add(shard.queue().waitLatency());
+        }
+        return combined;
+    }
+
+    /**
+     * Waits until every event queued so far has been handled by every shard, or the timeout elapses.
+     * @param timeout The maximum time to wait for all the shards.
+     * @param unit The unit of the timeout.
+     * @return true if no events are left to handle; Otherwise, false.
+     * @throws InterruptedException if interrupted while waiting.
+     * @see EventQueueProcessor#awaitIdle(long, TimeUnit)
+     */
+    public boolean awaitIdle(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean idle = true;
+        for (EventQueueProcessor<T> shard : _shards) {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            idle &= shard.awaitIdle(remaining, TimeUnit.NANOSECONDS);
+        }
+        return idle;
+    }
+
+    /**
+     * Removes all events waiting in every shard and adds them to the specified collection. Events from the same shard
+     * stay in queue order.
+     * @param target The collection to add the events to.
+     * @return The number of events removed.
+     */
+    public int drainTo(@NotNull Collection<? super T> target) {
+        int count = 0;
+        for (EventQueueProcessor<T> shard : _shards) {
+            count += shard.drainTo(target);
+        }
+        return count;
+    }
+
+    /**
+     * Removes all events waiting in every shard.
+     */
+    public void clear() {
+        for (EventQueueProcessor<T> shard : _shards) {
+            shard.clear();
+        }
+    }
+
+    /**
+     * Sets the factory used to create the shard threads. Takes effect the next time the shards are started.
+     * @param factory The thread factory.
+     */
+    public void setThreadFactory(@NotNull ThreadFactory factory) {
+        for (EventQueueProcessor<T> shard : _shards) {
+            shard.setThreadFactory(factory);
+        }
+    }
+
+    /**
+     * Pauses or resumes processing on every shard.
+     * @param paused Set true to pause; false to resume.
+     */
+    public void setPaused(boolean paused) {
+        for (EventQueueProcessor<T> shard : _shards) {
+            shard.setPaused(paused);
+        }
+    }
+
+    /**
+     * Starts every shard thread.
+     */
+    public void start() {
+        for (EventQueueProcessor<T> shard : _shards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * Stops every shard thread, waiting up to the specified time for each to exit. Queued events are left in place.
+     * @param timeout The maximum time to wait for each thread to exit.
+     * @param unit The unit of the timeout.
+     */
+    public void stop(long timeout, @NotNull TimeUnit unit) {
+        for (EventQueueProcessor<T> shard : _shards) {
+            shard.stop(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+/**
+ * The priority of a task run by a {@link TaskScheduler}. When several tasks are due at once, higher priority tasks run
+ * first; tasks of the same priority run in the order they became due.
+ */
+public enum TaskPriority {
+    /**
+     * Runs before any other due task. For commands that change the system state.
+     */
+    HIGH,
+
+    /**
+     * The default priority.
+     */
+    NORMAL,
+
+    /**
+     * Runs only when no higher priority task is due. For bulk work that can wait.
+     */
+    LOW
+}
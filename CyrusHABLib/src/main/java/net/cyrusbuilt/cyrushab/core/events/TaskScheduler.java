@@ -0,0 +1,439 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import net.cyrusbuilt.cyrushab.core.telemetry.LatencyHistogram;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs tasks one at a time on a dedicated thread. Tasks can run as soon as possible, after a delay, or periodically.
+ * When several tasks are due at once they run in {@link TaskPriority} order. The thread parks until the next task is
+ * due, so a task runs as soon as it is submitted and back-to-back tasks don't wait on each other. The scheduler
+ * records how long each named task waited past its due time and how long it ran.
+ */
+public class TaskScheduler {
+    /**
+     * A task waiting to run. Use it to cancel the task.
+     */
+    public static final class ScheduledTask {
+        private final String _name;
+        private final TaskPriority _priority;
+        private final Runnable _task;
+        private final long _periodNanos;
+        private long _dueAt;
+        private long _sequence;
+        private volatile boolean _cancelled = false;
+
+        /**
+         * Constructs a new instance of {@link ScheduledTask}.
+         * @param name The task name.
+         * @param priority The task priority.
+         * @param task The task body.
+         * @param dueAt When the task is first due, as a {@link System#nanoTime()} reading.
+         * @param periodNanos The delay between the end of one run and the start of the next, or 0 to run once.
+         */
+        private ScheduledTask(String name, TaskPriority priority, Runnable task, long dueAt, long periodNanos) {
+            _name = name;
+            _priority = priority;
+            _task = task;
+            _dueAt = dueAt;
+            _periodNanos = periodNanos;
+        }
+
+        /**
+         * Gets the task name.
+         * @return The name.
+         */
+        public String getName() {
+            return _name;
+        }
+
+        /**
+         * Gets the task priority.
+         * @return The priority.
+         */
+        public TaskPriority getPriority() {
+            return _priority;
+        }
+
+        /**
+         * Gets whether or not the task repeats.
+         * @return true if periodic; Otherwise, false.
+         */
+        public boolean isPeriodic() {
+            return _periodNanos > 0;
+        }
+
+        /**
+         * Cancels the task. A run already in progress completes, but the task won't run again.
+         */
+        public void cancel() {
+            _cancelled = true;
+        }
+
+        /**
+         * Gets whether or not the task has been cancelled.
+         * @return true if cancelled; Otherwise, false.
+         */
+        public boolean isCancelled() {
+            return _cancelled;
+        }
+    }
+
+    /**
+     * Timing metrics for all the runs of a named task.
+     */
+    public static final class TaskStats {
+        private final LatencyHistogram _delay = new LatencyHistogram();
+        private final LatencyHistogram _runTime = new LatencyHistogram();
+        private final AtomicLong _failures = new AtomicLong(0);
+
+        /**
+         * Gets how long the task waited past its due time before it started running.
+         * @return The scheduling delay histogram.
+         */
+        public LatencyHistogram delay() {
+            return _delay;
+        }
+
+        /**
+         * Gets how long the task ran.
+         * @return The run time histogram.
+         */
+        public LatencyHistogram runTime() {
+            return _runTime;
+        }
+
+        /**
+         * Gets the number of runs that threw an exception.
+         * @return The failure count.
+         */
+        public long failures() {
+            return _failures.get();
+        }
+
+        /**
+         * Gets a one-line summary of the task's metrics.
+         * @return The summary.
+         */
+        @Override
+        public String toString() {
+            return "delay[" + _delay + "] run[" + _runTime + "] failures=" + failures();
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskScheduler.class);
+
+    private final String _name;
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _changed = _lock.newCondition();
+    private final PriorityQueue<ScheduledTask> _ready = new PriorityQueue<>(
+            Comparator.<ScheduledTask, TaskPriority>comparing(t -> t._priority).thenComparingLong(t -> t._sequence));
+    private final PriorityQueue<ScheduledTask> _delayed = new PriorityQueue<>(
+            Comparator.<ScheduledTask>comparingLong(t -> t._dueAt).thenComparingLong(t -> t._sequence));
+    private final Map<String, TaskStats> _stats = new ConcurrentHashMap<>();
+    private long _nextSequence = 0;
+    private volatile boolean _running = false;
+    private volatile Thread _thread = null;
+
+    /**
+     * Constructs a new instance of {@link TaskScheduler}.
+     * @param name The name to give the scheduler thread.
+     */
+    public TaskScheduler(@NotNull String name) {
+        _name = name;
+    }
+
+    /**
+     * Gets the name of the scheduler.
+     * @return The scheduler name.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Adds a task to the queues and wakes the scheduler thread.
+     * @param task The task to add.
+     * @return The task.
+     */
+    private ScheduledTask enqueue(ScheduledTask task) {
+        _lock.lock();
+        try {
+            task._sequence = _nextSequence++;
+            if (task._dueAt - System.nanoTime() <= 0) {
+                _ready.add(task);
+            }
+            else {
+                _delayed.add(task);
+            }
+            _changed.signal();
+        }
+        finally {
+            _lock.unlock();
+        }
+        return task;
+    }
+
+    /**
+     * Submits a task to run as soon as possible.
+     * @param name The task name, used to group timing metrics.
+     * @param priority The task priority.
+     * @param task The task to run.
+     * @return The scheduled task.
+     */
+    public ScheduledTask submit(@NotNull String name, @NotNull TaskPriority priority, @NotNull Runnable task) {
+        return enqueue(new ScheduledTask(name, priority, task, System.nanoTime(), 0));
+    }
+
+    /**
+     * Schedules a task to run once after a delay.
+     * @param name The task name, used to group timing metrics.
+     * @param priority The task priority.
+     * @param task The task to run.
+     * @param delay The delay before the task is due.
+     * @param unit The unit of the delay.
+     * @return The scheduled task.
+     */
+    public ScheduledTask schedule(@NotNull String name, @NotNull TaskPriority priority, @NotNull Runnable task,
+                                  long delay, @NotNull TimeUnit unit) {
+        return enqueue(new ScheduledTask(name, priority, task, System.nanoTime() + unit.toNanos(delay), 0));
+    }
+
+    /**
+     * Schedules a task to run repeatedly, with a fixed delay between the end of one run and the start of the next,
+     * until it is cancelled.
+     * @param name The task name, used to group timing metrics.
+     * @param priority The task priority.
+     * @param task The task to run.
+     * @param initialDelay The delay before the first run.
+     * @param period The delay between runs. Must be greater than zero.
+     * @param unit The unit of the delays.
+     * @return The scheduled task.
+     */
+    public ScheduledTask schedulePeriodic(@NotNull String name, @NotNull TaskPriority priority,
+                                          @NotNull Runnable task, long initialDelay, long period,
+                                          @NotNull TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be greater than zero.");
+        }
+
+        return enqueue(new ScheduledTask(name, priority, task, System.nanoTime() + unit.toNanos(initialDelay),
+                unit.toNanos(period)));
+    }
+
+    /**
+     * Gets the number of tasks waiting to run, including delayed and periodic tasks.
+     * @return The pending task count.
+     */
+    public int pendingCount() {
+        _lock.lock();
+        try {
+            return _ready.size() + _delayed.size();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the timing metrics of the specified task.
+     * @param name The task name.
+     * @return The task metrics, or null if no task with that name has run.
+     */
+    public TaskStats stats(@NotNull String name) {
+        return _stats.get(name);
+    }
+
+    /**
+     * Gets the timing metrics of every task that has run.
+     * @return An unmodifiable map of task names to metrics, sorted by name.
+     */
+    public Map<String, TaskStats> stats() {
+        return Collections.unmodifiableMap(new TreeMap<>(_stats));
+    }
+
+    /**
+     * Removes all tasks waiting to run, including periodic tasks.
+     */
+    public void clear() {
+        _lock.lock();
+        try {
+            _ready.clear();
+            _delayed.clear();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Gets whether or not the scheduler thread is running.
+     * @return true if running; Otherwise, false.
+     */
+    public synchronized boolean isRunning() {
+        return _running;
+    }
+
+    /**
+     * Starts the scheduler thread. Does nothing if already running.
+     */
+    public synchronized void start() {
+        if (_running) {
+            return;
+        }
+
+        _running = true;
+        _thread = new Thread(this::run, _name);
+        _thread.start();
+    }
+
+    /**
+     * Stops the scheduler thread, waiting up to the specified time for it to exit. Tasks waiting to run are left in
+     * place. If called from a task, the scheduler stops once that task returns. A thread that is still busy with a
+     * task when the time is up finishes that task and then exits without taking another, even if the scheduler has
+     * been started again in the meantime.
+     * @param timeout The maximum time to wait for the thread to exit.
+     * @param unit The unit of the timeout.
+     */
+    public void stop(long timeout, @NotNull TimeUnit unit) {
+        Thread thread;
+        synchronized (this) {
+            if (!_running) {
+                return;
+            }
+
+            _running = false;
+            thread = _thread;
+            _thread = null;
+        }
+
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+
+        thread.interrupt();
+        try {
+            thread.join(unit.toMillis(timeout));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the next task to become due and removes it from the queues.
+     * @return The next task to run.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private ScheduledTask takeNext() throws InterruptedException {
+        _lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                ScheduledTask next = _delayed.peek();
+                while (next != null && next._dueAt - now <= 0) {
+                    _ready.add(_delayed.poll());
+                    next = _delayed.peek();
+                }
+
+                ScheduledTask task = _ready.poll();
+                if (task != null) {
+                    return task;
+                }
+
+                if (next == null) {
+                    _changed.await();
+                }
+                else {
+                    _changed.awaitNanos(next._dueAt - now);
+                }
+            }
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Puts a task taken with {@link #takeNext()} back, keeping its place in the order.
+     * @param task The task.
+     */
+    private void putBack(ScheduledTask task) {
+        _lock.lock();
+        try {
+            if (task._dueAt - System.nanoTime() <= 0) {
+                _ready.add(task);
+            }
+            else {
+                _delayed.add(task);
+            }
+            _changed.signal();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Runs a task and records its timing.
+     * @param task The task to run.
+     */
+    private void execute(ScheduledTask task) {
+        TaskStats stats = _stats.computeIfAbsent(task._name, name -> new TaskStats());
+        long start = System.nanoTime();
+        stats._delay.record(start - task._dueAt);
+        try {
+            task._task.run();
+        }
+        catch (RuntimeException e) {
+            stats._failures.incrementAndGet();
+            logger.error("Unhandled error in task " + task._name + " on " + _name + ": " + e.toString());
+        }
+        stats._runTime.recordSince(start);
+    }
+
+    /**
+     * Scheduler thread body. Runs only for as long as it is the scheduler's current thread, so a thread left over from
+     * a stop that timed out never runs tasks alongside the one a restart created.
+     */
+    private void run() {
+        Thread self = Thread.currentThread();
+        while (_thread == self) {
+            ScheduledTask task;
+            try {
+                task = takeNext();
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+
+            if (_thread != self) {
+                putBack(task);
+                break;
+            }
+
+            if (task._cancelled) {
+                continue;
+            }
+
+            execute(task);
+            if (task.isPeriodic() && !task._cancelled) {
+                task._dueAt = System.nanoTime() + task._periodNanos;
+                enqueue(task);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the thread factories used by the event processors. Virtual threads are looked up at runtime, so the library
+ * still builds and runs on Java 8 and only uses them when the JVM provides them (Java 21 and later).
+ */
+public final class ThreadFactories {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadFactories.class);
+    private static final ThreadFactory PLATFORM = Thread::new;
+    private static final ThreadFactory VIRTUAL = lookupVirtual();
+
+    private ThreadFactories() {
+    }
+
+    /**
+     * Looks up the JVM's virtual thread factory.
+     * @return The factory, or null if this JVM does not support virtual threads.
+     */
+    @Nullable
+    private static ThreadFactory lookupVirtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory)factory.invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets a factory that creates ordinary platform threads.
+     * @return The platform thread factory.
+     */
+    @NotNull
+    public static ThreadFactory platform() {
+        return PLATFORM;
+    }
+
+    /**
+     * Gets whether or not this JVM supports virtual threads.
+     * @return true if supported; Otherwise, false.
+     */
+    public static boolean isVirtualSupported() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * Gets a factory that creates virtual threads.
+     * @return The virtual thread factory, or null if this JVM does not support virtual threads.
+     */
+    @Nullable
+    public static ThreadFactory virtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Gets the thread factory for the requested execution mode. If virtual threads are requested but not supported,
+     * a warning is logged and platform threads are used instead.
+     * @param useVirtual Set true to request virtual threads.
+     * @return The thread factory.
+     */
+    @NotNull
+    public static ThreadFactory forMode(boolean useVirtual) {
+        if (!useVirtual) {
+            return PLATFORM;
+        }
+
+        if (VIRTUAL == null) {
+            logger.warn("Virtual threads requested but not supported by Java " +
+                    System.getProperty("java.version") + ". Using platform threads.");
+            return PLATFORM;
+        }
+        return VIRTUAL;
+    }
+}
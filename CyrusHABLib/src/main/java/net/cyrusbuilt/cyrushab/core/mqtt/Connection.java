@@ -0,0 +1,212 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.telemetry.EventTrace;
+import net.cyrusbuilt.cyrushab.core.telemetry.LatencyHistogram;
+import net.cyrusbuilt.cyrushab.core.telemetry.TraceStage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * One client connection to the broker, with its own in-flight window. Each subclass drives the Paho client for one
+ * {@link ProtocolVersion}; the window, tracing and latency recording are the same for all of them.
+ */
+abstract class Connection {
+    /**
+     * Receives the events of a connection.
+     */
+    interface Callback {
+        /**
+         * Called when the connection to the broker is lost.
+         * @param cause The reason the connection was lost.
+         */
+        void connectionLost(Throwable cause);
+
+        /**
+         * Called when a message arrives on a subscribed topic.
+         * @param topic The topic.
+         * @param payload The payload.
+         * @param id The message ID.
+         * @param properties The message properties.
+         */
+        void messageArrived(String topic, byte[] payload, int id, @NotNull MessageProperties properties);
+
+        /**
+         * Called when the broker confirms delivery of a published message.
+         * @param topic The topic.
+         * @param id The message ID.
+         * @param payload Supplies the payload, or null if the client no longer has it.
+         */
+        void deliveryComplete(String topic, int id, @NotNull Supplier<byte[]> payload);
+    }
+
+    /**
+     * Told how a send ended.
+     */
+    interface SendListener {
+        /**
+         * Called when the broker confirms delivery.
+         */
+        void delivered();
+
+        /**
+         * Called when the send fails.
+         * @param cause The reason.
+         */
+        void failed(@NotNull HABMqttException cause);
+    }
+
+    private final int _maxInFlight;
+    private final Semaphore _inFlight;
+    private final Semaphore _qos0InFlight = new Semaphore(1);
+
+    /**
+     * Constructs a new instance of {@link Connection}.
+     * @param maxInFlight The maximum number of published messages awaiting delivery confirmation at once.
+     */
+    Connection(int maxInFlight) {
+        _maxInFlight = maxInFlight;
+        _inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Gets whether or not the connection is established.
+     * @return true if connected; Otherwise, false.
+     */
+    abstract boolean isConnected();
+
+    /**
+     * Connects to the broker if not already connected.
+     * @return true if a new connection was made and the broker had no session to resume for it, so it holds no
+     * subscriptions for this client; Otherwise, false.
+     * @throws HABMqttException if the connection fails.
+     */
+    abstract boolean connect() throws HABMqttException;
+
+    /**
+     * Disconnects from the broker if connected.
+     */
+    abstract void disconnect();
+
+    /**
+     * Subscribes to the specified topic filters and waits for the broker to confirm.
+     * @param filters The topic filters.
+     * @param qos The QoS level of each filter.
+     * @throws HABMqttException if the subscription fails.
+     */
+    abstract void subscribe(String[] filters, int[] qos) throws HABMqttException;
+
+    /**
+     * Unsubscribes from the specified topic filter and waits for the broker to confirm.
+     * @param filter The topic filter.
+     * @throws HABMqttException if unsubscribing fails.
+     */
+    abstract void unsubscribe(String filter) throws HABMqttException;
+
+    /**
+     * Hands a message to the client. Exactly one of the listener's methods is called once the send ends, unless this
+     * throws.
+     * @param topicName The topic to publish to.
+     * @param payload The payload.
+     * @param qos The QoS level.
+     * @param retained Whether the broker should retain the message.
+     * @param properties The message properties.
+     * @param listener Told how the send ended.
+     * @throws HABMqttException if the client refuses the message.
+     */
+    protected abstract void send(String topicName, byte[] payload, int qos, boolean retained,
+                                 @NotNull MessageProperties properties, @NotNull SendListener listener)
+            throws HABMqttException;
+
+    /**
+     * Gets the number of published messages still awaiting delivery confirmation.
+     * @return The in-flight message count.
+     */
+    int inFlightCount() {
+        return _maxInFlight - _inFlight.availablePermits() + 1 - _qos0InFlight.availablePermits();
+    }
+
+    /**
+     * Waits for every in-flight message to be confirmed (or to fail).
+     * @param deadline The {@link System#nanoTime()} to give up at.
+     * @return true if nothing is in flight; false if the deadline passed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitInFlight(long deadline) throws InterruptedException {
+        if (!_inFlight.tryAcquire(_maxInFlight, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        _inFlight.release(_maxInFlight);
+
+        if (!_qos0InFlight.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        _qos0InFlight.release();
+        return true;
+    }
+
+    /**
+     * Publishes a message once there is room in the in-flight window. See
+     * {@link MqttManager#publishAsync(String, String, EventTrace)}.
+     * @param topicName The topic to publish to.
+     * @param payload The payload.
+     * @param qos The QoS level.
+     * @param retained Whether the broker should retain the message.
+     * @param properties The message properties. Ignored by protocol versions that can't carry them.
+     * @param trace The trace of the message being published, or null if it isn't traced.
+     * @param latency The histogram to record the time from sending the message to its acknowledgement in.
+     * @return A future that completes when delivery is confirmed.
+     * @throws HABMqttException if interrupted while waiting for room in the window.
+     */
+    CompletableFuture<Void> publish(String topicName, byte[] payload, int qos, boolean retained,
+                                    @NotNull MessageProperties properties, @Nullable EventTrace trace,
+                                    @NotNull LatencyHistogram latency) throws HABMqttException {
+        // Paho keys its delivery tokens by message ID and every QoS 0 message has ID 0, so if more than one is
+        // queued in the client at a time it silently drops all but one. QoS 0 messages therefore go one at a
+        // time; they complete as soon as they are written, so this costs no broker round trips.
+        final Semaphore inFlight = qos == 0 ? _qos0InFlight : _inFlight;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            inFlight.acquire();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HABMqttException("Interrupted while waiting for an in-flight slot.", ex);
+        }
+
+        if (trace != null) {
+            trace.mark(TraceStage.PUBLISHED);
+        }
+
+        final long start = System.nanoTime();
+        try {
+            send(topicName, payload, qos, retained, properties, new SendListener() {
+                @Override
+                public void delivered() {
+                    latency.recordSince(start);
+                    inFlight.release();
+                    if (trace != null) {
+                        trace.mark(TraceStage.DELIVERED);
+                    }
+                    result.complete(null);
+                }
+
+                @Override
+                public void failed(@NotNull HABMqttException cause) {
+                    inFlight.release();
+                    result.completeExceptionally(cause);
+                }
+            });
+        }
+        catch (HABMqttException ex) {
+            inFlight.release();
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,118 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.telemetry.LatencyHistogram;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records how long published messages take to be acknowledged by the broker, in one histogram per topic class. Topic
+ * classes are named groups of topics, each defined by one or more topic filters; a topic that matches several filters
+ * belongs to the class of the filter that was added first, and a topic that matches none belongs to {@link #OTHER}.
+ */
+public final class DeliveryLatency {
+    /**
+     * The class of topics that match no filter.
+     */
+    public static final String OTHER = "other";
+
+    /**
+     * A topic filter and the class it maps to.
+     */
+    private static final class Rule {
+        private final int _order;
+        private final String _topicClass;
+
+        /**
+         * Constructs a new instance of {@link Rule}.
+         * @param order The position of the rule among all the rules; lower wins.
+         * @param topicClass The topic class.
+         */
+        Rule(int order, String topicClass) {
+            _order = order;
+            _topicClass = topicClass;
+        }
+    }
+
+    private final TopicTrie<Rule> _rules = new TopicTrie<>();
+    private final Map<String, LatencyHistogram> _histograms = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> _byTopic = new ConcurrentHashMap<>();
+    private int _ruleCount = 0;
+
+    /**
+     * Adds the topics matching the specified filter to a topic class.
+     * @param topicFilter The topic filter. May use the '+' and '#' wildcards.
+     * @param topicClass The name of the topic class.
+     * @throws IllegalArgumentException if the topic filter is not valid.
+     */
+    public synchronized void classify(@NotNull String topicFilter, @NotNull String topicClass) {
+        _rules.add(topicFilter, new Rule(_ruleCount++, topicClass));
+        _byTopic.clear();
+    }
+
+    /**
+     * Gets the class the specified topic belongs to.
+     * @param topic The topic name.
+     * @return The topic class, or {@link #OTHER} if the topic matches no filter.
+     */
+    @NotNull
+    public String classOf(@NotNull String topic) {
+        List<Rule> matches = _rules.match(topic);
+        Rule first = null;
+        for (Rule rule : matches) {
+            if (first == null || rule._order < first._order) {
+                first = rule;
+            }
+        }
+        return first == null ? OTHER : first._topicClass;
+    }
+
+    /**
+     * Gets the histogram that deliveries to the specified topic are recorded in. The class of each topic is only
+     * looked up the first time it is published to.
+     * @param topic The topic name.
+     * @return The histogram.
+     */
+    @NotNull
+    public LatencyHistogram histogramFor(@NotNull String topic) {
+        LatencyHistogram histogram = _byTopic.get(topic);
+        if (histogram == null) {
+            histogram = _histograms.computeIfAbsent(classOf(topic), topicClass -> new LatencyHistogram());
+            _byTopic.put(topic, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Gets the histogram of each topic class that has had a delivery recorded, sorted by class name.
+     * @return An unmodifiable map of topic classes to delivery latency histograms.
+     */
+    public Map<String, LatencyHistogram> histograms() {
+        Map<String, LatencyHistogram> result = new LinkedHashMap<>();
+        _histograms.keySet().stream().sorted().forEach(topicClass -> result.put(topicClass, _histograms.get(topicClass)));
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Clears the recorded latencies of every topic class.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : _histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Removes every topic filter and recorded latency.
+     */
+    public synchronized void clear() {
+        _rules.clear();
+        _ruleCount = 0;
+        _byTopic.clear();
+        _histograms.clear();
+    }
+}
@@ -0,0 +1,138 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.events.OverflowPolicy;
+import net.cyrusbuilt.cyrushab.core.telemetry.LatencyHistogram;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * The dispatch metrics of one event listener or message handler registered with {@link MqttManager}: how long its
+ * events waited in its queue before it was called with them, how many are waiting now, and how many it was called
+ * with, failed on, or lost to its overflow policy. A listener that keeps falling behind shows up here long before its
+ * queue overflows.
+ */
+public final class DispatchStats {
+    private final String _name;
+    private final int _capacity;
+    private final OverflowPolicy _overflowPolicy;
+    private final IntSupplier _depth;
+    private final LatencyHistogram _lag = new LatencyHistogram();
+    private final AtomicLong _dispatched = new AtomicLong(0);
+    private final AtomicLong _dropped = new AtomicLong(0);
+    private final AtomicLong _failures = new AtomicLong(0);
+
+    /**
+     * Constructs a new instance of {@link DispatchStats}.
+     * @param name The name of the listener.
+     * @param capacity The capacity of the listener's queue.
+     * @param overflowPolicy What the queue does with a message when it is full.
+     * @param depth Supplies the number of events waiting in the listener's queue.
+     */
+    DispatchStats(@NotNull String name, int capacity, @NotNull OverflowPolicy overflowPolicy,
+                  @NotNull IntSupplier depth) {
+        _name = name;
+        _capacity = capacity;
+        _overflowPolicy = overflowPolicy;
+        _depth = depth;
+    }
+
+    /**
+     * Gets the name of the listener: its class name, or for a message handler, the topic filter it was first
+     * subscribed with.
+     * @return The listener name.
+     */
+    @NotNull
+    public String name() {
+        return _name;
+    }
+
+    /**
+     * Gets the capacity of the listener's queue.
+     * @return The queue capacity.
+     */
+    public int capacity() {
+        return _capacity;
+    }
+
+    /**
+     * Gets what the listener's queue does with a message when it is full.
+     * @return The overflow policy.
+     */
+    @NotNull
+    public OverflowPolicy overflowPolicy() {
+        return _overflowPolicy;
+    }
+
+    /**
+     * Gets the number of events waiting in the listener's queue.
+     * @return The queue depth.
+     */
+    public int depth() {
+        return _depth.getAsInt();
+    }
+
+    /**
+     * Gets how long events waited between being raised and the listener being called with them.
+     * @return The dispatch lag histogram.
+     */
+    @NotNull
+    public LatencyHistogram lag() {
+        return _lag;
+    }
+
+    /**
+     * Gets the number of events the listener has been called with.
+     * @return The dispatched count.
+     */
+    public long dispatched() {
+        return _dispatched.get();
+    }
+
+    /**
+     * Gets the number of messages discarded because the listener's queue was full.
+     * @return The dropped count.
+     */
+    public long dropped() {
+        return _dropped.get();
+    }
+
+    /**
+     * Gets the number of calls to the listener that threw an exception.
+     * @return The failure count.
+     */
+    public long failures() {
+        return _failures.get();
+    }
+
+    /**
+     * Records that the listener was called with an event.
+     * @param raisedAt The {@link System#nanoTime()} the event was raised at.
+     * @param failed true if the call threw an exception.
+     */
+    void recordDispatch(long raisedAt, boolean failed) {
+        _lag.recordSince(raisedAt);
+        _dispatched.incrementAndGet();
+        if (failed) {
+            _failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that a message was discarded because the listener's queue was full.
+     */
+    void recordDrop() {
+        _dropped.incrementAndGet();
+    }
+
+    /**
+     * Gets a one-line summary of the listener's metrics.
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        return "depth=" + depth() + "/" + _capacity + " lag[" + _lag + "] dispatched=" + dispatched() +
+                " dropped=" + dropped() + " failures=" + failures();
+    }
+}
@@ -15,6 +15,15 @@ public class HABMqttException extends Exception {
         super(ex);
     }
 
+    /**
+     * Constructs a new instance of {@link HABMqttException} with the MQTT v5 client exception that is the cause of
+     * the exception.
+     * @param ex The cause of the exception.
+     */
+    public HABMqttException(org.eclipse.paho.mqttv5.common.MqttException ex) {
+        super(ex);
+    }
+
     /**
      *
      * @param message
@@ -22,4 +31,13 @@ public class HABMqttException extends Exception {
     public HABMqttException(String message) {
         super(message);
     }
+
+    /**
+     * Constructs a new instance of {@link HABMqttException} with a message and the cause of the exception.
+     * @param message The error message.
+     * @param cause The cause of the exception.
+     */
+    public HABMqttException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
@@ -0,0 +1,287 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.events.OverflowPolicy;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls one event listener or message handler with its events, in order, on a thread of its own, so a slow listener
+ * only delays itself. Events wait in a bounded queue; when it is full, messages are handled according to the overflow
+ * policy, while connection events are never dropped and wait for room instead.
+ * @param <T> The listener type.
+ */
+final class ListenerDispatcher<T> {
+    /**
+     * How often a caller waiting for room in a full queue checks whether the dispatcher has been stopped.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private static final Logger logger = LoggerFactory.getLogger(ListenerDispatcher.class);
+
+    /**
+     * An event waiting to be dispatched.
+     */
+    private static final class Task {
+        final Runnable action;
+        final boolean droppable;
+        final long raisedAt;
+
+        Task(Runnable action, boolean droppable, long raisedAt) {
+            this.action = action;
+            this.droppable = droppable;
+            this.raisedAt = raisedAt;
+        }
+    }
+
+    private final T _target;
+    private final OverflowPolicy _overflowPolicy;
+    private final LinkedBlockingDeque<Task> _queue;
+    private final DispatchStats _stats;
+    private volatile boolean _running = false;
+    private Thread _worker = null;
+    private boolean _waiting = false;
+    private final Set<String> _filters = new HashSet<>();
+
+    /**
+     * Constructs a new instance of {@link ListenerDispatcher}. Call {@link #start(ThreadFactory)} to begin
+     * dispatching.
+     * @param target The listener or handler the events are for.
+     * @param name The name to report the dispatcher's metrics under.
+     * @param capacity The maximum number of events waiting to be dispatched.
+     * @param overflowPolicy What to do with a message when the queue is full.
+     */
+    ListenerDispatcher(@NotNull T target, @NotNull String name, int capacity,
+                       @NotNull OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Listener queue capacity must be at least 1.");
+        }
+
+        _target = target;
+        _overflowPolicy = overflowPolicy;
+        _queue = new LinkedBlockingDeque<>(capacity);
+        _stats = new DispatchStats(name, capacity, overflowPolicy, _queue::size);
+    }
+
+    /**
+     * Gets the listener or handler the events are for.
+     * @return The target.
+     */
+    @NotNull
+    T target() {
+        return _target;
+    }
+
+    /**
+     * Notes that the target, a message handler, has been subscribed to a topic filter. Subscribing it to the same
+     * filter again changes nothing.
+     * @param topicFilter The topic filter.
+     */
+    synchronized void retain(@NotNull String topicFilter) {
+        _filters.add(topicFilter);
+    }
+
+    /**
+     * Notes that the target, a message handler, has been unsubscribed from a topic filter.
+     * @param topicFilter The topic filter.
+     * @return true if it has no filters left, so the dispatcher should be stopped; Otherwise, false.
+     */
+    synchronized boolean release(@NotNull String topicFilter) {
+        _filters.remove(topicFilter);
+        return _filters.isEmpty();
+    }
+
+    /**
+     * Gets the dispatch metrics.
+     * @return The metrics.
+     */
+    @NotNull
+    DispatchStats stats() {
+        return _stats;
+    }
+
+    /**
+     * Starts the worker thread, if it isn't running already.
+     * @param threadFactory The factory to create the worker thread with.
+     */
+    synchronized void start(@NotNull ThreadFactory threadFactory) {
+        if (_running || _worker != null) {
+            return;
+        }
+
+        _running = true;
+        _worker = threadFactory.newThread(this::run);
+        _worker.setName("MqttDispatch-" + _stats.name());
+        _worker.start();
+    }
+
+    /**
+     * Gets whether the worker thread has been started and not stopped.
+     * @return true if dispatching; Otherwise, false.
+     */
+    boolean isRunning() {
+        return _running;
+    }
+
+    /**
+     * Queues an event for the listener. Ignored if the dispatcher isn't running.
+     * @param action Calls the listener with the event.
+     * @param droppable true for a message, which the overflow policy may discard; false for a connection event,
+     *                  which waits for room however the queue is set up.
+     * @return true if the event was queued; false if it was discarded.
+     */
+    boolean dispatch(@NotNull Runnable action, boolean droppable) {
+        if (!_running) {
+            return false;
+        }
+
+        Task task = new Task(action, droppable, System.nanoTime());
+        if (_queue.offerLast(task)) {
+            return true;
+        }
+
+        if (droppable && _overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+            _stats.recordDrop();
+            return false;
+        }
+
+        if (droppable && _overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            while (dropOldest()) {
+                if (_queue.offerLast(task)) {
+                    return true;
+                }
+            }
+            // Only connection events left in the queue; wait for one of them to go.
+        }
+
+        try {
+            while (_running) {
+                if (_queue.offerLast(task, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Discards the oldest droppable event in the queue.
+     * @return true if one was discarded; false if there was none.
+     */
+    private boolean dropOldest() {
+        for (Task queued : _queue) {
+            if (queued.droppable && _queue.removeFirstOccurrence(queued)) {
+                _stats.recordDrop();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops taking events and tells the worker thread to finish once it has dispatched what is queued. Call
+     * {@link #awaitStop(long)} to wait for it.
+     */
+    synchronized void stop() {
+        _running = false;
+        if (_waiting && _worker != null) {
+            // Only ever interrupted while parked on the queue, never while calling the listener.
+            _worker.interrupt();
+        }
+    }
+
+    /**
+     * Waits for the worker thread to finish the events that were queued when it was stopped. If it doesn't make it in
+     * time, it is interrupted and the remaining events are discarded.
+     * @param deadline The {@link System#nanoTime()} to wait until.
+     */
+    void awaitStop(long deadline) {
+        Thread worker;
+        synchronized (this) {
+            worker = _worker;
+            _worker = null;
+        }
+        if (worker == null || worker == Thread.currentThread()) {
+            // A listener removing itself can't wait for its own thread.
+            return;
+        }
+
+        try {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(worker, remaining);
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (worker.isAlive()) {
+            worker.interrupt();
+        }
+        _queue.clear();
+    }
+
+    /**
+     * Waits for the next event. Parks on the queue until one arrives or the dispatcher is stopped.
+     * @return The event, or null if stopped and the queue is empty.
+     */
+    private Task next() {
+        synchronized (this) {
+            if (!_running) {
+                return _queue.pollFirst();
+            }
+            _waiting = true;
+        }
+
+        Task task = null;
+        try {
+            task = _queue.takeFirst();
+        }
+        catch (InterruptedException ex) {
+            // Stopped while parked; drain whatever is left.
+        }
+
+        synchronized (this) {
+            _waiting = false;
+            // Clear an interrupt from stop() that raced with an event arriving.
+            Thread.interrupted();
+        }
+        return task != null ? task : _queue.pollFirst();
+    }
+
+    /**
+     * Dispatches queued events until stopped and the queue is empty.
+     */
+    private void run() {
+        while (true) {
+            Task task = next();
+            if (task == null) {
+                if (!_running) {
+                    return;
+                }
+                continue;
+            }
+
+            boolean failed = false;
+            try {
+                task.action.run();
+            }
+            catch (RuntimeException ex) {
+                // A failing listener shouldn't take its dispatcher down with it.
+                logger.error("Unhandled error in MQTT listener " + _stats.name() + ": " + ex.toString());
+                failed = true;
+            }
+            _stats.recordDispatch(task.raisedAt, failed);
+        }
+    }
+}
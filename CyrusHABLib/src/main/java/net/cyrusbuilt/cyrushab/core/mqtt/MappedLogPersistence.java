@@ -0,0 +1,462 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An MQTT client persistence store that appends to memory-mapped log segments instead of creating and deleting a file
+ * per in-flight message like {@link org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence} does.
+ * <p>
+ * Each put or remove is appended as a record to the active segment, a pre-allocated file mapped into memory, so
+ * storing a message is a memory copy and the operating system writes the dirty pages out in batches. A segment is
+ * forced to disk when it fills up and when the store is closed; records written since then survive the process
+ * crashing but not a power loss. A segment is deleted once every message stored in it, and in every older segment, has
+ * been removed. Opening the store replays the segments and rewrites the surviving messages into a fresh segment.
+ * <p>
+ * The stored messages are also kept in memory, so reads never touch the log.
+ */
+public final class MappedLogPersistence implements MqttClientPersistence {
+    /**
+     * The default segment size (1 MiB).
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    /**
+     * A stored message and the segment holding its latest put record.
+     */
+    private static final class Entry implements MqttPersistable {
+        private final byte[] _header;
+        private final byte[] _payload;
+        private Segment _segment;
+
+        /**
+         * Constructs a new instance of {@link Entry}.
+         * @param header The header bytes.
+         * @param payload The payload bytes.
+         */
+        Entry(byte[] header, byte[] payload) {
+            _header = header;
+            _payload = payload;
+        }
+
+        @Override
+        public byte[] getHeaderBytes() {
+            return _header;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return _header.length;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return _payload;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return _payload.length;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+
+    /**
+     * A mapped log segment.
+     */
+    private static final class Segment {
+        private final long _number;
+        private final File _file;
+        private final MappedByteBuffer _buffer;
+        private int _live = 0;
+
+        /**
+         * Opens (creating if needed) and maps a segment file.
+         * @param number The segment number.
+         * @param file The segment file.
+         * @param size The size to map, or 0 to map the whole existing file.
+         * @throws IOException if the file could not be opened or mapped.
+         */
+        Segment(long number, File file, int size) throws IOException {
+            _number = number;
+            _file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                long length = size > 0 ? size : raf.length();
+                _buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            }
+        }
+
+        /**
+         * Flushes the segment to disk.
+         */
+        void force() {
+            _buffer.force();
+        }
+
+        /**
+         * Deletes the segment file. The mapping stays valid until it is garbage collected.
+         */
+        void delete() {
+            if (!_file.delete()) {
+                _file.deleteOnExit();
+            }
+        }
+    }
+
+    private final File _directory;
+    private final int _segmentSize;
+    private final Map<String, Entry> _entries = new HashMap<>();
+    private final Deque<Segment> _segments = new ArrayDeque<>();
+    private File _clientDir = null;
+    private Segment _active = null;
+
+    /**
+     * Constructs a new instance of {@link MappedLogPersistence} with the default segment size.
+     * @param directory The directory to keep the logs in. Each client gets its own subdirectory.
+     */
+    public MappedLogPersistence(@NotNull File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructs a new instance of {@link MappedLogPersistence}.
+     * @param directory The directory to keep the logs in. Each client gets its own subdirectory.
+     * @param segmentSize The size of each segment in bytes. A message larger than this gets a segment of its own.
+     */
+    public MappedLogPersistence(@NotNull File directory, int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be greater than zero.");
+        }
+
+        _directory = directory;
+        _segmentSize = segmentSize;
+    }
+
+    /**
+     * Gets the number of segment files currently in use.
+     * @return The segment count, or 0 if the store is not open.
+     */
+    public synchronized int segmentCount() {
+        return _segments.size();
+    }
+
+    /**
+     * Builds a file system safe directory name from the client ID and server URI, the same way the default file
+     * persistence does.
+     * @param clientId The client ID.
+     * @param serverURI The server URI.
+     * @return The directory name.
+     */
+    private static String clientDirName(String clientId, String serverURI) {
+        StringBuilder sb = new StringBuilder();
+        String raw = clientId + "-" + serverURI;
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the file for the specified segment number.
+     * @param number The segment number.
+     * @return The segment file.
+     */
+    private File segmentFile(long number) {
+        return new File(_clientDir, String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Makes sure the store is open.
+     * @throws MqttPersistenceException if it isn't.
+     */
+    private void checkOpen() throws MqttPersistenceException {
+        if (_active == null) {
+            throw new MqttPersistenceException();
+        }
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        if (_active != null) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+        }
+
+        File clientDir = new File(_directory, clientDirName(clientId, serverURI));
+        if (!clientDir.isDirectory() && !clientDir.mkdirs()) {
+            throw new MqttPersistenceException(new IOException("Unable to create directory: " +
+                    clientDir.getAbsolutePath()));
+        }
+
+        _clientDir = clientDir;
+        File[] files = clientDir.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) &&
+                name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            files = new File[0];
+        }
+
+        Arrays.sort(files);
+        List<Segment> previous = new ArrayList<>(files.length);
+        long nextNumber = 0;
+        try {
+            for (File file : files) {
+                String name = file.getName();
+                long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(number, file, 0);
+                replay(segment._buffer);
+                previous.add(segment);
+                nextNumber = Math.max(nextNumber, number + 1);
+            }
+
+            // Rewrite what survived into a fresh segment, and only then let the old ones go.
+            _active = new Segment(nextNumber, segmentFile(nextNumber), _segmentSize);
+            _segments.add(_active);
+            for (Map.Entry<String, Entry> stored : _entries.entrySet()) {
+                Entry entry = stored.getValue();
+                append(RECORD_PUT, stored.getKey(), entry._header, entry._payload);
+                entry._segment = _active;
+                entry._segment._live++;
+            }
+
+            _active.force();
+            for (Segment segment : previous) {
+                segment.delete();
+            }
+        }
+        catch (IOException | NumberFormatException ex) {
+            closeSegments();
+            throw new MqttPersistenceException(ex);
+        }
+    }
+
+    /**
+     * Applies the records in a segment to the stored messages. Stops at the end marker or at the first incomplete
+     * record, which is what a crash mid-append leaves behind.
+     * @param buffer The segment contents.
+     */
+    private void replay(MappedByteBuffer buffer) {
+        while (buffer.remaining() >= 3) {
+            byte type = buffer.get();
+            if (type != RECORD_PUT && type != RECORD_REMOVE) {
+                return;
+            }
+
+            int keyLength = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() < keyLength) {
+                return;
+            }
+
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            if (type == RECORD_REMOVE) {
+                _entries.remove(key);
+                continue;
+            }
+
+            if (buffer.remaining() < 8) {
+                return;
+            }
+
+            int headerLength = buffer.getInt();
+            int payloadLength = buffer.getInt();
+            if (headerLength < 0 || payloadLength < 0 || buffer.remaining() < (long)headerLength + payloadLength) {
+                return;
+            }
+
+            byte[] header = new byte[headerLength];
+            byte[] payload = new byte[payloadLength];
+            buffer.get(header);
+            buffer.get(payload);
+            _entries.put(key, new Entry(header, payload));
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, rolling over to a new segment if it doesn't fit. The record type is
+     * written last so a partially written record is never replayed.
+     * @param type The record type.
+     * @param key The message key.
+     * @param header The header bytes (put records only).
+     * @param payload The payload bytes (put records only).
+     * @throws IOException if a new segment could not be created.
+     */
+    private void append(byte type, String key, byte[] header, byte[] payload) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xFFFF) {
+            throw new IOException("Key too long: " + key);
+        }
+
+        int size = 3 + keyBytes.length + (type == RECORD_PUT ? 8 + header.length + payload.length : 0);
+        if (_active._buffer.remaining() < size) {
+            roll(size);
+        }
+
+        MappedByteBuffer buffer = _active._buffer;
+        int start = buffer.position();
+        buffer.put(RECORD_END);
+        buffer.putShort((short)keyBytes.length);
+        buffer.put(keyBytes);
+        if (type == RECORD_PUT) {
+            buffer.putInt(header.length);
+            buffer.putInt(payload.length);
+            buffer.put(header);
+            buffer.put(payload);
+        }
+        buffer.put(start, type);
+    }
+
+    /**
+     * Flushes the active segment and starts a new one.
+     * @param minSize The size of the record that must fit in the new segment.
+     * @throws IOException if the new segment could not be created.
+     */
+    private void roll(int minSize) throws IOException {
+        _active.force();
+        long number = _active._number + 1;
+        _active = new Segment(number, segmentFile(number), Math.max(_segmentSize, minSize));
+        _segments.add(_active);
+    }
+
+    /**
+     * Drops a stored message's claim on its segment, and deletes the oldest segments once nothing in them is needed.
+     * @param segment The segment that held the message.
+     */
+    private void release(Segment segment) {
+        segment._live--;
+        while (_segments.size() > 1 && _segments.peekFirst()._live == 0) {
+            _segments.pollFirst().delete();
+        }
+    }
+
+    /**
+     * Flushes and forgets all the segments.
+     */
+    private void closeSegments() {
+        for (Segment segment : _segments) {
+            segment.force();
+        }
+        _segments.clear();
+        _entries.clear();
+        _active = null;
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        closeSegments();
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] header = Arrays.copyOfRange(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+                persistable.getHeaderOffset() + persistable.getHeaderLength());
+        byte[] payload = persistable.getPayloadBytes() == null ? new byte[0] :
+                Arrays.copyOfRange(persistable.getPayloadBytes(), persistable.getPayloadOffset(),
+                        persistable.getPayloadOffset() + persistable.getPayloadLength());
+        try {
+            append(RECORD_PUT, key, header, payload);
+        }
+        catch (IOException ex) {
+            throw new MqttPersistenceException(ex);
+        }
+
+        Entry entry = new Entry(header, payload);
+        entry._segment = _active;
+        _active._live++;
+        Entry previous = _entries.put(key, entry);
+        if (previous != null) {
+            release(previous._segment);
+        }
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        return _entries.get(key);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        Entry entry = _entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+
+        try {
+            append(RECORD_REMOVE, key, null, null);
+        }
+        catch (IOException ex) {
+            throw new MqttPersistenceException(ex);
+        }
+        release(entry._segment);
+    }
+
+    @Override
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(_entries.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        long number = _active._number + 1;
+        for (Segment segment : _segments) {
+            segment.delete();
+        }
+        _segments.clear();
+        _entries.clear();
+        try {
+            _active = new Segment(number, segmentFile(number), _segmentSize);
+            _segments.add(_active);
+        }
+        catch (IOException ex) {
+            _active = null;
+            throw new MqttPersistenceException(ex);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return _entries.containsKey(key);
+    }
+}
@@ -0,0 +1,223 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.things.ThingType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Metadata that travels with a message outside its payload: string user properties and an expiry interval. The thing
+ * type, thing ID and correlation ID have well-known keys, so a receiver can route a message without parsing its
+ * payload. Only sent over {@link ProtocolVersion#MQTT_5}; MQTT 3.1.1 messages carry none.
+ */
+public final class MessageProperties {
+    /**
+     * The user property holding the numeric {@link ThingType} the message is about.
+     */
+    public static final String THING_TYPE = "thing_type";
+
+    /**
+     * The user property holding the ID of the thing the message is about.
+     */
+    public static final String THING_ID = "thing_id";
+
+    /**
+     * The user property holding the correlation ID of the trace the message belongs to.
+     */
+    public static final String CORRELATION_ID = "correlation_id";
+
+    /**
+     * Builder for {@link MessageProperties}.
+     */
+    public static class Builder {
+        private final Map<String, String> _userProperties = new LinkedHashMap<>();
+        private long _messageExpiry = 0;
+
+        /**
+         * Sets a user property, replacing any value it already has.
+         * @param key The property name.
+         * @param value The property value.
+         * @return The builder.
+         */
+        public Builder setUserProperty(@NotNull String key, @NotNull String value) {
+            _userProperties.put(key, value);
+            return this;
+        }
+
+        /**
+         * Sets the type of thing the message is about.
+         * @param type The thing type.
+         * @return The builder.
+         */
+        public Builder setThingType(@NotNull ThingType type) {
+            return setUserProperty(THING_TYPE, Integer.toString(type.getValue()));
+        }
+
+        /**
+         * Sets the ID of the thing the message is about.
+         * @param id The thing ID.
+         * @return The builder.
+         */
+        public Builder setThingID(int id) {
+            return setUserProperty(THING_ID, Integer.toString(id));
+        }
+
+        /**
+         * Sets the correlation ID of the trace the message belongs to.
+         * @param correlationId The correlation ID.
+         * @return The builder.
+         */
+        public Builder setCorrelationId(long correlationId) {
+            return setUserProperty(CORRELATION_ID, Long.toString(correlationId));
+        }
+
+        /**
+         * Sets how long the message stays valid. The broker discards it if it can't be delivered to a subscriber in
+         * time, instead of delivering it late. Defaults to 0, which never expires.
+         * @param seconds The expiry interval in seconds. Must not be negative.
+         * @return The builder.
+         */
+        public Builder setMessageExpiry(long seconds) {
+            if (seconds < 0) {
+                throw new IllegalArgumentException("Message expiry must not be negative. Got: " + seconds);
+            }
+            _messageExpiry = seconds;
+            return this;
+        }
+
+        /**
+         * Builds the properties.
+         * @return The message properties.
+         */
+        public MessageProperties build() {
+            if (_userProperties.isEmpty() && _messageExpiry == 0) {
+                return NONE;
+            }
+            return new MessageProperties(new LinkedHashMap<>(_userProperties), _messageExpiry);
+        }
+    }
+
+    /**
+     * No properties.
+     */
+    public static final MessageProperties NONE = new MessageProperties(Collections.emptyMap(), 0);
+
+    private final Map<String, String> _userProperties;
+    private final long _messageExpiry;
+
+    /**
+     * Constructs a new instance of {@link MessageProperties}.
+     * @param userProperties The user properties. The instance takes ownership of the map.
+     * @param messageExpiry The expiry interval in seconds, or 0 for none.
+     */
+    private MessageProperties(Map<String, String> userProperties, long messageExpiry) {
+        _userProperties = Collections.unmodifiableMap(userProperties);
+        _messageExpiry = messageExpiry;
+    }
+
+    /**
+     * Gets whether there are no properties at all.
+     * @return true if there are no user properties and no expiry; Otherwise, false.
+     */
+    public boolean isEmpty() {
+        return _userProperties.isEmpty() && _messageExpiry == 0;
+    }
+
+    /**
+     * Gets the user properties.
+     * @return An unmodifiable map of property names to values, in the order they were set.
+     */
+    @NotNull
+    public Map<String, String> userProperties() {
+        return _userProperties;
+    }
+
+    /**
+     * Gets a user property.
+     * @param key The property name.
+     * @return The property value, or null if it isn't set.
+     */
+    @Nullable
+    public String userProperty(@NotNull String key) {
+        return _userProperties.get(key);
+    }
+
+    /**
+     * Gets how long the message stays valid.
+     * @return The expiry interval in seconds, or 0 if it never expires.
+     */
+    public long messageExpiry() {
+        return _messageExpiry;
+    }
+
+    /**
+     * Gets the type of thing the message is about.
+     * @return The thing type, or null if the property isn't set or isn't a number.
+     */
+    @Nullable
+    public ThingType thingType() {
+        Long value = parse(THING_TYPE);
+        return value == null ? null : ThingType.UNKNOWN.getType(value.intValue());
+    }
+
+    /**
+     * Gets the ID of the thing the message is about.
+     * @return The thing ID, or null if the property isn't set or isn't a number.
+     */
+    @Nullable
+    public Integer thingID() {
+        Long value = parse(THING_ID);
+        return value == null ? null : value.intValue();
+    }
+
+    /**
+     * Gets the correlation ID of the trace the message belongs to.
+     * @return The correlation ID, or null if the property isn't set or isn't a number.
+     */
+    @Nullable
+    public Long correlationId() {
+        return parse(CORRELATION_ID);
+    }
+
+    /**
+     * Parses a numeric user property.
+     * @param key The property name.
+     * @return The value, or null if the property isn't set or isn't a number.
+     */
+    @Nullable
+    private Long parse(String key) {
+        String value = _userProperties.get(key);
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a copy of these properties with a different expiry interval.
+     * @param seconds The expiry interval in seconds, or 0 for none.
+     * @return The message properties.
+     */
+    @NotNull
+    MessageProperties withMessageExpiry(long seconds) {
+        if (seconds == _messageExpiry) {
+            return this;
+        }
+        return _userProperties.isEmpty() && seconds == 0 ? NONE :
+                new MessageProperties(new LinkedHashMap<>(_userProperties), seconds);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageProperties{userProperties=" + _userProperties + ", messageExpiry=" + _messageExpiry + "}";
+    }
+}
@@ -0,0 +1,140 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A connection that speaks MQTT 3.1.1. Message properties are not sent, and received messages have none.
+ */
+final class Mqtt3Connection extends Connection {
+    private final MqttAsyncClient _client;
+    private final MqttConnectOptions _options;
+
+    /**
+     * Constructs a new instance of {@link Mqtt3Connection}.
+     * @param client The client.
+     * @param options The options to connect with.
+     * @param maxInFlight The maximum number of published messages awaiting delivery confirmation at once.
+     * @param callback Receives the events of the connection.
+     */
+    Mqtt3Connection(MqttAsyncClient client, MqttConnectOptions options, int maxInFlight,
+                    @NotNull Connection.Callback callback) {
+        super(maxInFlight);
+        _client = client;
+        _options = options;
+        _client.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                callback.connectionLost(cause);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                callback.messageArrived(topic, message.getPayload(), message.getId(), MessageProperties.NONE);
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+                String[] topics = token.getTopics();
+                String topic = topics == null || topics.length == 0 ? StringUtils.EMPTY : topics[0];
+                callback.deliveryComplete(topic, token.getMessageId(), () -> {
+                    try {
+                        MqttMessage message = token.getMessage();
+                        return message == null ? null : message.getPayload();
+                    }
+                    catch (MqttException ex) {
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    boolean isConnected() {
+        return _client.isConnected();
+    }
+
+    @Override
+    synchronized boolean connect() throws HABMqttException {
+        if (_client.isConnected()) {
+            return false;
+        }
+
+        try {
+            IMqttToken token = _client.connect(_options);
+            token.waitForCompletion();
+            return _options.isCleanSession() || !token.getSessionPresent();
+        }
+        catch (MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+    }
+
+    @Override
+    void disconnect() {
+        if (_client.isConnected()) {
+            _client.setCallback(null);
+            try {
+                _client.disconnect().waitForCompletion();
+            }
+            catch (MqttException ignored) {
+            }
+        }
+    }
+
+    @Override
+    void subscribe(String[] filters, int[] qos) throws HABMqttException {
+        try {
+            _client.subscribe(filters, qos).waitForCompletion();
+        }
+        catch (MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+    }
+
+    @Override
+    void unsubscribe(String filter) throws HABMqttException {
+        try {
+            _client.unsubscribe(filter).waitForCompletion();
+        }
+        catch (MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+    }
+
+    @Override
+    protected void send(String topicName, byte[] payload, int qos, boolean retained,
+                        @NotNull MessageProperties properties, @NotNull SendListener listener)
+            throws HABMqttException {
+        MqttMessage msg = new MqttMessage(payload);
+        msg.setQos(qos);
+        msg.setRetained(retained);
+        try {
+            _client.publish(topicName, msg, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    listener.delivered();
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable cause) {
+                    listener.failed(cause instanceof MqttException ?
+                            new HABMqttException((MqttException)cause) :
+                            new HABMqttException("Publish failed.", cause));
+                }
+            });
+        }
+        catch (MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A connection that speaks MQTT 5. Message properties travel as user properties and the message expiry interval.
+ * The client replaces the topic of repeated publishes with a topic alias whenever the broker allows it, and the broker
+ * may do the same for the messages it sends us, up to the topic alias maximum we connect with.
+ */
+final class Mqtt5Connection extends Connection {
+    private static final Logger logger = LoggerFactory.getLogger(Mqtt5Connection.class);
+
+    private final MqttAsyncClient _client;
+    private final MqttConnectionOptions _options;
+
+    /**
+     * Constructs a new instance of {@link Mqtt5Connection}.
+     * @param client The client.
+     * @param options The options to connect with.
+     * @param maxInFlight The maximum number of published messages awaiting delivery confirmation at once.
+     * @param callback Receives the events of the connection.
+     */
+    Mqtt5Connection(MqttAsyncClient client, MqttConnectionOptions options, int maxInFlight,
+                    @NotNull Connection.Callback callback) {
+        super(maxInFlight);
+        _client = client;
+        _options = options;
+        _client.setCallback(new MqttCallback() {
+            @Override
+            public void disconnected(MqttDisconnectResponse response) {
+                Throwable cause = response.getException();
+                if (cause == null) {
+                    cause = new HABMqttException("Disconnected by the broker. Reason code: " +
+                            response.getReturnCode() + " " + StringUtils.defaultString(response.getReasonString()));
+                }
+                callback.connectionLost(cause);
+            }
+
+            @Override
+            public void mqttErrorOccurred(MqttException exception) {
+                logger.error("MQTT error on connection " + _client.getClientId() + ": " + exception.toString());
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                callback.messageArrived(topic, message.getPayload(), message.getId(),
+                        fromMqttProperties(message.getProperties()));
+            }
+
+            @Override
+            public void deliveryComplete(IMqttToken token) {
+                String[] topics = token.getTopics();
+                String topic = topics == null || topics.length == 0 ? StringUtils.EMPTY : topics[0];
+                callback.deliveryComplete(topic, token.getMessageId(), () -> {
+                    try {
+                        MqttMessage message = token.getMessage();
+                        return message == null ? null : message.getPayload();
+                    }
+                    catch (MqttException ex) {
+                        return null;
+                    }
+                });
+            }
+
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+            }
+
+            @Override
+            public void authPacketArrived(int reasonCode, MqttProperties properties) {
+            }
+        });
+    }
+
+    /**
+     * Converts message properties to the ones the client sends.
+     * @param properties The message properties.
+     * @return The client's message properties.
+     */
+    @NotNull
+    static MqttProperties toMqttProperties(@NotNull MessageProperties properties) {
+        MqttProperties result = new MqttProperties();
+        if (!properties.userProperties().isEmpty()) {
+            List<UserProperty> userProperties = new ArrayList<>(properties.userProperties().size());
+            for (Map.Entry<String, String> entry : properties.userProperties().entrySet()) {
+                userProperties.add(new UserProperty(entry.getKey(), entry.getValue()));
+            }
+            result.setUserProperties(userProperties);
+        }
+
+        if (properties.messageExpiry() > 0) {
+            result.setMessageExpiryInterval(properties.messageExpiry());
+        }
+        return result;
+    }
+
+    /**
+     * Converts the properties of a received message.
+     * @param properties The client's message properties, or null if there are none.
+     * @return The message properties.
+     */
+    @NotNull
+    static MessageProperties fromMqttProperties(@Nullable MqttProperties properties) {
+        if (properties == null) {
+            return MessageProperties.NONE;
+        }
+
+        MessageProperties.Builder builder = new MessageProperties.Builder();
+        List<UserProperty> userProperties = properties.getUserProperties();
+        if (userProperties != null) {
+            for (UserProperty property : userProperties) {
+                builder.setUserProperty(property.getKey(), property.getValue());
+            }
+        }
+
+        Long expiry = properties.getMessageExpiryInterval();
+        if (expiry != null && expiry > 0) {
+            builder.setMessageExpiry(expiry);
+        }
+        return builder.build();
+    }
+
+    @Override
+    boolean isConnected() {
+        return _client.isConnected();
+    }
+
+    @Override
+    synchronized boolean connect() throws HABMqttException {
+        if (_client.isConnected()) {
+            return false;
+        }
+
+        try {
+            IMqttToken token = _client.connect(_options);
+            token.waitForCompletion();
+            return _options.isCleanStart() || !token.getSessionPresent();
+        }
+        catch (MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+    }
+
+    @Override
+    void disconnect() {
+        if (_client.isConnected()) {
+            _client.setCallback(null);
+            try {
+                _client.disconnect().waitForCompletion();
+            }
+            catch (MqttException ignored) {
+            }
+        }
+    }
+
+    @Override
+    void subscribe(String[] filters, int[] qos) throws HABMqttException {
+        try {
+            _client.subscribe(filters, qos).waitForCompletion();
+        }
+        catch (MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+    }
+
+    @Override
+    void unsubscribe(String filter) throws HABMqttException {
+        try {
+            _client.unsubscribe(filter).waitForCompletion();
+        }
+        catch (MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+    }
+
+    @Override
+    protected void send(String topicName, byte[] payload, int qos, boolean retained,
+                        @NotNull MessageProperties properties, @NotNull SendListener listener)
+            throws HABMqttException {
+        MqttMessage msg = new MqttMessage(payload, qos, retained, toMqttProperties(properties));
+        try {
+            _client.publish(topicName, msg, null, new MqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    listener.delivered();
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable cause) {
+                    listener.failed(cause instanceof MqttException ?
+                            new HABMqttException((MqttException)cause) :
+                            new HABMqttException("Publish failed.", cause));
+                }
+            });
+        }
+        catch (MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+    }
+}
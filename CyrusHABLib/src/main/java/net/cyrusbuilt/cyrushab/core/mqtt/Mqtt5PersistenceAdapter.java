@@ -0,0 +1,178 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Enumeration;
+
+/**
+ * Lets the MQTT 5 client use a persistence store written for the MQTT 3.1.1 client. The two clients' store interfaces
+ * only differ in their packages, how the store is opened and their exception types. The store is opened under a
+ * separate name, so packets persisted by one protocol version are never read back by the other.
+ */
+final class Mqtt5PersistenceAdapter implements org.eclipse.paho.mqttv5.client.MqttClientPersistence {
+    private static final String STORE_NAME = "mqttv5";
+
+    /**
+     * A persisted packet, usable as either client's persistable.
+     */
+    private static final class Packet implements MqttPersistable, org.eclipse.paho.client.mqttv3.MqttPersistable {
+        private final byte[] _header;
+        private final int _headerOffset;
+        private final int _headerLength;
+        private final byte[] _payload;
+        private final int _payloadOffset;
+        private final int _payloadLength;
+
+        /**
+         * Constructs a new instance of {@link Packet}.
+         * @param header The header bytes.
+         * @param headerOffset Where the header starts.
+         * @param headerLength The header length.
+         * @param payload The payload bytes, or null if there is no payload.
+         * @param payloadOffset Where the payload starts.
+         * @param payloadLength The payload length.
+         */
+        Packet(byte[] header, int headerOffset, int headerLength, byte[] payload, int payloadOffset,
+               int payloadLength) {
+            _header = header;
+            _headerOffset = headerOffset;
+            _headerLength = headerLength;
+            _payload = payload;
+            _payloadOffset = payloadOffset;
+            _payloadLength = payloadLength;
+        }
+
+        @Override
+        public byte[] getHeaderBytes() {
+            return _header;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return _headerLength;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return _headerOffset;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return _payload;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return _payloadLength;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return _payloadOffset;
+        }
+    }
+
+    private final MqttClientPersistence _store;
+
+    /**
+     * Constructs a new instance of {@link Mqtt5PersistenceAdapter}.
+     * @param store The MQTT 3.1.1 persistence store to keep packets in.
+     */
+    Mqtt5PersistenceAdapter(@NotNull MqttClientPersistence store) {
+        _store = store;
+    }
+
+    @Override
+    public void open(String clientId) throws MqttPersistenceException {
+        try {
+            _store.open(clientId, STORE_NAME);
+        }
+        catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException ex) {
+            throw new MqttPersistenceException(ex.getReasonCode(), ex);
+        }
+    }
+
+    @Override
+    public void close() throws MqttPersistenceException {
+        try {
+            _store.close();
+        }
+        catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException ex) {
+            throw new MqttPersistenceException(ex.getReasonCode(), ex);
+        }
+    }
+
+    @Override
+    public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        Packet packet = new Packet(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+                persistable.getHeaderLength(), persistable.getPayloadBytes(), persistable.getPayloadOffset(),
+                persistable.getPayloadLength());
+        try {
+            _store.put(key, packet);
+        }
+        catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException ex) {
+            throw new MqttPersistenceException(ex.getReasonCode(), ex);
+        }
+    }
+
+    @Override
+    public MqttPersistable get(String key) throws MqttPersistenceException {
+        try {
+            org.eclipse.paho.client.mqttv3.MqttPersistable persistable = _store.get(key);
+            if (persistable == null) {
+                return null;
+            }
+            return new Packet(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+                    persistable.getHeaderLength(), persistable.getPayloadBytes(), persistable.getPayloadOffset(),
+                    persistable.getPayloadLength());
+        }
+        catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException ex) {
+            throw new MqttPersistenceException(ex.getReasonCode(), ex);
+        }
+    }
+
+    @Override
+    public void remove(String key) throws MqttPersistenceException {
+        try {
+            _store.remove(key);
+        }
+        catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException ex) {
+            throw new MqttPersistenceException(ex.getReasonCode(), ex);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Enumeration<String> keys() throws MqttPersistenceException {
+        try {
+            return (Enumeration<String>)_store.keys();
+        }
+        catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException ex) {
+            throw new MqttPersistenceException(ex.getReasonCode(), ex);
+        }
+    }
+
+    @Override
+    public void clear() throws MqttPersistenceException {
+        try {
+            _store.clear();
+        }
+        catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException ex) {
+            throw new MqttPersistenceException(ex.getReasonCode(), ex);
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) throws MqttPersistenceException {
+        try {
+            return _store.containsKey(key);
+        }
+        catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException ex) {
+            throw new MqttPersistenceException(ex.getReasonCode(), ex);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.telemetry.EventTrace;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds MQTT events that were still pending when the application stopped, so they can be saved to disk and replayed
+ * on the next start. Inbound (received, not yet processed) and outbound (processed, not yet published) events are kept
+ * separately and each keeps its order.
+ * <p>
+ * The file is a compact binary format: a header (magic number and version), then for each direction an event count
+ * followed by the events, each as its ID, correlation ID, topic, and payload bytes. The file is written to a temporary
+ * file first and then moved into place, so a crash while saving never leaves a half-written spool behind.
+ */
+public final class MqttEventSpool {
+    private static final int MAGIC = 0x43484553;
+    private static final byte VERSION = 1;
+
+    private final List<MqttManager.MqttEvent> _inbound = new ArrayList<>();
+    private final List<MqttManager.MqttEvent> _outbound = new ArrayList<>();
+
+    /**
+     * Adds inbound events to the spool.
+     * @param events The events to add, in the order they should be replayed.
+     */
+    public void addInbound(@NotNull Collection<MqttManager.MqttEvent> events) {
+        _inbound.addAll(events);
+    }
+
+    /**
+     * Adds outbound events to the spool.
+     * @param events The events to add, in the order they should be replayed.
+     */
+    public void addOutbound(@NotNull Collection<MqttManager.MqttEvent> events) {
+        _outbound.addAll(events);
+    }
+
+    /**
+     * Gets the inbound events.
+     * @return An unmodifiable list of the inbound events.
+     */
+    public List<MqttManager.MqttEvent> inbound() {
+        return Collections.unmodifiableList(_inbound);
+    }
+
+    /**
+     * Gets the outbound events.
+     * @return An unmodifiable list of the outbound events.
+     */
+    public List<MqttManager.MqttEvent> outbound() {
+        return Collections.unmodifiableList(_outbound);
+    }
+
+    /**
+     * Gets the total number of events in the spool.
+     * @return The event count.
+     */
+    public int size() {
+        return _inbound.size() + _outbound.size();
+    }
+
+    /**
+     * Gets whether or not the spool is empty.
+     * @return true if empty; Otherwise, false.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Writes a list of events to the spool file.
+     * @param out The output stream.
+     * @param events The events to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void writeEvents(DataOutputStream out, List<MqttManager.MqttEvent> events) throws IOException {
+        out.writeInt(events.size());
+        for (MqttManager.MqttEvent event : events) {
+            byte[] message = event.payload();
+            out.writeInt(event.messageId());
+            out.writeLong(event.correlationId());
+            out.writeUTF(event.topic() == null ? "" : event.topic());
+            out.writeInt(message.length);
+            out.write(message);
+        }
+    }
+
+    /**
+     * Reads a list of events from the spool file.
+     * @param in The input stream.
+     * @param target The list to add the events to.
+     * @throws IOException if an I/O error occurs or the file is corrupt.
+     */
+    private static void readEvents(DataInputStream in, List<MqttManager.MqttEvent> target) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt spool file: negative event count.");
+        }
+
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            EventTrace trace = new EventTrace(in.readLong());
+            String topic = in.readUTF();
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Corrupt spool file: negative message length.");
+            }
+
+            byte[] message = new byte[length];
+            in.readFully(message);
+            target.add(new MqttManager.MqttEvent(topic, message, id, trace));
+        }
+    }
+
+    /**
+     * Saves the spool to the specified file, replacing the file if it exists. If the spool is empty, the file is
+     * deleted instead.
+     * @param file The spool file.
+     * @throws IOException if the file could not be written.
+     */
+    public void save(@NotNull File file) throws IOException {
+        if (isEmpty()) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeEvents(out, _inbound);
+            writeEvents(out, _outbound);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a spool from the specified file.
+     * @param file The spool file.
+     * @return The loaded spool, or an empty spool if the file does not exist.
+     * @throws IOException if the file could not be read or is not a valid spool file.
+     */
+    @NotNull
+    public static MqttEventSpool load(@NotNull File file) throws IOException {
+        MqttEventSpool spool = new MqttEventSpool();
+        if (!file.exists()) {
+            return spool;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a spool file: " + file.getAbsolutePath());
+            }
+
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported spool file version: " + version);
+            }
+
+            readEvents(in, spool._inbound);
+            readEvents(in, spool._outbound);
+        }
+        return spool;
+    }
+}
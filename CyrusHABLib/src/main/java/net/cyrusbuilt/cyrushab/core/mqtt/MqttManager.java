@@ -1,40 +1,148 @@
 package net.cyrusbuilt.cyrushab.core.mqtt;
 
+import net.cyrusbuilt.cyrushab.core.events.OverflowPolicy;
+import net.cyrusbuilt.cyrushab.core.events.ThreadFactories;
+import net.cyrusbuilt.cyrushab.core.telemetry.EventTrace;
+import net.cyrusbuilt.cyrushab.core.telemetry.TraceStage;
+
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.*;
-import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 /**
  * The MQTT communication manager. This class is used to connect (and maintain a connection) to an MQTT broker, and
- * provide facilities for publishing and/or subscribing to topics. This class is event-driven. Events are fired on a
- * separate thread when messages are received/delivered and if a connection loss occurs.
+ * provide facilities for publishing and/or subscribing to topics. This class is event-driven. Events are fired when
+ * messages are received/delivered and if a connection loss occurs, on a thread of each listener's own with a bounded
+ * queue in front of it, so a listener that falls behind doesn't hold up the others (see {@link #dispatchStats()}).
+ * <p>
+ * Publishing is asynchronous: {@link #publishAsync(String, String, EventTrace)} hands the message to the client and
+ * returns a future that completes once the broker confirms delivery. Up to {@link #setMaxInFlight(int)} messages can
+ * be awaiting confirmation at once, so many publishes share each round trip to the broker.
  */
 public final class MqttManager {
     /**
-     * Used to transfer info about an MQTT event.
+     * Used to transfer info about an MQTT event. The message is carried as the raw payload bytes; it is only decoded
+     * (as UTF-8) if {@link #message()} is called, so events that are just relayed never become strings.
      */
     public static class MqttEvent {
+        private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
         private String _topic = StringUtils.EMPTY;
-        private String _message = StringUtils.EMPTY;
+        private byte[] _payload;
+        private String _message;
+        private Supplier<byte[]> _payloadSource;
         private int _id = -1;
+        private final EventTrace _trace;
+        private MessageProperties _properties = MessageProperties.NONE;
+
+        /**
+         * Creates a new instance of MqttEvent whose payload is only fetched from the specified source if it is asked
+         * for. Used for delivery events, where most listeners never look at the payload.
+         * @param topic The topic the message was delivered to.
+         * @param payloadSource Supplies the payload, or null if it is no longer available.
+         * @param id The message ID.
+         */
+        private MqttEvent(String topic, @NotNull Supplier<byte[]> payloadSource, int id) {
+            _topic = topic;
+            _payloadSource = payloadSource;
+            _id = id;
+            _trace = new EventTrace();
+        }
+
+        /**
+         * Creates a new instance of MqttEvent for a received message and its properties. If the properties carry a
+         * correlation ID, the event's trace continues it.
+         * @param topic The topic the message was received from.
+         * @param payload The payload received.
+         * @param id The message ID.
+         * @param properties The message properties.
+         */
+        private MqttEvent(String topic, @Nullable byte[] payload, int id, @NotNull MessageProperties properties) {
+            _topic = topic;
+            _payload = payload == null ? EMPTY_PAYLOAD : payload;
+            _id = id;
+            Long correlationId = properties.correlationId();
+            _trace = correlationId == null ? new EventTrace() : new EventTrace(correlationId);
+            _properties = properties;
+        }
 
         /**
-         * Creates a new instance of MqttEvent with the topic, message, and message ID related to the event.
+         * Creates a new instance of MqttEvent with the topic, payload, message ID, and trace related to the event.
+         * @param topic The topic the message was delivered to or received from.
+         * @param payload The payload delivered/received. The event takes ownership of the array, which must not be
+         *                modified afterwards.
+         * @param id The message ID.
+         * @param trace The trace to carry along with the event. Pass the trace of the event this one was produced
+         *              from to keep the same correlation ID.
+         */
+        public MqttEvent(String topic, @Nullable byte[] payload, int id, @NotNull EventTrace trace) {
+            _topic = topic;
+            _payload = payload == null ? EMPTY_PAYLOAD : payload;
+            _id = id;
+            _trace = trace;
+        }
+
+        /**
+         * Creates a new instance of MqttEvent with the topic, payload, and message ID related to the event. The event
+         * starts a new trace.
+         * @param topic The topic the message was delivered to or received from.
+         * @param payload The payload delivered/received. The event takes ownership of the array, which must not be
+         *                modified afterwards.
+         * @param id The message ID.
+         */
+        public MqttEvent(String topic, @Nullable byte[] payload, int id) {
+            this(topic, payload, id, new EventTrace());
+        }
+
+        /**
+         * Creates a new instance of MqttEvent with the topic, message, message ID, and trace related to the event.
          * @param topic The topic the message was delivered to or received from.
          * @param message The message delivered/received.
          * @param id The message ID.
+         * @param trace The trace to carry along with the event. Pass the trace of the event this one was produced
+         *              from to keep the same correlation ID.
          */
-        public MqttEvent(String topic, String message, int id) {
+        public MqttEvent(String topic, @Nullable String message, int id, @NotNull EventTrace trace) {
             _topic = topic;
-            _message = message;
+            _message = message == null ? StringUtils.EMPTY : message;
             _id = id;
+            _trace = trace;
+        }
+
+        /**
+         * Creates a new instance of MqttEvent with the topic, message, and message ID related to the event. The event
+         * starts a new trace.
+         * @param topic The topic the message was delivered to or received from.
+         * @param message The message delivered/received.
+         * @param id The message ID.
+         */
+        public MqttEvent(String topic, @Nullable String message, int id) {
+            this(topic, message, id, new EventTrace());
         }
 
         /**
@@ -46,11 +154,48 @@ public final class MqttManager {
         }
 
         /**
-         * The message that was delivered or received.
+         * The message that was delivered or received, decoded from the payload as UTF-8 on first use.
          * @return The message.
          */
         public String message() {
-            return _message;
+            String message = _message;
+            if (message == null) {
+                message = new String(payload(), StandardCharsets.UTF_8);
+                _message = message;
+            }
+            return message;
+        }
+
+        /**
+         * The raw payload that was delivered or received, encoded from the message as UTF-8 on first use if the
+         * event was created from a string. For delivery events the payload is only fetched from the client when this
+         * is first called. The array is shared and must not be modified.
+         * @return The payload bytes.
+         */
+        public byte[] payload() {
+            byte[] payload = _payload;
+            if (payload == null) {
+                if (_payloadSource != null) {
+                    payload = _payloadSource.get();
+                    if (payload == null) {
+                        payload = EMPTY_PAYLOAD;
+                    }
+                    _payloadSource = null;
+                }
+                else {
+                    payload = _message.getBytes(StandardCharsets.UTF_8);
+                }
+                _payload = payload;
+            }
+            return payload;
+        }
+
+        /**
+         * The raw payload as a read-only buffer over the payload bytes.
+         * @return The payload buffer.
+         */
+        public ByteBuffer payloadBuffer() {
+            return ByteBuffer.wrap(payload()).asReadOnlyBuffer();
         }
 
         /**
@@ -60,6 +205,32 @@ public final class MqttManager {
         public int messageId() {
             return _id;
         }
+
+        /**
+         * The trace following this event through the system.
+         * @return The event trace.
+         */
+        public EventTrace trace() {
+            return _trace;
+        }
+
+        /**
+         * The properties the message was received with. Only messages received over {@link ProtocolVersion#MQTT_5}
+         * have any.
+         * @return The message properties.
+         */
+        @NotNull
+        public MessageProperties properties() {
+            return _properties;
+        }
+
+        /**
+         * The correlation ID that ties this event to the events it was produced from or produces.
+         * @return The correlation ID.
+         */
+        public long correlationId() {
+            return _trace.correlationId();
+        }
     }
 
     /**
@@ -73,68 +244,154 @@ public final class MqttManager {
         void onConnectionLost(Throwable cause);
 
         /**
-         * Fired when an MQTT message is received on a subscribed topic.
+         * Fired when an MQTT message is received on any subscribed topic. Listeners that only care about particular
+         * topics should register a {@link MqttMessageHandler} with {@link #subscribe(String, MqttMessageHandler)}
+         * instead, which is only called for matching messages; the default implementation does nothing.
          * @param event The event info.
          */
-        void onMessageReceived(MqttEvent event);
+        default void onMessageReceived(MqttEvent event) {
+        }
 
         /**
          * Fired when an MQTT message is successfully published to a topic.
          * @param event The event info.
          */
         void onMessageDelivered(MqttEvent event);
+
+        /**
+         * Fired when the manager has reconnected by itself after the connection was lost. Only fires when a
+         * {@link ReconnectPolicy} is set. The default implementation does nothing.
+         */
+        default void onReconnected() {
+        }
+
+        /**
+         * Fired when an automatic reconnect attempt fails. The default implementation does nothing.
+         * @param attempt The number of attempts made so far since the connection was lost.
+         * @param nextDelayMillis How long until the next attempt, in milliseconds.
+         * @param cause The reason the attempt failed.
+         */
+        default void onReconnectFailed(int attempt, long nextDelayMillis, Throwable cause) {
+        }
+    }
+
+    /**
+     * Handles messages received on the topics matching the filter it was subscribed with.
+     */
+    public interface MqttMessageHandler {
+        /**
+         * Fired when an MQTT message is received on a matching topic.
+         * @param event The event info.
+         */
+        void onMessage(MqttEvent event);
     }
 
-    private class HandlerCallback implements MqttCallback {
+    private class HandlerCallback implements Connection.Callback {
         @Override
         public void connectionLost(Throwable cause) {
+            _online = false;
             notifyConnectionLost(cause);
+            scheduleReconnect();
         }
 
         @Override
-        public void messageArrived(String topic, MqttMessage message) throws Exception {
-            MqttEvent evt = new MqttEvent(topic, new String(message.getPayload()), message.getId());
+        public void messageArrived(String topic, byte[] payload, int id, @NotNull MessageProperties properties) {
+            MqttEvent evt = new MqttEvent(topic, inflate(payload), id, properties);
+            evt.trace().mark(TraceStage.RECEIVED);
             notifyMessageReceived(evt);
         }
 
         @Override
-        public void deliveryComplete(IMqttDeliveryToken token) {
-            try {
-                String topic = token.getTopics()[0];
-                String message = "(unknown)";
-                if (token.getMessage() != null) {
-                    message = new String(token.getMessage().getPayload());
-                }
-
-                int id = token.getMessageId();
-                MqttEvent evt = new MqttEvent(topic, message, id);
-                notifyMessageDelivered(evt);
-            }
-            catch (MqttException ex) {
-                // TODO need better handling here.
-                ex.printStackTrace();
-            }
+        public void deliveryComplete(String topic, int id, @NotNull Supplier<byte[]> payload) {
+            // The payload is only fetched from the client if a listener asks for it.
+            notifyMessageDelivered(new MqttEvent(topic, () -> inflate(payload.get()), id));
         }
     }
 
+    /**
+     * The default maximum number of published messages awaiting delivery confirmation.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 10;
+
+    /**
+     * The default number of topic aliases the broker may use for the messages it sends us over MQTT 5.
+     */
+    public static final int DEFAULT_TOPIC_ALIAS_MAXIMUM = 32;
+
+    /**
+     * How long an MQTT 5 broker keeps a persistent session after the connection closes: for good.
+     */
+    private static final long SESSION_NEVER_EXPIRES = 0xFFFFFFFFL;
+
+    /**
+     * The default number of events that may wait for each listener and message handler.
+     */
+    public static final int DEFAULT_LISTENER_QUEUE_CAPACITY = 10000;
+
+    /**
+     * How long shutting down waits for listeners to finish the events already queued for them.
+     */
+    private static final long DISPATCH_STOP_MILLIS = 800;
+
+    /**
+     * The compression threshold that turns payload compression off.
+     */
+    public static final int COMPRESSION_DISABLED = 0;
+
+    /**
+     * Appended to the client ID of the subscriber connection when publishing uses separate connections.
+     */
+    public static final String SUBSCRIBER_SUFFIX = "-sub";
+
+    /**
+     * Appended to the client ID of each publisher connection when publishing uses separate connections. When there
+     * is more than one, they are numbered from 1.
+     */
+    public static final String PUBLISHER_SUFFIX = "-pub";
+
     private static MqttManager _instance = null;
     private String _brokerUrl;
     private boolean _clean;
     private String _username;
     private String _password;
     private String _clientID;
-    private MqttConnectOptions _connOpts;
-    private MqttClient _client;
+    private Connection _subscriber;
+    private volatile Connection[] _publishers = new Connection[0];
     private HandlerCallback _handlerCallback;
-    private List<MqttEventListener> _listeners;
-    private ExecutorService _service;
+    private final List<ListenerDispatcher<MqttEventListener>> _listeners = new CopyOnWriteArrayList<>();
+    private final List<ListenerDispatcher<MqttEventListener>> _messageListeners = new CopyOnWriteArrayList<>();
+    private final TopicTrie<MqttMessageHandler> _handlers = new TopicTrie<>();
+    private final Map<MqttMessageHandler, ListenerDispatcher<MqttMessageHandler>> _handlerDispatchers =
+            new ConcurrentHashMap<>();
+    private final Object _dispatchLock = new Object();
+    private volatile boolean _dispatching = false;
+    private volatile int _listenerQueueCapacity = DEFAULT_LISTENER_QUEUE_CAPACITY;
+    private volatile OverflowPolicy _listenerOverflowPolicy = OverflowPolicy.BLOCK;
+    private final Set<String> _subscriptions = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final TopicTrie<String> _retained = new TopicTrie<>();
+    private final DeliveryLatency _deliveryLatency = new DeliveryLatency();
+    private ThreadFactory _threadFactory = ThreadFactories.platform();
+    private int _maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int _publishConnections = 0;
+    private ProtocolVersion _protocolVersion = ProtocolVersion.MQTT_3_1_1;
+    private int _topicAliasMaximum = DEFAULT_TOPIC_ALIAS_MAXIMUM;
+    private volatile int _compressionThreshold = COMPRESSION_DISABLED;
+    private volatile QosPolicy _qosPolicy = QosPolicy.EXACTLY_ONCE;
+    private PersistenceMode _persistenceMode = PersistenceMode.FILE;
+    private File _persistenceDir = new File(System.getProperty("java.io.tmpdir"));
+    private volatile OfflineBuffer _offline = null;
+    private volatile boolean _online = false;
+    private volatile ReconnectPolicy _reconnectPolicy = null;
+    private ScheduledExecutorService _reconnectService;
+    private final Object _reconnectLock = new Object();
+    private ScheduledFuture<?> _reconnectTask = null;
+    private int _reconnectAttempts = 0;
 
     /**
      * Private default constructor.
      */
     private MqttManager() {
         _handlerCallback = new HandlerCallback();
-        _listeners = new ArrayList<>();
     }
 
     /**
@@ -150,29 +407,225 @@ public final class MqttManager {
     }
 
     /**
-     * Adds an event listener if it is not already registered.
+     * Sets the size of the queue in front of each event listener and message handler registered from now on, and
+     * what happens to a received or delivered message when the queue is full. Connection events are never dropped;
+     * they wait for room whatever the policy. Defaults to {@value #DEFAULT_LISTENER_QUEUE_CAPACITY} events and
+     * {@link OverflowPolicy#BLOCK}, which holds up the MQTT client until the listener catches up.
+     * @param capacity The maximum number of events waiting for each listener. Must be at least 1.
+     * @param overflowPolicy What to do with a message when a listener's queue is full.
+     */
+    public void setListenerQueue(int capacity, @NotNull OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Listener queue capacity must be at least 1.");
+        }
+        _listenerQueueCapacity = capacity;
+        _listenerOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Adds an event listener if it is not already registered, with the queue set up by
+     * {@link #setListenerQueue(int, OverflowPolicy)}.
      * @param listener The event listener to add.
      */
     public void addListener(@NotNull MqttEventListener listener) {
-        if (!_listeners.contains(listener)) {
-            _listeners.add(listener);
+        addListener(listener, _listenerQueueCapacity, _listenerOverflowPolicy);
+    }
+
+    /**
+     * Adds an event listener if it is not already registered. The listener is called on a thread of its own, one
+     * event at a time, in the order the events occurred.
+     * @param listener The event listener to add.
+     * @param queueCapacity The maximum number of events waiting for the listener. Must be at least 1.
+     * @param overflowPolicy What to do with a received or delivered message when the listener's queue is full.
+     */
+    public void addListener(@NotNull MqttEventListener listener, int queueCapacity,
+                            @NotNull OverflowPolicy overflowPolicy) {
+        synchronized (_dispatchLock) {
+            for (ListenerDispatcher<MqttEventListener> dispatcher : _listeners) {
+                if (dispatcher.target().equals(listener)) {
+                    return;
+                }
+            }
+
+            ListenerDispatcher<MqttEventListener> dispatcher = new ListenerDispatcher<>(listener, nameOf(listener),
+                    queueCapacity, overflowPolicy);
+            _listeners.add(dispatcher);
+            if (receivesMessages(listener)) {
+                _messageListeners.add(dispatcher);
+            }
+            if (_dispatching) {
+                dispatcher.start(_threadFactory);
+            }
         }
     }
 
     /**
-     * Removes all registered event listeners.
+     * Removes an event listener, once it has been called with the events already queued for it.
+     * @param listener The event listener to remove.
+     */
+    public void removeListener(@NotNull MqttEventListener listener) {
+        List<ListenerDispatcher<?>> removed = new ArrayList<>();
+        synchronized (_dispatchLock) {
+            for (ListenerDispatcher<MqttEventListener> dispatcher : _listeners) {
+                if (dispatcher.target().equals(listener)) {
+                    _listeners.remove(dispatcher);
+                    _messageListeners.remove(dispatcher);
+                    removed.add(dispatcher);
+                }
+            }
+        }
+        stopDispatchers(removed);
+    }
+
+    /**
+     * Removes all registered event listeners and message handlers, once they have been called with the events already
+     * queued for them.
      */
     public void removeAllListeners() {
-        _listeners.clear();
+        List<ListenerDispatcher<?>> removed = new ArrayList<>();
+        synchronized (_dispatchLock) {
+            removed.addAll(_listeners);
+            removed.addAll(_handlerDispatchers.values());
+            _listeners.clear();
+            _messageListeners.clear();
+            _handlerDispatchers.clear();
+            _handlers.clear();
+        }
+        stopDispatchers(removed);
     }
 
     /**
-     * Notifies registered event listeners that a message was received on a subscribed topic.
+     * Gets the dispatch metrics of every registered event listener and message handler: how far behind each one is,
+     * and how many of its messages were dropped.
+     * @return The metrics, listeners first, in the order they were added.
+     */
+    @NotNull
+    public List<DispatchStats> dispatchStats() {
+        List<DispatchStats> stats = new ArrayList<>();
+        for (ListenerDispatcher<MqttEventListener> dispatcher : _listeners) {
+            stats.add(dispatcher.stats());
+        }
+        for (ListenerDispatcher<MqttMessageHandler> dispatcher : _handlerDispatchers.values()) {
+            stats.add(dispatcher.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * Gets whether a listener overrides {@link MqttEventListener#onMessageReceived(MqttEvent)}. One that doesn't, such
+     * as a listener only interested in the connection, isn't sent received messages at all, so they don't wake its
+     * thread for nothing.
+     * @param listener The listener.
+     * @return true if the listener handles received messages; Otherwise, false.
+     */
+    static boolean receivesMessages(MqttEventListener listener) {
+        try {
+            return listener.getClass().getMethod("onMessageReceived", MqttEvent.class).getDeclaringClass() !=
+                    MqttEventListener.class;
+        }
+        catch (NoSuchMethodException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Gets the name to report a listener's metrics under.
+     * @param listener The listener.
+     * @return The simple name of its class, or the full name for an anonymous class.
+     */
+    private static String nameOf(Object listener) {
+        Class<?> type = listener.getClass();
+        String name = type.getSimpleName();
+        return name.isEmpty() ? type.getName() : name;
+    }
+
+    /**
+     * Starts dispatching to every registered listener and handler, and to those registered from now on.
+     */
+    private void startDispatchers() {
+        synchronized (_dispatchLock) {
+            _dispatching = true;
+            for (ListenerDispatcher<MqttEventListener> dispatcher : _listeners) {
+                dispatcher.start(_threadFactory);
+            }
+            for (ListenerDispatcher<MqttMessageHandler> dispatcher : _handlerDispatchers.values()) {
+                dispatcher.start(_threadFactory);
+            }
+        }
+    }
+
+    /**
+     * Stops the specified dispatchers, giving them a combined {@value #DISPATCH_STOP_MILLIS} milliseconds to finish
+     * the events already queued.
+     * @param dispatchers The dispatchers to stop.
+     */
+    private static void stopDispatchers(List<ListenerDispatcher<?>> dispatchers) {
+        for (ListenerDispatcher<?> dispatcher : dispatchers) {
+            dispatcher.stop();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DISPATCH_STOP_MILLIS);
+        for (ListenerDispatcher<?> dispatcher : dispatchers) {
+            dispatcher.awaitStop(deadline);
+        }
+    }
+
+    /**
+     * Registers a handler's subscription to a topic filter, creating its dispatcher on the first filter.
+     * @param topicFilter The topic filter, which names the dispatcher if it is created.
+     * @param handler The message handler.
+     * @param queueCapacity The capacity of the dispatcher's queue, if it is created.
+     * @param overflowPolicy The overflow policy of the dispatcher's queue, if it is created.
+     */
+    private void retainHandler(String topicFilter, MqttMessageHandler handler, int queueCapacity,
+                               OverflowPolicy overflowPolicy) {
+        synchronized (_dispatchLock) {
+            ListenerDispatcher<MqttMessageHandler> dispatcher = _handlerDispatchers.get(handler);
+            if (dispatcher == null) {
+                dispatcher = new ListenerDispatcher<>(handler, topicFilter, queueCapacity, overflowPolicy);
+                _handlerDispatchers.put(handler, dispatcher);
+                if (_dispatching) {
+                    dispatcher.start(_threadFactory);
+                }
+            }
+            dispatcher.retain(topicFilter);
+        }
+    }
+
+    /**
+     * Registers that a handler has been unsubscribed from one of its topic filters, stopping its dispatcher after the
+     * last.
+     * @param topicFilter The topic filter.
+     * @param handler The message handler.
+     */
+    private void releaseHandler(String topicFilter, MqttMessageHandler handler) {
+        ListenerDispatcher<MqttMessageHandler> dispatcher;
+        synchronized (_dispatchLock) {
+            dispatcher = _handlerDispatchers.get(handler);
+            if (dispatcher == null || !dispatcher.release(topicFilter)) {
+                return;
+            }
+            _handlerDispatchers.remove(handler);
+        }
+        stopDispatchers(Collections.singletonList(dispatcher));
+    }
+
+    /**
+     * Notifies the message handlers whose topic filters match, and the registered event listeners, that a message was
+     * received on a subscribed topic.
      * @param event The event info.
      */
     public void notifyMessageReceived(MqttEvent event) {
-        for (MqttEventListener listener : _listeners) {
-            _service.execute(() -> listener.onMessageReceived(event));
+        for (MqttMessageHandler handler : _handlers.match(event.topic())) {
+            ListenerDispatcher<MqttMessageHandler> dispatcher = _handlerDispatchers.get(handler);
+            if (dispatcher != null) {
+                dispatcher.dispatch(() -> handler.onMessage(event), true);
+            }
+        }
+
+        for (ListenerDispatcher<MqttEventListener> dispatcher : _messageListeners) {
+            MqttEventListener listener = dispatcher.target();
+            dispatcher.dispatch(() -> listener.onMessageReceived(event), true);
         }
     }
 
@@ -181,8 +634,31 @@ public final class MqttManager {
      * @param event The event info.
      */
     public void notifyMessageDelivered(MqttEvent event) {
-        for (MqttEventListener listener : _listeners) {
-            _service.execute(() -> listener.onMessageDelivered(event));
+        for (ListenerDispatcher<MqttEventListener> dispatcher : _listeners) {
+            MqttEventListener listener = dispatcher.target();
+            dispatcher.dispatch(() -> listener.onMessageDelivered(event), true);
+        }
+    }
+
+    /**
+     * Notifies registered listeners that the manager reconnected by itself.
+     */
+    private void notifyReconnected() {
+        for (ListenerDispatcher<MqttEventListener> dispatcher : _listeners) {
+            dispatcher.dispatch(dispatcher.target()::onReconnected, false);
+        }
+    }
+
+    /**
+     * Notifies registered listeners that an automatic reconnect attempt failed.
+     * @param attempt The number of attempts made so far.
+     * @param nextDelayMillis How long until the next attempt, in milliseconds.
+     * @param cause The reason the attempt failed.
+     */
+    private void notifyReconnectFailed(int attempt, long nextDelayMillis, Throwable cause) {
+        for (ListenerDispatcher<MqttEventListener> dispatcher : _listeners) {
+            MqttEventListener listener = dispatcher.target();
+            dispatcher.dispatch(() -> listener.onReconnectFailed(attempt, nextDelayMillis, cause), false);
         }
     }
 
@@ -191,8 +667,9 @@ public final class MqttManager {
      * @param cause The cause of the connection loss.
      */
     public void notifyConnectionLost(Throwable cause) {
-        for (MqttEventListener listener : _listeners) {
-            _service.execute(() -> listener.onConnectionLost(cause));
+        for (ListenerDispatcher<MqttEventListener> dispatcher : _listeners) {
+            MqttEventListener listener = dispatcher.target();
+            dispatcher.dispatch(() -> listener.onConnectionLost(cause), false);
         }
     }
 
@@ -205,7 +682,10 @@ public final class MqttManager {
     }
 
     /**
-     * Sets a flag indicating that we should use a clean MQTT session.
+     * Sets a flag indicating that we should use a clean MQTT session. With a persistent session (false), the broker
+     * keeps our subscriptions while we're disconnected and queues the QoS 1 and 2 messages that arrive for them, to
+     * be delivered once we're back. This needs a client ID that stays the same across restarts. Must be set before
+     * {@link #initialize()} is called.
      * @param cleanSession Set true to use a clean session.
      */
     public void setCleanSession(boolean cleanSession) {
@@ -236,6 +716,252 @@ public final class MqttManager {
         _clientID = clientID;
     }
 
+    /**
+     * Sets the factory used to create the threads that notify listeners, one per event listener and message handler.
+     * Each listener is still notified one event at a time, in the order the events occurred. Must be set before
+     * {@link #initialize()} is called.
+     * @param threadFactory The thread factory.
+     */
+    public void setThreadFactory(@NotNull ThreadFactory threadFactory) {
+        _threadFactory = threadFactory;
+    }
+
+    /**
+     * Sets the policy that picks the QoS level for each publish and subscription. Defaults to
+     * {@link QosPolicy#EXACTLY_ONCE}.
+     * @param qosPolicy The QoS policy.
+     */
+    public void setQosPolicy(@NotNull QosPolicy qosPolicy) {
+        _qosPolicy = qosPolicy;
+    }
+
+    /**
+     * Gets the policy that picks the QoS level for each publish and subscription.
+     * @return The QoS policy.
+     */
+    public QosPolicy getQosPolicy() {
+        return _qosPolicy;
+    }
+
+    /**
+     * Sets where the clients keep in-flight QoS 1 and 2 messages. Each connection gets a store of its own. Takes
+     * effect the next time the manager is initialized. Defaults to one file per message in the system temp directory.
+     * @param mode The persistence mode.
+     * @param directory The directory to keep the stores in. Ignored by {@link PersistenceMode#MEMORY}.
+     */
+    public void setPersistence(@NotNull PersistenceMode mode, @NotNull File directory) {
+        _persistenceMode = mode;
+        _persistenceDir = directory;
+    }
+
+    /**
+     * Sets the buffer that holds messages published while the broker is unreachable. With a buffer, publishing while
+     * disconnected (or before {@link #connect()} is first called) queues the message instead of trying to connect and
+     * failing, and {@link #connect()} sends the queued messages, in order, before anything published afterwards.
+     * Without one (the default), publishing while disconnected tries to connect first and throws if that fails.
+     * @param buffer The offline buffer, or null for none.
+     */
+    public void setOfflineBuffer(@Nullable OfflineBuffer buffer) {
+        _offline = buffer;
+    }
+
+    /**
+     * Marks the topics matching the specified filter as retained: messages published to them are sent with the
+     * retain flag, so the broker keeps the latest one and hands it to every new subscriber straight away. Meant for
+     * topics that carry the current state of something.
+     * @param topicFilter The topic filter. May use the '+' and '#' wildcards.
+     * @throws IllegalArgumentException if the topic filter is not valid.
+     */
+    public void retain(@NotNull String topicFilter) {
+        _retained.add(topicFilter, topicFilter);
+    }
+
+    /**
+     * Publishes a message on the specified connection, with the QoS level and retain flag for its topic.
+     * @param publisher The connection to publish on.
+     * @param topicName The topic to publish to.
+     * @param payload The payload.
+     * @param properties The message properties.
+     * @param trace The trace of the message, or null if it isn't traced.
+     * @return A future that completes when delivery is confirmed.
+     * @throws HABMqttException if interrupted while waiting for room in the in-flight window.
+     */
+    private CompletableFuture<Void> publishOn(Connection publisher, String topicName, byte[] payload,
+                                              MessageProperties properties, @Nullable EventTrace trace)
+            throws HABMqttException {
+        return publisher.publish(topicName, payload, _qosPolicy.qosFor(topicName),
+                !_retained.match(topicName).isEmpty(), properties, trace, _deliveryLatency.histogramFor(topicName));
+    }
+
+    /**
+     * Gets the publish-to-acknowledgement latency of delivered messages, recorded per topic class. Topics are
+     * assigned to classes with {@link DeliveryLatency#classify(String, String)}.
+     * @return The delivery latency.
+     */
+    public DeliveryLatency deliveryLatency() {
+        return _deliveryLatency;
+    }
+
+    /**
+     * Sets the policy for reconnecting by itself when the connection to the broker is lost. The first attempt is made
+     * straight away and later ones back off as the policy says, until one succeeds; listeners are told of each
+     * failure and of the eventual reconnect. With no policy (the default), the manager leaves reconnecting to the
+     * application, which can call {@link #connect()} when it is told the connection was lost.
+     * @param policy The reconnect policy, or null to not reconnect automatically.
+     */
+    public void setReconnectPolicy(@Nullable ReconnectPolicy policy) {
+        _reconnectPolicy = policy;
+    }
+
+    /**
+     * Sets the number of connections used for publishing, separate from the connection that receives messages. With
+     * 0 (the default) a single connection does both. Otherwise the subscriber connection's client ID gets the
+     * {@value #SUBSCRIBER_SUFFIX} suffix and each publisher's the {@value #PUBLISHER_SUFFIX} suffix, and messages are
+     * spread over the publishers by topic, so messages to the same topic stay in order. Separate connections keep
+     * inbound bursts and outbound QoS handshakes from queueing behind each other on one socket and one set of client
+     * threads. Must be set before {@link #initialize()} is called.
+     * @param count The number of publisher connections.
+     */
+    public void setPublishConnections(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Publish connection count must not be negative.");
+        }
+        _publishConnections = count;
+    }
+
+    /**
+     * Sets the version of the MQTT protocol spoken to the broker. Defaults to {@link ProtocolVersion#MQTT_3_1_1}.
+     * Message properties are only sent, and only received, over {@link ProtocolVersion#MQTT_5}. Must be set before
+     * {@link #initialize()} is called.
+     * @param version The protocol version.
+     */
+    public void setProtocolVersion(@NotNull ProtocolVersion version) {
+        _protocolVersion = version;
+    }
+
+    /**
+     * Gets the version of the MQTT protocol spoken to the broker.
+     * @return The protocol version.
+     */
+    public ProtocolVersion getProtocolVersion() {
+        return _protocolVersion;
+    }
+
+    /**
+     * Sets how many topic aliases an MQTT 5 broker may use for the messages it sends us. An alias stands in for a
+     * topic name the broker has already sent once, so repeated messages to the same topic don't carry the whole name
+     * every time. Aliases for the messages we publish are limited by the broker instead. Defaults to
+     * {@value #DEFAULT_TOPIC_ALIAS_MAXIMUM}. Must be set before {@link #initialize()} is called.
+     * @param maximum The topic alias maximum, or 0 to not let the broker use aliases.
+     */
+    public void setTopicAliasMaximum(int maximum) {
+        if (maximum < 0 || maximum > 0xFFFF) {
+            throw new IllegalArgumentException("Topic alias maximum must be from 0 to 65535. Got: " + maximum);
+        }
+        _topicAliasMaximum = maximum;
+    }
+
+    /**
+     * Sets the size from which payloads published as compressible are deflated (see {@link PayloadCompression}).
+     * Compression is for large documents on links where bandwidth is scarce, and costs CPU on both ends, so a
+     * publisher only marks a message compressible when its receivers are known to handle it. Received payloads are
+     * inflated whatever this is set to. Defaults to {@value #COMPRESSION_DISABLED}.
+     * @param bytes The payload size, in bytes, from which to compress, or {@link #COMPRESSION_DISABLED} to never
+     *              compress.
+     */
+    public void setCompressionThreshold(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Compression threshold must not be negative. Got: " + bytes);
+        }
+        _compressionThreshold = bytes;
+    }
+
+    /**
+     * Gets the size from which payloads published as compressible are deflated.
+     * @return The compression threshold, in bytes, or {@link #COMPRESSION_DISABLED}.
+     */
+    public int getCompressionThreshold() {
+        return _compressionThreshold;
+    }
+
+    /**
+     * Compresses a payload if it is compressible and at least as big as the compression threshold. A payload deflate
+     * doesn't shrink is sent as it is.
+     * @param payload The payload.
+     * @param compressible Whether the receivers of the message can handle a compressed payload.
+     * @return The payload to send.
+     */
+    private byte[] compressIfLarge(byte[] payload, boolean compressible) {
+        int threshold = _compressionThreshold;
+        if (!compressible || threshold == COMPRESSION_DISABLED || payload.length < threshold) {
+            return payload;
+        }
+
+        byte[] compressed = PayloadCompression.compress(payload);
+        return compressed.length < payload.length ? compressed : payload;
+    }
+
+    /**
+     * Inflates a received payload if it is compressed.
+     * @param payload The payload as received.
+     * @return The original payload. A compressed payload that fails to inflate is returned as it is, so it fails to
+     * parse and is reported by whoever handles the message.
+     */
+    private static byte[] inflate(@Nullable byte[] payload) {
+        if (payload == null || !PayloadCompression.isCompressed(payload)) {
+            return payload;
+        }
+
+        try {
+            return PayloadCompression.decompress(payload);
+        }
+        catch (HABMqttException ex) {
+            return payload;
+        }
+    }
+
+    /**
+     * Sets the maximum number of published messages that may be awaiting delivery confirmation at once on each
+     * connection. Once a connection's window is full, further publishes on it wait for a confirmation before they are
+     * sent. Must be set before {@link #initialize()} is called.
+     * @param maxInFlight The maximum number of messages in flight. Must be at least 1.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Max in-flight must be at least 1.");
+        }
+        _maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Gets the number of published messages still awaiting delivery confirmation.
+     * @return The in-flight message count.
+     */
+    public int inFlightCount() {
+        int count = 0;
+        for (Connection publisher : _publishers) {
+            count += publisher.inFlightCount();
+        }
+        return count;
+    }
+
+    /**
+     * Waits for every in-flight message to be confirmed (or to fail).
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return true if nothing is in flight; false if the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitInFlight(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Connection publisher : _publishers) {
+            if (!publisher.awaitInFlight(deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Initializes the MQTT manager. This does not make a connection to the broker. This will also configure a 60 second
      * "keep alive" interval which will guarantee that messages are delivered every minute and if there are no messages
@@ -243,51 +969,321 @@ public final class MqttManager {
      * @throws HABMqttException if MQTT initialization failed.
      */
     public void initialize() throws HABMqttException {
-        // TODO make data storage dir configurable so we can put queued messages somewhere else (ie subdir of daemon).
-        _service = Executors.newSingleThreadExecutor();
-        String tmpDir = System.getProperty("java.io.tmpdir");
-        MqttDefaultFilePersistence dataStore = new MqttDefaultFilePersistence(tmpDir);
+        startDispatchers();
+        _reconnectService = Executors.newSingleThreadScheduledExecutor(_threadFactory);
         try {
-            _connOpts = new MqttConnectOptions();
-            _connOpts.setCleanSession(_clean);
-            _connOpts.setKeepAliveInterval(60);
+            if (_publishConnections == 0) {
+                _subscriber = createConnection(_clientID);
+                _publishers = new Connection[] { _subscriber };
+                return;
+            }
+
+            _subscriber = createConnection(_clientID + SUBSCRIBER_SUFFIX);
+            Connection[] publishers = new Connection[_publishConnections];
+            for (int i = 0; i < publishers.length; i++) {
+                String suffix = publishers.length == 1 ? PUBLISHER_SUFFIX : PUBLISHER_SUFFIX + (i + 1);
+                publishers[i] = createConnection(_clientID + suffix);
+            }
+            _publishers = publishers;
+        }
+        catch (MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+        catch (org.eclipse.paho.mqttv5.common.MqttException ex) {
+            throw new HABMqttException(ex);
+        }
+    }
+
+    /**
+     * Creates a client connection for the configured protocol version, with its own persistence store and the
+     * configured options.
+     * @param clientID The client ID for the connection.
+     * @return The connection.
+     * @throws MqttException if the MQTT 3.1.1 client could not be created.
+     * @throws org.eclipse.paho.mqttv5.common.MqttException if the MQTT 5 client could not be created.
+     */
+    private Connection createConnection(String clientID)
+            throws MqttException, org.eclipse.paho.mqttv5.common.MqttException {
+        if (_protocolVersion == ProtocolVersion.MQTT_5) {
+            MqttConnectionOptions options = new MqttConnectionOptions();
+            options.setCleanStart(_clean);
+            if (!_clean) {
+                options.setSessionExpiryInterval(SESSION_NEVER_EXPIRES);
+            }
+            options.setKeepAliveInterval(60);
+            options.setTopicAliasMaximum(_topicAliasMaximum);
             if (StringUtils.isNotBlank(_password)) {
-                _connOpts.setPassword(_password.toCharArray());
+                options.setPassword(_password.getBytes(StandardCharsets.UTF_8));
             }
 
             if (StringUtils.isNotBlank(_username)) {
-                _connOpts.setUserName(_username);
+                options.setUserName(_username);
             }
 
-            _client = new MqttClient(_brokerUrl, _clientID, dataStore);
-            _client.setCallback(_handlerCallback);
+            org.eclipse.paho.mqttv5.client.MqttAsyncClient client = new org.eclipse.paho.mqttv5.client.MqttAsyncClient(
+                    _brokerUrl, clientID, _persistenceMode.createForMqtt5(_persistenceDir));
+            return new Mqtt5Connection(client, options, _maxInFlight, _handlerCallback);
         }
-        catch (MqttException ex) {
-            throw new HABMqttException(ex);
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(_clean);
+        options.setKeepAliveInterval(60);
+        options.setMaxInflight(_maxInFlight);
+        if (StringUtils.isNotBlank(_password)) {
+            options.setPassword(_password.toCharArray());
+        }
+
+        if (StringUtils.isNotBlank(_username)) {
+            options.setUserName(_username);
         }
+
+        MqttAsyncClient client = new MqttAsyncClient(_brokerUrl, clientID, _persistenceMode.create(_persistenceDir));
+        return new Mqtt3Connection(client, options, _maxInFlight, _handlerCallback);
     }
 
     /**
-     * Gets whether or not there is a connection to the MQTT broker established.
+     * Gets whether or not there is a connection to the MQTT broker established. With separate publisher connections,
+     * all of them and the subscriber connection must be connected.
      * @return true if a connection is established; Otherwise, false.
      */
     public boolean isConnected() {
-        return _client != null && _client.isConnected();
+        if (_subscriber == null || !_subscriber.isConnected()) {
+            return false;
+        }
+
+        for (Connection publisher : _publishers) {
+            if (!publisher.isConnected()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Schedules an automatic reconnect attempt, unless there is no reconnect policy or one is already pending. The
+     * first attempt after a loss is scheduled with the policy's delay for attempt 0, which is immediate.
+     */
+    private void scheduleReconnect() {
+        ReconnectPolicy policy = _reconnectPolicy;
+        if (policy == null) {
+            return;
+        }
+
+        synchronized (_reconnectLock) {
+            if (_reconnectTask != null || _reconnectService == null || _reconnectService.isShutdown()) {
+                return;
+            }
+
+            _reconnectAttempts = 0;
+            _reconnectTask = _reconnectService.schedule(this::attemptReconnect,
+                    policy.delayFor(0, ThreadLocalRandom.current()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Makes one automatic reconnect attempt, and schedules the next one if it fails. The attempt counts as failed if
+     * any connection is still down afterwards, since a connection that dropped again meanwhile won't schedule a
+     * reconnect of its own while this one is pending.
+     */
+    private void attemptReconnect() {
+        Throwable failure;
+        try {
+            connect();
+            failure = isConnected() ? null : new HABMqttException("Connection lost again while reconnecting.");
+        }
+        catch (HABMqttException ex) {
+            failure = ex;
+        }
+
+        int attempt;
+        long delay;
+        synchronized (_reconnectLock) {
+            ReconnectPolicy policy = _reconnectPolicy;
+            if (failure == null || policy == null || _reconnectService.isShutdown()) {
+                _reconnectTask = null;
+                _reconnectAttempts = 0;
+                if (failure == null) {
+                    notifyReconnected();
+                }
+                return;
+            }
+
+            attempt = ++_reconnectAttempts;
+            delay = policy.delayFor(attempt, ThreadLocalRandom.current());
+            _reconnectTask = _reconnectService.schedule(this::attemptReconnect, delay, TimeUnit.MILLISECONDS);
+        }
+        notifyReconnectFailed(attempt, delay, failure);
+    }
+
+    /**
+     * Cancels the pending automatic reconnect attempt, if any.
+     */
+    private void cancelReconnect() {
+        synchronized (_reconnectLock) {
+            if (_reconnectTask != null) {
+                _reconnectTask.cancel(false);
+                _reconnectTask = null;
+            }
+            _reconnectAttempts = 0;
+        }
+    }
+
+    /**
+     * Connects the subscriber connection if it isn't already connected. If the broker didn't resume a session for it,
+     * everything subscribed to so far is subscribed to again in one request.
+     * @throws HABMqttException if the connection fails or the subscriptions could not be restored.
+     */
+    private void connectSubscriber() throws HABMqttException {
+        if (!_subscriber.connect()) {
+            return;
+        }
+
+        String[] filters;
+        synchronized (_subscriptions) {
+            filters = _subscriptions.toArray(new String[0]);
+        }
+
+        if (filters.length == 0) {
+            return;
+        }
+
+        int[] qos = new int[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            qos[i] = _qosPolicy.qosFor(filters[i]);
+        }
+
+        _subscriber.subscribe(filters, qos);
     }
 
     /**
-     * Manually makes a connection the MQTT broker.
+     * Manually makes a connection the MQTT broker, connecting every connection that isn't already connected. The
+     * subscriptions are restored if the broker lost them.
      * @throws HABMqttException if the connection fails.
      */
     public void connect() throws HABMqttException {
-        if (!isConnected()) {
+        connectSubscriber();
+        for (Connection publisher : _publishers) {
+            publisher.connect();
+        }
+        replayOffline();
+    }
+
+    /**
+     * Sends the messages held in the offline buffer, oldest first, and marks the manager online once it is empty.
+     * Messages published meanwhile keep going to the back of the buffer until then, so they can't overtake the
+     * replayed ones. Stops early, leaving the rest buffered, if a connection drops again or a replayed message fails
+     * to send; a message that failed goes back to the head of the buffer, to be retried on the next reconnect.
+     * @throws HABMqttException if the buffer's spill file could not be read, or a message could not be sent.
+     */
+    private synchronized void replayOffline() throws HABMqttException {
+        OfflineBuffer buffer = _offline;
+        if (buffer == null) {
+            _online = true;
+            return;
+        }
+
+        AtomicBoolean failed = new AtomicBoolean(false);
+        while (!failed.get()) {
+            OfflineBuffer.Entry entry;
+            synchronized (buffer) {
+                try {
+                    entry = buffer.poll();
+                }
+                catch (IOException ex) {
+                    throw new HABMqttException("Failed to read the offline buffer spill file.", ex);
+                }
+
+                if (entry == null) {
+                    _online = true;
+                    return;
+                }
+            }
+
+            Connection publisher = publisherFor(entry.topic());
+            if (!publisher.isConnected()) {
+                buffer.requeue(entry);
+                return;
+            }
+
+            CompletableFuture<Void> sent;
             try {
-                _client.connect(_connOpts);
+                sent = publishOn(publisher, entry.topic(), entry.payload(), entry.properties(), entry.trace());
+            }
+            catch (HABMqttException ex) {
+                buffer.requeue(entry);
+                throw ex;
             }
-            catch (MqttException ex) {
-                throw new HABMqttException(ex);
+
+            sent.whenComplete((result, error) -> {
+                if (error != null) {
+                    // Keep it for the next reconnect rather than losing it; only the buffer gives messages up.
+                    failed.set(true);
+                    buffer.requeue(entry);
+                }
+                else {
+                    entry.future().complete(null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds a message to the offline buffer if there is one and the manager is offline or still replaying it.
+     * @param topicName The topic to publish to.
+     * @param payload The payload.
+     * @param trace The trace of the message, or null if it isn't traced.
+     * @param properties The message properties.
+     * @return A future that completes when the buffered message is delivered, or null if it wasn't buffered.
+     */
+    @Nullable
+    private CompletableFuture<Void> bufferIfOffline(String topicName, byte[] payload, @Nullable EventTrace trace,
+                                                    MessageProperties properties) {
+        OfflineBuffer buffer = _offline;
+        if (buffer == null) {
+            return null;
+        }
+
+        synchronized (buffer) {
+            if (_online && buffer.isEmpty()) {
+                return null;
             }
+            return buffer.add(topicName, payload, trace, properties);
+        }
+    }
+
+    /**
+     * Publishes a message on its publisher connection, connecting it first if needed.
+     * @param topicName The topic to publish to.
+     * @param payload The payload.
+     * @param trace The trace of the message, or null if it isn't traced.
+     * @param properties The message properties.
+     * @return A future that completes when delivery is confirmed.
+     * @throws HABMqttException if unable to connect to the broker.
+     */
+    private CompletableFuture<Void> publishDirect(String topicName, byte[] payload, @Nullable EventTrace trace,
+                                                  MessageProperties properties) throws HABMqttException {
+        Connection publisher = publisherFor(topicName);
+        if (publisher == _subscriber) {
+            connectSubscriber();
         }
+        else {
+            publisher.connect();
+        }
+
+        return publishOn(publisher, topicName, payload, properties, trace);
+    }
+
+    /**
+     * Gets the connection that publishes to the specified topic.
+     * @param topicName The topic.
+     * @return The publisher connection.
+     */
+    private Connection publisherFor(String topicName) {
+        Connection[] publishers = _publishers;
+        if (publishers.length == 1) {
+            return publishers[0];
+        }
+        return publishers[Math.floorMod(topicName.hashCode(), publishers.length)];
     }
 
     /**
@@ -298,30 +1294,283 @@ public final class MqttManager {
      * @throws HABMqttException if unable to connect to the broker or if publishing the message fails.
      */
     public void publish(@NotNull String topicName, @NotNull String message) throws HABMqttException {
+        publish(topicName, message, null);
+    }
+
+    /**
+     * Publishes the specified message to the specified topic and waits for the broker to confirm delivery, marking
+     * the {@link TraceStage#PUBLISHED} and {@link TraceStage#DELIVERED} stages of the trace. If not already connected
+     * to the broker, then a connection will be established first.
+     * @param topicName The name of the topic to publish to. If the topic does not already exist, it will be created.
+     * @param message The message to publish.
+     * @param trace The trace of the message being published, or null if it isn't traced.
+     * @throws HABMqttException if unable to connect to the broker or if publishing the message fails.
+     */
+    public void publish(@NotNull String topicName, @NotNull String message, @Nullable EventTrace trace)
+            throws HABMqttException {
+        publish(topicName, message.getBytes(StandardCharsets.UTF_8), trace);
+    }
+
+    /**
+     * Publishes the specified payload to the specified topic and waits for the broker to confirm delivery, marking
+     * the {@link TraceStage#PUBLISHED} and {@link TraceStage#DELIVERED} stages of the trace. If not already connected
+     * to the broker, then a connection will be established first. If the message goes to the offline buffer instead,
+     * this returns as soon as it is buffered.
+     * @param topicName The name of the topic to publish to. If the topic does not already exist, it will be created.
+     * @param payload The payload to publish.
+     * @param trace The trace of the message being published, or null if it isn't traced.
+     * @throws HABMqttException if unable to connect to the broker or if publishing the message fails.
+     */
+    public void publish(@NotNull String topicName, @NotNull byte[] payload, @Nullable EventTrace trace)
+            throws HABMqttException {
+        publish(topicName, payload, trace, MessageProperties.NONE);
+    }
+
+    /**
+     * Publishes the specified payload with the specified properties and waits for the broker to confirm delivery. See
+     * {@link #publish(String, byte[], EventTrace)}.
+     * @param topicName The name of the topic to publish to. If the topic does not already exist, it will be created.
+     * @param payload The payload to publish.
+     * @param trace The trace of the message being published, or null if it isn't traced.
+     * @param properties The message properties. Only sent over {@link ProtocolVersion#MQTT_5}.
+     * @throws HABMqttException if unable to connect to the broker or if publishing the message fails.
+     */
+    public void publish(@NotNull String topicName, @NotNull byte[] payload, @Nullable EventTrace trace,
+                        @NotNull MessageProperties properties) throws HABMqttException {
+        publish(topicName, payload, trace, properties, false);
+    }
+
+    /**
+     * Publishes the specified payload with the specified properties and waits for the broker to confirm delivery,
+     * compressing it if it is compressible and at least as big as the compression threshold (see
+     * {@link #setCompressionThreshold(int)}). See {@link #publish(String, byte[], EventTrace)}.
+     * @param topicName The name of the topic to publish to. If the topic does not already exist, it will be created.
+     * @param payload The payload to publish.
+     * @param trace The trace of the message being published, or null if it isn't traced.
+     * @param properties The message properties. Only sent over {@link ProtocolVersion#MQTT_5}.
+     * @param compressible true if every receiver of the message can handle a compressed payload.
+     * @throws HABMqttException if unable to connect to the broker or if publishing the message fails.
+     */
+    public void publish(@NotNull String topicName, @NotNull byte[] payload, @Nullable EventTrace trace,
+                        @NotNull MessageProperties properties, boolean compressible) throws HABMqttException {
+        payload = compressIfLarge(payload, compressible);
+        if (bufferIfOffline(topicName, payload, trace, properties) != null) {
+            return;
+        }
+
+        CompletableFuture<Void> future;
         try {
-            connect();
-            final MqttMessage msg = new MqttMessage(message.getBytes());
-            msg.setQos(2);
-            _client.publish(topicName, msg);
+            future = publishDirect(topicName, payload, trace, properties);
         }
-        catch (MqttException ex) {
-            throw new HABMqttException(ex);
+        catch (HABMqttException ex) {
+            if (_offline == null) {
+                throw ex;
+            }
+            _online = false;
+            bufferIfOffline(topicName, payload, trace, properties);
+            return;
+        }
+
+        try {
+            future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HABMqttException("Interrupted while waiting for delivery.", ex);
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof HABMqttException) {
+                throw (HABMqttException)cause;
+            }
+            throw new HABMqttException("Publish failed.", cause);
         }
     }
 
     /**
-     * Subscribes to the specified topic. This allows us to receive messages that are published to it. If not already
-     * connected to the broker, then a connection will be established first.
+     * Publishes the specified message to the specified topic, at the QoS level picked by the QoS policy, without
+     * waiting for the broker to confirm delivery. If not already connected to the broker, then a connection will be
+     * established first, unless there is an offline buffer (see {@link #setOfflineBuffer(OfflineBuffer)}). If the
+     * in-flight window is full, this blocks until a slot frees up.
+     * <p>
+     * The returned future completes on the MQTT client's callback thread, so callbacks attached to it must not block.
+     * @param topicName The name of the topic to publish to. If the topic does not already exist, it will be created.
+     * @param message The message to publish.
+     * @param trace The trace of the message being published, or null if it isn't traced. The
+     *              {@link TraceStage#PUBLISHED} stage is marked when the message is handed to the client and
+     *              {@link TraceStage#DELIVERED} when delivery is confirmed.
+     * @return A future that completes when delivery is confirmed, or completes exceptionally with a
+     * {@link HABMqttException} if publishing fails.
+     * @throws HABMqttException if unable to connect to the broker.
+     */
+    @NotNull
+    public CompletableFuture<Void> publishAsync(@NotNull String topicName, @NotNull String message,
+                                                @Nullable EventTrace trace) throws HABMqttException {
+        return publishAsync(topicName, message.getBytes(StandardCharsets.UTF_8), trace);
+    }
+
+    /**
+     * Publishes the specified payload to the specified topic without waiting for the broker to confirm delivery. See
+     * {@link #publishAsync(String, String, EventTrace)}.
+     * @param topicName The name of the topic to publish to. If the topic does not already exist, it will be created.
+     * @param payload The payload to publish. The client may hold on to the array until delivery is confirmed, so it
+     *                must not be modified.
+     * @param trace The trace of the message being published, or null if it isn't traced.
+     * @return A future that completes when delivery is confirmed, or completes exceptionally with a
+     * {@link HABMqttException} if publishing fails.
+     * @throws HABMqttException if unable to connect to the broker.
+     */
+    @NotNull
+    public CompletableFuture<Void> publishAsync(@NotNull String topicName, @NotNull byte[] payload,
+                                                @Nullable EventTrace trace) throws HABMqttException {
+        return publishAsync(topicName, payload, trace, MessageProperties.NONE);
+    }
+
+    /**
+     * Publishes the specified payload with the specified properties without waiting for the broker to confirm
+     * delivery. See {@link #publishAsync(String, String, EventTrace)}. Over {@link ProtocolVersion#MQTT_5} the
+     * properties travel with the message, so subscribers can route it without parsing the payload, and a message with
+     * an expiry interval is discarded by the broker rather than delivered late. Over MQTT 3.1.1 they are ignored.
+     * @param topicName The name of the topic to publish to. If the topic does not already exist, it will be created.
+     * @param payload The payload to publish. The client may hold on to the array until delivery is confirmed, so it
+     *                must not be modified.
+     * @param trace The trace of the message being published, or null if it isn't traced.
+     * @param properties The message properties.
+     * @return A future that completes when delivery is confirmed, or completes exceptionally with a
+     * {@link HABMqttException} if publishing fails.
+     * @throws HABMqttException if unable to connect to the broker.
+     */
+    @NotNull
+    public CompletableFuture<Void> publishAsync(@NotNull String topicName, @NotNull byte[] payload,
+                                                @Nullable EventTrace trace, @NotNull MessageProperties properties)
+            throws HABMqttException {
+        return publishAsync(topicName, payload, trace, properties, false);
+    }
+
+    /**
+     * Publishes the specified payload with the specified properties without waiting for the broker to confirm
+     * delivery, compressing it if it is compressible and at least as big as the compression threshold (see
+     * {@link #setCompressionThreshold(int)}). See {@link #publishAsync(String, byte[], EventTrace, MessageProperties)}.
+     * @param topicName The name of the topic to publish to. If the topic does not already exist, it will be created.
+     * @param payload The payload to publish. The client may hold on to the array until delivery is confirmed, so it
+     *                must not be modified.
+     * @param trace The trace of the message being published, or null if it isn't traced.
+     * @param properties The message properties.
+     * @param compressible true if every receiver of the message can handle a compressed payload.
+     * @return A future that completes when delivery is confirmed, or completes exceptionally with a
+     * {@link HABMqttException} if publishing fails.
+     * @throws HABMqttException if unable to connect to the broker.
+     */
+    @NotNull
+    public CompletableFuture<Void> publishAsync(@NotNull String topicName, @NotNull byte[] payload,
+                                                @Nullable EventTrace trace, @NotNull MessageProperties properties,
+                                                boolean compressible) throws HABMqttException {
+        payload = compressIfLarge(payload, compressible);
+        CompletableFuture<Void> buffered = bufferIfOffline(topicName, payload, trace, properties);
+        if (buffered != null) {
+            return buffered;
+        }
+
+        try {
+            return publishDirect(topicName, payload, trace, properties);
+        }
+        catch (HABMqttException ex) {
+            if (_offline == null) {
+                throw ex;
+            }
+            _online = false;
+            return bufferIfOffline(topicName, payload, trace, properties);
+        }
+    }
+
+    /**
+     * Subscribes to the specified topic at the QoS level picked by the QoS policy. This allows us to receive messages
+     * that are published to it. If not already connected to the broker, then a connection will be established first.
+     * The subscription is remembered and restored whenever the connection is re-established without the broker
+     * resuming our session.
      * @param topicName The topic to subscribe to.
      * @throws HABMqttException if unable to connect to the broker or if subscription fails.
      */
     public void subscribe(@NotNull String topicName) throws HABMqttException {
-        try {
-            connect();
-            _client.subscribe(topicName, 2);
+        connectSubscriber();
+        _subscriber.subscribe(new String[] { topicName }, new int[] { _qosPolicy.qosFor(topicName) });
+        _subscriptions.add(topicName);
+    }
+
+    /**
+     * Gets the topic filters currently subscribed to, which are restored after a reconnect.
+     * @return A snapshot of the subscriptions, in the order they were made.
+     */
+    @NotNull
+    public List<String> subscriptions() {
+        synchronized (_subscriptions) {
+            return new ArrayList<>(_subscriptions);
         }
-        catch (MqttException ex) {
-            throw new HABMqttException(ex);
+    }
+
+    /**
+     * Subscribes the specified handler to the topics matching the specified filter, at the QoS level the QoS policy
+     * picks for the filter. The handler is called (on a thread of its own) for each message received on a
+     * matching topic, and only for those; a handler whose filters overlap is still called once per message. The
+     * broker subscription is only made for the first handler on a filter. If not already connected to the broker,
+     * then a connection will be established first. The handler's queue is set up by
+     * {@link #setListenerQueue(int, OverflowPolicy)}.
+     * @param topicFilter The topic filter. May use the '+' and '#' wildcards.
+     * @param handler The message handler.
+     * @throws HABMqttException if unable to connect to the broker or if subscription fails.
+     * @throws IllegalArgumentException if the topic filter is not valid.
+     */
+    public void subscribe(@NotNull String topicFilter, @NotNull MqttMessageHandler handler) throws HABMqttException {
+        subscribe(topicFilter, handler, _listenerQueueCapacity, _listenerOverflowPolicy);
+    }
+
+    /**
+     * Subscribes the specified handler to the topics matching the specified filter, with a queue of its own set up.
+     * Use {@link OverflowPolicy#BLOCK} for messages that must never be dropped, such as commands. The queue settings
+     * only apply to the handler's first subscription; later ones share the queue it already has.
+     * @param topicFilter The topic filter. May use the '+' and '#' wildcards.
+     * @param handler The message handler.
+     * @param queueCapacity The maximum number of messages waiting for the handler. Must be at least 1.
+     * @param overflowPolicy What to do with a message when the handler's queue is full.
+     * @throws HABMqttException if unable to connect to the broker or if subscription fails.
+     * @throws IllegalArgumentException if the topic filter is not valid.
+     * @see #subscribe(String, MqttMessageHandler)
+     */
+    public void subscribe(@NotNull String topicFilter, @NotNull MqttMessageHandler handler, int queueCapacity,
+                          @NotNull OverflowPolicy overflowPolicy) throws HABMqttException {
+        TopicTrie.validateFilter(topicFilter);
+        // The dispatcher goes first, so a message matched as soon as the handler is added has somewhere to go.
+        retainHandler(topicFilter, handler, queueCapacity, overflowPolicy);
+        if (_handlers.add(topicFilter, handler)) {
+            try {
+                subscribe(topicFilter);
+            }
+            catch (HABMqttException ex) {
+                _handlers.remove(topicFilter, handler);
+                releaseHandler(topicFilter, handler);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Unsubscribes the specified handler from the specified topic filter. Once no handler is left on the filter, the
+     * broker subscription is dropped too.
+     * @param topicFilter The topic filter the handler was subscribed with.
+     * @param handler The message handler.
+     * @throws HABMqttException if unsubscribing from the broker fails.
+     */
+    public void unsubscribe(@NotNull String topicFilter, @NotNull MqttMessageHandler handler)
+            throws HABMqttException {
+        boolean last = _handlers.remove(topicFilter, handler);
+        releaseHandler(topicFilter, handler);
+        if (!last) {
+            return;
+        }
+
+        _subscriptions.remove(topicFilter);
+        if (_subscriber != null && _subscriber.isConnected()) {
+            _subscriber.unsubscribe(topicFilter);
         }
     }
 
@@ -329,34 +1578,39 @@ public final class MqttManager {
      * Disconnects from the MQTT broker.
      */
     public void disconnect() {
-        if (isConnected()) {
-            _client.setCallback(null);
-            try {
-                _client.disconnect();
-            }
-            catch (MqttException ignored) {
+        _online = false;
+        cancelReconnect();
+        for (Connection publisher : _publishers) {
+            if (publisher != _subscriber) {
+                publisher.disconnect();
             }
         }
+
+        if (_subscriber != null) {
+            _subscriber.disconnect();
+        }
     }
 
     /**
-     * Shuts down the MQTT manager. This automatically calls removeAllListeners() and disconnect(), so calling them
-     * first is redundant.
+     * Shuts down the MQTT manager. This automatically calls removeAllListeners() (which also drops the message
+     * handlers) and disconnect(), so calling them first is redundant. The remembered subscriptions, retained
+     * topics and delivery latency are forgotten.
+     * Messages still in the offline buffer are written to its spill file, if it has one.
      */
     public void shutdown() {
+        _dispatching = false;
         removeAllListeners();
         disconnect();
+        _subscriptions.clear();
+        _retained.clear();
+        _deliveryLatency.clear();
+        if (_offline != null) {
+            _offline.close();
+        }
 
-        if (_service != null) {
-            _service.shutdown();
-            try {
-                if (!_service.awaitTermination(800, TimeUnit.MILLISECONDS)) {
-                    _service.shutdownNow();
-                }
-            }
-            catch (InterruptedException e) {
-                _service.shutdownNow();
-            }
+        if (_reconnectService != null) {
+            _reconnectService.shutdownNow();
         }
+
     }
 }
@@ -0,0 +1,501 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.telemetry.EventTrace;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds messages published while the broker is unreachable, so they can be sent in order once the connection is
+ * back. Up to a fixed number of messages are kept in memory. Beyond that the oldest are appended to a spill file, or
+ * dropped if there is none. Spilled messages are replayed before the ones still in memory, so the order is kept
+ * either way, and the spill file survives a restart.
+ * <p>
+ * Topics whose messages are snapshots of some state (a status, say) can be marked as coalesced. Only the newest
+ * message for each such topic is kept, since sending the older ones after reconnecting would just replay stale state.
+ * <p>
+ * A spill file is a sequence of records, each a sequence number, the length-prefixed UTF-8 topic and the
+ * length-prefixed payload. A record cut short by a crash is discarded when the file is reopened. Message properties
+ * are not spilled: a message that would expire is dropped rather than spilled, since it could otherwise be replayed
+ * long after it went stale, and other spilled messages are replayed without their properties.
+ */
+public final class OfflineBuffer {
+    /**
+     * A buffered message.
+     */
+    static final class Entry {
+        private final long _seq;
+        private final String _topic;
+        private final byte[] _payload;
+        private final EventTrace _trace;
+        private final MessageProperties _properties;
+        private final long _bufferedAt;
+        private final CompletableFuture<Void> _future;
+
+        /**
+         * Constructs a new instance of {@link Entry}.
+         * @param seq The sequence number.
+         * @param topic The topic to publish to.
+         * @param payload The payload.
+         * @param trace The trace of the message, or null if it isn't traced.
+         * @param properties The message properties.
+         */
+        Entry(long seq, String topic, byte[] payload, @Nullable EventTrace trace, MessageProperties properties) {
+            _seq = seq;
+            _topic = topic;
+            _payload = payload;
+            _trace = trace;
+            _properties = properties;
+            _bufferedAt = System.nanoTime();
+            _future = new CompletableFuture<>();
+        }
+
+        /**
+         * Gets the topic to publish to.
+         * @return The topic.
+         */
+        String topic() {
+            return _topic;
+        }
+
+        /**
+         * Gets the payload.
+         * @return The payload.
+         */
+        byte[] payload() {
+            return _payload;
+        }
+
+        /**
+         * Gets the trace of the message. Messages read back from the spill file aren't traced.
+         * @return The trace, or null if the message isn't traced.
+         */
+        @Nullable
+        EventTrace trace() {
+            return _trace;
+        }
+
+        /**
+         * Gets the seconds left before the message expires, counting the time it spent in the buffer.
+         * @return The seconds left, or {@link Long#MAX_VALUE} if the message never expires.
+         */
+        long secondsToExpiry() {
+            if (_properties.messageExpiry() == 0) {
+                return Long.MAX_VALUE;
+            }
+            long buffered = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - _bufferedAt);
+            return _properties.messageExpiry() - buffered;
+        }
+
+        /**
+         * Gets the message properties, with the expiry interval reduced by the time the message spent in the buffer.
+         * Messages read back from the spill file have none.
+         * @return The message properties.
+         */
+        MessageProperties properties() {
+            long left = secondsToExpiry();
+            return left == Long.MAX_VALUE ? _properties : _properties.withMessageExpiry(Math.max(1, left));
+        }
+
+        /**
+         * Gets the future returned to the publisher, to be completed once the message is delivered.
+         * @return The future.
+         */
+        CompletableFuture<Void> future() {
+            return _future;
+        }
+    }
+
+    private static final int RECORD_OVERHEAD = 8 + 2 + 4;
+
+    private final int _capacity;
+    private final File _spillFile;
+    private final TopicTrie<String> _coalesced = new TopicTrie<>();
+    private final LinkedHashMap<Long, Entry> _memory = new LinkedHashMap<>();
+    private final Map<String, Long> _latest = new HashMap<>();
+    private DataOutputStream _spillOut = null;
+    private DataInputStream _spillIn = null;
+    private int _spilled = 0;
+    private int _spillRead = 0;
+    private long _nextSeq = 0;
+    private long _dropped = 0;
+
+    /**
+     * Constructs a new instance of {@link OfflineBuffer}. If the spill file exists, the messages in it are queued
+     * ahead of anything buffered later.
+     * @param capacity The maximum number of messages to keep in memory. Must be at least 1.
+     * @param spillFile The file to spill messages to once memory is full, or null to drop the oldest message instead.
+     * @throws IOException if the existing spill file could not be read.
+     */
+    public OfflineBuffer(int capacity, @Nullable File spillFile) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Offline buffer capacity must be at least 1.");
+        }
+
+        _capacity = capacity;
+        _spillFile = spillFile;
+        if (spillFile != null && spillFile.exists()) {
+            recover();
+        }
+    }
+
+    /**
+     * Marks the topics matching the specified filter as coalesced: a message buffered for one of them replaces any
+     * message still buffered for the same topic. Only affects messages buffered afterwards.
+     * @param topicFilter The topic filter. May contain wildcards.
+     * @throws IllegalArgumentException if the filter is not valid.
+     */
+    public synchronized void coalesce(@NotNull String topicFilter) {
+        _coalesced.add(topicFilter, topicFilter);
+    }
+
+    /**
+     * Gets whether messages to the specified topic are coalesced.
+     * @param topic The topic.
+     * @return true if only the newest message for the topic is kept; Otherwise, false.
+     */
+    private boolean isCoalesced(String topic) {
+        return !_coalesced.match(topic).isEmpty();
+    }
+
+    /**
+     * Reads the spill file left behind by a previous run, counting its records and noting the newest one for each
+     * topic. A record cut short at the end is truncated away.
+     * @throws IOException if the file could not be read.
+     */
+    private void recover() throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_spillFile)))) {
+            while (true) {
+                long seq;
+                byte[] topic;
+                int length;
+                try {
+                    seq = in.readLong();
+                    topic = new byte[in.readUnsignedShort()];
+                    in.readFully(topic);
+                    length = in.readInt();
+                    if (length < 0 || in.skipBytes(length) != length) {
+                        break;
+                    }
+                }
+                catch (EOFException ex) {
+                    break;
+                }
+
+                valid += RECORD_OVERHEAD + topic.length + length;
+                _spilled++;
+                _nextSeq = Math.max(_nextSeq, seq + 1);
+                _latest.put(new String(topic, StandardCharsets.UTF_8), seq);
+            }
+        }
+
+        if (_spilled == 0) {
+            Files.deleteIfExists(_spillFile.toPath());
+            return;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(_spillFile, "rw")) {
+            raf.setLength(valid);
+        }
+    }
+
+    /**
+     * Adds a message to the buffer. If a message for the same topic is still buffered and the topic is coalesced, the
+     * old message is discarded and its future completes along with the new one. If memory is full, the oldest message
+     * in memory is spilled to disk, and its future completes as soon as it is written; with no spill file it is dropped
+     * instead and its future fails.
+     * @param topic The topic to publish to.
+     * @param payload The payload.
+     * @param trace The trace of the message, or null if it isn't traced.
+     * @return A future that completes when the message is delivered after reconnecting.
+     */
+    @NotNull
+    public CompletableFuture<Void> add(@NotNull String topic, @NotNull byte[] payload, @Nullable EventTrace trace) {
+        return add(topic, payload, trace, MessageProperties.NONE);
+    }
+
+    /**
+     * Adds a message with properties to the buffer. See {@link #add(String, byte[], EventTrace)}. A message with an
+     * expiry interval is dropped instead of spilled, and is dropped when it is taken back out if it expired meanwhile.
+     * @param topic The topic to publish to.
+     * @param payload The payload.
+     * @param trace The trace of the message, or null if it isn't traced.
+     * @param properties The message properties.
+     * @return A future that completes when the message is delivered after reconnecting.
+     */
+    @NotNull
+    public synchronized CompletableFuture<Void> add(@NotNull String topic, @NotNull byte[] payload,
+                                                    @Nullable EventTrace trace,
+                                                    @NotNull MessageProperties properties) {
+        Entry entry = new Entry(_nextSeq++, topic, payload, trace, properties);
+        if (isCoalesced(topic)) {
+            Long previous = _latest.put(topic, entry._seq);
+            Entry replaced = previous == null ? null : _memory.remove(previous);
+            if (replaced != null) {
+                entry._future.whenComplete((result, error) -> {
+                    if (error != null) {
+                        replaced._future.completeExceptionally(error);
+                    }
+                    else {
+                        replaced._future.complete(null);
+                    }
+                });
+            }
+        }
+
+        _memory.put(entry._seq, entry);
+        if (_memory.size() > _capacity) {
+            Iterator<Entry> oldest = _memory.values().iterator();
+            Entry evicted = oldest.next();
+            oldest.remove();
+            evict(evicted);
+        }
+        return entry._future;
+    }
+
+    /**
+     * Moves a message out of memory, to the spill file if there is one.
+     * @param entry The message.
+     */
+    private void evict(Entry entry) {
+        if (_spillFile != null && entry._properties.messageExpiry() == 0) {
+            try {
+                if (_spillOut == null) {
+                    _spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_spillFile, true)));
+                }
+
+                byte[] topic = entry._topic.getBytes(StandardCharsets.UTF_8);
+                _spillOut.writeLong(entry._seq);
+                _spillOut.writeShort(topic.length);
+                _spillOut.write(topic);
+                _spillOut.writeInt(entry._payload.length);
+                _spillOut.write(entry._payload);
+                _spillOut.flush();
+                _spilled++;
+                entry._future.complete(null);
+                return;
+            }
+            catch (IOException ex) {
+                entry._future.completeExceptionally(new HABMqttException("Failed to spill offline message.", ex));
+                _dropped++;
+                return;
+            }
+        }
+
+        _dropped++;
+        entry._future.completeExceptionally(new HABMqttException("Offline buffer full; message dropped."));
+    }
+
+    /**
+     * Takes the oldest message from the buffer, skipping spilled messages that were replaced by a newer one for the
+     * same topic, and dropping messages that expired while buffered.
+     * @return The message, or null if the buffer is empty.
+     * @throws IOException if the spill file could not be read. The unread spilled messages are lost.
+     */
+    @Nullable
+    synchronized Entry poll() throws IOException {
+        while (_spillRead < _spilled) {
+            Entry entry = readSpilled();
+            Long latest = _latest.get(entry._topic);
+            if (latest != null && latest == entry._seq) {
+                _latest.remove(entry._topic);
+            }
+            else if (latest != null && isCoalesced(entry._topic)) {
+                continue;
+            }
+            return entry;
+        }
+
+        Iterator<Entry> oldest = _memory.values().iterator();
+        while (oldest.hasNext()) {
+            Entry entry = oldest.next();
+            oldest.remove();
+            Long latest = _latest.get(entry._topic);
+            if (latest != null && latest == entry._seq) {
+                _latest.remove(entry._topic);
+            }
+
+            if (entry.secondsToExpiry() <= 0) {
+                _dropped++;
+                entry._future.completeExceptionally(new HABMqttException("Message expired while offline; dropped."));
+                continue;
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Puts a message taken with {@link #poll()} back at the head of the buffer, for when it could not be sent after
+     * all.
+     * @param entry The message.
+     */
+    synchronized void requeue(@NotNull Entry entry) {
+        if (isCoalesced(entry._topic)) {
+            if (_latest.containsKey(entry._topic)) {
+                // A newer message for the topic was buffered meanwhile and supersedes this one.
+                entry._future.complete(null);
+                return;
+            }
+            _latest.put(entry._topic, entry._seq);
+        }
+
+        LinkedHashMap<Long, Entry> rest = new LinkedHashMap<>(_memory);
+        _memory.clear();
+        _memory.put(entry._seq, entry);
+        _memory.putAll(rest);
+    }
+
+    /**
+     * Reads the next record from the spill file, and deletes the file once every record has been read.
+     * @return The message.
+     * @throws IOException if the file could not be read.
+     */
+    private Entry readSpilled() throws IOException {
+        if (_spillOut != null) {
+            _spillOut.flush();
+        }
+
+        if (_spillIn == null) {
+            _spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(_spillFile)));
+        }
+
+        try {
+            long seq = _spillIn.readLong();
+            byte[] topic = new byte[_spillIn.readUnsignedShort()];
+            _spillIn.readFully(topic);
+            byte[] payload = new byte[_spillIn.readInt()];
+            _spillIn.readFully(payload);
+            _spillRead++;
+            return new Entry(seq, new String(topic, StandardCharsets.UTF_8), payload, null, MessageProperties.NONE);
+        }
+        catch (IOException ex) {
+            _spillRead = _spilled;
+            throw ex;
+        }
+        finally {
+            if (_spillRead == _spilled) {
+                closeSpill();
+                Files.deleteIfExists(_spillFile.toPath());
+                _spilled = 0;
+                _spillRead = 0;
+            }
+        }
+    }
+
+    /**
+     * Closes the spill file streams, if open.
+     */
+    private void closeSpill() {
+        try {
+            if (_spillIn != null) {
+                _spillIn.close();
+            }
+
+            if (_spillOut != null) {
+                _spillOut.close();
+            }
+        }
+        catch (IOException ignored) {
+        }
+        _spillIn = null;
+        _spillOut = null;
+    }
+
+    /**
+     * Gets the number of messages buffered, counting spilled messages that will be skipped because a newer one for
+     * the same topic replaced them.
+     * @return The message count.
+     */
+    public synchronized int size() {
+        return _memory.size() + _spilled - _spillRead;
+    }
+
+    /**
+     * Gets whether or not the buffer is empty.
+     * @return true if empty; Otherwise, false.
+     */
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Gets the number of messages spilled to disk and not yet replayed.
+     * @return The spilled message count.
+     */
+    public synchronized int spilledCount() {
+        return _spilled - _spillRead;
+    }
+
+    /**
+     * Gets the number of messages dropped because memory was full and they could not be spilled, or because they
+     * expired while buffered.
+     * @return The dropped message count.
+     */
+    public synchronized long droppedCount() {
+        return _dropped;
+    }
+
+    /**
+     * Writes every message still in memory to the spill file, so they are replayed after a restart, and closes the
+     * file. Their futures complete once written. Without a spill file, this does nothing.
+     */
+    public synchronized void close() {
+        if (_spillFile == null) {
+            return;
+        }
+
+        if (_spillIn != null) {
+            // Rewrite the unread records so the file doesn't replay the ones already sent.
+            try {
+                File rest = new File(_spillFile.getAbsolutePath() + ".tmp");
+                int unread = _spilled - _spillRead;
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(rest)))) {
+                    for (int i = 0; i < unread; i++) {
+                        Entry entry = readSpilled();
+                        byte[] topic = entry._topic.getBytes(StandardCharsets.UTF_8);
+                        out.writeLong(entry._seq);
+                        out.writeShort(topic.length);
+                        out.write(topic);
+                        out.writeInt(entry._payload.length);
+                        out.write(entry._payload);
+                    }
+                }
+                closeSpill();
+                Files.move(rest.toPath(), _spillFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                _spilled = unread;
+                _spillRead = 0;
+            }
+            catch (IOException ignored) {
+            }
+        }
+
+        for (Entry entry : _memory.values()) {
+            evict(entry);
+        }
+        _memory.clear();
+        closeSpill();
+    }
+}
@@ -0,0 +1,132 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of message payloads. A compressed payload is framed so a receiver can tell it from a plain one:
+ * the four marker bytes {@code 00 48 5A 01} ("\0HZ", version 1), the length of the original payload as a 4-byte big
+ * endian integer, then the raw deflate stream. Plain payloads are JSON, which never starts with a zero byte, so the
+ * marker can't be mistaken for one.
+ */
+public final class PayloadCompression {
+    /**
+     * The bytes a compressed payload starts with.
+     */
+    private static final byte[] MARKER = { 0x00, 0x48, 0x5A, 0x01 };
+
+    /**
+     * The length of the framing before the deflate stream: the marker and the original length.
+     */
+    static final int HEADER_LENGTH = MARKER.length + 4;
+
+    /**
+     * The largest payload a compressed one may claim to inflate to. Guards against a small message inflating to
+     * something that exhausts the heap.
+     */
+    public static final int MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+    private PayloadCompression() {}
+
+    /**
+     * Gets whether the specified payload is a compressed one.
+     * @param payload The payload.
+     * @return true if the payload starts with the compression marker; Otherwise, false.
+     */
+    public static boolean isCompressed(@NotNull byte[] payload) {
+        if (payload.length < HEADER_LENGTH) {
+            return false;
+        }
+
+        for (int i = 0; i < MARKER.length; i++) {
+            if (payload[i] != MARKER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compresses the specified payload and frames it.
+     * @param payload The payload to compress.
+     * @return The compressed payload, marker first.
+     */
+    @NotNull
+    public static byte[] compress(@NotNull byte[] payload) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+
+            // Deflate can make incompressible input slightly bigger, so start with room for that.
+            byte[] out = new byte[HEADER_LENGTH + payload.length + payload.length / 1000 + 64];
+            System.arraycopy(MARKER, 0, out, 0, MARKER.length);
+            out[4] = (byte)(payload.length >>> 24);
+            out[5] = (byte)(payload.length >>> 16);
+            out[6] = (byte)(payload.length >>> 8);
+            out[7] = (byte)payload.length;
+
+            int length = HEADER_LENGTH;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates a compressed payload back to the original.
+     * @param payload The compressed payload, as returned by {@link #compress(byte[])}.
+     * @return The original payload.
+     * @throws HABMqttException if the payload is not a compressed one, is truncated or corrupt, or claims to inflate
+     * to more than {@link #MAX_INFLATED_SIZE} bytes.
+     */
+    @NotNull
+    public static byte[] decompress(@NotNull byte[] payload) throws HABMqttException {
+        if (!isCompressed(payload)) {
+            throw new HABMqttException("Payload is not compressed.");
+        }
+
+        int length = (payload[4] & 0xFF) << 24 | (payload[5] & 0xFF) << 16 | (payload[6] & 0xFF) << 8 |
+                (payload[7] & 0xFF);
+        if (length < 0 || length > MAX_INFLATED_SIZE) {
+            throw new HABMqttException("Compressed payload claims an inflated size of " +
+                    Integer.toUnsignedString(length) + " bytes.");
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(payload, HEADER_LENGTH, payload.length - HEADER_LENGTH);
+            byte[] out = new byte[length];
+            int inflated = 0;
+            while (inflated < length) {
+                int count = inflater.inflate(out, inflated, length - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+
+            if (inflated != length) {
+                throw new HABMqttException("Compressed payload is truncated.");
+            }
+            return out;
+        }
+        catch (DataFormatException ex) {
+            throw new HABMqttException("Compressed payload is corrupt.", ex);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
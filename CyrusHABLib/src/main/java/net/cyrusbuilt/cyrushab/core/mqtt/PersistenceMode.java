@@ -0,0 +1,63 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * Where the MQTT client keeps QoS 1 and 2 messages that are still in flight.
+ */
+public enum PersistenceMode {
+    /**
+     * Keep them in memory. Nothing touches the disk, but in-flight messages are lost if the daemon stops.
+     */
+    MEMORY,
+
+    /**
+     * Keep one file per message, created when the message is sent and deleted when it is acknowledged.
+     */
+    FILE,
+
+    /**
+     * Append them to memory-mapped log segments. See {@link MappedLogPersistence}.
+     */
+    MAPPED;
+
+    /**
+     * Creates the persistence store for this mode.
+     * @param directory The directory to keep the store in. Ignored by {@link #MEMORY}.
+     * @return The persistence store.
+     */
+    @NotNull
+    public MqttClientPersistence create(@NotNull File directory) {
+        switch (this) {
+            case MEMORY:
+                return new MemoryPersistence();
+            case MAPPED:
+                return new MappedLogPersistence(directory);
+            default:
+                return new MqttDefaultFilePersistence(directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Creates the persistence store for this mode, for an MQTT 5 client.
+     * @param directory The directory to keep the store in. Ignored by {@link #MEMORY}.
+     * @return The persistence store.
+     */
+    @NotNull
+    public org.eclipse.paho.mqttv5.client.MqttClientPersistence createForMqtt5(@NotNull File directory) {
+        switch (this) {
+            case MEMORY:
+                return new org.eclipse.paho.mqttv5.client.persist.MemoryPersistence();
+            case MAPPED:
+                return new Mqtt5PersistenceAdapter(new MappedLogPersistence(directory));
+            default:
+                return new org.eclipse.paho.mqttv5.client.persist.MqttDefaultFilePersistence(
+                        directory.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The version of the MQTT protocol spoken to the broker.
+ */
+public enum ProtocolVersion {
+    /**
+     * MQTT 3.1.1. Every broker supports it, but messages can't carry any metadata besides the topic.
+     */
+    MQTT_3_1_1("3.1.1"),
+
+    /**
+     * MQTT 5. Messages carry their {@link MessageProperties} as user properties and may expire, and the client and
+     * broker replace repeated topic names with short topic aliases.
+     */
+    MQTT_5("5");
+
+    private final String _name;
+
+    /**
+     * Constructs a new instance of {@link ProtocolVersion}.
+     * @param name The version as it is usually written.
+     */
+    ProtocolVersion(String name) {
+        _name = name;
+    }
+
+    /**
+     * Gets the protocol version with the specified name.
+     * @param name The version as it is usually written ("3.1.1" or "5"), or the name of the constant.
+     * @return The protocol version.
+     * @throws IllegalArgumentException if the name is not a supported version.
+     */
+    @NotNull
+    public static ProtocolVersion fromString(@NotNull String name) {
+        String trimmed = name.trim();
+        for (ProtocolVersion version : values()) {
+            if (version._name.equals(trimmed) || version.name().equalsIgnoreCase(trimmed)) {
+                return version;
+            }
+        }
+
+        if (trimmed.equals("5.0")) {
+            return MQTT_5;
+        }
+        throw new IllegalArgumentException("Unsupported MQTT protocol version: " + name);
+    }
+
+    /**
+     * Gets the version as it is usually written.
+     * @return The version name.
+     */
+    @Override
+    public String toString() {
+        return _name;
+    }
+}
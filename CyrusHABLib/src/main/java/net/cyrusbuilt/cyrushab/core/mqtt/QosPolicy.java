@@ -0,0 +1,183 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the MQTT quality of service level for a topic. The policy is a list of rules, each mapping a topic filter
+ * (which may use the standard '+' and '#' wildcards) to a QoS level. The first rule whose filter matches the topic
+ * wins; topics matching no rule get the default level. Lookups are cached per topic, so the filters are only walked
+ * the first time a topic is seen.
+ */
+public final class QosPolicy {
+    /**
+     * A topic filter and the QoS level for the topics it matches.
+     */
+    public static final class Rule {
+        private final String _filter;
+        private final int _qos;
+
+        /**
+         * Constructs a new instance of {@link Rule}.
+         * @param filter The topic filter.
+         * @param qos The QoS level.
+         */
+        private Rule(String filter, int qos) {
+            _filter = filter;
+            _qos = qos;
+        }
+
+        /**
+         * Gets the topic filter.
+         * @return The filter.
+         */
+        public String getFilter() {
+            return _filter;
+        }
+
+        /**
+         * Gets the QoS level.
+         * @return The QoS level.
+         */
+        public int getQos() {
+            return _qos;
+        }
+    }
+
+    /**
+     * Builder for {@link QosPolicy}.
+     */
+    public static class Builder {
+        private final List<Rule> _rules = new ArrayList<>();
+        private int _defaultQos = 2;
+
+        /**
+         * Sets the QoS level for topics that match no rule. Defaults to 2.
+         * @param qos The QoS level (0, 1, or 2).
+         * @return The builder.
+         */
+        public Builder setDefaultQos(int qos) {
+            _defaultQos = validate(qos);
+            return this;
+        }
+
+        /**
+         * Adds a rule. Rules are checked in the order they are added.
+         * @param filter The topic filter.
+         * @param qos The QoS level (0, 1, or 2).
+         * @return The builder.
+         */
+        public Builder addRule(@NotNull String filter, int qos) {
+            _rules.add(new Rule(filter, validate(qos)));
+            return this;
+        }
+
+        /**
+         * Builds the policy.
+         * @return The policy.
+         */
+        public QosPolicy build() {
+            return new QosPolicy(_rules, _defaultQos);
+        }
+    }
+
+    /**
+     * A policy that uses QoS 2 (exactly once) for every topic.
+     */
+    public static final QosPolicy EXACTLY_ONCE = new Builder().build();
+
+    private final List<Rule> _rules;
+    private final int _defaultQos;
+    private final Map<String, Integer> _cache = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new instance of {@link QosPolicy}.
+     * @param rules The rules, in the order they are checked.
+     * @param defaultQos The QoS level for topics that match no rule.
+     */
+    private QosPolicy(List<Rule> rules, int defaultQos) {
+        _rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        _defaultQos = defaultQos;
+    }
+
+    /**
+     * Checks that a QoS level is valid.
+     * @param qos The QoS level.
+     * @return The QoS level.
+     * @throws IllegalArgumentException if the level is not 0, 1, or 2.
+     */
+    private static int validate(int qos) {
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("QoS must be 0, 1, or 2. Got: " + qos);
+        }
+        return qos;
+    }
+
+    /**
+     * Gets whether or not a topic matches a topic filter. A '+' level in the filter matches any single level of the
+     * topic, and a trailing '#' matches the parent level and any number of levels below it.
+     * @param filter The topic filter.
+     * @param topic The topic name.
+     * @return true if the topic matches; Otherwise, false.
+     */
+    public static boolean matches(@NotNull String filter, @NotNull String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+        for (int i = 0; i < filterLevels.length; i++) {
+            String level = filterLevels[i];
+            if (level.equals("#")) {
+                return true;
+            }
+
+            if (i >= topicLevels.length) {
+                return false;
+            }
+
+            if (!level.equals("+") && !level.equals(topicLevels[i])) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    /**
+     * Gets the QoS level for the specified topic.
+     * @param topic The topic name.
+     * @return The QoS level.
+     */
+    public int qosFor(@NotNull String topic) {
+        Integer qos = _cache.get(topic);
+        if (qos == null) {
+            qos = _defaultQos;
+            for (Rule rule : _rules) {
+                if (matches(rule._filter, topic)) {
+                    qos = rule._qos;
+                    break;
+                }
+            }
+            _cache.put(topic, qos);
+        }
+        return qos;
+    }
+
+    /**
+     * Gets the rules, in the order they are checked.
+     * @return An unmodifiable list of rules.
+     */
+    public List<Rule> rules() {
+        return _rules;
+    }
+
+    /**
+     * Gets the QoS level for topics that match no rule.
+     * @return The default QoS level.
+     */
+    public int getDefaultQos() {
+        return _defaultQos;
+    }
+}
@@ -0,0 +1,140 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before each attempt to reconnect to the broker. The first attempt after a connection is
+ * lost is made straight away, since most drops are brief. After that the delay starts at a base value and doubles with
+ * each failed attempt, up to a ceiling. Each delay is then shortened by a random amount (the jitter), so that clients
+ * which lost the broker at the same moment, as after a power cut, spread their attempts out instead of all retrying
+ * in lockstep.
+ */
+public final class ReconnectPolicy {
+    /**
+     * Builder for {@link ReconnectPolicy}.
+     */
+    public static class Builder {
+        private long _baseDelay = 250L;
+        private long _maxDelay = 60000L;
+        private double _jitter = 0.5;
+
+        /**
+         * Sets the delay before the second attempt, which doubles for each attempt after it. Defaults to 250 ms.
+         * @param millis The base delay in milliseconds. Must be at least 1.
+         * @return The builder.
+         */
+        public Builder setBaseDelay(long millis) {
+            if (millis < 1) {
+                throw new IllegalArgumentException("Base delay must be at least 1 ms. Got: " + millis);
+            }
+            _baseDelay = millis;
+            return this;
+        }
+
+        /**
+         * Sets the longest delay between attempts. Defaults to 60 seconds.
+         * @param millis The maximum delay in milliseconds. Must be at least 1.
+         * @return The builder.
+         */
+        public Builder setMaxDelay(long millis) {
+            if (millis < 1) {
+                throw new IllegalArgumentException("Max delay must be at least 1 ms. Got: " + millis);
+            }
+            _maxDelay = millis;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of each delay that may randomly be taken off it. 0 gives fixed delays; 1 gives any delay
+         * from zero up to the computed one. Defaults to 0.5.
+         * @param jitter The jitter fraction, from 0 to 1.
+         * @return The builder.
+         */
+        public Builder setJitter(double jitter) {
+            if (jitter < 0 || jitter > 1) {
+                throw new IllegalArgumentException("Jitter must be from 0 to 1. Got: " + jitter);
+            }
+            _jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Builds the policy.
+         * @return The policy.
+         */
+        public ReconnectPolicy build() {
+            return new ReconnectPolicy(_baseDelay, Math.max(_baseDelay, _maxDelay), _jitter);
+        }
+    }
+
+    /**
+     * A policy with the default settings.
+     */
+    public static final ReconnectPolicy DEFAULT = new Builder().build();
+
+    private final long _baseDelay;
+    private final long _maxDelay;
+    private final double _jitter;
+
+    /**
+     * Constructs a new instance of {@link ReconnectPolicy}.
+     * @param baseDelay The delay before the second attempt, in milliseconds.
+     * @param maxDelay The longest delay, in milliseconds.
+     * @param jitter The fraction of each delay that may randomly be taken off it.
+     */
+    private ReconnectPolicy(long baseDelay, long maxDelay, double jitter) {
+        _baseDelay = baseDelay;
+        _maxDelay = maxDelay;
+        _jitter = jitter;
+    }
+
+    /**
+     * Gets the delay before the specified attempt, before jitter is applied.
+     * @param attempt The number of attempts already made since the connection was lost.
+     * @return The delay in milliseconds.
+     */
+    public long baseDelayFor(int attempt) {
+        if (attempt <= 0) {
+            return 0;
+        }
+
+        // Stop doubling well before the shift could overflow; the ceiling has long been reached by then.
+        int doublings = Math.min(attempt - 1, 40);
+        return Math.min(_maxDelay, _baseDelay << doublings);
+    }
+
+    /**
+     * Gets the delay before the specified attempt, with jitter applied.
+     * @param attempt The number of attempts already made since the connection was lost.
+     * @param random The source of the jitter.
+     * @return The delay in milliseconds.
+     */
+    public long delayFor(int attempt, Random random) {
+        long delay = baseDelayFor(attempt);
+        return delay - (long)(delay * _jitter * random.nextDouble());
+    }
+
+    /**
+     * Gets the delay before the second attempt.
+     * @return The base delay in milliseconds.
+     */
+    public long getBaseDelay() {
+        return _baseDelay;
+    }
+
+    /**
+     * Gets the longest delay between attempts.
+     * @return The maximum delay in milliseconds.
+     */
+    public long getMaxDelay() {
+        return _maxDelay;
+    }
+
+    /**
+     * Gets the fraction of each delay that may randomly be taken off it.
+     * @return The jitter fraction.
+     */
+    public double getJitter() {
+        return _jitter;
+    }
+}
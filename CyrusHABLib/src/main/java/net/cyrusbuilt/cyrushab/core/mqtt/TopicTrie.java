@@ -0,0 +1,199 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Maps MQTT topic filters to values and finds the values whose filters match a topic. Filters may use the standard
+ * '+' (any single level) and '#' (the parent level and everything below it) wildcards. The filters are stored as a
+ * tree with one node per topic level, so a lookup only visits the branches that can match instead of testing every
+ * filter.
+ * <p>
+ * Lookups don't lock and may run on any number of threads while filters are being added and removed.
+ * @param <T> The value type.
+ */
+public final class TopicTrie<T> {
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+
+    /**
+     * A topic level.
+     * @param <T> The value type.
+     */
+    private static final class Node<T> {
+        private final Map<String, Node<T>> _children = new ConcurrentHashMap<>();
+        private final List<T> _values = new CopyOnWriteArrayList<>();
+    }
+
+    private final Node<T> _root = new Node<>();
+    private int _size = 0;
+
+    /**
+     * Checks that a topic filter is valid: not empty, with '#' only as the whole last level and '+' only as a whole
+     * level.
+     * @param filter The topic filter.
+     * @throws IllegalArgumentException if the filter is not valid.
+     */
+    public static void validateFilter(String filter) {
+        if (StringUtils.isEmpty(filter)) {
+            throw new IllegalArgumentException("Topic filter must not be empty.");
+        }
+
+        String[] levels = filter.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.contains(MULTI_LEVEL) && (!level.equals(MULTI_LEVEL) || i != levels.length - 1)) {
+                throw new IllegalArgumentException("'#' must be the last level of the topic filter: " + filter);
+            }
+
+            if (level.contains(SINGLE_LEVEL) && !level.equals(SINGLE_LEVEL)) {
+                throw new IllegalArgumentException("'+' must occupy a whole level of the topic filter: " + filter);
+            }
+        }
+    }
+
+    /**
+     * Adds a value for the specified topic filter. A value added more than once for the same filter is only kept once.
+     * @param filter The topic filter.
+     * @param value The value.
+     * @return true if the filter had no values before; Otherwise, false.
+     * @throws IllegalArgumentException if the filter is not valid.
+     */
+    public synchronized boolean add(@NotNull String filter, @NotNull T value) {
+        validateFilter(filter);
+        Node<T> node = _root;
+        for (String level : filter.split("/", -1)) {
+            node = node._children.computeIfAbsent(level, l -> new Node<>());
+        }
+
+        boolean first = node._values.isEmpty();
+        if (!node._values.contains(value)) {
+            node._values.add(value);
+            _size++;
+        }
+        return first;
+    }
+
+    /**
+     * Removes a value from the specified topic filter.
+     * @param filter The topic filter.
+     * @param value The value.
+     * @return true if the value was removed and the filter has no values left; Otherwise, false.
+     */
+    public synchronized boolean remove(@NotNull String filter, @NotNull T value) {
+        String[] levels = filter.split("/", -1);
+        List<Node<T>> path = new ArrayList<>(levels.length + 1);
+        Node<T> node = _root;
+        path.add(node);
+        for (String level : levels) {
+            node = node._children.get(level);
+            if (node == null) {
+                return false;
+            }
+            path.add(node);
+        }
+
+        if (!node._values.remove(value)) {
+            return false;
+        }
+        _size--;
+
+        // Prune the levels nothing hangs off any more.
+        for (int i = levels.length; i > 0; i--) {
+            Node<T> current = path.get(i);
+            if (!current._values.isEmpty() || !current._children.isEmpty()) {
+                break;
+            }
+            path.get(i - 1)._children.remove(levels[i - 1]);
+        }
+        return node._values.isEmpty();
+    }
+
+    /**
+     * Removes every filter and value.
+     */
+    public synchronized void clear() {
+        _root._children.clear();
+        _size = 0;
+    }
+
+    /**
+     * Gets the number of values stored, counting a value once per filter it was added for.
+     * @return The value count.
+     */
+    public synchronized int size() {
+        return _size;
+    }
+
+    /**
+     * Gets the values whose filters match the specified topic. A value that is stored for more than one matching
+     * filter is only returned once. As the MQTT spec requires, wildcards at the first level don't match topics that
+     * start with '$'.
+     * @param topic The topic name.
+     * @return The matching values, in no particular order.
+     */
+    @NotNull
+    public List<T> match(@NotNull String topic) {
+        if (_root._children.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<T> result = new ArrayList<>(2);
+        match(_root, topic.split("/", -1), 0, !topic.startsWith("$"), result);
+        return result;
+    }
+
+    /**
+     * Collects the values matching the remaining topic levels below a node.
+     * @param node The node for the levels matched so far.
+     * @param levels The topic levels.
+     * @param index The index of the next level to match.
+     * @param wildcards Set false to skip wildcard filters at this level.
+     * @param result The list to add matching values to.
+     */
+    private static <T> void match(Node<T> node, String[] levels, int index, boolean wildcards, List<T> result) {
+        if (wildcards) {
+            Node<T> multi = node._children.get(MULTI_LEVEL);
+            if (multi != null) {
+                addAll(multi._values, result);
+            }
+        }
+
+        if (index == levels.length) {
+            addAll(node._values, result);
+            return;
+        }
+
+        if (wildcards) {
+            Node<T> single = node._children.get(SINGLE_LEVEL);
+            if (single != null) {
+                match(single, levels, index + 1, true, result);
+            }
+        }
+
+        Node<T> exact = node._children.get(levels[index]);
+        if (exact != null) {
+            match(exact, levels, index + 1, true, result);
+        }
+    }
+
+    /**
+     * Adds values to the result, skipping any that are already in it.
+     * @param values The values to add.
+     * @param result The result list.
+     */
+    private static <T> void addAll(List<T> values, List<T> result) {
+        for (T value : values) {
+            if (!result.contains(value)) {
+                result.add(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.cyrusbuilt.cyrushab.core.telemetry;
+
+import net.cyrusbuilt.cyrushab.core.Valueable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Optional features an app supports, announced to the daemon in its system control packets so the daemon only uses
+ * them in its replies to apps that can handle them. Each value is a bit in the packet's capability mask.
+ */
+public enum AppCapability implements Valueable<AppCapability, Integer> {
+    /**
+     * The app inflates compressed payloads (see {@link net.cyrusbuilt.cyrushab.core.mqtt.PayloadCompression}). The
+     * daemon sends such an app its replies on the app's own reply topic, below the application topic, rather than on
+     * the shared one.
+     */
+    COMPRESSION(1),
+
+    /**
+     * Capability is unknown.
+     */
+    UNKNOWN(0);
+
+    private int value;
+
+    /**
+     * Sets the parameter value.
+     * @param value The value to set.
+     */
+    AppCapability(int value) {
+        this.value = value;
+    }
+
+    /**
+     * (non-Javadoc)
+     * @see Valueable#getType(Object)
+     */
+    @Override
+    public AppCapability getType(Integer value) {
+        if (value == null) {
+            return UNKNOWN;
+        }
+
+        for (AppCapability capability : values()) {
+            if (capability.value == value) {
+                return capability;
+            }
+        }
+
+        return UNKNOWN;
+    }
+
+    /**
+     * (non-Javadoc)
+     * @see Valueable#getValue()
+     */
+    @Override
+    public Integer getValue() {
+        return this.value;
+    }
+
+    /**
+     * Combines the specified capabilities into a mask.
+     * @param capabilities The capabilities.
+     * @return The capability mask.
+     */
+    public static int toMask(@NotNull Set<AppCapability> capabilities) {
+        int mask = 0;
+        for (AppCapability capability : capabilities) {
+            mask |= capability.value;
+        }
+        return mask;
+    }
+
+    /**
+     * Gets the capabilities in the specified mask. Bits with no known capability are ignored, so an older daemon
+     * keeps working with a newer app.
+     * @param mask The capability mask.
+     * @return The capabilities.
+     */
+    @NotNull
+    public static Set<AppCapability> fromMask(int mask) {
+        Set<AppCapability> capabilities = EnumSet.noneOf(AppCapability.class);
+        for (AppCapability capability : values()) {
+            if (capability != UNKNOWN && (mask & capability.value) != 0) {
+                capabilities.add(capability);
+            }
+        }
+        return capabilities;
+    }
+}
@@ -0,0 +1,134 @@
+package net.cyrusbuilt.cyrushab.core.telemetry;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Follows a single message through the daemon. A trace has a correlation ID that stays the same from the moment a
+ * command arrives until the message it produces is delivered to the device, and records a {@link System#nanoTime()}
+ * timestamp for each {@link TraceStage} the message reaches.
+ * <p>
+ * A trace is passed between threads through the event queues, which publish its timestamps safely; it should not be
+ * marked from two threads at once.
+ */
+public final class EventTrace {
+    private static final AtomicLong NEXT_CORRELATION_ID = new AtomicLong(1);
+    private static final long UNSET = Long.MIN_VALUE;
+
+    private final long _correlationId;
+    private final long[] _timestamps = new long[TraceStage.values().length];
+
+    /**
+     * Constructs a new instance of {@link EventTrace} with the next correlation ID.
+     */
+    public EventTrace() {
+        this(NEXT_CORRELATION_ID.getAndIncrement());
+    }
+
+    /**
+     * Constructs a new instance of {@link EventTrace} with the specified correlation ID, such as one restored from
+     * the event spool.
+     * @param correlationId The correlation ID.
+     */
+    public EventTrace(long correlationId) {
+        _correlationId = correlationId;
+        Arrays.fill(_timestamps, UNSET);
+    }
+
+    /**
+     * Gets the correlation ID.
+     * @return The correlation ID.
+     */
+    public long correlationId() {
+        return _correlationId;
+    }
+
+    /**
+     * Records that the specified stage was reached now. Marking a stage again replaces its timestamp.
+     * @param stage The stage reached.
+     */
+    public void mark(@NotNull TraceStage stage) {
+        _timestamps[stage.ordinal()] = System.nanoTime();
+    }
+
+    /**
+     * Gets whether or not the specified stage has been reached.
+     * @param stage The stage.
+     * @return true if reached; Otherwise, false.
+     */
+    public boolean isMarked(@NotNull TraceStage stage) {
+        return _timestamps[stage.ordinal()] != UNSET;
+    }
+
+    /**
+     * Gets the time between two stages.
+     * @param from The earlier stage.
+     * @param to The later stage.
+     * @return The elapsed time in nanoseconds, or -1 if either stage has not been reached.
+     */
+    public long elapsed(@NotNull TraceStage from, @NotNull TraceStage to) {
+        if (!isMarked(from) || !isMarked(to)) {
+            return -1;
+        }
+        return _timestamps[to.ordinal()] - _timestamps[from.ordinal()];
+    }
+
+    /**
+     * Gets the time from each reached stage back to the previous reached stage. Stages that were skipped (such as
+     * {@link TraceStage#ENQUEUED} for a message published directly) are reported as -1 and the next reached stage
+     * covers the gap.
+     * @return The per-stage times in nanoseconds, indexed by {@link TraceStage#ordinal()}. The first reached stage
+     * reports 0.
+     */
+    public long[] stageTimes() {
+        long[] result = new long[_timestamps.length];
+        long previous = UNSET;
+        for (int i = 0; i < _timestamps.length; i++) {
+            if (_timestamps[i] == UNSET) {
+                result[i] = -1;
+                continue;
+            }
+
+            result[i] = previous == UNSET ? 0 : _timestamps[i] - previous;
+            previous = _timestamps[i];
+        }
+        return result;
+    }
+
+    /**
+     * Gets the time from the first to the last reached stage.
+     * @return The total time in nanoseconds, or 0 if fewer than two stages have been reached.
+     */
+    public long totalTime() {
+        long first = UNSET;
+        long last = UNSET;
+        for (long timestamp : _timestamps) {
+            if (timestamp != UNSET) {
+                if (first == UNSET) {
+                    first = timestamp;
+                }
+                last = timestamp;
+            }
+        }
+        return first == UNSET ? 0 : last - first;
+    }
+
+    /**
+     * Gets a one-line summary of the trace with the per-stage times in microseconds.
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("trace ").append(_correlationId).append(':');
+        long[] times = stageTimes();
+        for (TraceStage stage : TraceStage.values()) {
+            if (times[stage.ordinal()] >= 0) {
+                sb.append(' ').append(stage.name().toLowerCase()).append('=')
+                        .append(times[stage.ordinal()] / 1000).append("us");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -29,5 +29,10 @@ public final class HABSystem {
      */
     public static final String SYS_COMMAND = "command";
 
+    /**
+     * The key name for the capabilities field.
+     */
+    public static final String SYS_CAPABILITIES = "capabilities";
+
     private HABSystem() {}
 }
@@ -0,0 +1,172 @@
+package net.cyrusbuilt.cyrushab.core.telemetry;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free, fixed-size latency histogram. Values are recorded in nanoseconds into log-linear buckets (8 buckets per
+ * power of two), so percentiles are accurate to within 12.5% across the full range of a long while recording costs a
+ * couple of atomic increments. Safe to record from any number of threads.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _count = new AtomicLong(0);
+    private final AtomicLong _sum = new AtomicLong(0);
+    private final AtomicLong _max = new AtomicLong(0);
+
+    /**
+     * Gets the bucket index for the specified value.
+     * @param value The value in nanoseconds.
+     * @return The bucket index.
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)Math.max(value, 0);
+        }
+
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)((value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the largest value that falls into the specified bucket.
+     * @param index The bucket index.
+     * @return The bucket's upper bound in nanoseconds.
+     */
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int msb = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (1L << msb) | (sub << (msb - SUB_BUCKET_BITS));
+        return lower + (1L << (msb - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Records a latency value.
+     * @param nanos The latency in nanoseconds. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        _buckets.incrementAndGet(bucketOf(value));
+        _count.incrementAndGet();
+        _sum.addAndGet(value);
+        long max = _max.get();
+        while (value > max && !_max.compareAndSet(max, value)) {
+            max = _max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since the specified {@link System#nanoTime()} reading.
+     * @param startNanos The start time.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Adds all the values recorded in another histogram to this one.
+     * @param other The histogram to add.
+     */
+    public void add(@NotNull LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other._buckets.get(i);
+            if (count > 0) {
+                _buckets.addAndGet(i, count);
+            }
+        }
+
+        _count.addAndGet(other._count.get());
+        _sum.addAndGet(other._sum.get());
+        long otherMax = other._max.get();
+        long max = _max.get();
+        while (otherMax > max && !_max.compareAndSet(max, otherMax)) {
+            max = _max.get();
+        }
+    }
+
+    /**
+     * Gets the number of values recorded.
+     * @return The count.
+     */
+    public long count() {
+        return _count.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     * @return The mean in nanoseconds, or 0 if nothing has been recorded.
+     */
+    public double mean() {
+        long count = _count.get();
+        return count == 0 ? 0 : _sum.get() / (double)count;
+    }
+
+    /**
+     * Gets the largest recorded value.
+     * @return The maximum in nanoseconds.
+     */
+    public long max() {
+        return _max.get();
+    }
+
+    /**
+     * Gets the value at the specified percentile. The result is the upper bound of the bucket the percentile falls
+     * into, capped at the largest recorded value.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value in nanoseconds, or 0 if nothing has been recorded.
+     */
+    public long percentile(double percentile) {
+        long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = (long)Math.ceil((Math.min(Math.max(percentile, 0), 100) / 100.0) * count);
+        target = Math.max(target, 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += _buckets.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            _buckets.set(i, 0);
+        }
+        _count.set(0);
+        _sum.set(0);
+        _max.set(0);
+    }
+
+    /**
+     * Gets a one-line summary of the histogram with values in microseconds.
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50=%dus p99=%dus max=%dus", count(),
+                mean() / 1000.0,
+                TimeUnit.NANOSECONDS.toMicros(percentile(50)),
+                TimeUnit.NANOSECONDS.toMicros(percentile(99)),
+                TimeUnit.NANOSECONDS.toMicros(max()));
+    }
+}
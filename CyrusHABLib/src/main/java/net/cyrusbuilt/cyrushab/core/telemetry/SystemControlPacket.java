@@ -7,12 +7,16 @@ import net.cyrusbuilt.cyrushab.core.things.ThingType;
 
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * Represents a system control packet for transmission over MQTT.
@@ -21,6 +25,7 @@ public class SystemControlPacket implements Packet {
     private SystemCommand _command = SystemCommand.UNKNOWN;
     private String _clientID = StringUtils.EMPTY;
     private Timestamp _timestamp = null;
+    private Set<AppCapability> _capabilities = EnumSet.noneOf(AppCapability.class);
 
     /**
      * Constructs a new instance of {@link SystemControlPacket}.
@@ -55,6 +60,32 @@ public class SystemControlPacket implements Packet {
         _command = command;
     }
 
+    /**
+     * Gets the capabilities the sending app announced.
+     * @return An unmodifiable set of the capabilities.
+     */
+    @NotNull
+    public Set<AppCapability> getCapabilities() {
+        return Collections.unmodifiableSet(_capabilities);
+    }
+
+    /**
+     * Sets the capabilities the sending app announces.
+     * @param capabilities The capabilities.
+     */
+    public void setCapabilities(@NotNull Set<AppCapability> capabilities) {
+        _capabilities = capabilities.isEmpty() ? EnumSet.noneOf(AppCapability.class) : EnumSet.copyOf(capabilities);
+    }
+
+    /**
+     * Gets whether the sending app announced the specified capability.
+     * @param capability The capability.
+     * @return true if the app supports the capability; Otherwise, false.
+     */
+    public boolean hasCapability(@NotNull AppCapability capability) {
+        return _capabilities.contains(capability);
+    }
+
     /**
      * (non-Javadoc)
      * @see Packet#getClientID()
@@ -94,12 +125,14 @@ public class SystemControlPacket implements Packet {
     /**
      * Builds a JSON string representation of the packet data. If client ID was not specified, then one will be randomly
      * generated. If the timestamp was not specified, then the current local date/time will be used. If a command was
-     * not specified, then {@link SystemCommand#UNKNOWN} will be used.
+     * not specified, then {@link SystemCommand#UNKNOWN} will be used. The capability mask is only included if the
+     * app announces any capabilities.
      * @return The constructed JSON structure converted to string. Example:
      * {
      *     "client_id": "hab_daemon_1",
      *     "command": 0,
-     *     "timestamp": "2018-10-24 15:34:42.31"
+     *     "timestamp": "2018-10-24 15:34:42.31",
+     *     "capabilities": 1
      * }
      */
     @Override
@@ -120,6 +153,9 @@ public class SystemControlPacket implements Packet {
         jsonObject.put(HABSystem.SYS_COMMAND, command);
         jsonObject.put(Thing.THING_TYPE, ThingType.SYSTEM.getValue());
         jsonObject.put(HABSystem.SYS_TIMESTAMP, tstamp.toString());
+        if (!_capabilities.isEmpty()) {
+            jsonObject.put(HABSystem.SYS_CAPABILITIES, AppCapability.toMask(_capabilities));
+        }
         return jsonObject.toJSONString();
     }
 
@@ -155,6 +191,15 @@ public class SystemControlPacket implements Packet {
             return this;
         }
 
+        /**
+         * Sets the capabilities the sending app announces.
+         * @param capabilities The capabilities.
+         */
+        public Builder setCapabilities(@NotNull Set<AppCapability> capabilities) {
+            _packet.setCapabilities(capabilities);
+            return this;
+        }
+
         /**
          * (non-Javadoc)
          * @see Packet.Builder#setTimestamp(Timestamp)
@@ -197,8 +242,25 @@ public class SystemControlPacket implements Packet {
 
         JSONParser parser = new JSONParser();
         try {
-            Object obj = parser.parse(jsonString);
-            JSONObject jsonObject = (JSONObject)obj;
+            return fromJsonObject((JSONObject)parser.parse(jsonString));
+        }
+        catch (ThingParseException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new ThingParseException(e);
+        }
+    }
+
+    /**
+     * Parses a {@link SystemControlPacket} from an already parsed JSON object.
+     * @param jsonObject The JSON object to read.
+     * @return A new {@link SystemControlPacket} populated with the values retrieved from the JSON object.
+     * @throws ThingParseException if the JSON object is not for this packet type or is missing an attribute.
+     */
+    @NotNull
+    public static SystemControlPacket fromJsonObject(@NotNull JSONObject jsonObject) throws ThingParseException {
+        try {
             ThingType type = ThingType.UNKNOWN.getType((int)(long)jsonObject.get(Thing.THING_TYPE));
             if (type != ThingType.SYSTEM) {
                 // This is not a system control packet.
@@ -209,10 +271,16 @@ public class SystemControlPacket implements Packet {
             SystemCommand command = SystemCommand.UNKNOWN.getType((int)(long)jsonObject.get(HABSystem.SYS_COMMAND));
             Timestamp tstamp = Timestamp.valueOf((String)jsonObject.get(HABSystem.SYS_TIMESTAMP));
 
+            // Apps that predate capabilities don't send a mask.
+            Object mask = jsonObject.get(HABSystem.SYS_CAPABILITIES);
+            Set<AppCapability> capabilities = mask == null ? EnumSet.noneOf(AppCapability.class) :
+                    AppCapability.fromMask((int)(long)mask);
+
             return new SystemControlPacket.Builder()
                     .setClientID(clientID)
                     .setCommand(command)
                     .setTimestamp(tstamp)
+                    .setCapabilities(capabilities)
                     .build();
         }
         catch (Exception e) {
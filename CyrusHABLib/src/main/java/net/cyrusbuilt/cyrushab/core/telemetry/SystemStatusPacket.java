@@ -5,6 +5,7 @@ import net.cyrusbuilt.cyrushab.core.things.ThingParseException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -194,8 +195,25 @@ public class SystemStatusPacket implements Packet {
 
         JSONParser parser = new JSONParser();
         try {
-            Object obj = parser.parse(jsonString);
-            JSONObject jsonObject = (JSONObject)obj;
+            return fromJsonObject((JSONObject)parser.parse(jsonString));
+        }
+        catch (ThingParseException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new ThingParseException(e);
+        }
+    }
+
+    /**
+     * Parses a {@link SystemStatusPacket} from an already parsed JSON object.
+     * @param jsonObject The JSON object to read.
+     * @return A new {@link SystemStatusPacket} populated with the values retrieved from the JSON object.
+     * @throws ThingParseException if the JSON object is not for this packet type or is missing an attribute.
+     */
+    @NotNull
+    public static SystemStatusPacket fromJsonObject(@NotNull JSONObject jsonObject) throws ThingParseException {
+        try {
             String clientID = (String)jsonObject.get(HABSystem.SYS_CLIENT_ID);
             SystemStatus status = SystemStatus.NORMAL.getType((int)(long)jsonObject.get(HABSystem.SYS_STATUS));
             Timestamp tstamp = Timestamp.valueOf((String)jsonObject.get(HABSystem.SYS_TIMESTAMP));
@@ -0,0 +1,113 @@
+package net.cyrusbuilt.cyrushab.core.telemetry;
+
+import net.cyrusbuilt.cyrushab.core.things.ThingType;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects finished {@link EventTrace}s into latency histograms per {@link ThingType}: one histogram per stage (the
+ * time spent getting from the previous stage to that one) and one for the whole trip. Safe to record from any number
+ * of threads.
+ */
+public class TraceRecorder {
+    /**
+     * The latency histograms for one thing type.
+     */
+    public static final class StageLatency {
+        private final LatencyHistogram[] _stages = new LatencyHistogram[TraceStage.values().length];
+        private final LatencyHistogram _total = new LatencyHistogram();
+
+        /**
+         * Constructs a new instance of {@link StageLatency}.
+         */
+        private StageLatency() {
+            for (int i = 0; i < _stages.length; i++) {
+                _stages[i] = new LatencyHistogram();
+            }
+        }
+
+        /**
+         * Gets the time spent reaching the specified stage from the stage before it.
+         * @param stage The stage.
+         * @return The stage latency histogram.
+         */
+        public LatencyHistogram stage(@NotNull TraceStage stage) {
+            return _stages[stage.ordinal()];
+        }
+
+        /**
+         * Gets the time from the first to the last stage of each trace.
+         * @return The total latency histogram.
+         */
+        public LatencyHistogram total() {
+            return _total;
+        }
+
+        /**
+         * Gets a one-line summary of the stages that have been recorded.
+         * @return The summary.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("total[").append(_total).append(']');
+            for (TraceStage stage : TraceStage.values()) {
+                LatencyHistogram histogram = _stages[stage.ordinal()];
+                if (histogram.count() > 0 && stage != TraceStage.RECEIVED) {
+                    sb.append(' ').append(stage.name().toLowerCase()).append('[').append(histogram).append(']');
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Map<ThingType, StageLatency> _latency = new ConcurrentHashMap<>();
+
+    /**
+     * Records a finished trace.
+     * @param type The type of thing the traced message was for.
+     * @param trace The trace.
+     */
+    public void record(@NotNull ThingType type, @NotNull EventTrace trace) {
+        StageLatency latency = _latency.computeIfAbsent(type, t -> new StageLatency());
+        long[] times = trace.stageTimes();
+        for (int i = 0; i < times.length; i++) {
+            if (times[i] >= 0) {
+                latency._stages[i].record(times[i]);
+            }
+        }
+        latency._total.record(trace.totalTime());
+    }
+
+    /**
+     * Gets the latency histograms for the specified thing type.
+     * @param type The thing type.
+     * @return The histograms, or null if no trace has been recorded for that type.
+     */
+    @Nullable
+    public StageLatency latency(@NotNull ThingType type) {
+        return _latency.get(type);
+    }
+
+    /**
+     * Gets the latency histograms of every thing type that has been recorded.
+     * @return An unmodifiable map of thing types to histograms, in thing type order.
+     */
+    public Map<ThingType, StageLatency> latency() {
+        Map<ThingType, StageLatency> result = new EnumMap<>(ThingType.class);
+        result.putAll(_latency);
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Clears all recorded traces.
+     */
+    public void reset() {
+        _latency.clear();
+    }
+}
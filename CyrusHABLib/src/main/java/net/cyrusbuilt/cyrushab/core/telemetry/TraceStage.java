@@ -0,0 +1,37 @@
+package net.cyrusbuilt.cyrushab.core.telemetry;
+
+/**
+ * The stages an MQTT event passes through on its way through the daemon, in order. An {@link EventTrace} records when
+ * each stage was reached.
+ */
+public enum TraceStage {
+    /**
+     * The message arrived from the broker.
+     */
+    RECEIVED,
+
+    /**
+     * The message was decoded into a packet.
+     */
+    PARSED,
+
+    /**
+     * The packet was handed to its handler.
+     */
+    ROUTED,
+
+    /**
+     * The resulting message was queued for publishing.
+     */
+    ENQUEUED,
+
+    /**
+     * The message was handed to the MQTT client for publishing.
+     */
+    PUBLISHED,
+
+    /**
+     * The broker confirmed delivery of the published message.
+     */
+    DELIVERED
+}
@@ -1,37 +1,136 @@
 package net.cyrusbuilt.cyrushab.core.things;
 
+import net.cyrusbuilt.cyrushab.core.telemetry.SystemControlPacket;
+import net.cyrusbuilt.cyrushab.core.telemetry.SystemStatusPacket;
+import net.cyrusbuilt.cyrushab.core.things.dimmablelight.DimmableLightControlPacket;
+import net.cyrusbuilt.cyrushab.core.things.dimmablelight.DimmableLightStatusPacket;
+import net.cyrusbuilt.cyrushab.core.things.door.DoorControlPacket;
+import net.cyrusbuilt.cyrushab.core.things.door.DoorStatusPacket;
+import net.cyrusbuilt.cyrushab.core.things.motionsensor.MotionSensorStatusPacket;
+import net.cyrusbuilt.cyrushab.core.things.switches.SwitchControlPacket;
+import net.cyrusbuilt.cyrushab.core.things.switches.SwitchStatusPacket;
+import net.cyrusbuilt.cyrushab.core.things.thermostat.ThermostatControlPacket;
+import net.cyrusbuilt.cyrushab.core.things.thermostat.ThermostatStatusPacket;
+
 import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
+import java.io.CharArrayReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Basic thing utilities.
  */
 public final class BasicThingUtils {
+    /**
+     * A parser per thread. A new {@link JSONParser} allocates a 16K lexer buffer on first use, which costs more than
+     * parsing a typical packet, so we keep one around and reset it for each message instead.
+     */
+    private static final ThreadLocal<JSONParser> PARSER = ThreadLocal.withInitial(JSONParser::new);
+
+    /**
+     * A UTF-8 decoder per thread, with a character buffer that grows to fit the largest payload seen so far. Decoding
+     * a payload into it lets the parser read raw message bytes without building a {@link String} for each message.
+     */
+    private static final ThreadLocal<PayloadDecoder> DECODER = ThreadLocal.withInitial(PayloadDecoder::new);
+
+    /**
+     * Decodes UTF-8 payloads into a reusable character buffer.
+     */
+    private static final class PayloadDecoder {
+        private final CharsetDecoder _decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer _chars = CharBuffer.allocate(1024);
+
+        /**
+         * Decodes the specified payload. UTF-8 never yields more characters than bytes, so the buffer only has to be
+         * as long as the payload.
+         * @param payload The payload bytes.
+         * @return The decoded characters, valid until the next call on this thread.
+         */
+        CharBuffer decode(byte[] payload) {
+            if (_chars.capacity() < payload.length) {
+                _chars = CharBuffer.allocate(payload.length);
+            }
+
+            _chars.clear();
+            _decoder.reset();
+            _decoder.decode(ByteBuffer.wrap(payload), _chars, true);
+            _decoder.flush(_chars);
+            _chars.flip();
+            return _chars;
+        }
+    }
+
     /**
      * private ctor since this is a static class.
      */
     private BasicThingUtils() {}
 
     /**
-     * Parses a {@link MinimalThingInfo} object from the specified JSON string.
+     * Parses a {@link JSONObject} from the specified JSON string.
      * @param jsonString The JSON string to parse.
-     * @return null if the specified JSON string is null or empty; Otherwise, a {@link MinimalThingInfo} object
-     * populated with the attributes from the specified JSON.
-     * @throws ThingParseException if an error occurs while parsing the JSON string (ie. invalid format or missing
-     * attribute).
+     * @return The JSON object.
+     * @throws ThingParseException if the string is not a valid JSON object.
+     */
+    @NotNull
+    private static JSONObject parseJsonObject(String jsonString) throws ThingParseException {
+        try {
+            return (JSONObject)PARSER.get().parse(jsonString);
+        }
+        catch (Exception e) {
+            throw new ThingParseException(e);
+        }
+    }
+
+    /**
+     * Parses a {@link JSONObject} from the specified UTF-8 encoded JSON payload.
+     * @param payload The JSON payload to parse.
+     * @return null if the payload is empty or only whitespace; Otherwise, the JSON object.
+     * @throws ThingParseException if the payload is not a valid JSON object.
      */
     @Nullable
-    public static MinimalThingInfo parseMinimalThingInfoFromJson(String jsonString) throws ThingParseException {
-        if (StringUtils.isBlank(jsonString)) {
+    private static JSONObject parseJsonObject(byte[] payload) throws ThingParseException {
+        if (payload == null || payload.length == 0) {
+            return null;
+        }
+
+        CharBuffer chars = DECODER.get().decode(payload);
+        boolean blank = true;
+        for (int i = 0; i < chars.limit() && blank; i++) {
+            blank = Character.isWhitespace(chars.get(i));
+        }
+
+        if (blank) {
             return null;
         }
 
-        JSONParser parser = new JSONParser();
         try {
-            Object obj = parser.parse(jsonString);
-            JSONObject jsonObject = (JSONObject)obj;
+            return (JSONObject)PARSER.get().parse(new CharArrayReader(chars.array(), 0, chars.limit()));
+        }
+        catch (Exception e) {
+            throw new ThingParseException(e);
+        }
+    }
+
+    /**
+     * Reads a {@link MinimalThingInfo} object from an already parsed JSON object.
+     * @param jsonObject The JSON object to read.
+     * @return A {@link MinimalThingInfo} object populated with the attributes from the JSON object.
+     * @throws ThingParseException if the type attribute is missing or invalid.
+     */
+    @NotNull
+    private static MinimalThingInfo minimalThingInfoFromJsonObject(@NotNull JSONObject jsonObject)
+            throws ThingParseException {
+        try {
             Object idObj = jsonObject.get(Thing.THING_ID);
             int id = 0;
             if (idObj != null) {
@@ -46,4 +145,115 @@ public final class BasicThingUtils {
             throw new ThingParseException(e);
         }
     }
+
+    /**
+     * Parses a {@link MinimalThingInfo} object from the specified JSON string.
+     * @param jsonString The JSON string to parse.
+     * @return null if the specified JSON string is null or empty; Otherwise, a {@link MinimalThingInfo} object
+     * populated with the attributes from the specified JSON.
+     * @throws ThingParseException if an error occurs while parsing the JSON string (ie. invalid format or missing
+     * attribute).
+     */
+    @Nullable
+    public static MinimalThingInfo parseMinimalThingInfoFromJson(String jsonString) throws ThingParseException {
+        if (StringUtils.isBlank(jsonString)) {
+            return null;
+        }
+
+        return minimalThingInfoFromJsonObject(parseJsonObject(jsonString));
+    }
+
+    /**
+     * Parses a {@link MinimalThingInfo} object from the specified UTF-8 encoded JSON payload, without decoding it to
+     * a string first.
+     * @param payload The JSON payload to parse.
+     * @return null if the payload is null, empty, or only whitespace; Otherwise, a {@link MinimalThingInfo} object
+     * populated with the attributes from the payload.
+     * @throws ThingParseException if an error occurs while parsing the payload (ie. invalid format or missing
+     * attribute).
+     */
+    @Nullable
+    public static MinimalThingInfo parseMinimalThingInfoFromJson(byte[] payload) throws ThingParseException {
+        JSONObject jsonObject = parseJsonObject(payload);
+        return jsonObject == null ? null : minimalThingInfoFromJsonObject(jsonObject);
+    }
+
+    /**
+     * Decodes a message into its typed packet, parsing the JSON string only once. The thing type in the message picks
+     * the packet class, and the direction picks between its control and status packet.
+     * @param jsonString The JSON string to decode.
+     * @param isControl Set true if the message is a control message; false if it is a status message.
+     * @return null if the specified JSON string is null or empty; Otherwise, the decoded message. The packet is null
+     * for thing types that have no packet for the specified direction (ie. motion sensor control, app, or unknown).
+     * @throws ThingParseException if an error occurs while parsing the JSON string (ie. invalid format or missing
+     * attribute).
+     */
+    @Nullable
+    public static DecodedPacket decodePacket(String jsonString, boolean isControl) throws ThingParseException {
+        if (StringUtils.isBlank(jsonString)) {
+            return null;
+        }
+
+        return decodePacket(parseJsonObject(jsonString), isControl);
+    }
+
+    /**
+     * Decodes a UTF-8 encoded message payload into its typed packet, without decoding it to a string first. See
+     * {@link #decodePacket(String, boolean)}.
+     * @param payload The JSON payload to decode.
+     * @param isControl Set true if the message is a control message; false if it is a status message.
+     * @return null if the payload is null, empty, or only whitespace; Otherwise, the decoded message.
+     * @throws ThingParseException if an error occurs while parsing the payload (ie. invalid format or missing
+     * attribute).
+     */
+    @Nullable
+    public static DecodedPacket decodePacket(byte[] payload, boolean isControl) throws ThingParseException {
+        JSONObject jsonObject = parseJsonObject(payload);
+        return jsonObject == null ? null : decodePacket(jsonObject, isControl);
+    }
+
+    /**
+     * Decodes an already parsed message into its typed packet.
+     * @param jsonObject The JSON object to decode.
+     * @param isControl Set true if the message is a control message; false if it is a status message.
+     * @return The decoded message.
+     * @throws ThingParseException if an attribute is missing or invalid.
+     */
+    @NotNull
+    private static DecodedPacket decodePacket(@NotNull JSONObject jsonObject, boolean isControl)
+            throws ThingParseException {
+        MinimalThingInfo info = minimalThingInfoFromJsonObject(jsonObject);
+        Packet packet = null;
+        switch (info.getThingType()) {
+            case SYSTEM:
+                packet = isControl ? SystemControlPacket.fromJsonObject(jsonObject)
+                        : SystemStatusPacket.fromJsonObject(jsonObject);
+                break;
+            case DIMMABLE_LIGHT:
+                packet = isControl ? DimmableLightControlPacket.fromJsonObject(jsonObject)
+                        : DimmableLightStatusPacket.fromJsonObject(jsonObject);
+                break;
+            case DOOR:
+                packet = isControl ? DoorControlPacket.fromJsonObject(jsonObject)
+                        : DoorStatusPacket.fromJsonObject(jsonObject);
+                break;
+            case MOTION_SENSOR:
+                // Motion sensors are read-only, so there is no control packet.
+                if (!isControl) {
+                    packet = MotionSensorStatusPacket.fromJsonObject(jsonObject);
+                }
+                break;
+            case THERMOSTAT:
+                packet = isControl ? ThermostatControlPacket.fromJsonObject(jsonObject)
+                        : ThermostatStatusPacket.fromJsonObject(jsonObject);
+                break;
+            case SWITCH:
+                packet = isControl ? SwitchControlPacket.fromJsonObject(jsonObject)
+                        : SwitchStatusPacket.fromJsonObject(jsonObject);
+                break;
+            default:
+                break;
+        }
+        return new DecodedPacket(info, packet);
+    }
 }
@@ -0,0 +1,41 @@
+package net.cyrusbuilt.cyrushab.core.things;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The result of decoding a message: the basic thing info and, when the thing type carries one for the message
+ * direction, the typed packet.
+ */
+public class DecodedPacket {
+    private final MinimalThingInfo _info;
+    private final Packet _packet;
+
+    /**
+     * Constructs a new instance of {@link DecodedPacket} with the thing info and packet.
+     * @param info The basic thing info.
+     * @param packet The typed packet, or null if the message has none.
+     */
+    public DecodedPacket(@NotNull MinimalThingInfo info, @Nullable Packet packet) {
+        _info = info;
+        _packet = packet;
+    }
+
+    /**
+     * Gets the basic thing info.
+     * @return The thing info.
+     */
+    @NotNull
+    public MinimalThingInfo getInfo() {
+        return _info;
+    }
+
+    /**
+     * Gets the typed packet.
+     * @return The packet, or null if the thing type has no packet for the message direction.
+     */
+    @Nullable
+    public Packet getPacket() {
+        return _packet;
+    }
+}
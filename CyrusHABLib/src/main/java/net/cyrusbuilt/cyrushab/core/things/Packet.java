@@ -1,5 +1,6 @@
 package net.cyrusbuilt.cyrushab.core.things;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 
 /**
@@ -36,6 +37,14 @@ public interface Packet {
      */
     String toJsonString();
 
+    /**
+     * Converts the packet data to its JSON representation encoded as UTF-8, ready to publish.
+     * @return The UTF-8 encoded JSON.
+     */
+    default byte[] toJsonBytes() {
+        return toJsonString().getBytes(StandardCharsets.UTF_8);
+    }
+
     /**
      * A builder class for the specified packet type.
      * @param <T> The packet type.
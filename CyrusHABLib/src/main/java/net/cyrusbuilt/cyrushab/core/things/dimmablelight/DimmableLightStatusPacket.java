@@ -7,6 +7,7 @@ import net.cyrusbuilt.cyrushab.core.things.ThingType;
 
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -334,8 +335,25 @@ public class DimmableLightStatusPacket implements Packet {
 
        JSONParser parser = new JSONParser();
        try {
-           Object obj = parser.parse(jsonString);
-           JSONObject jsonObject = (JSONObject)obj;
+           return fromJsonObject((JSONObject)parser.parse(jsonString));
+       }
+       catch (ThingParseException e) {
+           throw e;
+       }
+       catch (Exception e) {
+           throw new ThingParseException(e);
+       }
+   }
+
+   /**
+    * Parses a {@link DimmableLightStatusPacket} from an already parsed JSON object.
+    * @param jsonObject The JSON object to read.
+    * @return A new {@link DimmableLightStatusPacket} populated with the values retrieved from the JSON object.
+    * @throws ThingParseException if the JSON object is not for this packet type or is missing an attribute.
+    */
+   @NotNull
+   public static DimmableLightStatusPacket fromJsonObject(@NotNull JSONObject jsonObject) throws ThingParseException {
+       try {
            ThingType type = ThingType.UNKNOWN.getType((int)(long)jsonObject.get(Thing.THING_TYPE));
            if (type != ThingType.DIMMABLE_LIGHT) {
                // This is not a dimmable light status packet.
@@ -7,6 +7,7 @@ import net.cyrusbuilt.cyrushab.core.things.ThingType;
 
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -299,8 +300,25 @@ public class DoorStatusPacket implements Packet {
 
         JSONParser parser = new JSONParser();
         try {
-            Object obj = parser.parse(jsonString);
-            JSONObject jsonObject = (JSONObject)obj;
+            return fromJsonObject((JSONObject)parser.parse(jsonString));
+        }
+        catch (ThingParseException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new ThingParseException(e);
+        }
+    }
+
+    /**
+     * Parses a {@link DoorStatusPacket} from an already parsed JSON object.
+     * @param jsonObject The JSON object to read.
+     * @return A new {@link DoorStatusPacket} populated with the values retrieved from the JSON object.
+     * @throws ThingParseException if the JSON object is not for this packet type or is missing an attribute.
+     */
+    @NotNull
+    public static DoorStatusPacket fromJsonObject(@NotNull JSONObject jsonObject) throws ThingParseException {
+        try {
             ThingType type = ThingType.UNKNOWN.getType((int)(long)jsonObject.get(Thing.THING_TYPE));
             if (type != ThingType.DOOR) {
                 // This is not a Door.
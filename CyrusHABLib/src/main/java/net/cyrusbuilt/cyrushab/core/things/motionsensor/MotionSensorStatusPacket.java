@@ -7,6 +7,7 @@ import net.cyrusbuilt.cyrushab.core.things.ThingType;
 
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -260,8 +261,25 @@ public class MotionSensorStatusPacket implements Packet {
 
         JSONParser parser = new JSONParser();
         try {
-            Object obj = parser.parse(jsonString);
-            JSONObject jsonObject = (JSONObject) obj;
+            return fromJsonObject((JSONObject)parser.parse(jsonString));
+        }
+        catch (ThingParseException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new ThingParseException(e);
+        }
+    }
+
+    /**
+     * Parses a {@link MotionSensorStatusPacket} from an already parsed JSON object.
+     * @param jsonObject The JSON object to read.
+     * @return A new {@link MotionSensorStatusPacket} populated with the values retrieved from the JSON object.
+     * @throws ThingParseException if the JSON object is not for this packet type or is missing an attribute.
+     */
+    @NotNull
+    public static MotionSensorStatusPacket fromJsonObject(@NotNull JSONObject jsonObject) throws ThingParseException {
+        try {
             ThingType type = ThingType.UNKNOWN.getType((int) (long) jsonObject.get(Thing.THING_TYPE));
             if (type != ThingType.MOTION_SENSOR) {
                 throw new ThingParseException("The specified JSON is not for a MotionSensor type.");
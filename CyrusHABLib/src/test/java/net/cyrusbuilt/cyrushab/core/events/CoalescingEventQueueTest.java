@@ -0,0 +1,210 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CoalescingEventQueueTest {
+    /**
+     * Events named "status:N:seq" coalesce on N; anything else is critical.
+     */
+    private static Object keyOf(String event) {
+        if (event.startsWith("status:")) {
+            return event.split(":")[1];
+        }
+        return null;
+    }
+
+    private static List<String> drain(CoalescingEventQueue<String> queue) {
+        List<String> result = new ArrayList<>();
+        queue.drainTo(result, Integer.MAX_VALUE);
+        return result;
+    }
+
+    @Test
+    public void latestStatusWins() {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>(10, OverflowPolicy.DROP_OLDEST,
+                CoalescingEventQueueTest::keyOf);
+        assertTrue(queue.offer("status:1:a"));
+        assertTrue(queue.offer("control:1"));
+        assertTrue(queue.offer("status:2:a"));
+        assertTrue(queue.offer("status:1:b"));
+
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.coalescedCount());
+
+        List<String> result = drain(queue);
+        assertEquals("status:1:b", result.get(0));
+        assertEquals("control:1", result.get(1));
+        assertEquals("status:2:a", result.get(2));
+
+        // Once taken, a status no longer coalesces.
+        queue.offer("status:1:c");
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void controlEventsAreNotCoalesced() {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>(10, OverflowPolicy.DROP_OLDEST,
+                CoalescingEventQueueTest::keyOf);
+        queue.offer("control:1");
+        queue.offer("control:1");
+        assertEquals(2, queue.size());
+        assertEquals(0, queue.coalescedCount());
+    }
+
+    @Test
+    public void dropOldest() {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>(3, OverflowPolicy.DROP_OLDEST,
+                CoalescingEventQueueTest::keyOf);
+        queue.offer("control:1");
+        queue.offer("status:1:a");
+        queue.offer("status:2:a");
+        assertTrue(queue.offer("status:3:a"));
+
+        assertEquals(1, queue.droppedCount());
+        List<String> result = drain(queue);
+        assertEquals(3, result.size());
+        assertEquals("control:1", result.get(0));
+        assertEquals("status:2:a", result.get(1));
+        assertEquals("status:3:a", result.get(2));
+    }
+
+    @Test
+    public void dropNewest() {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>(2, OverflowPolicy.DROP_NEWEST,
+                CoalescingEventQueueTest::keyOf);
+        queue.offer("status:1:a");
+        queue.offer("status:2:a");
+        assertFalse(queue.offer("status:3:a"));
+        assertEquals(1, queue.droppedCount());
+
+        // Coalescing still works when full.
+        assertTrue(queue.offer("status:2:b"));
+        List<String> result = drain(queue);
+        assertEquals("status:1:a", result.get(0));
+        assertEquals("status:2:b", result.get(1));
+    }
+
+    @Test
+    public void criticalEventsWaitForSpace() throws InterruptedException {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>(1, OverflowPolicy.DROP_NEWEST,
+                CoalescingEventQueueTest::keyOf);
+        queue.offer("control:1");
+
+        CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            queue.offer("control:2");
+            offered.countDown();
+        });
+        producer.start();
+
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+        assertEquals("control:1", queue.take());
+        assertTrue(offered.await(1, TimeUnit.SECONDS));
+        assertEquals("control:2", queue.take());
+        assertEquals(0, queue.droppedCount());
+    }
+
+    @Test
+    public void criticalEventAdmittedWhenInterrupted() {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>(1, OverflowPolicy.DROP_OLDEST,
+                CoalescingEventQueueTest::keyOf);
+        queue.offer("control:1");
+        Thread.currentThread().interrupt();
+        assertTrue(queue.offer("control:2"));
+        assertTrue(Thread.interrupted());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void pushBack() {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>(10, OverflowPolicy.DROP_OLDEST,
+                CoalescingEventQueueTest::keyOf);
+        queue.offer("status:1:a");
+        queue.offer("control:1");
+        List<String> taken = drain(queue);
+
+        queue.offer("status:1:b");
+        queue.pushBack(taken.get(1));
+        queue.pushBack(taken.get(0));
+
+        // The stale status is discarded because a newer one is already queued.
+        List<String> result = drain(queue);
+        assertEquals(2, result.size());
+        assertEquals("control:1", result.get(0));
+        assertEquals("status:1:b", result.get(1));
+    }
+
+    @Test
+    public void waitLatency() throws InterruptedException {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>();
+        queue.offer("control:1");
+        Thread.sleep(5);
+        queue.take();
+        assertEquals(1, queue.waitLatency().count());
+        assertTrue(queue.waitLatency().max() >= 5000000);
+    }
+
+    @Test
+    public void clear() {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>();
+        queue.offer("status:1:a");
+        queue.offer("status:1:b");
+        assertEquals(2, queue.size());
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertEquals(Integer.MAX_VALUE, queue.capacity());
+    }
+
+    @Test
+    public void completionTracking() throws InterruptedException {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>(2, OverflowPolicy.DROP_OLDEST,
+                CoalescingEventQueueTest::keyOf);
+        queue.offer("status:1:a");
+        queue.offer("status:1:b");
+        queue.offer("control:1");
+        queue.offer("status:2:a");
+        // The coalesced and dropped events never need completing.
+        assertEquals(2, queue.incompleteCount());
+
+        String taken = queue.take();
+        assertEquals(2, queue.incompleteCount());
+        assertFalse(queue.awaitCompletion(10, TimeUnit.MILLISECONDS));
+
+        // Putting an event back doesn't complete it.
+        queue.pushBack(taken);
+        assertEquals(2, queue.incompleteCount());
+
+        queue.take();
+        queue.complete(1);
+        assertEquals(1, queue.incompleteCount());
+        queue.clear();
+        assertEquals(0, queue.incompleteCount());
+        assertTrue(queue.awaitCompletion(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void awaitCompletionWakesWhenDone() throws InterruptedException {
+        CoalescingEventQueue<String> queue = new CoalescingEventQueue<>();
+        queue.offer("control:1");
+        Thread consumer = new Thread(() -> {
+            try {
+                queue.take();
+                Thread.sleep(20);
+                queue.complete(1);
+            }
+            catch (InterruptedException ignored) {
+            }
+        });
+        consumer.start();
+
+        assertTrue(queue.awaitCompletion(1, TimeUnit.SECONDS));
+        consumer.join();
+    }
+}
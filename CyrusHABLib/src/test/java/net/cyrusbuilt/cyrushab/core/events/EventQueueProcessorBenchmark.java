@@ -0,0 +1,76 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures sustained throughput and hand-off latency of {@link EventQueueProcessor}. Run with
+ * {@code ./gradlew :CyrusHABLib:benchmark}.
+ */
+public class EventQueueProcessorBenchmark {
+    private static final int WARMUP_EVENTS = 200000;
+    private static final int MEASURED_EVENTS = 2000000;
+
+    private static long runBurst(int count) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("bench", event -> {
+            if (event == count - 1) {
+                latch.countDown();
+            }
+        });
+
+        processor.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            processor.enqueue(i);
+        }
+
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        processor.stop(1, TimeUnit.SECONDS);
+        return elapsed;
+    }
+
+    @Test
+    public void sustainedThroughput() throws InterruptedException {
+        runBurst(WARMUP_EVENTS);
+        long elapsed = runBurst(MEASURED_EVENTS);
+        double perSecond = MEASURED_EVENTS / (elapsed / 1e9);
+        System.out.println(String.format("EventQueueProcessor: %d events in %.1f ms (%.0f msgs/sec)",
+                MEASURED_EVENTS, elapsed / 1e6, perSecond));
+
+        // The old 50 ms poll loop topped out at 20 msgs/sec.
+        assertTrue(perSecond > 5000);
+    }
+
+    @Test
+    public void handOffLatency() throws InterruptedException {
+        final int samples = 2000;
+        final long[] latencies = new long[samples];
+        final CountDownLatch[] done = { new CountDownLatch(1) };
+        EventQueueProcessor<Long> processor = new EventQueueProcessor<>("bench", sent -> {
+            latencies[0] = System.nanoTime() - sent;
+            done[0].countDown();
+        });
+
+        processor.start();
+        long total = 0;
+        long max = 0;
+        for (int i = 0; i < samples; i++) {
+            done[0] = new CountDownLatch(1);
+            processor.enqueue(System.nanoTime());
+            assertTrue(done[0].await(1, TimeUnit.SECONDS));
+            total += latencies[0];
+            max = Math.max(max, latencies[0]);
+        }
+
+        processor.stop(1, TimeUnit.SECONDS);
+        System.out.println(String.format("EventQueueProcessor: mean hand-off %.1f us, max %.1f us over %d events",
+                (total / (double)samples) / 1e3, max / 1e3, samples));
+        assertTrue(total / samples < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+}
@@ -0,0 +1,227 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventQueueProcessorTest {
+    @Test
+    public void processesEventsInOrder() throws InterruptedException {
+        final int count = 1000;
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(count);
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("test", event -> {
+            handled.add(event);
+            latch.countDown();
+        });
+
+        processor.start();
+        for (int i = 0; i < count; i++) {
+            processor.enqueue(i);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        processor.stop(1, TimeUnit.SECONDS);
+        assertEquals(count, handled.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int)handled.get(i));
+        }
+        assertEquals(count, processor.processedCount());
+    }
+
+    @Test
+    public void wakesImmediatelyOnArrival() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        EventQueueProcessor<Long> processor = new EventQueueProcessor<>("test", event -> latch.countDown());
+        processor.setThreadFactory(task -> {
+            Thread thread = new Thread(task);
+            threads.add(thread);
+            return thread;
+        });
+        processor.start();
+
+        // An idle processor is parked without a timeout: there is no poll interval for it to wake up on, so only an
+        // arriving event can wake it.
+        Thread thread = threads.get(0);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+        assertEquals(0, processor.processedCount());
+
+        processor.enqueue(System.nanoTime());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        processor.stop(1, TimeUnit.SECONDS);
+        assertEquals(1, processor.processedCount());
+    }
+
+    @Test
+    public void setPaused() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("test", event -> latch.countDown());
+        processor.setPaused(true);
+        assertTrue(processor.isPaused());
+        processor.start();
+        processor.enqueue(1);
+
+        assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, processor.size());
+
+        processor.setPaused(false);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        processor.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void stop() {
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("test", event -> {});
+        processor.start();
+        assertTrue(processor.isRunning());
+        processor.stop(1, TimeUnit.SECONDS);
+        assertFalse(processor.isRunning());
+
+        processor.enqueue(1);
+        assertEquals(1, processor.size());
+        processor.clear();
+        assertEquals(0, processor.size());
+    }
+
+    @Test
+    public void handlerErrorDoesNotKillProcessor() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("test", event -> {
+            if (event == 0) {
+                throw new IllegalStateException("boom");
+            }
+            latch.countDown();
+        });
+
+        processor.start();
+        processor.enqueue(0);
+        processor.enqueue(1);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        processor.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void awaitIdle() throws InterruptedException {
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("test", event -> {
+            try {
+                Thread.sleep(5);
+            }
+            catch (InterruptedException ignored) {
+            }
+            handled.add(event);
+        });
+
+        processor.start();
+        for (int i = 0; i < 10; i++) {
+            processor.enqueue(i);
+        }
+
+        assertTrue(processor.awaitIdle(1, TimeUnit.SECONDS));
+        assertEquals(10, handled.size());
+        processor.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void awaitIdleReturnsWhenPaused() throws InterruptedException {
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("test", event -> {});
+        processor.setPaused(true);
+        processor.start();
+        processor.enqueue(1);
+
+        long start = System.nanoTime();
+        assertFalse(processor.awaitIdle(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        processor.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void drainTo() throws InterruptedException {
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("test", event -> {});
+        for (int i = 0; i < 5; i++) {
+            processor.enqueue(i);
+        }
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(5, processor.drainTo(drained));
+        assertEquals("[0, 1, 2, 3, 4]", drained.toString());
+        assertEquals(0, processor.size());
+        assertTrue(processor.awaitIdle(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void setThreadFactory() throws InterruptedException {
+        AtomicInteger created = new AtomicInteger(0);
+        CountDownLatch latch = new CountDownLatch(1);
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("test", event -> {
+            assertEquals("test", Thread.currentThread().getName());
+            latch.countDown();
+        });
+        processor.setThreadFactory(r -> {
+            created.incrementAndGet();
+            return new Thread(r);
+        });
+
+        processor.start();
+        processor.enqueue(1);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        processor.stop(1, TimeUnit.SECONDS);
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void restartAfterTimedOutStopHandsBatchToNewThread() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        EventQueueProcessor<Integer> processor = new EventQueueProcessor<>("test", event -> {
+            if (event == 0) {
+                blocked.countDown();
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException ignored) {
+                    }
+                }
+            }
+            handled.add(event);
+            threads.add(Thread.currentThread());
+            done.countDown();
+        });
+
+        processor.setPaused(true);
+        processor.start();
+        processor.enqueue(0);
+        processor.enqueue(1);
+        processor.enqueue(2);
+        processor.setPaused(false);
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+
+        // The stop times out with the rest of the batch still held by the old thread.
+        processor.stop(50, TimeUnit.MILLISECONDS);
+        processor.start();
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        processor.stop(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(0, 1, 2), handled);
+        assertNotSame(threads.get(0), threads.get(1));
+        assertSame(threads.get(1), threads.get(2));
+    }
+}
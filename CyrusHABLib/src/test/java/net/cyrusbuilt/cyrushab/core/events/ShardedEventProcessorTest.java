@@ -0,0 +1,142 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardedEventProcessorTest {
+    private static class Event {
+        final int key;
+        final int seq;
+
+        Event(int key, int seq) {
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+
+    @Test
+    public void preservesOrderPerKey() throws InterruptedException {
+        final int keys = 50;
+        final int perKey = 200;
+        Map<Integer, List<Integer>> handled = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(keys * perKey);
+        ShardedEventProcessor<Event> processor = new ShardedEventProcessor<>("test", 4, e -> e.key, e -> {
+            handled.computeIfAbsent(e.key, k -> new ArrayList<>()).add(e.seq);
+            latch.countDown();
+        });
+
+        processor.start();
+        for (int seq = 0; seq < perKey; seq++) {
+            for (int key = 0; key < keys; key++) {
+                processor.enqueue(new Event(key, seq));
+            }
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        processor.stop(1, TimeUnit.SECONDS);
+        assertEquals(keys, handled.size());
+        for (List<Integer> seqs : handled.values()) {
+            assertEquals(perKey, seqs.size());
+            for (int i = 0; i < perKey; i++) {
+                assertEquals(i, (int)seqs.get(i));
+            }
+        }
+        assertEquals(keys * perKey, processor.processedCount());
+    }
+
+    @Test
+    public void processesKeysInParallel() throws InterruptedException {
+        // One slow key must not hold up another key on a different shard.
+        ShardedEventProcessor<Event> processor = new ShardedEventProcessor<>("test", 2, e -> e.key, e -> {});
+        int slowKey = 0;
+        int fastKey = 1;
+        while (processor.shardIndexOf(fastKey) == processor.shardIndexOf(slowKey)) {
+            fastKey++;
+        }
+
+        final int finalFastKey = fastKey;
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastDone = new CountDownLatch(1);
+        processor = new ShardedEventProcessor<>("test", 2, e -> e.key, e -> {
+            if (e.key == slowKey) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+            else if (e.key == finalFastKey) {
+                fastDone.countDown();
+            }
+        });
+
+        processor.start();
+        processor.enqueue(new Event(slowKey, 0));
+        processor.enqueue(new Event(fastKey, 0));
+        assertTrue(fastDone.await(1, TimeUnit.SECONDS));
+        release.countDown();
+        processor.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shardIndexOf() {
+        ShardedEventProcessor<Event> processor = new ShardedEventProcessor<>("test", 8, e -> e.key, e -> {});
+        assertEquals(8, processor.shardCount());
+        Set<Integer> used = new HashSet<>();
+        for (int key = -100; key < 100; key++) {
+            int index = processor.shardIndexOf(key);
+            assertTrue(index >= 0 && index < 8);
+            assertEquals(index, processor.shardIndexOf(key));
+            used.add(index);
+        }
+        assertEquals(8, used.size());
+    }
+
+    @Test
+    public void sizeAndClear() {
+        ShardedEventProcessor<Event> processor = new ShardedEventProcessor<>("test", 3, e -> e.key, e -> {});
+        for (int i = 0; i < 10; i++) {
+            processor.enqueue(new Event(i, 0));
+        }
+        assertEquals(10, processor.size());
+        processor.clear();
+        assertEquals(0, processor.size());
+    }
+
+    @Test
+    public void awaitIdleAndDrainTo() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        ShardedEventProcessor<Event> processor = new ShardedEventProcessor<>("test", 2, e -> e.key, e -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException ignored) {
+            }
+        });
+
+        processor.start();
+        for (int i = 0; i < 6; i++) {
+            processor.enqueue(new Event(i, 0));
+        }
+        assertFalse(processor.awaitIdle(20, TimeUnit.MILLISECONDS));
+
+        // Stop the shards (each is stuck handling one event) and take whatever they didn't get to.
+        release.countDown();
+        processor.stop(1, TimeUnit.SECONDS);
+        List<Event> drained = new ArrayList<>();
+        int count = processor.drainTo(drained);
+        assertEquals(count, drained.size());
+        assertEquals(0, processor.size());
+        assertTrue(processor.awaitIdle(0, TimeUnit.MILLISECONDS));
+    }
+}
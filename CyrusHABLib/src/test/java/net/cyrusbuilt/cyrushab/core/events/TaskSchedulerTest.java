@@ -0,0 +1,214 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TaskSchedulerTest {
+    private final TaskScheduler _scheduler = new TaskScheduler("test");
+
+    @After
+    public void tearDown() {
+        _scheduler.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void runsByPriorityThenOrder() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(5);
+        _scheduler.submit("a", TaskPriority.LOW, () -> { order.add("low1"); done.countDown(); });
+        _scheduler.submit("b", TaskPriority.NORMAL, () -> { order.add("normal1"); done.countDown(); });
+        _scheduler.submit("c", TaskPriority.HIGH, () -> { order.add("high"); done.countDown(); });
+        _scheduler.submit("d", TaskPriority.NORMAL, () -> { order.add("normal2"); done.countDown(); });
+        _scheduler.submit("e", TaskPriority.LOW, () -> { order.add("low2"); done.countDown(); });
+        assertEquals(5, _scheduler.pendingCount());
+
+        _scheduler.start();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals("[high, normal1, normal2, low1, low2]", order.toString());
+    }
+
+    @Test
+    public void backToBackTasksDontWait() throws InterruptedException {
+        _scheduler.start();
+        CountDownLatch done = new CountDownLatch(3);
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            _scheduler.submit("quick", TaskPriority.NORMAL, done::countDown);
+        }
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        // The old main loop slept 50 ms after every task.
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void delayedTaskWaits() throws InterruptedException {
+        _scheduler.start();
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        _scheduler.schedule("later", TaskPriority.NORMAL, done::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void dueTasksRunBeforeLaterOnes() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2);
+        _scheduler.schedule("later", TaskPriority.HIGH, () -> { order.add("later"); done.countDown(); },
+                50, TimeUnit.MILLISECONDS);
+        _scheduler.submit("now", TaskPriority.LOW, () -> { order.add("now"); done.countDown(); });
+
+        _scheduler.start();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals("[now, later]", order.toString());
+    }
+
+    @Test
+    public void periodicTaskRepeatsUntilCancelled() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(3);
+        TaskScheduler.ScheduledTask task = _scheduler.schedulePeriodic("tick", TaskPriority.NORMAL, () -> {
+            runs.incrementAndGet();
+            done.countDown();
+        }, 0, 10, TimeUnit.MILLISECONDS);
+        assertTrue(task.isPeriodic());
+
+        _scheduler.start();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        task.cancel();
+        assertTrue(task.isCancelled());
+
+        Thread.sleep(30);
+        int afterCancel = runs.get();
+        Thread.sleep(50);
+        assertEquals(afterCancel, runs.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void periodicTaskNeedsPeriod() {
+        _scheduler.schedulePeriodic("tick", TaskPriority.NORMAL, () -> {}, 0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(1);
+        _scheduler.submit("cancelled", TaskPriority.HIGH, runs::incrementAndGet).cancel();
+        _scheduler.submit("marker", TaskPriority.LOW, done::countDown);
+
+        _scheduler.start();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void failingTaskIsCountedAndSchedulerKeepsRunning() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        _scheduler.start();
+        _scheduler.submit("broken", TaskPriority.NORMAL, () -> {
+            throw new IllegalStateException("boom");
+        });
+        _scheduler.submit("after", TaskPriority.NORMAL, done::countDown);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(1, _scheduler.stats("broken").failures());
+        assertTrue(_scheduler.isRunning());
+    }
+
+    @Test
+    public void recordsTimingPerTask() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(3);
+        _scheduler.start();
+        _scheduler.submit("one", TaskPriority.NORMAL, done::countDown);
+        _scheduler.submit("one", TaskPriority.NORMAL, done::countDown);
+        _scheduler.submit("two", TaskPriority.NORMAL, done::countDown);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        _scheduler.stop(1, TimeUnit.SECONDS);
+        assertEquals(2, _scheduler.stats("one").runTime().count());
+        assertEquals(2, _scheduler.stats("one").delay().count());
+        assertEquals(1, _scheduler.stats("two").runTime().count());
+        assertNull(_scheduler.stats("three"));
+        assertEquals("[one, two]", _scheduler.stats().keySet().toString());
+    }
+
+    @Test
+    public void stopLeavesTasksQueued() {
+        _scheduler.start();
+        _scheduler.stop(1, TimeUnit.SECONDS);
+        assertFalse(_scheduler.isRunning());
+
+        _scheduler.submit("pending", TaskPriority.NORMAL, () -> {});
+        assertEquals(1, _scheduler.pendingCount());
+        _scheduler.clear();
+        assertEquals(0, _scheduler.pendingCount());
+    }
+
+    @Test
+    public void stopFromTask() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        _scheduler.start();
+        _scheduler.submit("stop", TaskPriority.NORMAL, () -> {
+            _scheduler.stop(1, TimeUnit.SECONDS);
+            done.countDown();
+        });
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertFalse(_scheduler.isRunning());
+    }
+
+    @Test
+    public void restartAfterTimedOutStopRunsTasksOnNewThreadOnly() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        Map<String, Thread> threads = new ConcurrentHashMap<>();
+        _scheduler.submit("blocking", TaskPriority.NORMAL, () -> {
+            blocked.countDown();
+            while (release.getCount() > 0) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+            threads.put("blocking", Thread.currentThread());
+            done.countDown();
+        });
+        _scheduler.start();
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+
+        // The stop times out while the old thread is still running its task.
+        _scheduler.stop(50, TimeUnit.MILLISECONDS);
+        _scheduler.start();
+        CountDownLatch restarted = new CountDownLatch(1);
+        _scheduler.submit("first", TaskPriority.NORMAL, () -> {
+            threads.put("first", Thread.currentThread());
+            restarted.countDown();
+            done.countDown();
+        });
+        assertTrue(restarted.await(1, TimeUnit.SECONDS));
+        release.countDown();
+        _scheduler.submit("second", TaskPriority.NORMAL, () -> {
+            threads.put("second", Thread.currentThread());
+            done.countDown();
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotSame(threads.get("blocking"), threads.get("first"));
+        assertSame(threads.get("first"), threads.get("second"));
+    }
+}
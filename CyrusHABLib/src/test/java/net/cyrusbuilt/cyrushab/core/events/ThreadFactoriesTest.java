@@ -0,0 +1,43 @@
+package net.cyrusbuilt.cyrushab.core.events;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ThreadFactoriesTest {
+    @Test
+    public void platformMode() {
+        assertSame(ThreadFactories.platform(), ThreadFactories.forMode(false));
+    }
+
+    @Test
+    public void virtualModeFallsBackWhenUnsupported() {
+        ThreadFactory factory = ThreadFactories.forMode(true);
+        if (ThreadFactories.isVirtualSupported()) {
+            assertSame(ThreadFactories.virtual(), factory);
+        }
+        else {
+            assertNull(ThreadFactories.virtual());
+            assertSame(ThreadFactories.platform(), factory);
+        }
+    }
+
+    @Test
+    public void processorRunsOnRequestedThreads() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(100);
+        ShardedEventProcessor<Integer> processor = new ShardedEventProcessor<>("test", 16, event -> event,
+                event -> latch.countDown());
+        processor.setThreadFactory(ThreadFactories.forMode(true));
+        processor.start();
+        for (int i = 0; i < 100; i++) {
+            processor.enqueue(i);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        processor.stop(1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,89 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.broker.MqttBroker;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Publishes status messages through {@link MqttManager} to a subscription of its own on an embedded
+ * {@link MqttBroker}, at each QoS level, and reports the end-to-end throughput from the first publish to the last
+ * message received. Unlike the loopback broker the other benchmarks use, the embedded broker does real routing and
+ * acknowledgement, so these figures are close to a single-box install's. Run with
+ * {@code ./gradlew :CyrusHABLib:benchmark}.
+ */
+public class BrokerRoundTripBenchmark {
+    private static final int WARMUP_MESSAGES = 2000;
+    private static final int MEASURED_MESSAGES = 20000;
+    private static final String STATUS_FILTER = "cyrushab/thing/status/#";
+    private static final String STATUS_TOPIC = "cyrushab/thing/status/4";
+    private static final byte[] MESSAGE = "{\"id\":4,\"type\":4,\"client_id\":\"motion-4\",\"state\":1}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Publishes the specified number of messages and waits for them all to come back through the subscription.
+     */
+    private static void roundTrip(MqttManager manager, int count, CountDownLatch[] received) throws Exception {
+        received[0] = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            manager.publishAsync(STATUS_TOPIC, MESSAGE, null);
+        }
+        assertTrue("Timed out waiting for messages.", received[0].await(120, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Measures the round trip throughput at the specified QoS level, in messages per second.
+     */
+    private static double measure(MqttBroker broker, int qos) throws Exception {
+        MqttManager manager = MqttManager.getInstance();
+        manager.setBrokerUrl("tcp://127.0.0.1:" + broker.port());
+        manager.setClientID("round-trip-benchmark");
+        manager.setCleanSession(true);
+        manager.setMaxInFlight(100);
+        manager.setQosPolicy(new QosPolicy.Builder().setDefaultQos(qos).build());
+        manager.setPersistence(PersistenceMode.MEMORY, new File(System.getProperty("java.io.tmpdir")));
+        manager.setProtocolVersion(ProtocolVersion.MQTT_3_1_1);
+        manager.setPublishConnections(1);
+        manager.initialize();
+        try {
+            manager.connect();
+            CountDownLatch[] received = { null };
+            manager.subscribe(STATUS_FILTER, event -> received[0].countDown());
+            roundTrip(manager, WARMUP_MESSAGES, received);
+
+            long start = System.nanoTime();
+            roundTrip(manager, MEASURED_MESSAGES, received);
+            long wall = System.nanoTime() - start;
+            return MEASURED_MESSAGES / (wall / 1e9);
+        }
+        finally {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void roundTripThroughputPerQos() throws Exception {
+        // Queue a whole burst for the subscriber, which falls behind the publisher at QoS 1 and 2, rather than have
+        // the broker drop the overflow.
+        MqttBroker broker = new MqttBroker.Builder().setPort(0).setMaxQueued(MEASURED_MESSAGES).build();
+        broker.start();
+        try {
+            for (int qos = 0; qos <= 2; qos++) {
+                double rate = measure(broker, qos);
+                System.out.println(String.format("QoS %d: %.0f msgs/s round trip", qos, rate));
+                assertTrue(rate > 0);
+            }
+            assertEquals(0, broker.messagesDropped());
+            System.out.println(String.format("Broker: %d received, %d sent, %d dropped",
+                    broker.messagesReceived(), broker.messagesSent(), broker.messagesDropped()));
+        }
+        finally {
+            broker.stop();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.telemetry.LatencyHistogram;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DeliveryLatencyTest {
+    @Test
+    public void classifiesByFirstMatchingFilter() {
+        DeliveryLatency latency = new DeliveryLatency();
+        latency.classify("cyrushab/application/state/+", "thing_state");
+        latency.classify("cyrushab/application/#", "application");
+        assertEquals("thing_state", latency.classOf("cyrushab/application/state/4"));
+        assertEquals("application", latency.classOf("cyrushab/application"));
+        assertEquals(DeliveryLatency.OTHER, latency.classOf("cyrushab/system/status/hab"));
+    }
+
+    @Test
+    public void sharesHistogramWithinClass() {
+        DeliveryLatency latency = new DeliveryLatency();
+        latency.classify("cyrushab/thing/control/+", "thing_control");
+        LatencyHistogram first = latency.histogramFor("cyrushab/thing/control/1");
+        first.record(1000);
+        latency.histogramFor("cyrushab/thing/control/2").record(3000);
+        latency.histogramFor("cyrushab/application").record(5000);
+
+        assertSame(first, latency.histogramFor("cyrushab/thing/control/2"));
+        assertEquals(Arrays.asList(DeliveryLatency.OTHER, "thing_control"),
+                new ArrayList<>(latency.histograms().keySet()));
+        assertEquals(2, latency.histograms().get("thing_control").count());
+        assertEquals(3000, latency.histograms().get("thing_control").max());
+    }
+
+    @Test
+    public void classifyAppliesToTopicsAlreadySeen() {
+        DeliveryLatency latency = new DeliveryLatency();
+        LatencyHistogram other = latency.histogramFor("cyrushab/application");
+        latency.classify("cyrushab/application", "application");
+        assertNotSame(other, latency.histogramFor("cyrushab/application"));
+    }
+
+    @Test
+    public void resetKeepsClasses() {
+        DeliveryLatency latency = new DeliveryLatency();
+        latency.histogramFor("t").record(10);
+        latency.reset();
+        assertEquals(0, latency.histograms().get(DeliveryLatency.OTHER).count());
+        latency.clear();
+        assertTrue(latency.histograms().isEmpty());
+    }
+}
@@ -0,0 +1,189 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.events.OverflowPolicy;
+import net.cyrusbuilt.cyrushab.core.events.ThreadFactories;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ListenerDispatcherTest {
+    private final List<Integer> _calls = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch _release = new CountDownLatch(1);
+    private final CountDownLatch _blocked = new CountDownLatch(1);
+    private ListenerDispatcher<String> _dispatcher;
+
+    private ListenerDispatcher<String> start(int capacity, OverflowPolicy policy) {
+        _dispatcher = new ListenerDispatcher<>("listener", "listener", capacity, policy);
+        _dispatcher.start(ThreadFactories.platform());
+        return _dispatcher;
+    }
+
+    private void record(int value) {
+        _calls.add(value);
+    }
+
+    /**
+     * Queues an event that holds the worker until released, and waits for the worker to pick it up.
+     */
+    private void block() throws InterruptedException {
+        _dispatcher.dispatch(() -> {
+            _blocked.countDown();
+            try {
+                _release.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ignored) {
+            }
+        }, false);
+        assertTrue(_blocked.await(10, TimeUnit.SECONDS));
+    }
+
+    private void drain() {
+        _release.countDown();
+        _dispatcher.stop();
+        _dispatcher.awaitStop(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @After
+    public void tearDown() {
+        if (_dispatcher != null) {
+            drain();
+        }
+    }
+
+    @Test
+    public void dispatchesInOrder() {
+        start(100, OverflowPolicy.BLOCK);
+        for (int i = 0; i < 50; i++) {
+            int value = i;
+            assertTrue(_dispatcher.dispatch(() -> record(value), true));
+        }
+
+        drain();
+        assertEquals(50, _calls.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Integer.valueOf(i), _calls.get(i));
+        }
+        assertEquals(50, _dispatcher.stats().dispatched());
+        assertEquals(50, _dispatcher.stats().lag().count());
+    }
+
+    @Test
+    public void dropNewestDiscardsIncomingMessages() throws InterruptedException {
+        start(2, OverflowPolicy.DROP_NEWEST);
+        block();
+        assertTrue(_dispatcher.dispatch(() -> record(1), true));
+        assertTrue(_dispatcher.dispatch(() -> record(2), true));
+        assertFalse(_dispatcher.dispatch(() -> record(3), true));
+        assertEquals(2, _dispatcher.stats().depth());
+
+        drain();
+        assertEquals(Arrays.asList(1, 2), _calls);
+        assertEquals(1, _dispatcher.stats().dropped());
+    }
+
+    @Test
+    public void dropOldestDiscardsQueuedMessages() throws InterruptedException {
+        start(2, OverflowPolicy.DROP_OLDEST);
+        block();
+        _dispatcher.dispatch(() -> record(1), true);
+        _dispatcher.dispatch(() -> record(2), true);
+        assertTrue(_dispatcher.dispatch(() -> record(3), true));
+
+        drain();
+        assertEquals(Arrays.asList(2, 3), _calls);
+        assertEquals(1, _dispatcher.stats().dropped());
+    }
+
+    @Test
+    public void dropOldestKeepsConnectionEvents() throws InterruptedException {
+        start(2, OverflowPolicy.DROP_OLDEST);
+        block();
+        _dispatcher.dispatch(() -> record(1), false);
+        _dispatcher.dispatch(() -> record(2), true);
+        _dispatcher.dispatch(() -> record(3), true);
+
+        drain();
+        assertEquals(Arrays.asList(1, 3), _calls);
+    }
+
+    @Test
+    public void connectionEventsWaitForRoom() throws InterruptedException {
+        start(1, OverflowPolicy.DROP_NEWEST);
+        block();
+        _dispatcher.dispatch(() -> record(1), true);
+        Thread producer = new Thread(() -> _dispatcher.dispatch(() -> record(2), false));
+        producer.start();
+        producer.join(300);
+        assertTrue(producer.isAlive());
+
+        _release.countDown();
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+        drain();
+        assertEquals(Arrays.asList(1, 2), _calls);
+        assertEquals(0, _dispatcher.stats().dropped());
+    }
+
+    @Test
+    public void blockHoldsProducerUntilThereIsRoom() throws InterruptedException {
+        start(1, OverflowPolicy.BLOCK);
+        block();
+        _dispatcher.dispatch(() -> record(1), true);
+        Thread producer = new Thread(() -> _dispatcher.dispatch(() -> record(2), true));
+        producer.start();
+        producer.join(300);
+        assertTrue(producer.isAlive());
+
+        _release.countDown();
+        producer.join(10000);
+        drain();
+        assertEquals(Arrays.asList(1, 2), _calls);
+    }
+
+    @Test
+    public void countsFailuresAndKeepsGoing() {
+        start(10, OverflowPolicy.BLOCK);
+        _dispatcher.dispatch(() -> {
+            throw new IllegalStateException("listener failed");
+        }, true);
+        _dispatcher.dispatch(() -> record(1), true);
+
+        drain();
+        assertEquals(Collections.singletonList(1), _calls);
+        assertEquals(2, _dispatcher.stats().dispatched());
+        assertEquals(1, _dispatcher.stats().failures());
+    }
+
+    @Test
+    public void ignoresEventsOnceStopped() {
+        start(10, OverflowPolicy.BLOCK);
+        drain();
+        assertFalse(_dispatcher.isRunning());
+        assertFalse(_dispatcher.dispatch(() -> record(1), false));
+        assertTrue(_calls.isEmpty());
+    }
+
+    @Test
+    public void releasesAfterLastFilter() {
+        _dispatcher = new ListenerDispatcher<>("handler", "cyrushab/#", 10, OverflowPolicy.BLOCK);
+        _dispatcher.retain("cyrushab/#");
+        _dispatcher.retain("cyrushab/thing/+");
+        _dispatcher.retain("cyrushab/thing/+");
+        assertFalse(_dispatcher.release("cyrushab/thing/+"));
+        assertFalse(_dispatcher.release("cyrushab/missing"));
+        assertTrue(_dispatcher.release("cyrushab/#"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyQueue() {
+        new ListenerDispatcher<>("listener", "listener", 0, OverflowPolicy.BLOCK);
+    }
+}
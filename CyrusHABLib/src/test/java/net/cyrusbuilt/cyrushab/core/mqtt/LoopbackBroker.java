@@ -0,0 +1,485 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal MQTT 3.1.1 and 5 broker for the benchmarks and the {@link MqttManager} tests. It answers each packet with
+ * the acknowledgement the protocol requires, and only remembers which client IDs have connected with a persistent
+ * session, so it can report the session as present when they come back. The one message it routes is a publish to a
+ * topic the same connection subscribed to by exactly that name, which is echoed back at QoS 0 with its properties.
+ * Optionally, each SUBSCRIBE is followed by a flood of QoS 0 messages to the subscribed topic, to load the subscribing
+ * connection with inbound traffic.
+ */
+final class LoopbackBroker implements Runnable {
+    /**
+     * The number of topic aliases MQTT 5 clients may use for their publishes.
+     */
+    static final int TOPIC_ALIAS_MAXIMUM = 10;
+
+    /**
+     * A message received from a client.
+     */
+    static final class Published {
+        final String topic;
+        final boolean aliased;
+        final Map<String, String> userProperties;
+        final long messageExpiry;
+        final int payloadLength;
+
+        Published(String topic, boolean aliased, Map<String, String> userProperties, long messageExpiry,
+                  int payloadLength) {
+            this.topic = topic;
+            this.aliased = aliased;
+            this.userProperties = userProperties;
+            this.messageExpiry = messageExpiry;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    /**
+     * What the broker knows about one client connection.
+     */
+    private static final class Session {
+        int level = 4;
+        final Map<Integer, String> aliases = new HashMap<>();
+        final Set<String> filters = new HashSet<>();
+    }
+
+    private final ServerSocket _server;
+    private final List<Thread> _threads = new CopyOnWriteArrayList<>();
+    private final List<Socket> _sockets = new CopyOnWriteArrayList<>();
+    private final List<String> _subscribed = new CopyOnWriteArrayList<>();
+    private final List<String> _retained = new CopyOnWriteArrayList<>();
+    private final List<Published> _published = new CopyOnWriteArrayList<>();
+    private final Set<String> _sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong _packets = new AtomicLong(0);
+    private final int _floodMessages;
+    private final byte[] _floodPayload;
+
+    /**
+     * Starts a broker that only acknowledges what it receives.
+     */
+    LoopbackBroker() throws IOException {
+        this(0, new byte[0]);
+    }
+
+    /**
+     * Starts a broker that sends the specified number of QoS 0 messages to each subscriber after acknowledging its
+     * subscription.
+     * @param floodMessages The number of messages to send per subscription.
+     * @param floodPayload The payload of each message.
+     */
+    LoopbackBroker(int floodMessages, byte[] floodPayload) throws IOException {
+        _floodMessages = floodMessages;
+        _floodPayload = floodPayload;
+        _server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        start(this, "LoopbackBroker");
+    }
+
+    int port() {
+        return _server.getLocalPort();
+    }
+
+    long packets() {
+        return _packets.get();
+    }
+
+    /**
+     * Gets the CPU time used by the broker's threads so far, counting only the threads still running.
+     */
+    long cpuTime() {
+        long total = 0;
+        for (Thread thread : _threads) {
+            long time = ManagementFactory.getThreadMXBean().getThreadCpuTime(thread.getId());
+            if (time > 0) {
+                total += time;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gets every topic filter subscribed to so far, in order, counting repeats.
+     */
+    List<String> subscribed() {
+        return _subscribed;
+    }
+
+    /**
+     * Gets the topic of every message published with the retain flag so far, in order.
+     */
+    List<String> retained() {
+        return _retained;
+    }
+
+    /**
+     * Gets every message published so far, in order.
+     */
+    List<Published> published() {
+        return _published;
+    }
+
+    /**
+     * Drops every client connection, as a broker restart would.
+     */
+    void dropConnections() throws IOException {
+        for (Socket socket : _sockets) {
+            socket.close();
+        }
+    }
+
+    void close() throws IOException {
+        _server.close();
+        dropConnections();
+    }
+
+    private void start(Runnable task, String name) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            }
+            finally {
+                _threads.remove(Thread.currentThread());
+            }
+        }, name);
+        thread.setDaemon(true);
+        _threads.add(thread);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!_server.isClosed()) {
+            try {
+                Socket socket = _server.accept();
+                _sockets.add(socket);
+                start(() -> {
+                    try (Socket s = socket) {
+                        s.setTcpNoDelay(true);
+                        serve(new DataInputStream(new BufferedInputStream(s.getInputStream())), s.getOutputStream());
+                    }
+                    catch (IOException ignored) {
+                    }
+                    finally {
+                        _sockets.remove(socket);
+                    }
+                }, "LoopbackBroker-" + socket.getPort());
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void write(OutputStream out, byte[] packet) throws IOException {
+        synchronized (out) {
+            out.write(packet);
+        }
+        _packets.incrementAndGet();
+    }
+
+    private void reply(OutputStream out, int type, int packetId) throws IOException {
+        write(out, new byte[] { (byte)type, 2, (byte)(packetId >> 8), (byte)packetId });
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        do {
+            int digit = value % 128;
+            value /= 128;
+            out.write(value > 0 ? digit | 0x80 : digit);
+        } while (value > 0);
+    }
+
+    /**
+     * Reads a variable byte integer from a packet body.
+     * @return The value and the number of bytes it took.
+     */
+    private static int[] readVarInt(byte[] body, int pos) {
+        int value = 0;
+        int shift = 0;
+        int size = 0;
+        int digit;
+        do {
+            digit = body[pos + size++] & 0xFF;
+            value |= (digit & 0x7F) << shift;
+            shift += 7;
+        } while ((digit & 0x80) != 0);
+        return new int[] { value, size };
+    }
+
+    private static int readShort(byte[] body, int pos) {
+        return ((body[pos] & 0xFF) << 8) | (body[pos + 1] & 0xFF);
+    }
+
+    private static String readString(byte[] body, int pos) {
+        return new String(body, pos + 2, readShort(body, pos), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a QoS 0 PUBLISH packet.
+     * @param properties The encoded properties, without their length, or null for an MQTT 3.1.1 packet.
+     */
+    private static byte[] publishPacket(String topic, byte[] properties, byte[] payload) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        body.write(topicBytes.length >> 8);
+        body.write(topicBytes.length);
+        body.write(topicBytes, 0, topicBytes.length);
+        if (properties != null) {
+            writeVarInt(body, properties.length);
+            body.write(properties, 0, properties.length);
+        }
+        body.write(payload, 0, payload.length);
+
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        packet.write(0x30);
+        writeVarInt(packet, body.size());
+        packet.write(body.toByteArray(), 0, body.size());
+        return packet.toByteArray();
+    }
+
+    /**
+     * Sends the flood messages to a subscriber, on a thread of their own so the connection keeps answering.
+     */
+    private void flood(OutputStream out, Session session, String filter) {
+        String topic = filter.replace("/#", "").replace("#", "flood").replace("+", "flood");
+        byte[] packet = publishPacket(topic, session.level == 5 ? new byte[0] : null, _floodPayload);
+        start(() -> {
+            try {
+                for (int i = 0; i < _floodMessages; i++) {
+                    write(out, packet);
+                }
+            }
+            catch (IOException ignored) {
+            }
+        }, "LoopbackBroker-flood");
+    }
+
+    /**
+     * Reads a CONNECT, noting the protocol level, and returns whether there is a session to resume for the client.
+     */
+    private boolean connect(Session session, byte[] body) {
+        int pos = 2 + readShort(body, 0);
+        session.level = body[pos++];
+        boolean clean = (body[pos] & 0x02) != 0;
+        pos += 3;
+        if (session.level == 5) {
+            int[] properties = readVarInt(body, pos);
+            pos += properties[1] + properties[0];
+        }
+
+        String clientId = readString(body, pos);
+        if (clean) {
+            _sessions.remove(clientId);
+            return false;
+        }
+        return !_sessions.add(clientId);
+    }
+
+    /**
+     * Gets the position of the first byte after the packet ID and, for MQTT 5, the properties.
+     */
+    private static int skipHeader(Session session, byte[] body) {
+        int pos = 2;
+        if (session.level == 5) {
+            int[] properties = readVarInt(body, pos);
+            pos += properties[1] + properties[0];
+        }
+        return pos;
+    }
+
+    /**
+     * Builds a SUBACK or UNSUBACK with a success reason code for each filter.
+     */
+    private static byte[] ack(Session session, int type, byte[] body, int filters) {
+        int extra = session.level == 5 ? 1 : 0;
+        byte[] ack = new byte[4 + extra + filters];
+        ack[0] = (byte)type;
+        ack[1] = (byte)(2 + extra + filters);
+        ack[2] = body[0];
+        ack[3] = body[1];
+        return ack;
+    }
+
+    /**
+     * Acknowledges a SUBSCRIBE, granting QoS 0 to each of its filters, and starts the flood if there is one.
+     */
+    private void subscribe(OutputStream out, Session session, byte[] body) throws IOException {
+        List<String> filters = new ArrayList<>();
+        int pos = skipHeader(session, body);
+        while (pos < body.length) {
+            String filter = readString(body, pos);
+            filters.add(filter);
+            pos += 3 + readShort(body, pos);
+        }
+
+        _subscribed.addAll(filters);
+        session.filters.addAll(filters);
+        write(out, ack(session, 0x90, body, filters.size()));
+        if (_floodMessages > 0) {
+            for (String filter : filters) {
+                flood(out, session, filter);
+            }
+        }
+    }
+
+    /**
+     * Acknowledges an UNSUBSCRIBE.
+     */
+    private void unsubscribe(OutputStream out, Session session, byte[] body) throws IOException {
+        int filters = 0;
+        int pos = skipHeader(session, body);
+        while (pos < body.length) {
+            session.filters.remove(readString(body, pos));
+            pos += 2 + readShort(body, pos);
+            filters++;
+        }
+        write(out, ack(session, 0xB0, body, session.level == 5 ? filters : 0));
+    }
+
+    /**
+     * Records a PUBLISH, acknowledges it, and echoes it back if the connection subscribed to its topic.
+     */
+    private void publish(OutputStream out, Session session, int header, byte[] body) throws IOException {
+        int qos = (header >> 1) & 3;
+        String topic = readString(body, 0);
+        int pos = 2 + readShort(body, 0);
+        int packetId = 0;
+        if (qos > 0) {
+            packetId = readShort(body, pos);
+            pos += 2;
+        }
+
+        boolean aliased = false;
+        Map<String, String> userProperties = new LinkedHashMap<>();
+        long expiry = 0;
+        ByteArrayOutputStream echoed = null;
+        if (session.level == 5) {
+            echoed = new ByteArrayOutputStream();
+            int[] length = readVarInt(body, pos);
+            pos += length[1];
+            int end = pos + length[0];
+            while (pos < end) {
+                int id = body[pos++];
+                int start = pos;
+                switch (id) {
+                    case 0x02: // Message Expiry Interval
+                        expiry = ((long)readShort(body, pos) << 16) | readShort(body, pos + 2);
+                        pos += 4;
+                        break;
+                    case 0x23: // Topic Alias
+                        int alias = readShort(body, pos);
+                        pos += 2;
+                        if (topic.isEmpty()) {
+                            topic = session.aliases.get(alias);
+                            aliased = true;
+                        }
+                        else {
+                            session.aliases.put(alias, topic);
+                        }
+                        continue;
+                    case 0x26: // User Property
+                        String key = readString(body, pos);
+                        pos += 2 + readShort(body, pos);
+                        userProperties.put(key, readString(body, pos));
+                        pos += 2 + readShort(body, pos);
+                        break;
+                    default:
+                        throw new IOException("Unexpected property " + id);
+                }
+                echoed.write(id);
+                echoed.write(body, start, pos - start);
+            }
+        }
+
+        _published.add(new Published(topic, aliased, userProperties, expiry, body.length - pos));
+        if ((header & 1) != 0) {
+            _retained.add(topic);
+        }
+
+        if (qos > 0) {
+            reply(out, qos == 1 ? 0x40 : 0x50, packetId);
+        }
+
+        if (session.filters.contains(topic)) {
+            byte[] payload = new byte[body.length - pos];
+            System.arraycopy(body, pos, payload, 0, payload.length);
+            write(out, publishPacket(topic, echoed == null ? null : echoed.toByteArray(), payload));
+        }
+    }
+
+    private void serve(DataInputStream in, OutputStream out) throws IOException {
+        Session session = new Session();
+        while (true) {
+            int header;
+            try {
+                header = in.readUnsignedByte();
+            }
+            catch (EOFException e) {
+                return;
+            }
+
+            int length = 0;
+            int shift = 0;
+            int digit;
+            do {
+                digit = in.readUnsignedByte();
+                length |= (digit & 0x7F) << shift;
+                shift += 7;
+            } while ((digit & 0x80) != 0);
+
+            byte[] body = new byte[length];
+            in.readFully(body);
+            _packets.incrementAndGet();
+            switch (header >> 4) {
+                case 1: // CONNECT
+                    byte present = (byte)(connect(session, body) ? 1 : 0);
+                    if (session.level == 5) {
+                        write(out, new byte[] { 0x20, 6, present, 0, 3, 0x22, 0, TOPIC_ALIAS_MAXIMUM });
+                    }
+                    else {
+                        write(out, new byte[] { 0x20, 2, present, 0 });
+                    }
+                    break;
+                case 3: // PUBLISH
+                    publish(out, session, header, body);
+                    break;
+                case 6: // PUBREL
+                    reply(out, 0x70, ((body[0] & 0xFF) << 8) | (body[1] & 0xFF));
+                    break;
+                case 8: // SUBSCRIBE
+                    subscribe(out, session, body);
+                    break;
+                case 10: // UNSUBSCRIBE
+                    unsubscribe(out, session, body);
+                    break;
+                case 12: // PINGREQ
+                    write(out, new byte[] { (byte)0xD0, 0 });
+                    break;
+                case 14: // DISCONNECT
+                    return;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedLogPersistenceTest {
+    private static final String CLIENT_ID = "hab_daemon_1";
+    private static final String SERVER_URI = "tcp://127.0.0.1:1883";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MqttPersistable persistable(String header, String payload) {
+        final byte[] headerBytes = ("xx" + header).getBytes(StandardCharsets.UTF_8);
+        final byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        return new MqttPersistable() {
+            @Override
+            public byte[] getHeaderBytes() {
+                return headerBytes;
+            }
+
+            @Override
+            public int getHeaderLength() {
+                return headerBytes.length - 2;
+            }
+
+            @Override
+            public int getHeaderOffset() {
+                return 2;
+            }
+
+            @Override
+            public byte[] getPayloadBytes() {
+                return payloadBytes;
+            }
+
+            @Override
+            public int getPayloadLength() {
+                return payloadBytes.length;
+            }
+
+            @Override
+            public int getPayloadOffset() {
+                return 0;
+            }
+        };
+    }
+
+    private static String header(MqttPersistable persistable) throws MqttPersistenceException {
+        return new String(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength(),
+                StandardCharsets.UTF_8);
+    }
+
+    private static String payload(MqttPersistable persistable) throws MqttPersistenceException {
+        return new String(persistable.getPayloadBytes(), persistable.getPayloadOffset(),
+                persistable.getPayloadLength(), StandardCharsets.UTF_8);
+    }
+
+    private File[] segmentFiles() {
+        File[] dirs = folder.getRoot().listFiles(File::isDirectory);
+        assertNotNull(dirs);
+        assertEquals(1, dirs.length);
+        File[] files = dirs[0].listFiles();
+        assertNotNull(files);
+        return files;
+    }
+
+    @Test
+    public void putGetRemove() throws MqttPersistenceException {
+        MappedLogPersistence store = new MappedLogPersistence(folder.getRoot());
+        store.open(CLIENT_ID, SERVER_URI);
+        store.put("s-1", persistable("h1", "p1"));
+        store.put("s-2", persistable("h2", "p2"));
+        assertTrue(store.containsKey("s-1"));
+        assertEquals("h1", header(store.get("s-1")));
+        assertEquals("p2", payload(store.get("s-2")));
+
+        store.put("s-1", persistable("h1b", ""));
+        assertEquals("h1b", header(store.get("s-1")));
+        assertEquals(0, store.get("s-1").getPayloadLength());
+
+        store.remove("s-2");
+        store.remove("missing");
+        assertFalse(store.containsKey("s-2"));
+        assertNull(store.get("s-2"));
+        List<?> keys = Collections.list(store.keys());
+        assertEquals(Collections.singletonList("s-1"), keys);
+        store.close();
+    }
+
+    @Test
+    public void reopenRestoresMessages() throws MqttPersistenceException {
+        MappedLogPersistence store = new MappedLogPersistence(folder.getRoot(), 256);
+        store.open(CLIENT_ID, SERVER_URI);
+        for (int i = 0; i < 50; i++) {
+            store.put("s-" + i, persistable("header" + i, "payload" + i));
+        }
+        for (int i = 0; i < 50; i += 2) {
+            store.remove("s-" + i);
+        }
+        store.close();
+
+        MappedLogPersistence reopened = new MappedLogPersistence(folder.getRoot(), 256);
+        reopened.open(CLIENT_ID, SERVER_URI);
+        assertEquals(25, Collections.list(reopened.keys()).size());
+        assertFalse(reopened.containsKey("s-0"));
+        assertEquals("header49", header(reopened.get("s-49")));
+        assertEquals("payload1", payload(reopened.get("s-1")));
+        assertEquals(reopened.segmentCount(), segmentFiles().length);
+        reopened.close();
+    }
+
+    @Test
+    public void removedSegmentsAreDeleted() throws MqttPersistenceException {
+        MappedLogPersistence store = new MappedLogPersistence(folder.getRoot(), 128);
+        store.open(CLIENT_ID, SERVER_URI);
+        for (int i = 0; i < 1000; i++) {
+            store.put("s-" + i, persistable("header", "payload " + i));
+            store.remove("s-" + i);
+        }
+        assertTrue(store.segmentCount() <= 2);
+        assertEquals(store.segmentCount(), segmentFiles().length);
+
+        store.put("s-big", persistable("header", new String(new char[1000]).replace('\0', 'x')));
+        assertEquals(1000, store.get("s-big").getPayloadLength());
+        store.close();
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws Exception {
+        MappedLogPersistence store = new MappedLogPersistence(folder.getRoot());
+        store.open(CLIENT_ID, SERVER_URI);
+        store.put("s-1", persistable("h1", "p1"));
+        store.close();
+
+        // Fake a crash part way through appending a second record: its body is there but not its type byte.
+        File segment = segmentFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            long end = 3 + "s-1".length() + 8 + 2 + 2;
+            raf.seek(end + 1);
+            raf.writeShort(3);
+            raf.write("s-2".getBytes(StandardCharsets.UTF_8));
+        }
+
+        MappedLogPersistence reopened = new MappedLogPersistence(folder.getRoot());
+        reopened.open(CLIENT_ID, SERVER_URI);
+        assertTrue(reopened.containsKey("s-1"));
+        assertFalse(reopened.containsKey("s-2"));
+        reopened.close();
+    }
+
+    @Test
+    public void clear() throws MqttPersistenceException {
+        MappedLogPersistence store = new MappedLogPersistence(folder.getRoot());
+        store.open(CLIENT_ID, SERVER_URI);
+        store.put("s-1", persistable("h1", "p1"));
+        store.clear();
+        assertFalse(store.containsKey("s-1"));
+        store.close();
+
+        store.open(CLIENT_ID, SERVER_URI);
+        assertFalse(store.keys().hasMoreElements());
+        store.close();
+    }
+
+    @Test(expected = MqttPersistenceException.class)
+    public void notOpen() throws MqttPersistenceException {
+        new MappedLogPersistence(folder.getRoot()).put("s-1", persistable("h1", "p1"));
+    }
+}
@@ -0,0 +1,67 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.things.ThingType;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessagePropertiesTest {
+    @Test
+    public void emptyBuilderGivesNone() {
+        assertSame(MessageProperties.NONE, new MessageProperties.Builder().build());
+        assertTrue(MessageProperties.NONE.isEmpty());
+        assertNull(MessageProperties.NONE.thingType());
+        assertNull(MessageProperties.NONE.thingID());
+        assertNull(MessageProperties.NONE.correlationId());
+    }
+
+    @Test
+    public void wellKnownPropertiesRoundTrip() {
+        MessageProperties properties = new MessageProperties.Builder()
+                .setThingType(ThingType.THERMOSTAT)
+                .setThingID(12)
+                .setCorrelationId(99L)
+                .setUserProperty("origin", "test")
+                .setMessageExpiry(30)
+                .build();
+        assertFalse(properties.isEmpty());
+        assertEquals(ThingType.THERMOSTAT, properties.thingType());
+        assertEquals(Integer.valueOf(12), properties.thingID());
+        assertEquals(Long.valueOf(99L), properties.correlationId());
+        assertEquals("test", properties.userProperty("origin"));
+        assertEquals(30, properties.messageExpiry());
+        assertEquals(4, properties.userProperties().size());
+    }
+
+    @Test
+    public void malformedNumbersReadAsNull() {
+        MessageProperties properties = new MessageProperties.Builder()
+                .setUserProperty(MessageProperties.THING_ID, "seven")
+                .build();
+        assertNull(properties.thingID());
+    }
+
+    @Test
+    public void withMessageExpiryKeepsUserProperties() {
+        MessageProperties properties = new MessageProperties.Builder().setThingID(1).setMessageExpiry(30).build();
+        MessageProperties shorter = properties.withMessageExpiry(10);
+        assertEquals(10, shorter.messageExpiry());
+        assertEquals(Integer.valueOf(1), shorter.thingID());
+        assertSame(MessageProperties.NONE, new MessageProperties.Builder().setMessageExpiry(5).build()
+                .withMessageExpiry(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeExpiryIsRejected() {
+        new MessageProperties.Builder().setMessageExpiry(-1);
+    }
+
+    @Test
+    public void mqtt5PropertiesRoundTrip() {
+        MessageProperties properties = new MessageProperties.Builder().setThingID(5).setMessageExpiry(20).build();
+        MessageProperties copy = Mqtt5Connection.fromMqttProperties(Mqtt5Connection.toMqttProperties(properties));
+        assertEquals(properties.userProperties(), copy.userProperties());
+        assertEquals(20, copy.messageExpiry());
+        assertSame(MessageProperties.NONE, Mqtt5Connection.fromMqttProperties(null));
+    }
+}
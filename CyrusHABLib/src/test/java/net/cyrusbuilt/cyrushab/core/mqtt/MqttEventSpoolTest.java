@@ -0,0 +1,96 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.telemetry.EventTrace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class MqttEventSpoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        File file = new File(folder.getRoot(), "events.spool");
+        MqttEventSpool spool = new MqttEventSpool();
+        spool.addInbound(Arrays.asList(
+                new MqttManager.MqttEvent("cyrushab/thing/control", "{\"id\":1,\"type\":2}", 7),
+                new MqttManager.MqttEvent("cyrushab/system/control", "{\"type\":6,\"command\":3}", 8)));
+        spool.addOutbound(Collections.singletonList(
+                new MqttManager.MqttEvent("cyrushab/thing/control/1", "{\"name\":\"caf\u00e9\"}", 9,
+                        new EventTrace(42))));
+        assertEquals(3, spool.size());
+        spool.save(file);
+        assertTrue(file.exists());
+
+        MqttEventSpool loaded = MqttEventSpool.load(file);
+        assertEquals(2, loaded.inbound().size());
+        assertEquals(1, loaded.outbound().size());
+        assertEquals("cyrushab/thing/control", loaded.inbound().get(0).topic());
+        assertEquals("{\"id\":1,\"type\":2}", loaded.inbound().get(0).message());
+        assertEquals(7, loaded.inbound().get(0).messageId());
+        assertEquals(8, loaded.inbound().get(1).messageId());
+        assertEquals("{\"name\":\"caf\u00e9\"}", loaded.outbound().get(0).message());
+        assertEquals(42, loaded.outbound().get(0).correlationId());
+        assertEquals(spool.inbound().get(0).correlationId(), loaded.inbound().get(0).correlationId());
+    }
+
+    @Test
+    public void payloadBytesArePreserved() throws IOException {
+        File file = new File(folder.getRoot(), "events.spool");
+        byte[] payload = new byte[] { 0x7B, (byte)0xC3, (byte)0xA9, (byte)0xFF, 0x00, 0x7D };
+        MqttEventSpool spool = new MqttEventSpool();
+        spool.addOutbound(Collections.singletonList(new MqttManager.MqttEvent("cyrushab/raw", payload, 3)));
+        spool.save(file);
+
+        MqttManager.MqttEvent loaded = MqttEventSpool.load(file).outbound().get(0);
+        assertArrayEquals(payload, loaded.payload());
+        assertEquals("{\u00e9\ufffd\u0000}", loaded.message());
+        assertEquals(payload.length, loaded.payloadBuffer().remaining());
+        assertTrue(loaded.payloadBuffer().isReadOnly());
+    }
+
+    @Test
+    public void loadMissingFile() throws IOException {
+        MqttEventSpool spool = MqttEventSpool.load(new File(folder.getRoot(), "missing.spool"));
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void saveEmptyDeletesFile() throws IOException {
+        File file = folder.newFile("events.spool");
+        new MqttEventSpool().save(file);
+        assertFalse(file.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void loadUnsupportedVersion() throws IOException {
+        File file = folder.newFile("events.spool");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x43484553);
+            out.writeByte(9);
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+        MqttEventSpool.load(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void loadCorruptFile() throws IOException {
+        File file = folder.newFile("events.spool");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] { 1, 2, 3, 4, 5 });
+        }
+        MqttEventSpool.load(file);
+    }
+}
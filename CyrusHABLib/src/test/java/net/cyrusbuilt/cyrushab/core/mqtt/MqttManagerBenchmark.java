@@ -0,0 +1,87 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Publishes a burst of QoS 2 control messages through {@link MqttManager} while the broker floods the subscription
+ * with status messages, once with publishing sharing the subscriber connection and once with a separate publisher
+ * connection, and reports the outbound throughput of each. A {@link LoopbackBroker} stands in for a real one. Run with
+ * {@code ./gradlew :CyrusHABLib:benchmark}.
+ */
+public class MqttManagerBenchmark {
+    private static final int WARMUP_MESSAGES = 5000;
+    private static final int MEASURED_MESSAGES = 20000;
+    private static final int FLOOD_MESSAGES = 500000;
+    private static final String STATUS_FILTER = "cyrushab/thing/status/#";
+    private static final String CONTROL_TOPIC = "cyrushab/thing/control/4";
+    private static final String MESSAGE = "{\"id\":4,\"type\":4,\"client_id\":\"motion-4\",\"state\":1}";
+
+    /**
+     * Publishes the specified number of control messages and waits for them all to be confirmed.
+     */
+    private static void publish(MqttManager manager, int count) throws Exception {
+        List<CompletableFuture<Void>> pending = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            pending.add(manager.publishAsync(CONTROL_TOPIC, MESSAGE, null));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).get(120, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Publishes a burst of control messages under an inbound flood and returns {published messages per second,
+     * inbound messages received meanwhile}.
+     */
+    private static double[] measure(int publishConnections) throws Exception {
+        LoopbackBroker broker = new LoopbackBroker(FLOOD_MESSAGES, MESSAGE.getBytes(StandardCharsets.UTF_8));
+        MqttManager manager = MqttManager.getInstance();
+        manager.setBrokerUrl("tcp://127.0.0.1:" + broker.port());
+        manager.setClientID("connection-benchmark");
+        manager.setCleanSession(true);
+        manager.setMaxInFlight(100);
+        manager.setQosPolicy(QosPolicy.EXACTLY_ONCE);
+        manager.setPersistence(PersistenceMode.MEMORY, new File(System.getProperty("java.io.tmpdir")));
+        manager.setPublishConnections(publishConnections);
+        manager.initialize();
+        try {
+            manager.connect();
+            publish(manager, WARMUP_MESSAGES);
+
+            AtomicLong received = new AtomicLong(0);
+            manager.subscribe(STATUS_FILTER, event -> received.incrementAndGet());
+            long start = System.nanoTime();
+            publish(manager, MEASURED_MESSAGES);
+            long wall = System.nanoTime() - start;
+            return new double[] {
+                    MEASURED_MESSAGES / (wall / 1e9),
+                    received.get()
+            };
+        }
+        finally {
+            manager.shutdown();
+            broker.close();
+        }
+    }
+
+    @Test
+    public void publishThroughputUnderInboundLoad() throws Exception {
+        double[] shared = measure(0);
+        double[] separate = measure(1);
+        System.out.println(String.format("Shared connection: %.0f msgs/s published, %.0f received meanwhile",
+                shared[0], shared[1]));
+        System.out.println(String.format("Separate connections: %.0f msgs/s published, %.0f received meanwhile " +
+                "(%.2fx)", separate[0], separate[1], separate[0] / shared[0]));
+
+        assertTrue(shared[1] > 0);
+        assertTrue(separate[1] > 0);
+    }
+}
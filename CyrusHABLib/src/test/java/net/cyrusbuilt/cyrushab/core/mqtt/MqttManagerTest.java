@@ -0,0 +1,355 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.events.OverflowPolicy;
+import net.cyrusbuilt.cyrushab.core.things.ThingType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MqttManagerTest {
+    private LoopbackBroker _broker;
+    private MqttManager _manager;
+    private CountDownLatch _lost;
+    private CountDownLatch _reconnected;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new LoopbackBroker();
+        _lost = new CountDownLatch(1);
+        _reconnected = new CountDownLatch(1);
+        _manager = MqttManager.getInstance();
+        _manager.setBrokerUrl("tcp://127.0.0.1:" + _broker.port());
+        _manager.setClientID("manager-test");
+        _manager.setCleanSession(true);
+        _manager.setPersistence(PersistenceMode.MEMORY, new File(System.getProperty("java.io.tmpdir")));
+        _manager.setPublishConnections(0);
+        _manager.setOfflineBuffer(null);
+        _manager.setReconnectPolicy(null);
+        _manager.setProtocolVersion(ProtocolVersion.MQTT_3_1_1);
+        _manager.setCompressionThreshold(MqttManager.COMPRESSION_DISABLED);
+        _manager.setListenerQueue(MqttManager.DEFAULT_LISTENER_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+        _manager.addListener(new MqttManager.MqttEventListener() {
+            @Override
+            public void onConnectionLost(Throwable cause) {
+                _lost.countDown();
+            }
+
+            @Override
+            public void onMessageDelivered(MqttManager.MqttEvent event) {
+            }
+
+            @Override
+            public void onReconnected() {
+                _reconnected.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _manager.shutdown();
+        _broker.close();
+    }
+
+    private void dropAndReconnect() throws Exception {
+        _broker.dropConnections();
+        assertTrue(_lost.await(10, TimeUnit.SECONDS));
+        assertFalse(_manager.isConnected());
+        _manager.connect();
+        assertTrue(_manager.isConnected());
+    }
+
+    @Test
+    public void restoresSubscriptionsAfterReconnect() throws Exception {
+        _manager.initialize();
+        _manager.subscribe("cyrushab/system/control");
+        _manager.subscribe("cyrushab/thing/status/#", event -> { });
+        assertEquals(Arrays.asList("cyrushab/system/control", "cyrushab/thing/status/#"), _manager.subscriptions());
+
+        dropAndReconnect();
+        assertEquals(Arrays.asList("cyrushab/system/control", "cyrushab/thing/status/#",
+                "cyrushab/system/control", "cyrushab/thing/status/#"), _broker.subscribed());
+    }
+
+    @Test
+    public void persistentSessionKeepsSubscriptionsOnBroker() throws Exception {
+        _manager.setCleanSession(false);
+        _manager.initialize();
+        _manager.subscribe("cyrushab/system/control");
+
+        dropAndReconnect();
+        assertEquals(Collections.singletonList("cyrushab/system/control"), _broker.subscribed());
+    }
+
+    @Test
+    public void unsubscribeForgetsFilter() throws Exception {
+        MqttManager.MqttMessageHandler handler = event -> { };
+        _manager.initialize();
+        _manager.subscribe("cyrushab/thing/control/#", handler);
+        _manager.unsubscribe("cyrushab/thing/control/#", handler);
+        assertTrue(_manager.subscriptions().isEmpty());
+
+        dropAndReconnect();
+        assertEquals(Collections.singletonList("cyrushab/thing/control/#"), _broker.subscribed());
+    }
+
+    @Test
+    public void offlineBufferReplaysOnConnect() throws Exception {
+        OfflineBuffer buffer = new OfflineBuffer(10, null);
+        _manager.setOfflineBuffer(buffer);
+        _manager.initialize();
+        CompletableFuture<Void> first = _manager.publishAsync("cyrushab/application", "one", null);
+        CompletableFuture<Void> second = _manager.publishAsync("cyrushab/application", "two", null);
+        assertEquals(2, buffer.size());
+        assertFalse(first.isDone());
+
+        _manager.connect();
+        CompletableFuture.allOf(first, second).get(10, TimeUnit.SECONDS);
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void reconnectsAutomatically() throws Exception {
+        _manager.setReconnectPolicy(new ReconnectPolicy.Builder().setBaseDelay(10).build());
+        _manager.setPublishConnections(1);
+        _manager.initialize();
+        _manager.connect();
+        _manager.subscribe("cyrushab/system/control");
+
+        _broker.dropConnections();
+        assertTrue(_lost.await(10, TimeUnit.SECONDS));
+        assertTrue(_reconnected.await(10, TimeUnit.SECONDS));
+        assertTrue(_manager.isConnected());
+        assertEquals(Arrays.asList("cyrushab/system/control", "cyrushab/system/control"), _broker.subscribed());
+    }
+
+    @Test
+    public void retainedTopicsSetRetainFlag() throws Exception {
+        _manager.initialize();
+        _manager.retain("cyrushab/application/state/+");
+        _manager.publish("cyrushab/application/state/4", "{}");
+        _manager.publish("cyrushab/application", "{}");
+        _manager.publish("cyrushab/application/state/4/extra", "{}");
+        assertEquals(Collections.singletonList("cyrushab/application/state/4"), _broker.retained());
+    }
+
+    @Test
+    public void recordsDeliveryLatencyPerTopicClass() throws Exception {
+        _manager.initialize();
+        _manager.deliveryLatency().classify("cyrushab/thing/control/+", "thing_control");
+        _manager.publish("cyrushab/thing/control/1", "{}");
+        _manager.publish("cyrushab/thing/control/2", "{}");
+        _manager.publish("cyrushab/application", "{}");
+
+        assertEquals(2, _manager.deliveryLatency().histograms().get("thing_control").count());
+        assertEquals(1, _manager.deliveryLatency().histograms().get(DeliveryLatency.OTHER).count());
+    }
+
+    @Test
+    public void mqtt5PublishCarriesPropertiesAndAliasesRepeatedTopics() throws Exception {
+        _manager.setProtocolVersion(ProtocolVersion.MQTT_5);
+        _manager.initialize();
+        MessageProperties properties = new MessageProperties.Builder()
+                .setThingType(ThingType.SWITCH)
+                .setThingID(7)
+                .setMessageExpiry(30)
+                .build();
+        _manager.publishAsync("cyrushab/thing/control/7", new byte[] { 1 }, null, properties)
+                .get(10, TimeUnit.SECONDS);
+        _manager.publishAsync("cyrushab/thing/control/7", new byte[] { 2 }, null, properties)
+                .get(10, TimeUnit.SECONDS);
+
+        assertEquals(2, _broker.published().size());
+        for (LoopbackBroker.Published published : _broker.published()) {
+            assertEquals("cyrushab/thing/control/7", published.topic);
+            assertEquals("2", published.userProperties.get(MessageProperties.THING_TYPE));
+            assertEquals("7", published.userProperties.get(MessageProperties.THING_ID));
+            assertEquals(30, published.messageExpiry);
+        }
+        assertFalse(_broker.published().get(0).aliased);
+        assertTrue(_broker.published().get(1).aliased);
+    }
+
+    @Test
+    public void mqtt5ReceivedMessagesCarryProperties() throws Exception {
+        _manager.setProtocolVersion(ProtocolVersion.MQTT_5);
+        _manager.initialize();
+        CompletableFuture<MqttManager.MqttEvent> received = new CompletableFuture<>();
+        _manager.subscribe("cyrushab/thing/status/3", received::complete);
+        MessageProperties properties = new MessageProperties.Builder()
+                .setThingType(ThingType.DOOR)
+                .setThingID(3)
+                .setCorrelationId(42)
+                .build();
+        _manager.publish("cyrushab/thing/status/3", new byte[] { 1 }, null, properties);
+
+        MqttManager.MqttEvent event = received.get(10, TimeUnit.SECONDS);
+        assertEquals(ThingType.DOOR, event.properties().thingType());
+        assertEquals(Integer.valueOf(3), event.properties().thingID());
+        assertEquals(42, event.trace().correlationId());
+    }
+
+    @Test
+    public void mqtt311ReceivedMessagesHaveNoProperties() throws Exception {
+        _manager.initialize();
+        CompletableFuture<MqttManager.MqttEvent> received = new CompletableFuture<>();
+        _manager.subscribe("cyrushab/thing/status/3", received::complete);
+        _manager.publish("cyrushab/thing/status/3", new byte[] { 1 }, null,
+                new MessageProperties.Builder().setThingID(3).build());
+
+        assertTrue(received.get(10, TimeUnit.SECONDS).properties().isEmpty());
+        assertTrue(_broker.published().get(0).userProperties.isEmpty());
+    }
+
+    @Test
+    public void compressesLargeCompressiblePayloadsAndInflatesOnReceipt() throws Exception {
+        _manager.setCompressionThreshold(1024);
+        _manager.initialize();
+        CompletableFuture<MqttManager.MqttEvent> received = new CompletableFuture<>();
+        _manager.subscribe("cyrushab/application", received::complete);
+
+        StringBuilder inventory = new StringBuilder("{\"things\":[");
+        for (int i = 0; i < 100; i++) {
+            inventory.append("{\"id\":").append(i).append(",\"type\":2,\"name\":\"light ").append(i).append("\"},");
+        }
+        String message = inventory.append("]}").toString();
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        _manager.publishAsync("cyrushab/application", payload, null, MessageProperties.NONE, true)
+                .get(10, TimeUnit.SECONDS);
+
+        assertTrue(_broker.published().get(0).payloadLength < payload.length / 2);
+        assertEquals(message, received.get(10, TimeUnit.SECONDS).message());
+    }
+
+    @Test
+    public void sendsPayloadsAsTheyAreUnlessCompressibleAndLarge() throws Exception {
+        _manager.setCompressionThreshold(16);
+        _manager.initialize();
+        byte[] large = new byte[1024];
+        _manager.publishAsync("cyrushab/application", large, null, MessageProperties.NONE, false)
+                .get(10, TimeUnit.SECONDS);
+        _manager.publishAsync("cyrushab/application", new byte[8], null, MessageProperties.NONE, true)
+                .get(10, TimeUnit.SECONDS);
+        _manager.publish("cyrushab/application", large, null);
+
+        assertEquals(1024, _broker.published().get(0).payloadLength);
+        assertEquals(8, _broker.published().get(1).payloadLength);
+        assertEquals(1024, _broker.published().get(2).payloadLength);
+    }
+
+    @Test
+    public void slowListenerDoesNotHoldUpHandlers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        _manager.addListener(new MqttManager.MqttEventListener() {
+            @Override
+            public void onMessageReceived(MqttManager.MqttEvent event) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+
+            @Override
+            public void onConnectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void onMessageDelivered(MqttManager.MqttEvent event) {
+            }
+        }, 1, OverflowPolicy.DROP_NEWEST);
+        _manager.initialize();
+        CountDownLatch handled = new CountDownLatch(5);
+        _manager.subscribe("cyrushab/thing/status/5", event -> handled.countDown());
+        for (int i = 0; i < 5; i++) {
+            _manager.publish("cyrushab/thing/status/5", "{}");
+        }
+
+        assertTrue(handled.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        List<DispatchStats> stats = _manager.dispatchStats();
+        assertEquals(3, stats.size());
+        assertEquals("cyrushab/thing/status/5", stats.get(2).name());
+        assertTrue(stats.get(1).dropped() > 0);
+        assertEquals(0, stats.get(2).dropped());
+    }
+
+    @Test
+    public void callsEveryHandlerOnFilterUntilUnsubscribed() throws Exception {
+        _manager.initialize();
+        String topic = "cyrushab/thing/status/6";
+        CountDownLatch first = new CountDownLatch(2);
+        CountDownLatch second = new CountDownLatch(1);
+        MqttManager.MqttMessageHandler secondHandler = event -> second.countDown();
+        _manager.subscribe(topic, event -> first.countDown());
+        _manager.subscribe(topic, secondHandler);
+        assertEquals(Collections.singletonList(topic), _broker.subscribed());
+        assertEquals(3, _manager.dispatchStats().size());
+
+        _manager.publish(topic, "{}");
+        assertTrue(second.await(10, TimeUnit.SECONDS));
+
+        _manager.unsubscribe(topic, secondHandler);
+        assertEquals(2, _manager.dispatchStats().size());
+        assertEquals(Collections.singletonList(topic), _manager.subscriptions());
+        _manager.publish(topic, "{}");
+        assertTrue(first.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void onlySendsReceivedMessagesToListenersThatHandleThem() {
+        MqttManager.MqttEventListener connectionOnly = new MqttManager.MqttEventListener() {
+            @Override
+            public void onConnectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void onMessageDelivered(MqttManager.MqttEvent event) {
+            }
+        };
+        MqttManager.MqttEventListener receiver = new MqttManager.MqttEventListener() {
+            @Override
+            public void onConnectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void onMessageReceived(MqttManager.MqttEvent event) {
+            }
+
+            @Override
+            public void onMessageDelivered(MqttManager.MqttEvent event) {
+            }
+        };
+        assertFalse(MqttManager.receivesMessages(connectionOnly));
+        assertTrue(MqttManager.receivesMessages(receiver));
+    }
+
+    @Test
+    public void handlerQueueCanBeSetPerSubscription() throws Exception {
+        _manager.setListenerQueue(10, OverflowPolicy.DROP_OLDEST);
+        _manager.initialize();
+        _manager.subscribe("cyrushab/system/control", event -> { }, 100, OverflowPolicy.BLOCK);
+        _manager.subscribe("cyrushab/thing/status/+", event -> { });
+
+        List<DispatchStats> stats = _manager.dispatchStats();
+        DispatchStats control = stats.stream().filter(s -> s.name().equals("cyrushab/system/control"))
+                .findFirst().get();
+        DispatchStats status = stats.stream().filter(s -> s.name().equals("cyrushab/thing/status/+"))
+                .findFirst().get();
+        assertEquals(OverflowPolicy.BLOCK, control.overflowPolicy());
+        assertEquals(100, control.capacity());
+        assertEquals(OverflowPolicy.DROP_OLDEST, status.overflowPolicy());
+        assertEquals(10, status.capacity());
+    }
+}
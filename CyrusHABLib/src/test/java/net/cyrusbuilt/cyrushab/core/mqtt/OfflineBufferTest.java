@@ -0,0 +1,172 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class OfflineBufferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> drain(OfflineBuffer buffer) throws IOException {
+        List<String> result = new ArrayList<>();
+        OfflineBuffer.Entry entry;
+        while ((entry = buffer.poll()) != null) {
+            result.add(entry.topic() + "=" + new String(entry.payload(), StandardCharsets.UTF_8));
+            entry.future().complete(null);
+        }
+        return result;
+    }
+
+    @Test
+    public void replaysInOrder() throws IOException {
+        OfflineBuffer buffer = new OfflineBuffer(10, null);
+        buffer.add("a", bytes("1"), null);
+        buffer.add("b", bytes("2"), null);
+        buffer.add("a", bytes("3"), null);
+        assertEquals(3, buffer.size());
+        assertEquals(Arrays.asList("a=1", "b=2", "a=3"), drain(buffer));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void coalescesSnapshotTopics() throws Exception {
+        OfflineBuffer buffer = new OfflineBuffer(10, null);
+        buffer.coalesce("cyrushab/system/status/+");
+        CompletableFuture<Void> first = buffer.add("cyrushab/system/status/hab", bytes("DISCONNECTED"), null);
+        buffer.add("cyrushab/application", bytes("x"), null);
+        buffer.add("cyrushab/system/status/hab", bytes("RECONNECTING"), null);
+        buffer.add("cyrushab/application", bytes("y"), null);
+
+        assertEquals(Arrays.asList("cyrushab/application=x", "cyrushab/system/status/hab=RECONNECTING",
+                "cyrushab/application=y"), drain(buffer));
+        first.get();
+    }
+
+    @Test
+    public void dropsOldestWithoutSpillFile() throws IOException {
+        OfflineBuffer buffer = new OfflineBuffer(2, null);
+        CompletableFuture<Void> dropped = buffer.add("t", bytes("1"), null);
+        buffer.add("t", bytes("2"), null);
+        buffer.add("t", bytes("3"), null);
+        assertEquals(1, buffer.droppedCount());
+        assertTrue(dropped.isCompletedExceptionally());
+        try {
+            dropped.get();
+            fail("Dropped message completed.");
+        }
+        catch (ExecutionException | InterruptedException ex) {
+            assertTrue(ex.getCause() instanceof HABMqttException);
+        }
+        assertEquals(Arrays.asList("t=2", "t=3"), drain(buffer));
+    }
+
+    @Test
+    public void spillsOldestAndReplaysThemFirst() throws IOException {
+        File spill = new File(folder.getRoot(), "offline.spill");
+        OfflineBuffer buffer = new OfflineBuffer(2, spill);
+        buffer.coalesce("status");
+        CompletableFuture<Void> spilled = buffer.add("t", bytes("1"), null);
+        buffer.add("status", bytes("old"), null);
+        buffer.add("t", bytes("2"), null);
+        buffer.add("t", bytes("3"), null);
+        buffer.add("status", bytes("new"), null);
+        assertTrue(spilled.isDone());
+        assertEquals(3, buffer.spilledCount());
+        assertTrue(spill.exists());
+
+        assertEquals(Arrays.asList("t=1", "t=2", "t=3", "status=new"), drain(buffer));
+        assertFalse(spill.exists());
+        assertEquals(0, buffer.droppedCount());
+    }
+
+    @Test
+    public void spillFileSurvivesRestart() throws IOException {
+        File spill = new File(folder.getRoot(), "offline.spill");
+        OfflineBuffer buffer = new OfflineBuffer(2, spill);
+        for (int i = 0; i < 5; i++) {
+            buffer.add("t", bytes(Integer.toString(i)), null);
+        }
+        OfflineBuffer.Entry first = buffer.poll();
+        assertNotNull(first);
+        buffer.close();
+
+        // Fake a crash part way through spilling one more message.
+        try (RandomAccessFile raf = new RandomAccessFile(spill, "rw")) {
+            raf.seek(raf.length());
+            raf.writeLong(99);
+            raf.writeShort(1);
+        }
+
+        OfflineBuffer reopened = new OfflineBuffer(2, spill);
+        assertEquals(4, reopened.size());
+        reopened.add("t", bytes("5"), null);
+        assertEquals(Arrays.asList("t=1", "t=2", "t=3", "t=4", "t=5"), drain(reopened));
+    }
+
+    @Test
+    public void keepsPropertiesAndDropsExpiringMessagesInsteadOfSpilling() throws Exception {
+        OfflineBuffer buffer = new OfflineBuffer(1, folder.newFile("spill.bin"));
+        MessageProperties expiring = new MessageProperties.Builder().setThingID(1).setMessageExpiry(60).build();
+        CompletableFuture<Void> dropped = buffer.add("a", bytes("1"), null, expiring);
+        buffer.add("b", bytes("2"), null, expiring);
+        assertEquals(1, buffer.droppedCount());
+        try {
+            dropped.get();
+            fail("Expiring message was spilled.");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof HABMqttException);
+        }
+
+        OfflineBuffer.Entry entry = buffer.poll();
+        assertEquals("b", entry.topic());
+        assertEquals(Integer.valueOf(1), entry.properties().thingID());
+        assertTrue(entry.properties().messageExpiry() > 0 && entry.properties().messageExpiry() <= 60);
+    }
+
+    @Test
+    public void dropsMessagesThatExpireWhileBuffered() throws Exception {
+        OfflineBuffer buffer = new OfflineBuffer(10, null);
+        CompletableFuture<Void> expired = buffer.add("a", bytes("1"), null,
+                new MessageProperties.Builder().setMessageExpiry(1).build());
+        buffer.add("b", bytes("2"), null);
+        Thread.sleep(1100);
+
+        assertEquals(Arrays.asList("b=2"), drain(buffer));
+        assertTrue(expired.isCompletedExceptionally());
+        assertEquals(1, buffer.droppedCount());
+    }
+
+    @Test
+    public void requeuePutsEntryBackAtHead() throws IOException {
+        OfflineBuffer buffer = new OfflineBuffer(10, null);
+        buffer.add("a", bytes("1"), null);
+        buffer.add("b", bytes("2"), null);
+        OfflineBuffer.Entry entry = buffer.poll();
+        assertNotNull(entry);
+        buffer.requeue(entry);
+        assertEquals(Arrays.asList("a=1", "b=2"), drain(buffer));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacity() throws IOException {
+        new OfflineBuffer(0, null);
+    }
+}
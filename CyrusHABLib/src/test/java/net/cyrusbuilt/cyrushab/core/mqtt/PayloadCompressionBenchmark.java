@@ -0,0 +1,178 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import net.cyrusbuilt.cyrushab.core.application.ThingInventoryPacket;
+import net.cyrusbuilt.cyrushab.core.things.Thing;
+import net.cyrusbuilt.cyrushab.core.things.ThingType;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compresses thing inventory messages of 100, 1,000 and 10,000 things with {@link PayloadCompression} and reports the
+ * bytes on the wire with and without compression, the CPU time to compress and to inflate each message, and the link
+ * speed below which compressing makes the message arrive sooner (the bits saved over the CPU time spent). Run with
+ * {@code ./gradlew :CyrusHABLib:benchmark}.
+ */
+public class PayloadCompressionBenchmark {
+    private static final int[] INVENTORY_SIZES = { 100, 1000, 10000 };
+    private static final ThingType[] TYPES = {
+            ThingType.SWITCH, ThingType.THERMOSTAT, ThingType.MOTION_SENSOR, ThingType.DIMMABLE_LIGHT, ThingType.DOOR
+    };
+    private static final String[] ROOMS = { "kitchen", "living room", "garage", "hallway", "bedroom", "porch" };
+
+    /**
+     * Enough of a thing to go in an inventory.
+     */
+    private static final class InventoryThing implements Thing {
+        private final int _id;
+        private final ThingType _type;
+        private String _name;
+        private String _clientID;
+        private Object _tag = null;
+
+        InventoryThing(int id) {
+            _id = id;
+            _type = TYPES[id % TYPES.length];
+            _name = ROOMS[id % ROOMS.length] + " " + _type.name().toLowerCase().replace('_', ' ') + " " + id;
+            _clientID = _type.name().toLowerCase() + "_" + id;
+        }
+
+        @Override
+        public String name() {
+            return _name;
+        }
+
+        @Override
+        public void setName(String name) {
+            _name = name;
+        }
+
+        @Override
+        public int id() {
+            return _id;
+        }
+
+        @Override
+        public void setThingID(int id) {
+        }
+
+        @Override
+        public String clientID() {
+            return _clientID;
+        }
+
+        @Override
+        public void setClientID(String clientID) {
+            _clientID = clientID;
+        }
+
+        @Override
+        public Object tag() {
+            return _tag;
+        }
+
+        @Override
+        public void setTag(Object tag) {
+            _tag = tag;
+        }
+
+        @Override
+        public ThingType type() {
+            return _type;
+        }
+
+        @Override
+        public boolean isReadonly() {
+            return _type == ThingType.MOTION_SENSOR;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return _id % 17 != 0;
+        }
+
+        @Override
+        public void dispose() {
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return false;
+        }
+    }
+
+    private static byte[] inventory(int things) {
+        List<Thing> inventory = new ArrayList<>(things);
+        for (int i = 0; i < things; i++) {
+            inventory.add(new InventoryThing(i));
+        }
+
+        return new ThingInventoryPacket.Builder()
+                .setClientID("tablet-1")
+                .setHostID("hab_daemon_1")
+                .setTimestamp(new Timestamp(System.currentTimeMillis()))
+                .setThingInventory(inventory)
+                .build()
+                .toJsonString()
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long cpuTime() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Compresses and inflates the payload repeatedly and returns {compressed size, compress CPU ns, inflate CPU ns},
+     * the times per message.
+     */
+    private static double[] measure(byte[] payload) throws HABMqttException {
+        // Roughly the same amount of work for each inventory size.
+        int iterations = Math.max(20, 50000000 / payload.length);
+        byte[] compressed = null;
+        for (int i = 0; i < iterations / 4; i++) {
+            compressed = PayloadCompression.compress(payload);
+            PayloadCompression.decompress(compressed);
+        }
+
+        long start = cpuTime();
+        for (int i = 0; i < iterations; i++) {
+            compressed = PayloadCompression.compress(payload);
+        }
+        long compressCpu = cpuTime() - start;
+
+        byte[] inflated = null;
+        start = cpuTime();
+        for (int i = 0; i < iterations; i++) {
+            inflated = PayloadCompression.decompress(compressed);
+        }
+        long inflateCpu = cpuTime() - start;
+
+        assertArrayEquals(payload, inflated);
+        return new double[] {
+                compressed.length,
+                compressCpu / (double)iterations,
+                inflateCpu / (double)iterations
+        };
+    }
+
+    @Test
+    public void inventoryCompression() throws HABMqttException {
+        for (int things : INVENTORY_SIZES) {
+            byte[] payload = inventory(things);
+            double[] result = measure(payload);
+            double savedBits = (payload.length - result[0]) * 8;
+            double breakEvenMbps = savedBits / ((result[1] + result[2]) / 1e9) / 1e6;
+            System.out.println(String.format("%5d things: %8d -> %7.0f bytes (%4.1f%%), compress %8.1f us, " +
+                            "inflate %7.1f us, faster below %.0f Mbit/s",
+                    things, payload.length, result[0], 100 * result[0] / payload.length, result[1] / 1000,
+                    result[2] / 1000, breakEvenMbps));
+            assertTrue(result[0] < payload.length);
+        }
+    }
+}
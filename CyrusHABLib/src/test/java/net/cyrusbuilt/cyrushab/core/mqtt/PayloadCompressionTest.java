@@ -0,0 +1,69 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PayloadCompressionTest {
+    private static byte[] json(int things) {
+        StringBuilder builder = new StringBuilder("{\"things\":[");
+        for (int i = 0; i < things; i++) {
+            builder.append("{\"id\":").append(i).append(",\"client_id\":\"switch_").append(i)
+                    .append("\",\"type\":0,\"enabled\":true},");
+        }
+        return builder.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void roundTrips() throws HABMqttException {
+        byte[] payload = json(500);
+        byte[] compressed = PayloadCompression.compress(payload);
+        assertTrue(PayloadCompression.isCompressed(compressed));
+        assertTrue(compressed.length < payload.length / 4);
+        assertArrayEquals(payload, PayloadCompression.decompress(compressed));
+    }
+
+    @Test
+    public void roundTripsIncompressibleAndEmptyPayloads() throws HABMqttException {
+        byte[] random = new byte[100000];
+        new Random(7).nextBytes(random);
+        assertArrayEquals(random, PayloadCompression.decompress(PayloadCompression.compress(random)));
+        assertArrayEquals(new byte[0], PayloadCompression.decompress(PayloadCompression.compress(new byte[0])));
+    }
+
+    @Test
+    public void plainPayloadsAreNotCompressed() {
+        assertFalse(PayloadCompression.isCompressed(json(3)));
+        assertFalse(PayloadCompression.isCompressed(new byte[0]));
+        assertFalse(PayloadCompression.isCompressed(new byte[] { 0x00, 0x48, 0x5A }));
+    }
+
+    @Test(expected = HABMqttException.class)
+    public void rejectsPlainPayloads() throws HABMqttException {
+        PayloadCompression.decompress(json(3));
+    }
+
+    @Test(expected = HABMqttException.class)
+    public void rejectsTruncatedPayloads() throws HABMqttException {
+        byte[] compressed = PayloadCompression.compress(json(100));
+        PayloadCompression.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test(expected = HABMqttException.class)
+    public void rejectsCorruptPayloads() throws HABMqttException {
+        byte[] compressed = PayloadCompression.compress(json(100));
+        Arrays.fill(compressed, PayloadCompression.HEADER_LENGTH, compressed.length, (byte)0xFF);
+        PayloadCompression.decompress(compressed);
+    }
+
+    @Test(expected = HABMqttException.class)
+    public void rejectsOversizedClaims() throws HABMqttException {
+        byte[] compressed = PayloadCompression.compress(json(1));
+        compressed[4] = 0x7F;
+        PayloadCompression.decompress(compressed);
+    }
+}
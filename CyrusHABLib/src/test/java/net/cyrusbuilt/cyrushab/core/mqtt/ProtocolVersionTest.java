@@ -0,0 +1,21 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProtocolVersionTest {
+    @Test
+    public void parsesVersionNames() {
+        assertEquals(ProtocolVersion.MQTT_3_1_1, ProtocolVersion.fromString("3.1.1"));
+        assertEquals(ProtocolVersion.MQTT_5, ProtocolVersion.fromString("5"));
+        assertEquals(ProtocolVersion.MQTT_5, ProtocolVersion.fromString("5.0"));
+        assertEquals(ProtocolVersion.MQTT_5, ProtocolVersion.fromString("mqtt_5"));
+        assertEquals("3.1.1", ProtocolVersion.MQTT_3_1_1.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersions() {
+        ProtocolVersion.fromString("4");
+    }
+}
@@ -0,0 +1,109 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Publishes a burst of thing status messages through {@link MqttManager} under different {@link QosPolicy} settings
+ * and reports the MQTT packets exchanged with the broker and the CPU time spent by the client per message. A
+ * {@link LoopbackBroker} that only acknowledges what it receives stands in for a real one, so the numbers show the
+ * cost of the QoS handshake itself. Run with {@code ./gradlew :CyrusHABLib:benchmark}.
+ */
+public class QosPolicyBenchmark {
+    private static final int WARMUP_MESSAGES = 5000;
+    private static final int MEASURED_MESSAGES = 20000;
+    private static final String STATUS_TOPIC = "cyrushab/thing/status";
+    private static final String MESSAGE = "{\"id\":4,\"type\":4,\"client_id\":\"motion-4\",\"state\":1}";
+
+    /**
+     * Gets the CPU time used by the whole process so far, or -1 if the JVM can't report it.
+     */
+    private static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Publishes the specified number of status messages and waits for them all to be confirmed.
+     */
+    private static void publish(MqttManager manager, int count) throws Exception {
+        List<CompletableFuture<Void>> pending = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            pending.add(manager.publishAsync(STATUS_TOPIC, MESSAGE, null));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Publishes a burst of messages with the status topic at the specified QoS level and returns {packets per
+     * message, client CPU ns per message, wall ns per message}.
+     */
+    private static double[] measure(LoopbackBroker broker, int statusQos) throws Exception {
+        QosPolicy policy = new QosPolicy.Builder()
+                .addRule(STATUS_TOPIC + "/#", statusQos)
+                .build();
+
+        MqttManager manager = MqttManager.getInstance();
+        manager.setBrokerUrl("tcp://127.0.0.1:" + broker.port());
+        manager.setClientID("qos-benchmark");
+        manager.setCleanSession(true);
+        manager.setMaxInFlight(100);
+        manager.setQosPolicy(policy);
+        manager.initialize();
+        try {
+            manager.connect();
+            publish(manager, WARMUP_MESSAGES);
+
+            long packetsStart = broker.packets();
+            long brokerCpuStart = broker.cpuTime();
+            long cpuStart = processCpuTime();
+            long wallStart = System.nanoTime();
+            publish(manager, MEASURED_MESSAGES);
+            long wall = System.nanoTime() - wallStart;
+            long cpu = processCpuTime() - cpuStart - (broker.cpuTime() - brokerCpuStart);
+            long packets = broker.packets() - packetsStart;
+            return new double[] {
+                    packets / (double)MEASURED_MESSAGES,
+                    cpuStart < 0 ? -1 : cpu / (double)MEASURED_MESSAGES,
+                    wall / (double)MEASURED_MESSAGES
+            };
+        }
+        finally {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void statusPublishCost() throws Exception {
+        LoopbackBroker broker = new LoopbackBroker();
+        try {
+            double[][] results = new double[3][];
+            for (int qos = 2; qos >= 0; qos--) {
+                results[qos] = measure(broker, qos);
+            }
+
+            for (int qos = 2; qos >= 0; qos--) {
+                System.out.println(String.format("Status at QoS %d: %.1f packets/msg, %.0f ns/msg client CPU, " +
+                        "%.0f ns/msg wall", qos, results[qos][0], results[qos][1], results[qos][2]));
+            }
+
+            // QoS 0 is fire and forget, QoS 1 adds a PUBACK, QoS 2 a PUBREC/PUBREL/PUBCOMP exchange.
+            assertEquals(1.0, results[0][0], 0.05);
+            assertEquals(2.0, results[1][0], 0.05);
+            assertEquals(4.0, results[2][0], 0.05);
+        }
+        finally {
+            broker.close();
+        }
+    }
+}
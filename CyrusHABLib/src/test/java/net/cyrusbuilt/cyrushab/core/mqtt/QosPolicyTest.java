@@ -0,0 +1,52 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QosPolicyTest {
+    @Test
+    public void matches() {
+        assertTrue(QosPolicy.matches("cyrushab/thing/status", "cyrushab/thing/status"));
+        assertFalse(QosPolicy.matches("cyrushab/thing/status", "cyrushab/thing/status/1"));
+        assertTrue(QosPolicy.matches("cyrushab/thing/status/#", "cyrushab/thing/status"));
+        assertTrue(QosPolicy.matches("cyrushab/thing/status/#", "cyrushab/thing/status/1/extra"));
+        assertFalse(QosPolicy.matches("cyrushab/thing/status/#", "cyrushab/thing/control/1"));
+        assertTrue(QosPolicy.matches("cyrushab/+/control/+", "cyrushab/thing/control/7"));
+        assertFalse(QosPolicy.matches("cyrushab/+/control/+", "cyrushab/thing/control"));
+        assertTrue(QosPolicy.matches("#", "anything/at/all"));
+        assertFalse(QosPolicy.matches("cyrushab/thing", "cyrushab/thingamajig"));
+    }
+
+    @Test
+    public void firstMatchingRuleWins() {
+        QosPolicy policy = new QosPolicy.Builder()
+                .setDefaultQos(1)
+                .addRule("cyrushab/thing/status/5", 2)
+                .addRule("cyrushab/thing/status/#", 0)
+                .addRule("cyrushab/thing/control/#", 2)
+                .build();
+
+        assertEquals(0, policy.qosFor("cyrushab/thing/status"));
+        assertEquals(0, policy.qosFor("cyrushab/thing/status/1"));
+        assertEquals(2, policy.qosFor("cyrushab/thing/status/5"));
+        assertEquals(2, policy.qosFor("cyrushab/thing/control/3"));
+        assertEquals(1, policy.qosFor("cyrushab/application"));
+
+        // Cached lookups give the same answer.
+        assertEquals(0, policy.qosFor("cyrushab/thing/status/1"));
+        assertEquals(3, policy.rules().size());
+        assertEquals(1, policy.getDefaultQos());
+    }
+
+    @Test
+    public void exactlyOnce() {
+        assertEquals(2, QosPolicy.EXACTLY_ONCE.qosFor("cyrushab/thing/status"));
+        assertTrue(QosPolicy.EXACTLY_ONCE.rules().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidQos() {
+        new QosPolicy.Builder().addRule("#", 3);
+    }
+}
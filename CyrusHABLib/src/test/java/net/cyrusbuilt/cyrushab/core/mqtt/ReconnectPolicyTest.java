@@ -0,0 +1,69 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+    @Test
+    public void backsOffExponentiallyUpToCeiling() {
+        ReconnectPolicy policy = new ReconnectPolicy.Builder()
+                .setBaseDelay(100)
+                .setMaxDelay(1000)
+                .setJitter(0)
+                .build();
+
+        assertEquals(0, policy.baseDelayFor(0));
+        assertEquals(100, policy.baseDelayFor(1));
+        assertEquals(200, policy.baseDelayFor(2));
+        assertEquals(400, policy.baseDelayFor(3));
+        assertEquals(800, policy.baseDelayFor(4));
+        assertEquals(1000, policy.baseDelayFor(5));
+        assertEquals(1000, policy.baseDelayFor(Integer.MAX_VALUE));
+        assertEquals(400, policy.delayFor(3, new Random()));
+    }
+
+    @Test
+    public void jitterStaysWithinBounds() {
+        ReconnectPolicy policy = new ReconnectPolicy.Builder()
+                .setBaseDelay(1000)
+                .setMaxDelay(1000)
+                .setJitter(0.5)
+                .build();
+
+        Random random = new Random(42);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.delayFor(3, random);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        assertTrue(min >= 500);
+        assertTrue(max <= 1000);
+        assertTrue("Delays should spread out", max - min > 300);
+        assertEquals(0, policy.delayFor(0, random));
+    }
+
+    @Test
+    public void ceilingIsNeverBelowBase() {
+        ReconnectPolicy policy = new ReconnectPolicy.Builder()
+                .setBaseDelay(500)
+                .setMaxDelay(100)
+                .build();
+        assertEquals(500, policy.getMaxDelay());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidJitter() {
+        new ReconnectPolicy.Builder().setJitter(1.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBaseDelay() {
+        new ReconnectPolicy.Builder().setBaseDelay(0);
+    }
+}
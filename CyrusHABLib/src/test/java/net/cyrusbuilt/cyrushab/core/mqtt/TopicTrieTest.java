@@ -0,0 +1,87 @@
+package net.cyrusbuilt.cyrushab.core.mqtt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TopicTrieTest {
+    private static HashSet<String> set(List<String> values) {
+        return new HashSet<>(values);
+    }
+
+    private static HashSet<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void match() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("cyrushab/thing/status", "exact");
+        trie.add("cyrushab/thing/+", "single");
+        trie.add("cyrushab/thing/#", "multi");
+        trie.add("cyrushab/+/control/+", "relay");
+        trie.add("#", "all");
+
+        assertEquals(set("exact", "single", "multi", "all"), set(trie.match("cyrushab/thing/status")));
+        assertEquals(set("single", "multi", "all"), set(trie.match("cyrushab/thing/control")));
+        assertEquals(set("multi", "relay", "all"), set(trie.match("cyrushab/thing/control/4")));
+        assertEquals(set("multi", "all"), set(trie.match("cyrushab/thing")));
+        assertEquals(set("all"), set(trie.match("cyrushab")));
+        assertEquals(set("single", "multi", "all"), set(trie.match("cyrushab/thing/")));
+    }
+
+    @Test
+    public void dollarTopicsSkipLeadingWildcards() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("#", "all");
+        trie.add("+/broker/uptime", "single");
+        trie.add("$SYS/#", "sys");
+
+        assertEquals(set("sys"), set(trie.match("$SYS/broker/uptime")));
+    }
+
+    @Test
+    public void valueMatchedTwiceIsReturnedOnce() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        assertTrue(trie.add("cyrushab/#", "handler"));
+        assertTrue(trie.add("cyrushab/thing/+", "handler"));
+        assertFalse(trie.add("cyrushab/thing/+", "handler"));
+        assertEquals(2, trie.size());
+        assertEquals(Collections.singletonList("handler"), trie.match("cyrushab/thing/status"));
+    }
+
+    @Test
+    public void remove() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        assertTrue(trie.add("cyrushab/thing/+", "a"));
+        assertFalse(trie.add("cyrushab/thing/+", "b"));
+        assertFalse(trie.remove("cyrushab/thing/+", "a"));
+        assertEquals(Collections.singletonList("b"), trie.match("cyrushab/thing/status"));
+        assertTrue(trie.remove("cyrushab/thing/+", "b"));
+        assertFalse(trie.remove("cyrushab/thing/+", "b"));
+        assertFalse(trie.remove("cyrushab/missing", "b"));
+        assertTrue(trie.match("cyrushab/thing/status").isEmpty());
+        assertEquals(0, trie.size());
+
+        trie.add("a/b", "x");
+        trie.clear();
+        assertTrue(trie.match("a/b").isEmpty());
+    }
+
+    @Test
+    public void invalidFilters() {
+        for (String filter : new String[] { "", "a/#/b", "a/b#", "a/+b", "a#" }) {
+            try {
+                new TopicTrie<String>().add(filter, "x");
+                fail("Accepted " + filter);
+            }
+            catch (IllegalArgumentException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package net.cyrusbuilt.cyrushab.core.telemetry;
+
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+public class AppCapabilityTest {
+    @Test
+    public void getType() {
+        assertEquals(AppCapability.COMPRESSION, AppCapability.UNKNOWN.getType(1));
+        assertEquals(AppCapability.UNKNOWN, AppCapability.UNKNOWN.getType(64));
+        assertEquals(AppCapability.UNKNOWN, AppCapability.UNKNOWN.getType(null));
+    }
+
+    @Test
+    public void masks() {
+        assertEquals(0, AppCapability.toMask(EnumSet.noneOf(AppCapability.class)));
+        assertEquals(1, AppCapability.toMask(EnumSet.of(AppCapability.COMPRESSION)));
+        assertEquals(EnumSet.of(AppCapability.COMPRESSION), AppCapability.fromMask(1));
+        assertTrue(AppCapability.fromMask(0).isEmpty());
+    }
+
+    @Test
+    public void ignoresUnknownBits() {
+        assertEquals(EnumSet.of(AppCapability.COMPRESSION), AppCapability.fromMask(0xFF));
+    }
+}
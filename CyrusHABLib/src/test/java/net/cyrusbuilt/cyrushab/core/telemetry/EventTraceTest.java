@@ -0,0 +1,51 @@
+package net.cyrusbuilt.cyrushab.core.telemetry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventTraceTest {
+    @Test
+    public void correlationIdsAreUnique() {
+        EventTrace first = new EventTrace();
+        EventTrace second = new EventTrace();
+        assertNotEquals(first.correlationId(), second.correlationId());
+        assertEquals(42, new EventTrace(42).correlationId());
+    }
+
+    @Test
+    public void mark() {
+        EventTrace trace = new EventTrace();
+        assertFalse(trace.isMarked(TraceStage.RECEIVED));
+        trace.mark(TraceStage.RECEIVED);
+        assertTrue(trace.isMarked(TraceStage.RECEIVED));
+        assertEquals(-1, trace.elapsed(TraceStage.RECEIVED, TraceStage.PARSED));
+        trace.mark(TraceStage.PARSED);
+        assertTrue(trace.elapsed(TraceStage.RECEIVED, TraceStage.PARSED) >= 0);
+    }
+
+    @Test
+    public void stageTimesSkipUnmarkedStages() throws InterruptedException {
+        EventTrace trace = new EventTrace();
+        trace.mark(TraceStage.RECEIVED);
+        trace.mark(TraceStage.PARSED);
+        Thread.sleep(5);
+        trace.mark(TraceStage.PUBLISHED);
+
+        long[] times = trace.stageTimes();
+        assertEquals(0, times[TraceStage.RECEIVED.ordinal()]);
+        assertTrue(times[TraceStage.PARSED.ordinal()] >= 0);
+        assertEquals(-1, times[TraceStage.ROUTED.ordinal()]);
+        assertEquals(-1, times[TraceStage.ENQUEUED.ordinal()]);
+        assertTrue(times[TraceStage.PUBLISHED.ordinal()] >= 5000000);
+        assertEquals(-1, times[TraceStage.DELIVERED.ordinal()]);
+        assertEquals(trace.elapsed(TraceStage.RECEIVED, TraceStage.PUBLISHED), trace.totalTime());
+    }
+
+    @Test
+    public void emptyTrace() {
+        EventTrace trace = new EventTrace(7);
+        assertEquals(0, trace.totalTime());
+        assertEquals("trace 7:", trace.toString());
+    }
+}
@@ -0,0 +1,98 @@
+package net.cyrusbuilt.cyrushab.core.telemetry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.mean(), 0);
+    }
+
+    @Test
+    public void record() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(500500, histogram.mean(), 0.01);
+        assertEquals(1000000, histogram.max());
+
+        // Percentiles are accurate to within one bucket (12.5%).
+        long p50 = histogram.percentile(50);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+        long p99 = histogram.percentile(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.percentile(100));
+    }
+
+    @Test
+    public void smallAndNegativeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(3);
+        assertEquals(2, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(3, histogram.percentile(100));
+    }
+
+    @Test
+    public void largeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.percentile(99));
+    }
+
+    @Test
+    public void add() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(100);
+        b.record(200);
+        b.record(300);
+
+        LatencyHistogram combined = new LatencyHistogram();
+        combined.add(a);
+        combined.add(b);
+        assertEquals(3, combined.count());
+        assertEquals(200, combined.mean(), 0.01);
+        assertEquals(300, combined.max());
+    }
+
+    @Test
+    public void reset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.percentile(99));
+    }
+
+    @Test
+    public void concurrentRecord() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.count());
+        assertEquals(9999, histogram.max());
+    }
+}
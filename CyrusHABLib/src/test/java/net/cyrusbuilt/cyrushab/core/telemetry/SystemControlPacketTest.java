@@ -5,6 +5,7 @@ import net.cyrusbuilt.cyrushab.core.things.ThingType;
 import org.junit.Test;
 
 import java.sql.Timestamp;
+import java.util.EnumSet;
 
 import static org.junit.Assert.*;
 
@@ -59,4 +60,30 @@ public class SystemControlPacketTest {
         assertEquals("foo", packet.getClientID());
         assertEquals(tstamp, packet.getTimestamp());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void capabilitiesRoundTrip() throws ThingParseException {
+        SystemControlPacket packet = new SystemControlPacket.Builder()
+                .setClientID("tablet")
+                .setCommand(SystemCommand.GET_ALL_THE_THINGS)
+                .setCapabilities(EnumSet.of(AppCapability.COMPRESSION))
+                .build();
+        assertTrue(packet.toJsonString().contains("\"capabilities\":1"));
+
+        SystemControlPacket parsed = SystemControlPacket.fromJsonString(packet.toJsonString());
+        assertNotNull(parsed);
+        assertTrue(parsed.hasCapability(AppCapability.COMPRESSION));
+    }
+
+    @Test
+    public void packetsWithoutCapabilitiesHaveNone() throws ThingParseException {
+        Timestamp tstamp = new Timestamp(System.currentTimeMillis());
+        SystemControlPacket packet = new SystemControlPacket(SystemCommand.GET_ALL_THE_THINGS, "foo", tstamp);
+        assertFalse(packet.toJsonString().contains(HABSystem.SYS_CAPABILITIES));
+
+        SystemControlPacket parsed = SystemControlPacket.fromJsonString(packet.toJsonString());
+        assertNotNull(parsed);
+        assertTrue(parsed.getCapabilities().isEmpty());
+        assertFalse(parsed.hasCapability(AppCapability.COMPRESSION));
+    }
+}
@@ -0,0 +1,51 @@
+package net.cyrusbuilt.cyrushab.core.telemetry;
+
+import net.cyrusbuilt.cyrushab.core.things.ThingType;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TraceRecorderTest {
+    @Test
+    public void recordsPerThingType() {
+        TraceRecorder recorder = new TraceRecorder();
+        EventTrace control = new EventTrace();
+        control.mark(TraceStage.RECEIVED);
+        control.mark(TraceStage.PARSED);
+        control.mark(TraceStage.ROUTED);
+        control.mark(TraceStage.ENQUEUED);
+        control.mark(TraceStage.PUBLISHED);
+        control.mark(TraceStage.DELIVERED);
+        recorder.record(ThingType.DIMMABLE_LIGHT, control);
+
+        EventTrace status = new EventTrace();
+        status.mark(TraceStage.RECEIVED);
+        status.mark(TraceStage.PARSED);
+        status.mark(TraceStage.ROUTED);
+        recorder.record(ThingType.SWITCH, status);
+        recorder.record(ThingType.SWITCH, status);
+
+        TraceRecorder.StageLatency light = recorder.latency(ThingType.DIMMABLE_LIGHT);
+        assertNotNull(light);
+        assertEquals(1, light.total().count());
+        assertEquals(1, light.stage(TraceStage.DELIVERED).count());
+
+        TraceRecorder.StageLatency sw = recorder.latency(ThingType.SWITCH);
+        assertNotNull(sw);
+        assertEquals(2, sw.stage(TraceStage.ROUTED).count());
+        assertEquals(0, sw.stage(TraceStage.PUBLISHED).count());
+        assertNull(recorder.latency(ThingType.DOOR));
+        assertEquals("[SWITCH, DIMMABLE_LIGHT]", recorder.latency().keySet().toString());
+    }
+
+    @Test
+    public void reset() {
+        TraceRecorder recorder = new TraceRecorder();
+        assertTrue(recorder.latency().isEmpty());
+        recorder.record(ThingType.DOOR, new EventTrace());
+        assertEquals(1, recorder.latency().size());
+        recorder.reset();
+        assertTrue(recorder.latency().isEmpty());
+    }
+}
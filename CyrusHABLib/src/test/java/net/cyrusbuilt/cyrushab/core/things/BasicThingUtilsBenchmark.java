@@ -0,0 +1,102 @@
+package net.cyrusbuilt.cyrushab.core.things;
+
+import net.cyrusbuilt.cyrushab.core.things.thermostat.ThermostatMode;
+import net.cyrusbuilt.cyrushab.core.things.thermostat.ThermostatState;
+import net.cyrusbuilt.cyrushab.core.things.thermostat.ThermostatStatusPacket;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares decoding an inbound message payload by turning it into a string and parsing it twice (once for the thing
+ * info, once for the typed packet), by turning it into a string and parsing it once with
+ * {@link BasicThingUtils#decodePacket(String, boolean)}, and by parsing the bytes directly with
+ * {@link BasicThingUtils#decodePacket(byte[], boolean)}. Reports CPU time and bytes allocated per message. Run with
+ * {@code ./gradlew :CyrusHABLib:benchmark}.
+ */
+public class BasicThingUtilsBenchmark {
+    private static final int WARMUP_MESSAGES = 200000;
+    private static final int MEASURED_MESSAGES = 1000000;
+
+    private interface Decoder {
+        Object decode(byte[] payload) throws ThingParseException;
+    }
+
+    private static final byte[] MESSAGE = new ThermostatStatusPacket.Builder()
+            .setID(42)
+            .setName("hallway")
+            .setClientID("thermostat-42")
+            .setMode(ThermostatMode.HEAT)
+            .setState(ThermostatState.HEATING)
+            .setEnabled(true)
+            .setReadonly(false)
+            .setTimestamp(new Timestamp(System.currentTimeMillis()))
+            .build()
+            .toJsonBytes();
+
+    private static final Decoder TWO_PASS = payload -> {
+        String json = new String(payload, StandardCharsets.UTF_8);
+        MinimalThingInfo info = BasicThingUtils.parseMinimalThingInfoFromJson(json);
+        assert info != null;
+        return ThermostatStatusPacket.fromJsonString(json);
+    };
+
+    private static final Decoder SINGLE_PASS = payload ->
+            BasicThingUtils.decodePacket(new String(payload, StandardCharsets.UTF_8), false);
+
+    private static final Decoder PAYLOAD = payload -> BasicThingUtils.decodePacket(payload, false);
+
+    /**
+     * Gets the number of bytes allocated by the current thread so far, or -1 if the JVM can't report it.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Runs the decoder over the message and returns {cpu ns per message, bytes allocated per message}.
+     */
+    private static double[] measure(Decoder decoder) throws ThingParseException {
+        Object sink = null;
+        for (int i = 0; i < WARMUP_MESSAGES; i++) {
+            sink = decoder.decode(MESSAGE);
+        }
+
+        long allocStart = allocatedBytes();
+        long cpuStart = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        for (int i = 0; i < MEASURED_MESSAGES; i++) {
+            sink = decoder.decode(MESSAGE);
+        }
+        long cpu = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - cpuStart;
+        long alloc = allocatedBytes() - allocStart;
+        assertNotNull(sink);
+        double allocPerMessage = allocStart < 0 ? -1 : alloc / (double)MEASURED_MESSAGES;
+        return new double[] { cpu / (double)MEASURED_MESSAGES, allocPerMessage };
+    }
+
+    @Test
+    public void decodeCost() throws ThingParseException {
+        double[] twoPass = measure(TWO_PASS);
+        double[] singlePass = measure(SINGLE_PASS);
+        double[] payload = measure(PAYLOAD);
+        System.out.println(String.format("Two-pass decode:    %.0f ns/msg CPU, %.0f bytes/msg allocated",
+                twoPass[0], twoPass[1]));
+        System.out.println(String.format("Single-pass decode: %.0f ns/msg CPU, %.0f bytes/msg allocated",
+                singlePass[0], singlePass[1]));
+        System.out.println(String.format("Payload decode:     %.0f ns/msg CPU, %.0f bytes/msg allocated",
+                payload[0], payload[1]));
+
+        if (twoPass[1] > 0) {
+            assertTrue(singlePass[1] < twoPass[1]);
+            assertTrue(payload[1] < singlePass[1]);
+        }
+    }
+}
@@ -1,7 +1,18 @@
 package net.cyrusbuilt.cyrushab.core.things;
 
+import net.cyrusbuilt.cyrushab.core.telemetry.SystemCommand;
+import net.cyrusbuilt.cyrushab.core.telemetry.SystemControlPacket;
+import net.cyrusbuilt.cyrushab.core.things.motionsensor.MotionSensorState;
+import net.cyrusbuilt.cyrushab.core.things.motionsensor.MotionSensorStatusPacket;
+import net.cyrusbuilt.cyrushab.core.things.switches.SwitchState;
+import net.cyrusbuilt.cyrushab.core.things.switches.SwitchStatusPacket;
+import net.cyrusbuilt.cyrushab.core.things.thermostat.ThermostatControlPacket;
+import net.cyrusbuilt.cyrushab.core.things.thermostat.ThermostatMode;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+
 import static org.junit.Assert.*;
 
 public class BasicThingUtilsTest {
@@ -20,4 +31,125 @@ public class BasicThingUtilsTest {
             fail();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void decodeStatusPacket() throws ThingParseException {
+        String json = new SwitchStatusPacket.Builder()
+                .setID(3)
+                .setClientID("test")
+                .setName("porch")
+                .setState(SwitchState.ON)
+                .setTimestamp(new Timestamp(System.currentTimeMillis()))
+                .build()
+                .toJsonString();
+
+        DecodedPacket result = BasicThingUtils.decodePacket(json, false);
+        assertNotNull(result);
+        assertEquals(3, result.getInfo().getID());
+        assertEquals("test", result.getInfo().getClientID());
+        assertEquals(ThingType.SWITCH, result.getInfo().getThingType());
+        assertTrue(result.getPacket() instanceof SwitchStatusPacket);
+        assertEquals(SwitchState.ON, ((SwitchStatusPacket)result.getPacket()).getState());
+    }
+
+    @Test
+    public void decodeControlPacket() throws ThingParseException {
+        String json = new ThermostatControlPacket.Builder()
+                .setThingID(1)
+                .setClientID("test")
+                .setMode(ThermostatMode.COOL)
+                .setTimestamp(new Timestamp(System.currentTimeMillis()))
+                .build()
+                .toJsonString();
+
+        DecodedPacket result = BasicThingUtils.decodePacket(json, true);
+        assertNotNull(result);
+        assertEquals(ThingType.THERMOSTAT, result.getInfo().getThingType());
+        assertTrue(result.getPacket() instanceof ThermostatControlPacket);
+        assertEquals(ThermostatMode.COOL, ((ThermostatControlPacket)result.getPacket()).getMode());
+    }
+
+    @Test
+    public void decodeSystemControlPacket() throws ThingParseException {
+        String json = new SystemControlPacket.Builder()
+                .setClientID("test")
+                .setCommand(SystemCommand.ENABLE)
+                .setTimestamp(new Timestamp(System.currentTimeMillis()))
+                .build()
+                .toJsonString();
+
+        DecodedPacket result = BasicThingUtils.decodePacket(json, true);
+        assertNotNull(result);
+        assertEquals(0, result.getInfo().getID());
+        assertEquals(ThingType.SYSTEM, result.getInfo().getThingType());
+        assertEquals(SystemCommand.ENABLE, ((SystemControlPacket)result.getPacket()).getCommand());
+    }
+
+    @Test
+    public void decodeReadOnlyControlPacket() throws ThingParseException {
+        String json = new MotionSensorStatusPacket.Builder()
+                .setThingID(2)
+                .setClientID("test")
+                .setState(MotionSensorState.TRIPPED)
+                .setTimestamp(new Timestamp(System.currentTimeMillis()))
+                .build()
+                .toJsonString();
+
+        DecodedPacket result = BasicThingUtils.decodePacket(json, true);
+        assertNotNull(result);
+        assertEquals(ThingType.MOTION_SENSOR, result.getInfo().getThingType());
+        assertNull(result.getPacket());
+    }
+
+    @Test
+    public void decodeBlank() throws ThingParseException {
+        assertNull(BasicThingUtils.decodePacket("", false));
+    }
+
+    @Test
+    public void decodePayload() throws ThingParseException {
+        byte[] payload = new SwitchStatusPacket.Builder()
+                .setID(3)
+                .setClientID("caf\u00e9")
+                .setName("porch")
+                .setState(SwitchState.OFF)
+                .setTimestamp(new Timestamp(System.currentTimeMillis()))
+                .build()
+                .toJsonBytes();
+
+        DecodedPacket result = BasicThingUtils.decodePacket(payload, false);
+        assertNotNull(result);
+        assertEquals(3, result.getInfo().getID());
+        assertEquals("caf\u00e9", result.getInfo().getClientID());
+        assertTrue(result.getPacket() instanceof SwitchStatusPacket);
+        assertEquals(SwitchState.OFF, ((SwitchStatusPacket)result.getPacket()).getState());
+
+        // A larger payload than the decode buffer starts with.
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            name.append('\u00e9');
+        }
+        byte[] large = ("{\"id\":1,\"client_id\":\"" + name + "\",\"type\":1}").getBytes(StandardCharsets.UTF_8);
+        MinimalThingInfo info = BasicThingUtils.parseMinimalThingInfoFromJson(large);
+        assertNotNull(info);
+        assertEquals(name.toString(), info.getClientID());
+    }
+
+    @Test
+    public void decodeBlankPayload() throws ThingParseException {
+        assertNull(BasicThingUtils.decodePacket(new byte[0], false));
+        assertNull(BasicThingUtils.decodePacket(" \n".getBytes(StandardCharsets.UTF_8), true));
+        assertNull(BasicThingUtils.parseMinimalThingInfoFromJson((byte[])null));
+    }
+
+    @Test(expected = ThingParseException.class)
+    public void decodeMissingAttribute() throws ThingParseException {
+        // A switch status packet without an ID or state.
+        BasicThingUtils.decodePacket("{\"client_id\":\"test\",\"type\":2}", false);
+    }
+
+    @Test(expected = ThingParseException.class)
+    public void decodeInvalidJson() throws ThingParseException {
+        BasicThingUtils.decodePacket("not json", false);
+    }
+}